@@ -0,0 +1,66 @@
+package dyorgio.runtime.out.process.benchmark;
+
+import dyorgio.runtime.out.process.DefaultProcessBuilderFactory;
+import dyorgio.runtime.out.process.OutProcessConfig;
+import dyorgio.runtime.out.process.transport.TcpTransport;
+import dyorgio.runtime.out.process.transport.Transport;
+import dyorgio.runtime.out.process.transport.UnixDomainTransport;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Shared setup of the benchmarks. Out processes are started by a
+ * <code>DefaultProcessBuilderFactory</code>, so no elevation prompt shows up
+ * and the suite runs unattended.<br>
+ * Run with <code>./gradlew jmh</code>, JMH options go in
+ * <code>-PjmhArgs</code>, ex: <code>./gradlew jmh -PjmhArgs='ExecutorBenchmark
+ * -p transport=tcp'</code>.
+ */
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Configuration with the pass-through process builder factory.
+     */
+    static OutProcessConfig config() {
+        return new OutProcessConfig()
+                .withProcessBuilderFactory(new DefaultProcessBuilderFactory())
+                .withJavaOptions("-Xmx64m");
+    }
+
+    /**
+     * Transport by scheme, <code>unix</code> needs JDK 16 or later.
+     */
+    static Transport transport(String scheme) {
+        if (UnixDomainTransport.SCHEME.equals(scheme)) {
+            if (!UnixDomainTransport.isSupported()) {
+                throw new IllegalStateException("Unix domain sockets need JDK 16 or later.");
+            }
+            return new UnixDomainTransport();
+        }
+        return new TcpTransport();
+    }
+
+    /**
+     * Swaps <code>System.out</code> for a stream that drops everything, the
+     * transaction server logs every open and close.
+     *
+     * @return The previous stream, to be restored.
+     */
+    static PrintStream silenceOut() {
+        PrintStream previous = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        return previous;
+    }
+}
@@ -0,0 +1,84 @@
+package dyorgio.runtime.out.process.benchmark;
+
+import dyorgio.runtime.out.process.CallableSerializable;
+import dyorgio.runtime.out.process.OutProcessExecutorService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip latency and throughput of an already connected
+ * <code>OutProcessExecutorService</code>.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecutorBenchmark {
+
+    private static final int BATCH = 256;
+    private static final CallableSerializable<Integer> ANSWER = () -> 42;
+
+    @Param({"tcp", "unix"})
+    public String transport;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private OutProcessExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        executor = new OutProcessExecutorService(Benchmarks.config()
+                .withTransport(Benchmarks.transport(transport))
+                .withParallelism(parallelism));
+        if (!executor.awaitConnection(30, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Out process not connected.");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * One task at a time, submit and wait.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public Integer roundTrip() throws Exception {
+        return executor.submit(ANSWER).get();
+    }
+
+    /**
+     * {@value #BATCH} tasks in flight, score is per task.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OperationsPerInvocation(BATCH)
+    public int throughput() {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            futures[i] = executor.submitAsync(ANSWER);
+        }
+        CompletableFuture.allOf(futures).join();
+        return futures.length;
+    }
+}
@@ -0,0 +1,54 @@
+package dyorgio.runtime.out.process.benchmark;
+
+import dyorgio.runtime.out.process.CallableSerializable;
+import dyorgio.runtime.out.process.OneRunOutProcess;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of <code>OneRunOutProcess.call</code>: a JVM per call, with and
+ * without standby JVMs started ahead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class OneRunOutProcessBenchmark {
+
+    private static final CallableSerializable<Integer> ANSWER = () -> 42;
+
+    @Param({"0", "2"})
+    public int standby;
+
+    private OneRunOutProcess process;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        process = new OneRunOutProcess(Benchmarks.config().withStandby(standby));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        process.close();
+    }
+
+    @Benchmark
+    public Integer call() throws Exception {
+        return process.call(ANSWER).getResult();
+    }
+}
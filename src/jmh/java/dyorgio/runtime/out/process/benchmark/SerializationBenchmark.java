@@ -0,0 +1,111 @@
+package dyorgio.runtime.out.process.benchmark;
+
+import dyorgio.runtime.out.process.protocol.PayloadCodec;
+import dyorgio.runtime.out.process.protocol.PayloadCodecs;
+import dyorgio.runtime.out.process.protocol.PayloadDecoder;
+import dyorgio.runtime.out.process.protocol.PayloadEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and encode + decode cost by payload size, per codec. One encoder and
+ * one decoder serve every payload, the way a <code>MessageChannel</code> uses
+ * them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"java", "compact", "java-session"})
+    public String codec;
+
+    /**
+     * Approximate encoded size in bytes.
+     */
+    @Param({"64", "4096", "262144", "4194304"})
+    public int size;
+
+    /**
+     * <code>bytes</code> for a single array, <code>strings</code> for a list
+     * of 16 chars strings.
+     */
+    @Param({"bytes", "strings"})
+    public String shape;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final PayloadInput in = new PayloadInput();
+    private PayloadEncoder encoder;
+    private PayloadDecoder decoder;
+    private Serializable payload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        PayloadCodec payloadCodec = PayloadCodecs.forName(codec);
+        if (payloadCodec == null) {
+            throw new IllegalArgumentException("Unknown codec: " + codec);
+        }
+        encoder = payloadCodec.newEncoder(out);
+        decoder = payloadCodec.newDecoder(in);
+        if ("strings".equals(shape)) {
+            ArrayList<String> strings = new ArrayList<>();
+            for (int i = 0; i < Math.max(1, size / 16); i++) {
+                strings.add(String.format("%016d", i));
+            }
+            payload = strings;
+        } else {
+            payload = new byte[size];
+        }
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        out.reset();
+        encoder.encode(payload);
+        return out.size();
+    }
+
+    @Benchmark
+    public Object roundTrip() throws IOException, ClassNotFoundException {
+        out.reset();
+        encoder.encode(payload);
+        in.current = new ByteArrayInputStream(out.toByteArray());
+        return decoder.decode();
+    }
+
+    private static final class PayloadInput extends InputStream {
+
+        private InputStream current;
+
+        @Override
+        public int read() throws IOException {
+            return current.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return current.read(b, off, len);
+        }
+    }
+}
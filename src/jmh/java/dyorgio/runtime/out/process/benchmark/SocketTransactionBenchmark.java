@@ -0,0 +1,96 @@
+package dyorgio.runtime.out.process.benchmark;
+
+import dyorgio.runtime.out.process.CallableSerializable;
+import dyorgio.runtime.out.process.SocketTransaction;
+import dyorgio.runtime.out.process.protocol.Handshake;
+import dyorgio.runtime.out.process.protocol.MessageChannel;
+import dyorgio.runtime.out.process.transport.Connection;
+import dyorgio.runtime.out.process.transport.Transport;
+import dyorgio.runtime.out.process.transport.Transports;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.PrintStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static dyorgio.runtime.out.process.OutProcessUtils.readCommandExecuteAndRespond;
+
+/**
+ * Cost of a <code>SocketTransaction</code> without any process: opening and
+ * closing the server only, and a full exchange with a fake out process
+ * running on a thread of this JVM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SocketTransactionBenchmark {
+
+    private static final int TIMEOUT_MS = 10000;
+    private static final CallableSerializable<String> PING = () -> "pong";
+
+    @Param({"tcp", "unix"})
+    public String transport;
+
+    private Transport selected;
+    private ExecutorService child;
+    private PrintStream out;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        selected = Benchmarks.transport(transport);
+        child = Executors.newSingleThreadExecutor();
+        out = Benchmarks.silenceOut();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(out);
+        child.shutdownNow();
+    }
+
+    @Benchmark
+    public String setupTeardown() throws Exception {
+        try (SocketTransaction<CallableSerializable<String>, String> transaction =
+                     new SocketTransaction<>(PING, TIMEOUT_MS, selected)) {
+            return transaction.getAddress();
+        }
+    }
+
+    @Benchmark
+    public String exchange() throws Exception {
+        try (SocketTransaction<CallableSerializable<String>, String> transaction =
+                     new SocketTransaction<>(PING, TIMEOUT_MS, selected)) {
+            String address = transaction.getAddress();
+            String secret = transaction.getSecret();
+            Future<?> fake = child.submit(() -> {
+                // what OneRunRemoteMain does, minus the process
+                try (Connection connection = Transports.connect(address)) {
+                    MessageChannel channel = new MessageChannel(connection.getInputStream(), connection.getOutputStream());
+                    Handshake.connect(channel, secret);
+                    readCommandExecuteAndRespond(channel);
+                }
+                return null;
+            });
+            String response = transaction.exchange();
+            fake.get();
+            return response;
+        }
+    }
+}
@@ -20,12 +20,15 @@ import com.scarlatti.runAsRoot.impl.MacRootProcessManager;
 import com.scarlatti.runAsRoot.impl.WinRootProcessManager;
 import dyorgio.runtime.out.process.CallableSerializable;
 import dyorgio.runtime.out.process.OneRunOutProcess;
+import dyorgio.runtime.out.process.OutProcessConfig;
+import dyorgio.runtime.out.process.OutProcessMetrics;
+import dyorgio.runtime.out.process.ResourceLimits;
 import dyorgio.runtime.out.process.RunnableSerializable;
 
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.Locale;
-import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Run serializable <code>Callable</code>s and <code>Runnable</code>s in another
@@ -48,6 +51,11 @@ public class RootExecutor implements Serializable {
      */
     public static final String RUNNING_AS_ROOT = "$RunnningAsRoot";
 
+    /**
+     * Default time an idle session keeps its elevated JVM alive.
+     */
+    public static final long DEFAULT_SESSION_IDLE_TIMEOUT_MS = 60000;
+
     private static final RootProcessManager MANAGER;
 
     static {
@@ -64,6 +72,8 @@ public class RootExecutor implements Serializable {
     }
 
     private final OneRunOutProcess outProcess;
+    private final String[] javaOptions;
+    private final ResourceLimits resourceLimits;
 
     /**
      * Creates an instance with specific java options
@@ -71,7 +81,63 @@ public class RootExecutor implements Serializable {
      * @param javaOptions JVM options (ex:"-xmx32m")
      */
     public RootExecutor(String... javaOptions) throws IOException {
-        this.outProcess = new OneRunOutProcess(MANAGER, javaOptions);
+        this(null, javaOptions);
+    }
+
+    /**
+     * Creates an instance with specific resource limits and java options.
+     * Elevated JVMs, of calls and sessions, run in their own cgroup v2 group
+     * on Linux so they cannot take every core or all memory.
+     *
+     * @param resourceLimits CPU, memory and IO limits, <code>null</code> for
+     * none.
+     * @param javaOptions JVM options (ex:"-xmx32m")
+     * @see ResourceLimits
+     */
+    public RootExecutor(ResourceLimits resourceLimits, String... javaOptions) throws IOException {
+        this.outProcess = new OneRunOutProcess(new OutProcessConfig()
+                .withProcessBuilderFactory(MANAGER)
+                .withJavaOptions(javaOptions)
+                .withResourceLimits(resourceLimits));
+        this.javaOptions = javaOptions;
+        this.resourceLimits = resourceLimits;
+    }
+
+    /**
+     * Opens a session that elevates once and serves many calls with the same
+     * elevated JVM. The JVM is reclaimed after
+     * {@link #DEFAULT_SESSION_IDLE_TIMEOUT_MS} without calls.
+     *
+     * @return A new <code>RootSession</code>, close it when done.
+     * @see RootSession
+     */
+    public RootSession openSession() {
+        return openSession(DEFAULT_SESSION_IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens a session that elevates once and serves many calls with the same
+     * elevated JVM.
+     *
+     * @param idleTimeout Time without calls before the elevated JVM is
+     * reclaimed.
+     * @param unit The time unit of the <code>idleTimeout</code> argument.
+     * @return A new <code>RootSession</code>, close it when done.
+     * @see RootSession
+     */
+    public RootSession openSession(long idleTimeout, TimeUnit unit) {
+        return new RootSession(MANAGER, javaOptions, resourceLimits, unit.toMillis(idleTimeout));
+    }
+
+    /**
+     * Gets the metrics of the calls made by this executor, sessions not
+     * included. The launch phase includes the elevation prompt.
+     *
+     * @return The metrics, can be registered as a JMX MBean.
+     * @see OutProcessMetrics#register(String)
+     */
+    public OutProcessMetrics getMetrics() {
+        return outProcess.getMetrics();
     }
 
     /**
@@ -84,7 +150,7 @@ public class RootExecutor implements Serializable {
      * @see RunnableSerializable
      */
     public void run(RunnableSerializable runnable) throws Exception, UserCanceledException, NotAuthorizedException {
-        execute(runnable, false);
+        execute(new ElevatedCall<Serializable>(runnable));
     }
 
 
@@ -100,37 +166,52 @@ public class RootExecutor implements Serializable {
      * @see CallableSerializable
      */
     public <T extends Serializable> T call(CallableSerializable<T> callable) throws Exception, UserCanceledException, NotAuthorizedException {
-        return (T) execute(callable, true);
+        return execute(new ElevatedCall<>(callable));
     }
 
-    private Serializable execute(final Serializable command, final boolean hasResult) throws Exception, UserCanceledException, NotAuthorizedException {
+    private <T extends Serializable> T execute(final ElevatedCall<T> call) throws Exception, UserCanceledException, NotAuthorizedException {
         if (System.getProperty(RUNNING_AS_ROOT) != null) {
-            if (hasResult) {
-                Callable<? extends Serializable> callable = (Callable<? extends Serializable>) command;
-                return callable.call();
-            } else {
-                ((Runnable) command).run();
-                return null;
-            }
-
+            return call.call();
         }
 
-        OneRunOutProcess.OutProcessResult<Serializable> result = outProcess.call(new CallableSerializable<Serializable>() {
-            @Override
-            public Serializable call() throws Exception {
-                System.setProperty(RUNNING_AS_ROOT, "true");
-                if (hasResult) {
-                    Callable<? extends Serializable> callable = (Callable<? extends Serializable>) command;
-                    return callable.call();
-                } else {
-                    ((Runnable) command).run();
-                    return null;
-                }
-            }
-        });
+        OneRunOutProcess.OutProcessResult<T> result = outProcess.call(call);
 
         MANAGER.handleCode(result.getReturnCode());
 
         return result.getResult();
     }
+
+    /**
+     * Wraps a command to flag the out process as running as root before
+     * executing it.
+     *
+     * @param <T> Result type, <code>Serializable</code> for runnables.
+     */
+    static final class ElevatedCall<T extends Serializable> implements CallableSerializable<T> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final CallableSerializable<T> callable;
+        private final RunnableSerializable runnable;
+
+        ElevatedCall(final CallableSerializable<T> callable) {
+            this.callable = callable;
+            this.runnable = null;
+        }
+
+        ElevatedCall(final RunnableSerializable runnable) {
+            this.callable = null;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public T call() throws Exception {
+            System.setProperty(RUNNING_AS_ROOT, "true");
+            if (callable != null) {
+                return callable.call();
+            }
+            runnable.run();
+            return null;
+        }
+    }
 }
@@ -0,0 +1,283 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package com.scarlatti.runAsRoot;
+
+import dyorgio.runtime.out.process.CallableSerializable;
+import dyorgio.runtime.out.process.OutProcessConfig;
+import dyorgio.runtime.out.process.OutProcessExecutorService;
+import dyorgio.runtime.out.process.ResourceLimits;
+import dyorgio.runtime.out.process.ResourceUsage;
+import dyorgio.runtime.out.process.RunnableSerializable;
+import dyorgio.runtime.out.process.TimerWheel;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.scarlatti.runAsRoot.RootExecutor.RUNNING_AS_ROOT;
+
+/**
+ * A long-lived elevated session created by
+ * <code>RootExecutor.openSession()</code>.<br>
+ * The first <code>run()</code> or <code>call()</code> elevates once and
+ * starts a persistent JVM, every following call is served by the same JVM over
+ * the same connection.<br>
+ * If the session stays idle longer than its idle timeout the elevated JVM is
+ * reclaimed, and the next call elevates again.<br>
+ * Concurrent calls share the same elevation, the session is not locked
+ * while the prompt is up.<br>
+ * On platforms where the elevation launcher exits before the elevated JVM
+ * (Windows), only the connection of the JVM is awaited.<br>
+ * <br>
+ * State/data is shared between calls while the elevated JVM is alive.
+ *
+ * @see RootExecutor#openSession()
+ * @see OutProcessExecutorService
+ */
+public class RootSession implements AutoCloseable {
+
+    /**
+     * Max time to wait for the user to accept the elevation prompt.
+     */
+    private static final long CONNECT_TIMEOUT_MS = 120000;
+
+    private final RootProcessManager manager;
+    private final String[] javaOptions;
+    private final ResourceLimits resourceLimits;
+    private final long idleTimeoutMs;
+
+    private OutProcessExecutorService executor;
+    // elevation in progress, joined by concurrent calls
+    private CompletableFuture<OutProcessExecutorService> elevating;
+    private TimerWheel.Timeout reclaim;
+    // incremented when the session is used, to ignore an older reclaim
+    private long uses;
+    private int inFlight;
+    private boolean closed;
+
+    RootSession(RootProcessManager manager, String[] javaOptions, ResourceLimits resourceLimits, long idleTimeoutMs) {
+        this.manager = manager;
+        this.javaOptions = javaOptions;
+        this.resourceLimits = resourceLimits;
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * Runs runnable in the elevated JVM of this session.
+     *
+     * @param runnable A <code>RunnableSerializable</code> to run.
+     * @throws Exception If cannot create the elevated JVM.
+     * @throws UserCanceledException If user cancel or close prompt.
+     * @throws NotAuthorizedException If user doesn't have root privileges.
+     * @see RunnableSerializable
+     */
+    public void run(RunnableSerializable runnable) throws Exception, UserCanceledException, NotAuthorizedException {
+        execute(new RootExecutor.ElevatedCall<Serializable>(runnable));
+    }
+
+    /**
+     * Calls callable in the elevated JVM of this session.
+     *
+     * @param <T> Result type.
+     * @param callable A <code>CallableSerializable</code> to be called.
+     * @return The result.
+     * @throws Exception If cannot create the elevated JVM.
+     * @throws UserCanceledException If user cancel or close prompt.
+     * @throws NotAuthorizedException If user doesn't have root privileges.
+     * @see CallableSerializable
+     */
+    public <T extends Serializable> T call(CallableSerializable<T> callable) throws Exception, UserCanceledException, NotAuthorizedException {
+        return execute(new RootExecutor.ElevatedCall<>(callable));
+    }
+
+    /**
+     * Checks if this session currently holds an elevated JVM.
+     *
+     * @return <code>true</code> if elevated JVM is alive.
+     */
+    public synchronized boolean isElevated() {
+        return executor != null && executor.getReturnCode() == null;
+    }
+
+    /**
+     * Reads the resources used so far by the elevated JVM of this session.
+     *
+     * @return The resources used, <code>null</code> if not elevated, no
+     * resource limits were set or not running on Linux.
+     * @throws IOException If the counters cannot be read.
+     * @see RootExecutor#RootExecutor(ResourceLimits, String...)
+     */
+    public synchronized ResourceUsage getResourceUsage() throws IOException {
+        return isElevated() ? executor.getResourceUsage() : null;
+    }
+
+    private <T extends Serializable> T execute(final RootExecutor.ElevatedCall<T> call) throws Exception, UserCanceledException, NotAuthorizedException {
+        if (System.getProperty(RUNNING_AS_ROOT) != null) {
+            return call.call();
+        }
+
+        OutProcessExecutorService current = acquire();
+        try {
+            return current.submit(call).get();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Gets the elevated JVM, elevating if needed. The first caller elevates
+     * without holding the session lock, concurrent callers wait for it.
+     */
+    private OutProcessExecutorService acquire() throws Exception, UserCanceledException, NotAuthorizedException {
+        CompletableFuture<OutProcessExecutorService> pending;
+        OutProcessExecutorService dead = null;
+        boolean elevate = false;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Root session is closed.");
+            }
+
+            uses++;
+            if (reclaim != null) {
+                reclaim.cancel();
+                reclaim = null;
+            }
+
+            inFlight++;
+            if (isElevated()) {
+                return executor;
+            }
+            if (elevating == null) {
+                dead = executor;
+                executor = null;
+                elevating = new CompletableFuture<>();
+                elevate = true;
+            }
+            pending = elevating;
+        }
+
+        if (dead != null) {
+            dead.shutdownNow();
+        }
+        if (elevate) {
+            elevate(pending);
+        }
+        try {
+            return pending.get();
+        } catch (ExecutionException e) {
+            release();
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        } catch (InterruptedException e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts the elevated JVM and waits for its connection, the user may be
+     * answering the elevation prompt meanwhile.
+     */
+    private void elevate(CompletableFuture<OutProcessExecutorService> pending) {
+        OutProcessExecutorService started = null;
+        try {
+            started = new OutProcessExecutorService(new OutProcessConfig()
+                    .withProcessBuilderFactory(manager)
+                    .withJavaOptions(javaOptions)
+                    .withResourceLimits(resourceLimits));
+            if (!started.awaitConnection(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Integer code = started.getReturnCode();
+                if (code != null) {
+                    manager.handleCode(code);
+                }
+                throw new IOException("Elevated process did not connect. Return code was " + code);
+            }
+        } catch (Exception e) {
+            if (started != null) {
+                started.shutdownNow();
+            }
+            synchronized (this) {
+                elevating = null;
+            }
+            pending.completeExceptionally(e);
+            return;
+        }
+
+        boolean open;
+        synchronized (this) {
+            elevating = null;
+            open = !closed;
+            if (open) {
+                executor = started;
+            }
+        }
+        if (open) {
+            pending.complete(started);
+        } else {
+            started.shutdownNow();
+            pending.completeExceptionally(new IllegalStateException("Root session is closed."));
+        }
+    }
+
+    private synchronized void release() {
+        inFlight--;
+        if (inFlight == 0 && !closed) {
+            long idleSince = uses;
+            reclaim = TimerWheel.shared().schedule(() -> reclaimIfIdle(idleSince), idleTimeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Reclaims the elevated JVM if no call came since, on the timer thread.
+     * The session lock is only held to detach the JVM, which stops by itself
+     * once its connection is closed.
+     */
+    private void reclaimIfIdle(long idleSince) {
+        OutProcessExecutorService idle;
+        synchronized (this) {
+            if (inFlight != 0 || uses != idleSince) {
+                return;
+            }
+            reclaim = null;
+            idle = executor;
+            executor = null;
+        }
+        if (idle != null) {
+            idle.shutdown();
+        }
+    }
+
+    @Override
+    public void close() {
+        OutProcessExecutorService current;
+        synchronized (this) {
+            closed = true;
+            if (reclaim != null) {
+                reclaim.cancel();
+                reclaim = null;
+            }
+            current = executor;
+            executor = null;
+        }
+        if (current != null) {
+            current.shutdownNow();
+        }
+    }
+}
@@ -25,6 +25,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -74,6 +75,13 @@ public class WinRootProcessManager implements RootProcessManager {
         }
     }
 
+    /**
+     * Creates a script that starts the command elevated, through
+     * <code>runner.bat</code>. The first command (the java binary) is
+     * replaced by the <code>java</code> of <code>java.home</code>, the others
+     * are passed to it in the <code>COMMA_SEPARATED_ARGS_LIST</code>
+     * environment variable.
+     */
     @Override
     public ProcessBuilder create(List<String> commands) throws Exception {
 
@@ -81,11 +89,6 @@ public class WinRootProcessManager implements RootProcessManager {
 
         StringBuilder builder = new StringBuilder();
         builder.append(String.format("cd %s\\bin%n", System.getProperty("java.home")));
-
-        for (String command : commands) {
-            builder.append(command).append(' ');
-        }
-
         builder.append(COMMAND_TO_ADMIN);
 
         try (FileOutputStream out = new FileOutputStream(file)) {
@@ -97,7 +100,23 @@ public class WinRootProcessManager implements RootProcessManager {
             out.flush();
         }
 
-        return new ProcessBuilder("cmd.exe", "/c ", file.getAbsolutePath()).inheritIO();
+        List<String> args = new ArrayList<>();
+        for (int i = 1; i < commands.size(); i++) {
+            // powershell likes the classpath to be wrapped with single quotes
+            args.add("-cp".equals(commands.get(i - 1)) ? "'" + commands.get(i) + "'" : commands.get(i));
+        }
+
+        ProcessBuilder processBuilder = new ProcessBuilder("cmd.exe", "/c ", file.getAbsolutePath()).inheritIO();
+        processBuilder.environment().put("COMMA_SEPARATED_ARGS_LIST", String.join(", ", args));
+        return processBuilder;
+    }
+
+    /**
+     * The script exits once the elevated JVM is started.
+     */
+    @Override
+    public boolean isDetached() {
+        return true;
     }
 
     @Override
@@ -0,0 +1,38 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+/**
+ * Receives the metrics of every out process call, ex: to log slow calls or
+ * feed a metrics library.<br>
+ * Called by the thread that completes the call, sometimes the one reading the
+ * responses of the out process, so it must return fast and never block.
+ * Exceptions are ignored.
+ *
+ * @see OutProcessConfig#withCallListener(CallListener)
+ * @see CallMetrics
+ * @see OutProcessMetrics
+ */
+@FunctionalInterface
+public interface CallListener {
+
+    /**
+     * Called once per call, after its result or error is known.
+     *
+     * @param metrics Phase timestamps and byte counts of the call.
+     */
+    void onCall(CallMetrics metrics);
+}
@@ -0,0 +1,256 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Where the time of one out process call went: the end of each phase, as
+ * nanoseconds since the call started, and the size of the request and
+ * response frames.<br>
+ * Phases happen in declaration order, those that are not part of a call are
+ * not recorded, ex: a task of an executor never spawns a JVM, and a call
+ * served by a standby JVM finds it already connected.
+ *
+ * @see CallListener
+ * @see OutProcessMetrics
+ */
+public final class CallMetrics {
+
+    /**
+     * Phases of a call.
+     */
+    public enum Phase {
+        /**
+         * Creating and starting the out process, the
+         * <code>ProcessBuilderFactory</code> included.
+         */
+        SPAWN,
+        /**
+         * From process start to the out process main method: elevation
+         * prompt and JVM boot. Measured with the wall clock of both JVMs,
+         * millisecond precision.
+         */
+        LAUNCH,
+        /**
+         * From the out process main method to its <code>HELLO</code>.
+         */
+        CONNECT,
+        /**
+         * Secret check and codec agreement, until the <code>WELCOME</code>
+         * is written.
+         */
+        HANDSHAKE,
+        /**
+         * Waiting for a free task slot of the out process.
+         */
+        QUEUE,
+        /**
+         * Encoding and writing the request.
+         */
+        SERIALIZE,
+        /**
+         * From request written to response received: request decoding,
+         * execution and response encoding in the out process, plus transit.
+         */
+        EXECUTE,
+        /**
+         * Decoding the response.
+         */
+        DESERIALIZE
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final String source;
+    private final long startedAt = System.currentTimeMillis();
+    private final long start = System.nanoTime();
+    // nanos since start, -1 if not recorded
+    private final AtomicLongArray ends = new AtomicLongArray(PHASES.length);
+    private volatile long requestBytes = -1;
+    private volatile long responseBytes = -1;
+    private volatile long totalNanos = -1;
+    private volatile Throwable failure;
+    // finish plus recorders still running, published when none is left
+    private final AtomicInteger holds = new AtomicInteger(1);
+
+    CallMetrics(String source) {
+        this.source = source;
+        for (int i = 0; i < PHASES.length; i++) {
+            ends.set(i, -1);
+        }
+    }
+
+    void record(Phase phase) {
+        record(phase, System.nanoTime());
+    }
+
+    void record(Phase phase, long nanoTime) {
+        ends.set(phase.ordinal(), Math.max(0, nanoTime - start));
+    }
+
+    /**
+     * Records the end of <code>LAUNCH</code> from the out process clock.
+     *
+     * @param launchedAt When the out process main method started, in
+     * milliseconds since epoch.
+     */
+    void recordLaunch(long launchedAt) {
+        long elapsed = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - launchedAt);
+        record(Phase.LAUNCH, System.nanoTime() - Math.max(0, elapsed));
+    }
+
+    void setRequestBytes(long requestBytes) {
+        this.requestBytes = requestBytes;
+    }
+
+    void setResponseBytes(long responseBytes) {
+        this.responseBytes = responseBytes;
+    }
+
+    /**
+     * Delays publication until <code>release()</code>, for a thread that may
+     * still record after the call is finished by another one.
+     */
+    void hold() {
+        holds.incrementAndGet();
+    }
+
+    /**
+     * @return <code>true</code> if the call is finished and nothing else
+     * holds it, it must be published.
+     */
+    boolean release() {
+        return holds.decrementAndGet() == 0;
+    }
+
+    /**
+     * @return <code>true</code> if nothing holds the call, it must be
+     * published.
+     */
+    boolean finish(Throwable failure) {
+        this.failure = failure;
+        this.totalNanos = System.nanoTime() - start;
+        return release();
+    }
+
+    /**
+     * Gets what made the call, ex: <code>OutProcessExecutorService</code>.
+     *
+     * @return The simple class name of the caller.
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Gets when the call started.
+     *
+     * @return Milliseconds since epoch.
+     */
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * Gets when a phase ended.
+     *
+     * @param phase The phase.
+     * @return Nanoseconds since the call started, <code>-1</code> if the
+     * phase is not part of this call.
+     */
+    public long getTimestamp(Phase phase) {
+        return ends.get(phase.ordinal());
+    }
+
+    /**
+     * Gets how long a phase took: from the end of the previous recorded
+     * phase, or the call start, to its end.
+     *
+     * @param phase The phase.
+     * @return Nanoseconds, <code>-1</code> if the phase is not part of this
+     * call.
+     */
+    public long getNanos(Phase phase) {
+        long end = ends.get(phase.ordinal());
+        if (end < 0) {
+            return -1;
+        }
+        for (int i = phase.ordinal() - 1; i >= 0; i--) {
+            long previous = ends.get(i);
+            if (previous >= 0) {
+                return Math.max(0, end - previous);
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Gets the call duration.
+     *
+     * @return Nanoseconds from call start to result or error known.
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * Gets the size of the request frame.
+     *
+     * @return Bytes, frame header included, <code>-1</code> if the request
+     * was never written.
+     */
+    public long getRequestBytes() {
+        return requestBytes;
+    }
+
+    /**
+     * Gets the size of the response frame.
+     *
+     * @return Bytes, frame header included, <code>-1</code> if no response
+     * was received.
+     */
+    public long getResponseBytes() {
+        return responseBytes;
+    }
+
+    /**
+     * Gets why the call failed.
+     *
+     * @return The error, <code>null</code> if the call succeeded.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("CallMetrics{source=").append(source);
+        for (Phase phase : PHASES) {
+            long nanos = getNanos(phase);
+            if (nanos >= 0) {
+                builder.append(", ").append(phase).append('=').append(nanos / 1000).append("us");
+            }
+        }
+        return builder.append(", total=").append(totalNanos / 1000).append("us")
+                .append(", requestBytes=").append(requestBytes)
+                .append(", responseBytes=").append(responseBytes)
+                .append(", failure=").append(failure)
+                .append('}').toString();
+    }
+}
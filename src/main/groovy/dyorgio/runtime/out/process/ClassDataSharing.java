@@ -0,0 +1,247 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static dyorgio.runtime.out.process.OutProcessUtils.fingerprint;
+
+/**
+ * AppCDS archive of the classes loaded by out processes, shared by every out
+ * process started with the same JDK, classpath and options.<br>
+ * The first out process records the classes it loads, when it exits an
+ * archive is dumped from that list in background. Next out processes map the
+ * archive instead of loading and verifying those classes again.<br>
+ * Archives are named by JDK, classpath and options, and stamped with the
+ * size and modification time of the classpath entries: an archive whose
+ * entries changed is deleted and recorded again.<br>
+ * Requires JDK 11 or newer and a classpath made of jars only (CDS refuses non
+ * empty directories), otherwise nothing is done. A broken archive is ignored
+ * by the JVM, out processes just start without it. A failed recording or
+ * dump leaves a <code>.failed</code> marker and a <code>.log</code> beside the
+ * archive, it is not tried again until the classpath changes.
+ *
+ * @see OutProcessConfig#withClassDataSharing(File)
+ */
+final class ClassDataSharing {
+
+    private static final int MIN_JAVA_VERSION = 11;
+
+    // archives being recorded or dumped by this JVM
+    private static final Set<String> BUSY = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    private final String javaHome;
+    private final String launchClasspath;
+    private final String[] javaOptions;
+    private final File directory;
+    private final String name;
+    private final String stamp;
+    private boolean recording;
+
+    private ClassDataSharing(File directory, String classpath, String launchClasspath, String[] javaOptions) {
+        this.javaHome = System.getProperty("java.home");
+        this.launchClasspath = launchClasspath;
+        this.javaOptions = javaOptions;
+        this.directory = directory;
+
+        StringBuilder key = new StringBuilder();
+        key.append(javaHome).append('\n').append(System.getProperty("java.vm.version")).append('\n').append(launchClasspath);
+        for (String option : javaOptions) {
+            key.append('\n').append(option);
+        }
+        this.name = "out-process-" + fingerprint(key.toString());
+
+        StringBuilder entries = new StringBuilder();
+        for (String entry : classpath.split(File.pathSeparator)) {
+            File file = new File(entry);
+            entries.append(entry).append(':').append(file.length()).append(':').append(file.lastModified()).append('\n');
+        }
+        this.stamp = fingerprint(entries.toString());
+    }
+
+    /**
+     * Prepares the archive of an out process.
+     *
+     * @param directory Where archives are kept, created if missing.
+     * @param classpath Out process classpath.
+     * @param launchClasspath Classpath of the out process command, the
+     * classpath itself or its pathing jar.
+     * @param javaOptions Out process JVM options.
+     * @return The archive or <code>null</code> if class data sharing is not
+     * supported.
+     */
+    static ClassDataSharing of(File directory, String classpath, String launchClasspath, String[] javaOptions) {
+        if (directory == null || javaVersion() < MIN_JAVA_VERSION) {
+            return null;
+        }
+        for (String entry : classpath.split(File.pathSeparator)) {
+            String[] children = new File(entry).list();
+            if (children == null ? entry.endsWith("*") : children.length > 0) {
+                return null;
+            }
+        }
+        try {
+            Files.createDirectories(directory.toPath());
+            return new ClassDataSharing(directory, classpath, launchClasspath, javaOptions);
+        } catch (IOException e) {
+            // nowhere to write a log, out processes start without archive
+            OutProcessUtils.reportUncaught(e);
+            return null;
+        }
+    }
+
+    /**
+     * Gets the options to add to the out process command: uses the archive if
+     * it is ready, otherwise records the loaded classes if nobody is doing
+     * it.<br>
+     * Call <code>started</code> once the out process is running.
+     *
+     * @return The JVM options, may be empty.
+     */
+    List<String> getJavaOptions() {
+        File archive = file(".jsa");
+        File classList = file(".classlist");
+        if (archive.isFile()) {
+            return Collections.singletonList("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+        }
+        if (file(".failed").isFile() || !BUSY.add(name)) {
+            return Collections.emptyList();
+        }
+        deleteStale();
+        if (classList.isFile()) {
+            // recorded before, but never dumped
+            dumpInBackground(null);
+            return Collections.emptyList();
+        }
+        recording = true;
+        return Collections.singletonList("-XX:DumpLoadedClassList=" + file(".classlist.tmp").getAbsolutePath());
+    }
+
+    /**
+     * Dumps the archive in background after the recording out process exits.
+     *
+     * @param process The out process.
+     */
+    void started(Process process) {
+        if (recording) {
+            recording = false;
+            dumpInBackground(process);
+        }
+    }
+
+    /**
+     * Releases the recording if the out process could not start.
+     */
+    void failed() {
+        if (recording) {
+            recording = false;
+            BUSY.remove(name);
+        }
+    }
+
+    private void dumpInBackground(Process recorder) {
+        Thread thread = new Thread(() -> {
+            try {
+                if (recorder != null) {
+                    recorder.waitFor();
+                    Files.move(file(".classlist.tmp").toPath(), file(".classlist").toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                dump();
+            } catch (IOException | InterruptedException e) {
+                markFailed(e);
+            } finally {
+                BUSY.remove(name);
+            }
+        }, "out-process-cds-dump");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void dump() throws IOException, InterruptedException {
+        File temp = file(".jsa.tmp");
+        List<String> commandList = new ArrayList<>();
+        commandList.add(javaHome + "/bin/java");
+        commandList.addAll(Arrays.asList(javaOptions));
+        commandList.add("-Xshare:dump");
+        commandList.add("-XX:SharedClassListFile=" + file(".classlist").getAbsolutePath());
+        commandList.add("-XX:SharedArchiveFile=" + temp.getAbsolutePath());
+        commandList.add("-cp");
+        commandList.add(launchClasspath);
+
+        ProcessBuilder builder = new ProcessBuilder(commandList).redirectErrorStream(true).redirectOutput(file(".log"));
+        if (builder.start().waitFor() == 0 && temp.isFile()) {
+            Files.move(temp.toPath(), file(".jsa").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            // don't try again until the classpath changes, see the log
+            Files.deleteIfExists(temp.toPath());
+            Files.createFile(file(".failed").toPath());
+        }
+    }
+
+    /**
+     * Marks the archive as failed, like a failed dump, with the error in its
+     * log.
+     */
+    private void markFailed(Exception error) {
+        try (PrintStream log = new PrintStream(new FileOutputStream(file(".log"), true), true, "UTF-8")) {
+            error.printStackTrace(log);
+        } catch (IOException e) {
+            // the marker is enough
+        }
+        try {
+            file(".failed").createNewFile();
+        } catch (IOException e) {
+            // recorded again by the next out process
+        }
+    }
+
+    /**
+     * Deletes files of this archive made for older classpath entries.
+     */
+    private void deleteStale() {
+        String prefix = name + "-";
+        File[] files = directory.listFiles((dir, file) -> file.startsWith(prefix) && !file.startsWith(prefix + stamp + "."));
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private File file(String extension) {
+        return new File(directory, name + "-" + stamp + extension);
+    }
+
+    private static int javaVersion() {
+        String version = System.getProperty("java.specification.version");
+        try {
+            return version.startsWith("1.") ? Integer.parseInt(version.substring(2)) : Integer.parseInt(version);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
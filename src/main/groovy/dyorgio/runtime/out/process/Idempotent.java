@@ -0,0 +1,31 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+/**
+ * Marks tasks that can safely run more than once. If the out process running
+ * an idempotent task dies (crash, killed by the OS, no heartbeat), the task
+ * is sent again to the new out process instead of failing, up to the max
+ * replays of the config. Other tasks running in that out process fail.
+ * <pre>
+ * executor.submit((CallableSerializable&lt;Report&gt; &amp; Idempotent) () -&gt; render(reportId));
+ * </pre>
+ *
+ * @see OutProcessConfig#withMaxReplays(int)
+ * @see OutProcessConfig#withHeartbeat(long, long, java.util.concurrent.TimeUnit)
+ */
+public interface Idempotent {
+}
@@ -0,0 +1,132 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import dyorgio.runtime.out.process.protocol.SharedMemory;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * Bulk binary data that can be a task input or result, anywhere in the
+ * object graph.<br>
+ * When shared memory is enabled and the data is big enough, it is written to
+ * a memory-mapped file and the receiver maps the same file: only the file
+ * name goes through the connection and nothing is copied into the receiver
+ * heap. Otherwise it is serialized as a plain byte array.
+ * <pre>
+ * OutProcessExecutorService executor = new OutProcessExecutorService(new OutProcessConfig()
+ *     .withSharedMemoryThreshold(1024 * 1024));
+ * MappedBytes dump = executor.submit((CallableSerializable&lt;MappedBytes&gt;) () -&gt; new MappedBytes(readHugeFile())).get();
+ * </pre>
+ *
+ * @see OutProcessConfig#withSharedMemoryThreshold(int)
+ * @see SharedMemory
+ */
+public final class MappedBytes implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private transient ByteBuffer buffer;
+
+    /**
+     * Wraps a byte array, not copied.
+     *
+     * @param bytes The data.
+     */
+    public MappedBytes(byte[] bytes) {
+        this(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Wraps a buffer content from its position to its limit, not copied.
+     *
+     * @param buffer The data.
+     */
+    public MappedBytes(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+    }
+
+    /**
+     * Gets the data, memory-mapped if received through shared memory.
+     *
+     * @return A new buffer over the data, changes to its content are visible
+     * to this instance only.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer.duplicate();
+    }
+
+    /**
+     * Copies the data into a new array.
+     *
+     * @return The data.
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    public int length() {
+        return buffer.remaining();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        SharedMemory sharedMemory = SharedMemory.current();
+        int length = buffer.remaining();
+        if (sharedMemory != null && sharedMemory.isWritable() && length >= sharedMemory.getThreshold()) {
+            out.writeBoolean(true);
+            out.writeUTF(sharedMemory.write(buffer));
+            out.writeInt(length);
+        } else {
+            out.writeBoolean(false);
+            out.writeInt(length);
+            if (buffer.hasArray()) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+            } else {
+                out.write(toByteArray());
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (in.readBoolean()) {
+            String region = in.readUTF();
+            int length = in.readInt();
+            SharedMemory sharedMemory = SharedMemory.current();
+            if (sharedMemory == null) {
+                throw new InvalidObjectException("Shared memory is not enabled.");
+            }
+            buffer = sharedMemory.map(region, length);
+        } else {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            buffer = ByteBuffer.wrap(bytes);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MappedBytes{length=" + buffer.remaining() + '}';
+    }
+}
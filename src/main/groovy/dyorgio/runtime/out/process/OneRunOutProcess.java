@@ -21,8 +21,15 @@ import dyorgio.runtime.out.process.OutProcessUtils;
 import dyorgio.runtime.out.process.ProcessBuilderFactory;
 import dyorgio.runtime.out.process.RunnableSerializable;
 import dyorgio.runtime.out.process.entrypoint.OneRunRemoteMain;
-import org.apache.commons.lang3.StringUtils;
-
+import dyorgio.runtime.out.process.protocol.Compression;
+import dyorgio.runtime.out.process.protocol.JavaSerializationCodec;
+import dyorgio.runtime.out.process.protocol.MessageChannel;
+import dyorgio.runtime.out.process.protocol.PayloadCodec;
+import dyorgio.runtime.out.process.transport.TcpTransport;
+import dyorgio.runtime.out.process.transport.Transport;
+
+import java.io.File;
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
@@ -31,7 +38,13 @@ import java.net.Socket;
 import java.security.cert.X509Certificate;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static dyorgio.runtime.out.process.OutProcessUtils.RUNNING_AS_OUT_PROCESS;
 import static dyorgio.runtime.out.process.OutProcessUtils.getCurrentClasspath;
@@ -41,6 +54,9 @@ import static dyorgio.runtime.out.process.OutProcessUtils.getCurrentClasspath;
  * JVM.<br>
  * Every <code>run()</code> or <code>call()</code> creates a new JVM and destroy
  * it.<br>
+ * To hide the JVM start time, some JVMs can be started in advance and wait
+ * for calls, see <code>OutProcessConfig#withStandby(int)</code>. Such
+ * instances must be closed.<br>
  * Normally this class can be a singleton if classpath and jvmOptions are always
  * equals, otherwise create a new instance for every cenario.<br>
  * <br>
@@ -52,11 +68,29 @@ import static dyorgio.runtime.out.process.OutProcessUtils.getCurrentClasspath;
  * @see RunnableSerializable
  * @see OutProcessExecutorService
  */
-public class OneRunOutProcess implements Serializable {
+public class OneRunOutProcess implements Serializable, AutoCloseable {
+
+    private static final long OUTPUT_DRAIN_TIMEOUT_MS = 1000;
 
     private final transient ProcessBuilderFactory processBuilderFactory;
     private final transient String classpath;
     private final transient String[] javaOptions;
+    private final transient PayloadCodec codec;
+    private final transient Transport transport;
+    private final transient long timeoutMs;
+    private final transient File classDataSharing;
+    private final transient File pathingJar;
+    private final transient File remoteClassLoading;
+    private final transient ResourceLimits resourceLimits;
+    private final transient int outputCapacity;
+    private final transient OutputSink outputSink;
+    private final transient int maxFrameSize;
+    private final transient ClassLoader classLoader = contextClassLoader();
+    private final transient Queue<Standby> standbys;
+    private final transient ExecutorService starter;
+    private final transient AtomicInteger inFlight = new AtomicInteger();
+    private final transient OutProcessMetrics metrics;
+    private transient volatile boolean closed;
 
     /**
      * Creates an instance with specific java options
@@ -114,6 +148,57 @@ public class OneRunOutProcess implements Serializable {
         this.processBuilderFactory = processBuilderFactory;
         this.classpath = classpath == null ? getCurrentClasspath() : classpath;
         this.javaOptions = javaOptions;
+        this.codec = new JavaSerializationCodec();
+        this.transport = new TcpTransport();
+        this.timeoutMs = 0;
+        this.classDataSharing = null;
+        this.pathingJar = null;
+        this.remoteClassLoading = null;
+        this.resourceLimits = null;
+        this.outputCapacity = 0;
+        this.outputSink = null;
+        this.maxFrameSize = MessageChannel.DEFAULT_MAX_FRAME_SIZE;
+        this.standbys = null;
+        this.starter = null;
+        this.metrics = newMetrics(null, 0);
+    }
+
+    /**
+     * Creates an instance with specific config
+     *
+     * @param config Settings used to start and talk to the JVMs, parallelism
+     * and max in flight are ignored.
+     * @see OutProcessConfig
+     */
+    public OneRunOutProcess(OutProcessConfig config) {
+        this.processBuilderFactory = config.getProcessBuilderFactory();
+        this.classpath = config.getClasspath();
+        this.javaOptions = config.getJavaOptions();
+        this.codec = config.getCodec();
+        this.transport = config.getTransport();
+        this.timeoutMs = config.getTaskTimeoutMs();
+        this.classDataSharing = config.getClassDataSharing();
+        this.pathingJar = config.getPathingJar();
+        this.remoteClassLoading = config.getRemoteClassLoading();
+        this.resourceLimits = config.getResourceLimits();
+        this.outputCapacity = config.getOutputCapacity();
+        this.outputSink = config.getOutputSink();
+        this.maxFrameSize = config.getMaxFrameSize();
+        this.metrics = newMetrics(config.getCallListener(), config.getCompressionThreshold());
+        if (config.getStandby() > 0) {
+            this.standbys = new ConcurrentLinkedQueue<>();
+            this.starter = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "out-process-standby");
+                thread.setDaemon(true);
+                return thread;
+            });
+            for (int i = 0; i < config.getStandby(); i++) {
+                starter.execute(this::startStandby);
+            }
+        } else {
+            this.standbys = null;
+            this.starter = null;
+        }
     }
 
     /**
@@ -155,32 +240,40 @@ public class OneRunOutProcess implements Serializable {
     }
 
     private <T extends Serializable> OutProcessResult<T> getResult(CallableSerializable<T> callable, String[] javaOptions, String classpath, ProcessBuilderFactory processBuilderFactory) throws Exception{
+        CallMetrics call = metrics.newCall();
+        inFlight.incrementAndGet();
+        Throwable failure = null;
+        try {
+            return getResult(callable, call, javaOptions, classpath, processBuilderFactory);
+        } catch (Throwable e) {
+            failure = e;
+            throw e;
+        } finally {
+            inFlight.decrementAndGet();
+            metrics.finish(call, failure);
+        }
+    }
 
-        try (SocketTransaction<CallableSerializable<T>, Serializable> tx = new SocketTransaction<>(callable, 5000)) {
-
-            // create out process command
-            List<String> commandList = new ArrayList<>();
-            commandList.addAll(Arrays.asList(javaOptions));
-            commandList.add("-cp");
-            commandList.add(StringUtils.wrap(classpath, '\''));  // powershell likes the classpath to be wrapped with single quotes
-            commandList.add(OneRunRemoteMain.class.getName());
-            commandList.add(String.valueOf(tx.getPort()));
-            commandList.add(tx.getSecret());
-
-            // adjust in processBuilderFactory and starts
-            ProcessBuilder builder = processBuilderFactory.create(Collections.emptyList());
+    private <T extends Serializable> OutProcessResult<T> getResult(CallableSerializable<T> callable, CallMetrics call, String[] javaOptions, String classpath, ProcessBuilderFactory processBuilderFactory) throws Exception{
 
-            String commaSeparatedArgsList = StringUtils.join(commandList, ", ");
-            builder.environment().put("COMMA_SEPARATED_ARGS_LIST", commaSeparatedArgsList);
+        Standby standby = takeStandby();
+        if (standby == null) {
+            standby = start(javaOptions, classpath, processBuilderFactory, call);
+        }
 
-            // TODO probably don't need these...
-            builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
-            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        try (SocketTransaction<CallableSerializable<?>, Serializable> tx = standby.tx) {
 
-            Process process = builder.start();
+            tx.withMetrics(call).setRequest(callable);
+            Process process = standby.process;
 
+            TimerWheel.Timeout kill = timeoutMs > 0 ? TimerWheel.shared().schedule(process::destroyForcibly, timeoutMs, TimeUnit.MILLISECONDS) : null;
             int returnCode = process.waitFor();
-            System.out.println("got return code: " + returnCode);
+            ResourceUsage usage = standby.releaseGroup();
+            standby.awaitOutput();
+
+            if (kill != null && !kill.cancel()) {
+                throw new SocketTransaction.TransactionTimeoutException("Out process destroyed after " + timeoutMs + " ms.");
+            }
 
             if (returnCode != 0) {
                 throw new RuntimeException("Unable to start installation process. " +
@@ -190,7 +283,7 @@ public class OneRunOutProcess implements Serializable {
             // otherwise, wait for a max of 10 seconds for the installation to complete
             Serializable response = tx.exchange();
 
-            return new OutProcessResult(response, returnCode);
+            return new OutProcessResult(response, returnCode, usage, tx.getOutput());
 
         } catch (SocketTransaction.TransactionTimeoutException e) {
             throw new ExecutionException("Callable timed out.", e);
@@ -199,6 +292,135 @@ public class OneRunOutProcess implements Serializable {
         }
     }
 
+    /**
+     * Starts a JVM that connects and waits for its request.
+     */
+    private Standby start(String[] javaOptions, String classpath, ProcessBuilderFactory processBuilderFactory, CallMetrics call) throws Exception {
+
+        SocketTransaction<CallableSerializable<?>, Serializable> tx = new SocketTransaction<CallableSerializable<?>, Serializable>(null, 5000, transport)
+                .withCodec(codec)
+                .withClassLoader(classLoader)
+                .withCompression(metrics.getCompression())
+                .withMetrics(call)
+                .withMaxFrameSize(maxFrameSize)
+                .withOutput(outputCapacity > 0 ? new TaskOutput(outputCapacity) : null, outputSink);
+        if (remoteClassLoading != null) {
+            classpath = OutProcessUtils.getEntrypointClasspath();
+        }
+        String launchClasspath = OutProcessUtils.getLaunchClasspath(classpath, pathingJar);
+        ClassDataSharing cds = ClassDataSharing.of(classDataSharing, classpath, launchClasspath, javaOptions);
+        try {
+            ResourceGroup group = ResourceGroup.create(resourceLimits);
+            // create out process command
+            List<String> commandList = new ArrayList<>();
+            commandList.add(System.getProperty("java.home") + "/bin/java");
+            if (cds != null) {
+                commandList.addAll(cds.getJavaOptions());
+            }
+            commandList.addAll(Arrays.asList(javaOptions));
+            if (remoteClassLoading != null) {
+                commandList.add("-D" + OutProcessUtils.REMOTE_CLASSES + "=" + remoteClassLoading.getAbsolutePath());
+            }
+            commandList.add("-cp");
+            commandList.add(launchClasspath);
+            commandList.add(OneRunRemoteMain.class.getName());
+            commandList.add(tx.getAddress());
+            commandList.add(tx.getSecret());
+            commandList.add(String.valueOf(outputCapacity > 0));
+
+            // adjust in processBuilderFactory and starts
+            ProcessBuilder builder = processBuilderFactory.create(group == null ? commandList : group.wrap(commandList));
+            if (outputCapacity > 0) {
+                // what the JVM writes by itself belongs to the call too
+                builder.redirectOutput(ProcessBuilder.Redirect.PIPE);
+                builder.redirectError(ProcessBuilder.Redirect.PIPE);
+            }
+
+            Process process = builder.start();
+            if (call != null) {
+                call.record(CallMetrics.Phase.SPAWN);
+            }
+            if (cds != null) {
+                cds.started(process);
+            }
+            Thread[] drains = outputCapacity > 0 ? new Thread[]{
+                TaskOutput.drain(process.getInputStream(), false, 1, tx.getOutput(), outputSink),
+                TaskOutput.drain(process.getErrorStream(), true, 1, tx.getOutput(), outputSink)} : new Thread[0];
+            return new Standby(tx, process, group, drains);
+        } catch (Exception e) {
+            if (cds != null) {
+                cds.failed();
+            }
+            tx.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes a started JVM, if any, and starts another one in background.
+     *
+     * @return The JVM or <code>null</code> if none is ready.
+     */
+    private Standby takeStandby() {
+        if (standbys == null || closed) {
+            return null;
+        }
+        Standby standby;
+        while ((standby = standbys.poll()) != null) {
+            try {
+                starter.execute(this::startStandby);
+            } catch (RejectedExecutionException e) {
+                // closed meanwhile
+            }
+            if (standby.process.isAlive()) {
+                return standby;
+            }
+            // died while waiting
+            standby.discard();
+        }
+        return null;
+    }
+
+    private void startStandby() {
+        if (closed) {
+            return;
+        }
+        try {
+            standbys.add(start(javaOptions, classpath, processBuilderFactory, null));
+        } catch (Exception e) {
+            // next calls start their own JVM and fail with the error
+            OutProcessUtils.reportUncaught(e);
+        }
+        if (closed) {
+            discardStandbys();
+        }
+    }
+
+    private void discardStandbys() {
+        Standby standby;
+        while ((standby = standbys.poll()) != null) {
+            standby.discard();
+        }
+    }
+
+    /**
+     * Destroys the JVMs waiting for calls, if standby is enabled, and
+     * unregisters the metrics MBean. Calls made after this start their own
+     * JVM.
+     *
+     * @see OutProcessConfig#withStandby(int)
+     */
+    @Override
+    public void close() {
+        metrics.unregister();
+        if (standbys == null || closed) {
+            return;
+        }
+        closed = true;
+        starter.shutdown();
+        discardStandbys();
+    }
+
     /**
      * Represents the result of a out process call
      *
@@ -210,10 +432,18 @@ public class OneRunOutProcess implements Serializable {
 
         private final V result;
         private final int returnCode;
+        private final ResourceUsage resourceUsage;
+        private final TaskOutput output;
 
         private OutProcessResult(final V result, final int returnCode) {
+            this(result, returnCode, null, null);
+        }
+
+        private OutProcessResult(final V result, final int returnCode, final ResourceUsage resourceUsage, final TaskOutput output) {
             this.result = result;
             this.returnCode = returnCode;
+            this.resourceUsage = resourceUsage;
+            this.output = output;
         }
 
         public V getResult() {
@@ -223,6 +453,126 @@ public class OneRunOutProcess implements Serializable {
         public int getReturnCode() {
             return returnCode;
         }
+
+        /**
+         * Gets the resources used by the JVM, read from its cgroup v2 group
+         * after it exited. Memory current is then 0, see the peak.
+         *
+         * @return The resources used, <code>null</code> if no resource
+         * limits were set, not running on Linux or the group could not be
+         * read.
+         * @see OutProcessConfig#withResourceLimits(ResourceLimits)
+         */
+        public ResourceUsage getResourceUsage() {
+            return resourceUsage;
+        }
+
+        /**
+         * Gets the output printed by the callable to <code>System.out</code>
+         * and <code>System.err</code>, its last bytes if too long.
+         *
+         * @return The output, <code>null</code> if output is not captured.
+         * @see OutProcessConfig#withOutputCapture(int, OutputSink)
+         */
+        public TaskOutput getOutput() {
+            return output;
+        }
+    }
+
+    /**
+     * Gets the metrics of the calls made by this instance. Queue depth is
+     * always 0, workers are the JVMs running calls or in standby.
+     *
+     * @return The metrics, can be registered as a JMX MBean.
+     * @see OutProcessMetrics#register(String)
+     */
+    public OutProcessMetrics getMetrics() {
+        return metrics;
+    }
+
+    private OutProcessMetrics newMetrics(CallListener listener, int compressionThreshold) {
+        return new OutProcessMetrics(OneRunOutProcess.class.getSimpleName(), listener, new OutProcessMetrics.Gauges() {
+            @Override
+            public int getInFlight() {
+                return inFlight.get();
+            }
+
+            @Override
+            public int getQueueDepth() {
+                return 0;
+            }
+
+            @Override
+            public int getWorkers() {
+                return inFlight.get() + (standbys == null ? 0 : standbys.size());
+            }
+        }, compressionThreshold > 0 ? new Compression(compressionThreshold) : null);
+    }
+
+    private static ClassLoader contextClassLoader() {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        return loader == null ? OneRunOutProcess.class.getClassLoader() : loader;
+    }
+
+    /**
+     * A started JVM and the transaction it is connected to.
+     */
+    private static final class Standby {
+
+        private final SocketTransaction<CallableSerializable<?>, Serializable> tx;
+        private final Process process;
+        private final ResourceGroup group;
+        private final Thread[] drains;
+
+        private Standby(SocketTransaction<CallableSerializable<?>, Serializable> tx, Process process, ResourceGroup group, Thread[] drains) {
+            this.tx = tx;
+            this.process = process;
+            this.group = group;
+            this.drains = drains;
+        }
+
+        /**
+         * Waits for the last lines written by the exited JVM, a child process
+         * still holding its streams is not waited for long.
+         */
+        private void awaitOutput() throws InterruptedException {
+            for (Thread drain : drains) {
+                drain.join(OUTPUT_DRAIN_TIMEOUT_MS);
+            }
+        }
+
+        /**
+         * Reads the usage of the exited JVM and removes its group.
+         */
+        private ResourceUsage releaseGroup() {
+            if (group == null) {
+                return null;
+            }
+            try {
+                return group.getUsage();
+            } catch (IOException e) {
+                return null;
+            } finally {
+                group.remove();
+            }
+        }
+
+        private void discard() {
+            process.destroyForcibly();
+            if (group != null) {
+                try {
+                    process.waitFor(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                group.remove();
+            }
+            try {
+                tx.close();
+            } catch (Exception e) {
+                // the process is gone anyway
+            }
+        }
     }
 
     private static final class RunnableCallableWrapper implements CallableSerializable<Serializable> {
@@ -0,0 +1,715 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import dyorgio.runtime.out.process.protocol.MessageChannel;
+import dyorgio.runtime.out.process.protocol.PayloadCodec;
+import dyorgio.runtime.out.process.protocol.SessionSerializationCodec;
+import dyorgio.runtime.out.process.transport.TcpTransport;
+import dyorgio.runtime.out.process.transport.Transport;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static dyorgio.runtime.out.process.OutProcessUtils.getCurrentClasspath;
+
+/**
+ * Settings used to start and talk to out process JVMs.<br>
+ * Every <code>with*</code> method returns this instance, so settings can be
+ * chained:
+ * <pre>
+ * new OutProcessConfig()
+ *     .withProcessBuilderFactory(factory)
+ *     .withJavaOptions("-Xmx32m");
+ * </pre>
+ * Executors copy the config when created, later changes don't affect them.
+ *
+ * @see OutProcessExecutorService
+ * @see OutProcessPoolExecutorService
+ */
+public class OutProcessConfig {
+
+    private ProcessBuilderFactory processBuilderFactory = new DefaultProcessBuilderFactory();
+    private String classpath;
+    private String[] javaOptions = new String[0];
+    private int parallelism = 1;
+    private int maxInFlight = 16;
+    private PayloadCodec codec = new SessionSerializationCodec();
+    private Transport transport = new TcpTransport();
+    private int sharedMemoryThreshold = 0;
+    private int streamWindow = 64;
+    private long taskTimeoutMs = 0;
+    private long cancelGracePeriodMs = 5000;
+    private long heartbeatIntervalMs = 1000;
+    private long heartbeatTimeoutMs = 15000;
+    private int maxReplays = 1;
+    private long recycleAfterTasks = 0;
+    private long recycleAboveHeapBytes = 0;
+    private long recycleAfterAgeMs = 0;
+    private int standby = 0;
+    private File classDataSharing;
+    private File pathingJar;
+    private File remoteClassLoading;
+    private CallListener callListener;
+    private ResourceLimits resourceLimits;
+    private int outputCapacity = 0;
+    private OutputSink outputSink;
+    private int compressionThreshold = 0;
+    private int maxFrameSize = MessageChannel.DEFAULT_MAX_FRAME_SIZE;
+
+    /**
+     * Sets the factory used to create out process <code>ProcessBuilder</code>s.
+     *
+     * @param processBuilderFactory A factory to convert a
+     * <code>List&lt;String&gt;</code> to <code>ProcessBuilder</code>.
+     * @return This config.
+     * @throws NullPointerException If <code>processBuilderFactory</code> is
+     * <code>null</code>.
+     */
+    public OutProcessConfig withProcessBuilderFactory(ProcessBuilderFactory processBuilderFactory) {
+        if (processBuilderFactory == null) {
+            throw new NullPointerException("Process Builder Factory cannot be null.");
+        }
+        this.processBuilderFactory = processBuilderFactory;
+        return this;
+    }
+
+    /**
+     * Sets the out process classpath.
+     *
+     * @param classpath JVM classpath, if <code>null</code> will use current
+     * thread classpath.
+     * @return This config.
+     * @see OutProcessUtils#getCurrentClasspath()
+     */
+    public OutProcessConfig withClasspath(String classpath) {
+        this.classpath = classpath;
+        return this;
+    }
+
+    /**
+     * Sets the out process JVM options.
+     *
+     * @param javaOptions JVM options (ex:"-xmx32m")
+     * @return This config.
+     */
+    public OutProcessConfig withJavaOptions(String... javaOptions) {
+        this.javaOptions = javaOptions == null ? new String[0] : javaOptions.clone();
+        return this;
+    }
+
+    /**
+     * Sets how many tasks each out process runs at the same time.<br>
+     * Defaults to 1, so tasks sharing state in the same out process never run
+     * concurrently.
+     *
+     * @param parallelism Size of the out process task pool.
+     * @return This config.
+     * @throws IllegalArgumentException If <code>parallelism</code> is less
+     * than 1.
+     */
+    public OutProcessConfig withParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1.");
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Sets how many tasks can be sent to each out process before receiving
+     * their results. Tasks above <code>parallelism</code> wait in the out
+     * process, so it never stalls waiting for the next one.
+     *
+     * @param maxInFlight Maximum of tasks sent and not yet answered.
+     * @return This config.
+     * @throws IllegalArgumentException If <code>maxInFlight</code> is less
+     * than 1.
+     */
+    public OutProcessConfig withMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Max in flight must be at least 1.");
+        }
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * Sets the codec of tasks and results. Used only if the out process also
+     * knows it, otherwise Java serialization is used.<br>
+     * Default is Java serialization with class descriptors and
+     * <code>SessionShared</code> objects cached per connection.
+     *
+     * @param codec Preferred codec, ex: <code>new CompactCodec()</code>.
+     * @return This config.
+     * @throws NullPointerException If <code>codec</code> is
+     * <code>null</code>.
+     * @see dyorgio.runtime.out.process.protocol.CompactCodec
+     * @see dyorgio.runtime.out.process.protocol.SessionSerializationCodec
+     */
+    public OutProcessConfig withCodec(PayloadCodec codec) {
+        if (codec == null) {
+            throw new NullPointerException("Codec cannot be null.");
+        }
+        this.codec = codec;
+        return this;
+    }
+
+    /**
+     * Sets how out processes connect back to the executor.
+     *
+     * @param transport The transport, ex: <code>new UnixDomainTransport()</code>.
+     * @return This config.
+     * @throws NullPointerException If <code>transport</code> is
+     * <code>null</code>.
+     * @see dyorgio.runtime.out.process.transport.UnixDomainTransport
+     */
+    public OutProcessConfig withTransport(Transport transport) {
+        if (transport == null) {
+            throw new NullPointerException("Transport cannot be null.");
+        }
+        this.transport = transport;
+        return this;
+    }
+
+    /**
+     * Enables the shared memory bulk path: top-level <code>byte[]</code>
+     * payloads and <code>MappedBytes</code> objects of at least
+     * <code>threshold</code> bytes are handed off through memory-mapped
+     * files instead of the connection.<br>
+     * Disabled by default.
+     *
+     * @param threshold Minimum size in bytes, 0 to disable.
+     * @return This config.
+     * @throws IllegalArgumentException If <code>threshold</code> is
+     * negative.
+     * @see MappedBytes
+     * @see dyorgio.runtime.out.process.protocol.SharedMemory
+     */
+    public OutProcessConfig withSharedMemoryThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Shared memory threshold cannot be negative.");
+        }
+        this.sharedMemoryThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Enables compression of big payloads: encoded arguments and results of
+     * at least <code>threshold</code> bytes are deflated, in both directions,
+     * and sent compressed only if they shrink enough. Worth it for big
+     * compressible payloads (text, sparse arrays) and slow transports, useless
+     * for already compressed data.<br>
+     * Saved bytes are reported by
+     * <code>OutProcessMetrics#getCompressionBytesSaved()</code>.<br>
+     * Disabled by default.
+     *
+     * @param threshold Minimum encoded payload size in bytes, 0 to disable.
+     * @return This config.
+     * @throws IllegalArgumentException If <code>threshold</code> is
+     * negative.
+     * @see dyorgio.runtime.out.process.protocol.Compression
+     */
+    public OutProcessConfig withCompressionThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Compression threshold cannot be negative.");
+        }
+        this.compressionThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Sets the maximum length of a message between executor and out process,
+     * in both directions. A longer message received is taken for a corrupt
+     * connection, so a bad length never makes a JVM allocate gigabytes; a
+     * longer task or result is not sent and closes the connection, as if
+     * broken. Compressed messages are limited by their inflated length.<br>
+     * Default: 256MB. Bigger <code>byte[]</code> payloads can go through
+     * shared memory, see <code>withSharedMemoryThreshold</code>.
+     *
+     * @param maxFrameSize Maximum length in bytes.
+     * @return This config.
+     * @throws IllegalArgumentException If <code>maxFrameSize</code> is less
+     * than 64KB.
+     */
+    public OutProcessConfig withMaxFrameSize(int maxFrameSize) {
+        if (maxFrameSize < 64 * 1024) {
+            throw new IllegalArgumentException("Max frame size must be at least 64KB.");
+        }
+        this.maxFrameSize = maxFrameSize;
+        return this;
+    }
+
+    /**
+     * Sets how many items a streaming task can send before the caller
+     * consumes them. Emitting blocks when the window is full.
+     *
+     * @param streamWindow Maximum of items received and not yet consumed.
+     * @return This config.
+     * @throws IllegalArgumentException If <code>streamWindow</code> is less
+     * than 1.
+     * @see StreamingTask
+     */
+    public OutProcessConfig withStreamWindow(int streamWindow) {
+        if (streamWindow < 1) {
+            throw new IllegalArgumentException("Stream window must be at least 1.");
+        }
+        this.streamWindow = streamWindow;
+        return this;
+    }
+
+    /**
+     * Sets the maximum time a task can take, from being sent to the out
+     * process until its result is received. Late tasks fail with an
+     * <code>ExecutionException</code> caused by a
+     * <code>TimeoutException</code> and are cancelled like
+     * <code>cancel(true)</code>. <code>OneRunOutProcess</code> destroys the
+     * JVM of a late call.<br>
+     * Streaming tasks are not limited. Disabled by default.
+     *
+     * @param timeout Maximum time, 0 to disable.
+     * @param unit The time unit of the <code>timeout</code> argument.
+     * @return This config.
+     * @throws IllegalArgumentException If <code>timeout</code> is negative.
+     */
+    public OutProcessConfig withTaskTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Task timeout cannot be negative.");
+        }
+        this.taskTimeoutMs = unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * Sets how long a task interrupted by <code>cancel(true)</code> or by the
+     * task timeout can keep running, other tasks are still sent to its out
+     * process meanwhile. After that its out process is killed and replaced,
+     * tasks sent to it and not finished fail, tasks not sent yet go to the
+     * new one.<br>
+     * Defaults to 5 seconds.
+     *
+     * @param gracePeriod Maximum time, 0 to kill immediately.
+     * @param unit The time unit of the <code>gracePeriod</code> argument.
+     * @return This config.
+     * @throws IllegalArgumentException If <code>gracePeriod</code> is
+     * negative.
+     * @see java.util.concurrent.Future#cancel(boolean)
+     */
+    public OutProcessConfig withCancelGracePeriod(long gracePeriod, TimeUnit unit) {
+        if (gracePeriod < 0) {
+            throw new IllegalArgumentException("Cancel grace period cannot be negative.");
+        }
+        this.cancelGracePeriodMs = unit.toMillis(gracePeriod);
+        return this;
+    }
+
+    /**
+     * Sets how often out processes send a heartbeat and how long the executor
+     * waits for any message before considering one dead. A dead out process
+     * is killed and replaced, like one that exits: its
+     * <code>Idempotent</code> tasks are sent again to the new one, the others
+     * fail.<br>
+     * Default: a heartbeat every second, dead after 15 seconds.
+     *
+     * @param interval Time between heartbeats, 0 to disable.
+     * @param timeout Maximum time without messages, longer than the interval
+     * and than the longest expected GC pause.
+     * @param unit Unit of <code>interval</code> and <code>timeout</code>.
+     * @return This config.
+     * @throws IllegalArgumentException If <code>interval</code> is negative
+     * or <code>timeout</code> is not longer than <code>interval</code>.
+     * @see Idempotent
+     */
+    public OutProcessConfig withHeartbeat(long interval, long timeout, TimeUnit unit) {
+        if (interval < 0 || (interval > 0 && timeout <= interval)) {
+            throw new IllegalArgumentException("Invalid heartbeat: interval=" + interval + ", timeout=" + timeout);
+        }
+        this.heartbeatIntervalMs = unit.toMillis(interval);
+        this.heartbeatTimeoutMs = unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * Sets how many times an <code>Idempotent</code> task is sent again
+     * after its out process dies. A task that kills every out process it runs
+     * on fails after that.<br>
+     * Default: 1.
+     *
+     * @param maxReplays Maximum replays per task, 0 to never replay.
+     * @return This config.
+     * @throws IllegalArgumentException If <code>maxReplays</code> is
+     * negative.
+     * @see Idempotent
+     */
+    public OutProcessConfig withMaxReplays(int maxReplays) {
+        if (maxReplays < 0) {
+            throw new IllegalArgumentException("Max replays cannot be negative.");
+        }
+        this.maxReplays = maxReplays;
+        return this;
+    }
+
+    /**
+     * Sets when a long lived out process is recycled, like the max requests
+     * per child of process based servers: a new JVM is started and connected
+     * ahead of time, then receives the next tasks while the old one finishes
+     * its running tasks and exits. State/data kept by tasks is lost.<br>
+     * The heap used is the one left by the last GC, reported by the
+     * heartbeat, see <code>withHeartbeat</code>. The age is checked on each
+     * heartbeat or completed task.<br>
+     * Default: never recycled. Not used by <code>OneRunOutProcess</code>.
+     *
+     * @param maxTasks Tasks completed before recycling, 0 to disable.
+     * @param maxHeapBytes Heap used after GC above which the out process is
+     * recycled, 0 to disable.
+     * @param maxAge Time after which the out process is recycled, 0 to
+     * disable.
+     * @param unit Unit of <code>maxAge</code>.
+     * @return This config.
+     * @throws IllegalArgumentException If a limit is negative.
+     */
+    public OutProcessConfig withRecycling(long maxTasks, long maxHeapBytes, long maxAge, TimeUnit unit) {
+        if (maxTasks < 0 || maxHeapBytes < 0 || maxAge < 0) {
+            throw new IllegalArgumentException("Invalid recycling: maxTasks=" + maxTasks + ", maxHeapBytes=" + maxHeapBytes + ", maxAge=" + maxAge);
+        }
+        this.recycleAfterTasks = maxTasks;
+        this.recycleAboveHeapBytes = maxHeapBytes;
+        this.recycleAfterAgeMs = unit.toMillis(maxAge);
+        return this;
+    }
+
+    /**
+     * Sets how many JVMs <code>OneRunOutProcess</code> keeps started and
+     * connected, waiting for a call. A call takes one of them instead of
+     * starting a JVM, and a replacement is started in background, so every
+     * call still runs alone in a new JVM without waiting for it to start.<br>
+     * Idle JVMs use memory and must be discarded with
+     * <code>OneRunOutProcess#close()</code>. Ignored by executors. Disabled
+     * by default.
+     *
+     * @param standby Number of idle JVMs, 0 to start one per call.
+     * @return This config.
+     * @throws IllegalArgumentException If <code>standby</code> is negative.
+     */
+    public OutProcessConfig withStandby(int standby) {
+        if (standby < 0) {
+            throw new IllegalArgumentException("Standby cannot be negative.");
+        }
+        this.standby = standby;
+        return this;
+    }
+
+    /**
+     * Enables class data sharing (AppCDS) for out processes. The first out
+     * process records the classes it loads and an archive is created from
+     * them when it exits, next out processes start faster using it. The
+     * archive is recreated when the classpath, options or JDK change.<br>
+     * Requires JDK 11 or newer and a classpath of jars, ignored otherwise.
+     * Disabled by default.
+     *
+     * @param directory Where archives are kept, ex:
+     * <code>new File(System.getProperty("java.io.tmpdir"), "out-process-cds")</code>,
+     * <code>null</code> to disable.
+     * @return This config.
+     */
+    public OutProcessConfig withClassDataSharing(File directory) {
+        this.classDataSharing = directory;
+        return this;
+    }
+
+    /**
+     * Starts out processes with a pathing jar instead of the classpath: an
+     * empty jar whose manifest references every classpath entry. Keeps the
+     * command line short, required by long classpaths on Windows.
+     * Disabled by default.
+     *
+     * @param directory Where pathing jars are kept, ex:
+     * <code>new File(System.getProperty("java.io.tmpdir"), "out-process")</code>,
+     * <code>null</code> to disable.
+     * @return This config.
+     * @see OutProcessUtils#getPathingJar(String, File)
+     */
+    public OutProcessConfig withPathingJar(File directory) {
+        this.pathingJar = directory;
+        return this;
+    }
+
+    /**
+     * Starts out processes with only the classes of this library on their
+     * classpath, other classes and resources are fetched from the class
+     * loader that created the executor when first used. Out processes start
+     * faster and use less memory when tasks need few classes of a big
+     * classpath.<br>
+     * Fetched content is cached on disk by digest, shared by all out
+     * processes, and only fetched again when it changes. Disabled by default.
+     *
+     * @param cacheDirectory Where fetched content is kept, ex:
+     * <code>new File(System.getProperty("java.io.tmpdir"), "out-process-classes")</code>,
+     * <code>null</code> to disable.
+     * @return This config.
+     * @see OutProcessUtils#getEntrypointClasspath()
+     */
+    public OutProcessConfig withRemoteClassLoading(File cacheDirectory) {
+        this.remoteClassLoading = cacheDirectory;
+        return this;
+    }
+
+    /**
+     * Sets a listener told about every call: when each phase ended (spawn,
+     * launch, connect, handshake, queue, serialization, execution,
+     * deserialization) and the request and response sizes. Aggregated
+     * metrics are kept anyway, see <code>getMetrics()</code> of executors.
+     *
+     * @param callListener The listener, <code>null</code> for none.
+     * @return This config.
+     * @see CallMetrics
+     */
+    public OutProcessConfig withCallListener(CallListener callListener) {
+        this.callListener = callListener;
+        return this;
+    }
+
+    /**
+     * Sets the CPU, memory and IO limits of each out process, enforced with
+     * a cgroup v2 group on Linux. The usage counters of the group can be read
+     * back, see <code>OutProcessExecutorService#getResourceUsage()</code> and
+     * <code>OneRunOutProcess.OutProcessResult#getResourceUsage()</code>.<br>
+     * Default: no limits.
+     *
+     * @param resourceLimits The limits, <code>null</code> for none.
+     * @return This config.
+     * @see ResourceLimits
+     */
+    public OutProcessConfig withResourceLimits(ResourceLimits resourceLimits) {
+        this.resourceLimits = resourceLimits == null ? null : resourceLimits.copy();
+        return this;
+    }
+
+    /**
+     * Captures what tasks print to <code>System.out</code> and
+     * <code>System.err</code> instead of mixing it into the streams of this
+     * JVM. Output is sent over the out process connection tagged with the
+     * task id, printing never waits for it, and the last bytes of each task
+     * are kept, see <code>TaskOutput.of(Future)</code> and
+     * <code>OneRunOutProcess.OutProcessResult#getOutput()</code>.<br>
+     * Output printed outside of tasks goes to the sink, or to the streams of
+     * this JVM without a sink. Output of the JVM itself, ex: GC logs, is
+     * kept with the call output by <code>OneRunOutProcess</code>, executors
+     * leave it on the streams of this JVM.<br>
+     * Default: disabled, out processes inherit the streams of this JVM.
+     *
+     * @param bytesPerTask Bytes of output kept per task, 0 to disable.
+     * @param sink Receives every line printed, <code>null</code> for none.
+     * @return This config.
+     * @throws IllegalArgumentException If <code>bytesPerTask</code> is
+     * negative.
+     * @see TaskOutput
+     * @see OutputSink
+     */
+    public OutProcessConfig withOutputCapture(int bytesPerTask, OutputSink sink) {
+        if (bytesPerTask < 0) {
+            throw new IllegalArgumentException("Output capacity cannot be negative.");
+        }
+        this.outputCapacity = bytesPerTask;
+        this.outputSink = sink;
+        return this;
+    }
+
+    public ProcessBuilderFactory getProcessBuilderFactory() {
+        return processBuilderFactory;
+    }
+
+    /**
+     * Gets the out process classpath.
+     *
+     * @return The configured classpath or the current thread classpath if none
+     * was set.
+     */
+    public String getClasspath() {
+        return classpath == null ? getCurrentClasspath() : classpath;
+    }
+
+    public String[] getJavaOptions() {
+        return javaOptions.clone();
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public PayloadCodec getCodec() {
+        return codec;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public int getSharedMemoryThreshold() {
+        return sharedMemoryThreshold;
+    }
+
+    public int getStreamWindow() {
+        return streamWindow;
+    }
+
+    public long getTaskTimeoutMs() {
+        return taskTimeoutMs;
+    }
+
+    public long getCancelGracePeriodMs() {
+        return cancelGracePeriodMs;
+    }
+
+    public long getHeartbeatIntervalMs() {
+        return heartbeatIntervalMs;
+    }
+
+    public long getHeartbeatTimeoutMs() {
+        return heartbeatTimeoutMs;
+    }
+
+    public int getMaxReplays() {
+        return maxReplays;
+    }
+
+    public long getRecycleAfterTasks() {
+        return recycleAfterTasks;
+    }
+
+    public long getRecycleAboveHeapBytes() {
+        return recycleAboveHeapBytes;
+    }
+
+    public long getRecycleAfterAgeMs() {
+        return recycleAfterAgeMs;
+    }
+
+    public int getStandby() {
+        return standby;
+    }
+
+    public File getClassDataSharing() {
+        return classDataSharing;
+    }
+
+    public File getPathingJar() {
+        return pathingJar;
+    }
+
+    public File getRemoteClassLoading() {
+        return remoteClassLoading;
+    }
+
+    public CallListener getCallListener() {
+        return callListener;
+    }
+
+    public ResourceLimits getResourceLimits() {
+        return resourceLimits;
+    }
+
+    public int getOutputCapacity() {
+        return outputCapacity;
+    }
+
+    public OutputSink getOutputSink() {
+        return outputSink;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Creates a copy of this config.
+     *
+     * @return A new config with the same settings.
+     */
+    public OutProcessConfig copy() {
+        OutProcessConfig copy = new OutProcessConfig();
+        copy.processBuilderFactory = processBuilderFactory;
+        copy.classpath = classpath;
+        copy.javaOptions = javaOptions.clone();
+        copy.parallelism = parallelism;
+        copy.maxInFlight = maxInFlight;
+        copy.codec = codec;
+        copy.transport = transport;
+        copy.sharedMemoryThreshold = sharedMemoryThreshold;
+        copy.streamWindow = streamWindow;
+        copy.taskTimeoutMs = taskTimeoutMs;
+        copy.cancelGracePeriodMs = cancelGracePeriodMs;
+        copy.heartbeatIntervalMs = heartbeatIntervalMs;
+        copy.heartbeatTimeoutMs = heartbeatTimeoutMs;
+        copy.maxReplays = maxReplays;
+        copy.recycleAfterTasks = recycleAfterTasks;
+        copy.recycleAboveHeapBytes = recycleAboveHeapBytes;
+        copy.recycleAfterAgeMs = recycleAfterAgeMs;
+        copy.standby = standby;
+        copy.classDataSharing = classDataSharing;
+        copy.pathingJar = pathingJar;
+        copy.remoteClassLoading = remoteClassLoading;
+        copy.callListener = callListener;
+        copy.resourceLimits = resourceLimits;
+        copy.outputCapacity = outputCapacity;
+        copy.outputSink = outputSink;
+        copy.compressionThreshold = compressionThreshold;
+        copy.maxFrameSize = maxFrameSize;
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return "OutProcessConfig{"
+                + "processBuilderFactory=" + processBuilderFactory
+                + ", classpath=" + classpath
+                + ", javaOptions=" + Arrays.toString(javaOptions)
+                + ", parallelism=" + parallelism
+                + ", maxInFlight=" + maxInFlight
+                + ", codec=" + codec
+                + ", transport=" + transport
+                + ", sharedMemoryThreshold=" + sharedMemoryThreshold
+                + ", streamWindow=" + streamWindow
+                + ", taskTimeoutMs=" + taskTimeoutMs
+                + ", cancelGracePeriodMs=" + cancelGracePeriodMs
+                + ", heartbeatIntervalMs=" + heartbeatIntervalMs
+                + ", heartbeatTimeoutMs=" + heartbeatTimeoutMs
+                + ", maxReplays=" + maxReplays
+                + ", recycleAfterTasks=" + recycleAfterTasks
+                + ", recycleAboveHeapBytes=" + recycleAboveHeapBytes
+                + ", recycleAfterAgeMs=" + recycleAfterAgeMs
+                + ", standby=" + standby
+                + ", classDataSharing=" + classDataSharing
+                + ", pathingJar=" + pathingJar
+                + ", remoteClassLoading=" + remoteClassLoading
+                + ", callListener=" + callListener
+                + ", resourceLimits=" + resourceLimits
+                + ", outputCapacity=" + outputCapacity
+                + ", outputSink=" + outputSink
+                + ", compressionThreshold=" + compressionThreshold
+                + ", maxFrameSize=" + maxFrameSize
+                + '}';
+    }
+}
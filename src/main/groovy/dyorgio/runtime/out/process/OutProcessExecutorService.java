@@ -15,22 +15,14 @@
  ***************************************************************************** */
 package dyorgio.runtime.out.process;
 
-import dyorgio.runtime.out.process.entrypoint.RemoteMain;
-
-import java.io.NotSerializableException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import dyorgio.runtime.out.process.protocol.Compression;
+import java.io.IOException;
 import java.io.Serializable;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
-import java.util.Random;
 import java.util.concurrent.*;
 
-import static dyorgio.runtime.out.process.OutProcessUtils.getCurrentClasspath;
-
 /**
  * Run serializable <code>Callable</code>s and <code>Runnable</code>s in another
  * JVM.<br>
@@ -39,27 +31,49 @@ import static dyorgio.runtime.out.process.OutProcessUtils.getCurrentClasspath;
  * Normally this class can be a singleton if classpath and jvmOptions are always
  * equals and state/data sharing is not a problem, otherwise create a new
  * instance for every cenario.<br>
- * This class acts like an <code>Executors#newSingleThreadExecutor()</code>
- * instance, so you can use it like any other ExecutorService instance.<br>
+ * It can be used like any other ExecutorService instance.<br>
+ * Submitted tasks are pipelined to the JVM without waiting for previous
+ * results, up to <code>OutProcessConfig#withMaxInFlight</code> at a time, and
+ * run there by a fork/join pool of <code>OutProcessConfig#withParallelism</code>
+ * threads. With the default parallelism of 1 tasks run one at a time, in
+ * submission order, like an <code>Executors#newSingleThreadExecutor()</code>.
+ * Above it tasks run concurrently and complete in any order.<br>
+ * Tasks of an <code>invokeAll</code> are sent together in
+ * <code>BATCH</code> messages, as many as there are free slots, and split
+ * among the pool threads.<br>
+ * If a cancelled task doesn't stop, the JVM is killed and replaced by a new
+ * one, see <code>OutProcessConfig#withCancelGracePeriod</code>.<br>
+ * If the JVM crashes or stops answering it is replaced too and its
+ * <code>Idempotent</code> tasks run again, see
+ * <code>OutProcessConfig#withHeartbeat</code>.<br>
+ * To limit heap creep, the JVM can be recycled after some tasks, heap or time:
+ * a new JVM is started and connected before taking the next tasks, see
+ * <code>OutProcessConfig#withRecycling</code>.<br>
+ * What tasks print can be kept per task and sent to a sink instead of mixed
+ * in the console, see <code>OutProcessConfig#withOutputCapture</code> and
+ * <code>TaskOutput#of(Future)</code>.<br>
  * <br>
  * If you need to isolate states/data between executions use
- * <code>OneRunOutProcess</code> class instead.
+ * <code>OneRunOutProcess</code> class instead. If you need to run tasks on
+ * many JVMs use <code>OutProcessPoolExecutorService</code>.
  *
  * @author dyorgio
  * @see CallableSerializable
  * @see RunnableSerializable
- * @see Executors#newSingleThreadExecutor()
  * @see ExecutorService
  * @see OneRunOutProcess
+ * @see OutProcessPoolExecutorService
  */
 public class OutProcessExecutorService extends AbstractExecutorService {
 
     private static final String RUNNING_AS_OUT_PROCESS = "$RunnningAsOutProcess";
+    private static final long RECYCLE_CONNECT_TIMEOUT_MS = 60000;
 
-    private boolean shutdown = false;
-    private final ProcessBuilderFactory processBuilderFactory;
-    private final PipeServer pipe;
-    private final SynchronousQueue<SerializableFutureTask> toProcess = new SynchronousQueue<>();
+    private volatile boolean shutdown = false;
+    private volatile OutProcessWorker worker;
+    private final OutProcessConfig config;
+    private final int streamWindow;
+    private final OutProcessMetrics metrics;
 
     /**
      * Creates an instance with specific java options
@@ -117,25 +131,153 @@ public class OutProcessExecutorService extends AbstractExecutorService {
      * <code>null</code>.
      */
     public OutProcessExecutorService(ProcessBuilderFactory processBuilderFactory, String classpath, String[] javaOptions) throws Exception {
-        if (processBuilderFactory == null) {
-            throw new NullPointerException("Process Builder Factory cannot be null.");
+        this(new OutProcessConfig()
+                .withProcessBuilderFactory(processBuilderFactory)
+                .withClasspath(classpath)
+                .withJavaOptions(javaOptions));
+    }
+
+    /**
+     * Creates an instance with specific config.
+     *
+     * @param config Settings used to start and talk to the out process.
+     * @see OutProcessConfig
+     * @throws Exception If cannot create external JVM.
+     */
+    public OutProcessExecutorService(OutProcessConfig config) throws Exception {
+        this.config = config.copy();
+        this.streamWindow = config.getStreamWindow();
+        this.metrics = new OutProcessMetrics(OutProcessExecutorService.class.getSimpleName(), config.getCallListener(), new OutProcessMetrics.Gauges() {
+            @Override
+            public int getInFlight() {
+                return worker.getInFlight();
+            }
+
+            @Override
+            public int getQueueDepth() {
+                return worker.getQueueDepth();
+            }
+
+            @Override
+            public int getWorkers() {
+                return worker.isAlive() ? 1 : 0;
+            }
+        }, config.getCompressionThreshold() > 0 ? new Compression(config.getCompressionThreshold()) : null);
+        this.worker = newWorker();
+    }
+
+    private OutProcessWorker newWorker() throws Exception {
+        return new OutProcessWorker(config, new OutProcessWorker.Listener() {
+            @Override
+            public void onTaskDone(OutProcessWorker worker) {
+            }
+
+            @Override
+            public void onKilled(OutProcessWorker worker, List<Runnable> notSent) {
+                replace(worker, notSent);
+            }
+
+            @Override
+            public void onRecycle(OutProcessWorker worker) {
+                Thread recycler = new Thread(() -> recycle(worker), "out-process-recycler");
+                recycler.setDaemon(true);
+                recycler.start();
+            }
+        }, metrics);
+    }
+
+    /**
+     * Switches to a new JVM once connected and warm, the old one exits after
+     * running the tasks it already received.
+     */
+    private void recycle(OutProcessWorker old) {
+        OutProcessWorker fresh = null;
+        try {
+            fresh = newWorker();
+            if (fresh.awaitConnection(RECYCLE_CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    && fresh.warmUp(RECYCLE_CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                synchronized (this) {
+                    if (!shutdown && worker == old) {
+                        worker = fresh;
+                        old.shutdown();
+                        return;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            // old one kept
+        }
+        if (fresh != null) {
+            fresh.close();
+        }
+        old.cancelRecycle();
+    }
+
+    /**
+     * Starts a new JVM after killing one, state of the killed JVM is lost.<br>
+     * A JVM that died before connecting is only replaced by the next task.
+     * If the killed JVM was already recycled, its tasks go to the current
+     * one.
+     */
+    private synchronized void replace(OutProcessWorker killed, List<Runnable> notSent) {
+        if (worker == killed) {
+            if (notSent.isEmpty() && (shutdown || !killed.hasConnected())) {
+                return;
+            }
+            try {
+                worker = newWorker();
+            } catch (Exception e) {
+                for (Runnable task : notSent) {
+                    ((SerializableFutureTask) task).complete(null, new ExecutionException("Cannot start out process.", e));
+                }
+                return;
+            }
+        } else if (notSent.isEmpty()) {
+            return;
+        }
+        for (Runnable task : notSent) {
+            dispatch((SerializableFutureTask) task);
+        }
+        if (shutdown) {
+            worker.shutdown();
+        }
+    }
+
+    /**
+     * Gets the current worker, starting a new one if it is still the closed
+     * one.
+     */
+    private synchronized OutProcessWorker respawn(OutProcessWorker closed) throws Exception {
+        if (worker == closed) {
+            worker = newWorker();
+        }
+        return worker;
+    }
+
+    private void dispatch(SerializableFutureTask task) {
+        OutProcessWorker current = worker;
+        while (!current.dispatch(task)) {
+            try {
+                current = respawn(current);
+            } catch (Exception e) {
+                task.complete(null, new ExecutionException("Cannot start out process.", e));
+                return;
+            }
         }
-        this.processBuilderFactory = processBuilderFactory;
-        this.pipe = new PipeServer(classpath == null ? getCurrentClasspath() : classpath, javaOptions);
     }
 
     @Override
-    public void shutdown() {
+    public synchronized void shutdown() {
         shutdown = true;
+        worker.shutdown();
+        metrics.unregister();
     }
 
     @Override
-    public List<Runnable> shutdownNow() {
-        shutdown();
-        pipe.close();
-        List<Runnable> notProcessed = new ArrayList<>();
-        toProcess.drainTo(notProcessed);
-        return notProcessed;
+    public synchronized List<Runnable> shutdownNow() {
+        shutdown = true;
+        metrics.unregister();
+        return worker.close();
     }
 
     @Override
@@ -145,241 +287,232 @@ public class OutProcessExecutorService extends AbstractExecutorService {
 
     @Override
     public boolean isTerminated() {
-        return isShutdown() && !pipe.isAlive();
+        return isShutdown() && !worker.isAlive();
     }
 
     @Override
     public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
-        pipe.join(unit.toMillis(timeout));
-        return pipe.isAlive();
+        worker.join(unit.toMillis(timeout));
+        return !worker.isAlive();
     }
 
-    @Override
-    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
-        return (RunnableFuture<T>) new SerializableFutureTask((Callable<Serializable>) callable);
+    /**
+     * Waits until the out process connects back and is ready to run tasks.
+     *
+     * @param timeout The maximum time to wait.
+     * @param unit The time unit of the <code>timeout</code> argument.
+     * @return <code>true</code> if the out process is connected,
+     * <code>false</code> if it exited or the timeout elapsed before connecting.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public boolean awaitConnection(long timeout, TimeUnit unit) throws InterruptedException {
+        return worker.awaitConnection(timeout, unit);
     }
 
-    @Override
-    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
-        return (RunnableFuture<T>) new SerializableFutureTask(runnable, (Serializable) value);
+    /**
+     * Gets the metrics of the tasks run by this executor. Unregistered from
+     * JMX on shutdown.
+     *
+     * @return The metrics, can be registered as a JMX MBean.
+     * @see OutProcessMetrics#register(String)
+     */
+    public OutProcessMetrics getMetrics() {
+        return metrics;
     }
 
-    @Override
-    public void execute(Runnable runnable) {
-        if (System.getProperty(RUNNING_AS_OUT_PROCESS) != null) {
-            runnable.run();
-        } else if (runnable instanceof SerializableFutureTask) {
-            try {
-                toProcess.put((SerializableFutureTask) runnable);
-            } catch (InterruptedException ex) {
-                throw new RejectedExecutionException(ex);
-            }
-        } else {
-            try {
-                toProcess.put(new SerializableFutureTask(runnable, (Serializable) null));
-            } catch (InterruptedException ex) {
-                throw new RejectedExecutionException(ex);
-            }
-        }
+    /**
+     * Gets the out process return code.
+     *
+     * @return The return code or <code>null</code> if the out process is still
+     * running. With a detached launcher, the launcher return code once the
+     * out process is gone or if the launcher failed.
+     * @see ProcessBuilderFactory#isDetached()
+     */
+    public Integer getReturnCode() {
+        return worker.getReturnCode();
     }
 
     /**
-     * Pipe SocketServer to comunicate with out process.
+     * Reads the resources used by the out process so far, from its cgroup v2
+     * group.
+     *
+     * @return The resources used, <code>null</code> if no resource limits
+     * were set or not running on Linux.
+     * @throws IOException If the counters cannot be read, ex: the out process
+     * is being replaced.
+     * @see OutProcessConfig#withResourceLimits(ResourceLimits)
      */
-    private class PipeServer extends Thread {
-
-        private final ServerSocket server;
-        private final String secret;
-        private final Process process;
-
-        PipeServer(String classpath, String... javaOptions) throws Exception {
-            Random r = new Random(System.currentTimeMillis());
-            ServerSocket tmpServer = null;
-            while (true) {
-                try {
-                    tmpServer = new ServerSocket(1025 + r.nextInt(65535 - 1024));
-                    break;
-                } catch (Exception e) {
-
-                }
-            }
-            this.server = tmpServer;
-            this.secret = r.nextLong() + ":" + r.nextLong() + ":" + r.nextLong() + ":" + r.nextLong();
-
-            List<String> commandList = new ArrayList<>();
+    public ResourceUsage getResourceUsage() throws IOException {
+        return worker.getResourceUsage();
+    }
 
-            commandList.add(System.getProperty("java.home") + "/bin/java");
-            commandList.addAll(Arrays.asList(javaOptions));
-            commandList.add("-cp");
-            commandList.add(classpath);
-            commandList.add(RemoteMain.class.getName());
-            commandList.add(String.valueOf(server.getLocalPort()));
-            commandList.add(secret);
+    /**
+     * Runs a streaming task in the out process.<br>
+     * Items can be read as soon as they are emitted, see
+     * <code>OutProcessConfig#withStreamWindow</code>. The task uses one
+     * out process task slot until it ends or the iterator is closed.
+     *
+     * @param <T> Item type.
+     * @param task The task.
+     * @return An iterator over the emitted items, must be closed.
+     * @throws RejectedExecutionException If executor is shutdown.
+     * @see StreamingTask
+     */
+    public <T extends Serializable> RemoteIterator<T> stream(StreamingTask<T> task) {
+        RemoteStream<T> stream = new RemoteStream<>(task, streamWindow);
+        execute(stream);
+        return stream;
+    }
 
-            // adjust in processBuilderFactory and starts
-            process = processBuilderFactory.create(commandList).start();
+    /**
+     * Submits a task to run in the out process without blocking a thread to wait
+     * for it.<br>
+     * The returned future is completed by the connection thread when the
+     * result arrives, dependent stages should be short or use an
+     * <code>*Async</code> method with their own executor. Thousands of calls
+     * can be composed:
+     * <pre>
+     * CompletableFuture.allOf(futures).thenRun(...);
+     * </pre>
+     *
+     * @param <T> Result type.
+     * @param task The task.
+     * @return A future completed with the task result, or exceptionally with
+     * the task error.
+     * @throws RejectedExecutionException If executor is shutdown.
+     * @see CallableSerializable
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Serializable> CompletableFuture<T> submitAsync(CallableSerializable<T> task) {
+        SerializableFutureTask futureTask = new SerializableFutureTask((Callable<Serializable>) (Callable<?>) task);
+        CompletableFuture<T> future = (CompletableFuture<T>) (CompletableFuture<?>) futureTask.toCompletableFuture();
+        execute(futureTask);
+        return future;
+    }
 
-            // start thread
-            start();
+    /**
+     * Runs all tasks in the out process with few messages: tasks waiting to be
+     * sent are written together in one <code>BATCH</code> message, up to
+     * <code>maxInFlight</code> tasks, and split among the out process threads.
+     * Each result arrives as soon as its task completes.
+     *
+     * @see OutProcessConfig#withMaxInFlight(int)
+     * @see OutProcessConfig#withParallelism(int)
+     */
+    @Override
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
+        if (System.getProperty(RUNNING_AS_OUT_PROCESS) != null) {
+            return super.invokeAll(tasks);
         }
-
-        @Override
-        public void run() {
-            while (!isInterrupted()) {
-                try {
-                    Socket s = server.accept();
-                    if (s != null) {
-
-                        ObjectInputStream objStream = new ObjectInputStream(s.getInputStream());
-                        String clientSecret = objStream.readUTF();
-                        if (clientSecret.equals(secret)) {
-
-                            SerializableFutureTask task;
-
-                            while (!shutdown) {
-                                task = toProcess.poll(1, TimeUnit.SECONDS);
-                                if (task != null) {
-                                    try {
-                                        ObjectOutputStream objOut = new ObjectOutputStream(s.getOutputStream());
-
-                                        objOut.writeObject(task.callable);
-                                        objOut.flush();
-
-                                        if (objStream.readBoolean()) {
-                                            task.result = (Serializable) objStream.readObject();
-                                        } else {
-                                            task.executionException = new ExecutionException((Throwable) objStream.readObject());
-                                        }
-                                    } catch (Throwable e) {
-                                        task.executionException = new ExecutionException(e);
-                                    } finally {
-                                        task.done = true;
-                                        synchronized (task) {
-                                            task.notifyAll();
-                                        }
-                                    }
-                                }
-                            }
-                        } else {
-                            s.close();
-                        }
+        List<Future<T>> futures = dispatchAll(tasks);
+        boolean done = false;
+        try {
+            for (Future<T> future : futures) {
+                if (!future.isDone()) {
+                    try {
+                        future.get();
+                    } catch (CancellationException | ExecutionException e) {
+                        // reported by the future
                     }
-                } catch (Exception e) {
                 }
             }
-        }
-
-        public void close() {
-            try {
-                interrupt();
-                server.close();
-            } catch (Exception e) {
-            }
-
-            try {
-                join();
-            } catch (Exception e) {
-            }
-
-            try {
-                process.destroy();
-            } catch (Exception e) {
+            done = true;
+            return futures;
+        } finally {
+            if (!done) {
+                cancelAll(futures);
             }
         }
-
     }
 
-    private static class SerializableFutureTask implements RunnableFuture<Serializable>, Serializable {
-
-        private final Callable<Serializable> callable;
-        private boolean done = false;
-        private Serializable result;
-        private ExecutionException executionException;
-
-        public SerializableFutureTask(final Runnable runnable, final Serializable value) {
-            if (!(runnable instanceof Serializable)) {
-                throw new RejectedExecutionException(new NotSerializableException());
-            }
-
-            this.callable = new SerializableCall(runnable, value);
+    /**
+     * Runs all tasks in the out process with few messages, like
+     * <code>invokeAll(Collection)</code>. Tasks not completed when the timeout
+     * elapses are cancelled.
+     *
+     * @see #invokeAll(Collection)
+     */
+    @Override
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException {
+        if (System.getProperty(RUNNING_AS_OUT_PROCESS) != null) {
+            return super.invokeAll(tasks, timeout, unit);
         }
-
-        public SerializableFutureTask(Callable<Serializable> callable) {
-            if (!(callable instanceof Serializable)) {
-                throw new RejectedExecutionException(new NotSerializableException());
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        List<Future<T>> futures = dispatchAll(tasks);
+        boolean done = false;
+        try {
+            for (Future<T> future : futures) {
+                if (!future.isDone()) {
+                    try {
+                        future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    } catch (CancellationException | ExecutionException e) {
+                        // reported by the future
+                    } catch (TimeoutException e) {
+                        return futures;
+                    }
+                }
+            }
+            done = true;
+            return futures;
+        } finally {
+            if (!done) {
+                cancelAll(futures);
             }
-
-            this.callable = callable;
-        }
-
-        @Override
-        public void run() {
-            throw new UnsupportedOperationException("Cannot run a remote task locally.");
-        }
-
-        @Override
-        public boolean cancel(boolean mayInterruptIfRunning) {
-            throw new UnsupportedOperationException("Cannot cancel a remote task.");
         }
+    }
 
-        @Override
-        public boolean isCancelled() {
-            return false;
+    @SuppressWarnings("unchecked")
+    private <T> List<Future<T>> dispatchAll(Collection<? extends Callable<T>> tasks) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Executor is shutdown.");
         }
-
-        @Override
-        public boolean isDone() {
-            return done;
+        List<SerializableFutureTask> batch = new ArrayList<>(tasks.size());
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            SerializableFutureTask futureTask = (SerializableFutureTask) newTaskFor(task);
+            batch.add(futureTask);
+            futures.add((Future<T>) (Future<?>) futureTask);
         }
-
-        @Override
-        public Serializable get() throws InterruptedException, ExecutionException {
-            if (done) {
-                return getResult();
-            }
-            synchronized (this) {
-                wait();
-            }
-            return getResult();
-        }
-
-        @Override
-        public Serializable get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-            if (done) {
-                return getResult();
-            }
-            synchronized (this) {
-                wait(unit.toMillis(timeout));
-            }
-            if (done) {
-                return getResult();
-            } else {
-                throw new TimeoutException();
+        OutProcessWorker current = worker;
+        while (!current.dispatchAll(batch)) {
+            try {
+                current = respawn(current);
+            } catch (Exception e) {
+                for (SerializableFutureTask task : batch) {
+                    task.complete(null, new ExecutionException("Cannot start out process.", e));
+                }
+                break;
             }
         }
+        return futures;
+    }
 
-        private Serializable getResult() throws ExecutionException {
-            if (executionException != null) {
-                throw executionException;
-            }
-            return result;
+    private static <T> void cancelAll(List<Future<T>> futures) {
+        for (Future<T> future : futures) {
+            future.cancel(true);
         }
+    }
 
-        private final class SerializableCall implements CallableSerializable {
-
-            private final Runnable runnable;
-            private final Serializable value;
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+        return (RunnableFuture<T>) new SerializableFutureTask((Callable<Serializable>) callable);
+    }
 
-            private SerializableCall(final Runnable runnable, final Serializable value) {
-                this.runnable = runnable;
-                this.value = value;
-            }
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        return (RunnableFuture<T>) new SerializableFutureTask(runnable, (Serializable) value);
+    }
 
-            @Override
-            public Serializable call() throws Exception {
-                runnable.run();
-                return value;
-            }
-        };
+    @Override
+    public void execute(Runnable runnable) {
+        if (System.getProperty(RUNNING_AS_OUT_PROCESS) != null) {
+            runnable.run();
+        } else if (shutdown) {
+            throw new RejectedExecutionException("Executor is shutdown.");
+        } else if (runnable instanceof SerializableFutureTask) {
+            dispatch((SerializableFutureTask) runnable);
+        } else {
+            dispatch(new SerializableFutureTask(runnable, (Serializable) null));
+        }
     }
 }
@@ -0,0 +1,269 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import dyorgio.runtime.out.process.protocol.Compression;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Aggregated metrics of the calls of an executor or
+ * <code>OneRunOutProcess</code>: histograms of call and phase durations,
+ * counters and gauges. Always collected, recording a call costs a few
+ * atomic increments.<br>
+ * Can be registered as a JMX MBean, ex: to watch it with JConsole:
+ * <pre>
+ * executor.getMetrics().register("backup");
+ * // dyorgio.runtime.out.process:type=OutProcessExecutorService,name="backup"
+ * </pre>
+ * Per call metrics go to the <code>CallListener</code> of the config, if
+ * any.
+ *
+ * @see CallMetrics
+ * @see OutProcessConfig#withCallListener(CallListener)
+ */
+public class OutProcessMetrics implements OutProcessMetricsMBean {
+
+    /**
+     * JMX domain of registered metrics.
+     */
+    public static final String DOMAIN = "dyorgio.runtime.out.process";
+
+    private static final CallMetrics.Phase[] PHASES = CallMetrics.Phase.values();
+
+    private final String source;
+    private final CallListener listener;
+    private final Gauges gauges;
+    private final Compression compression;
+    private volatile long compressionBytesSavedBefore;
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final LatencyHistogram[] phases = new LatencyHistogram[PHASES.length];
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder requestBytes = new LongAdder();
+    private final LongAdder responseBytes = new LongAdder();
+    private ObjectName objectName;
+
+    OutProcessMetrics(String source, CallListener listener, Gauges gauges, Compression compression) {
+        this.source = source;
+        this.listener = listener;
+        this.gauges = gauges;
+        this.compression = compression;
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Gets the compression shared by the connections of the owner.
+     *
+     * @return The compression, <code>null</code> if disabled.
+     */
+    Compression getCompression() {
+        return compression;
+    }
+
+    CallMetrics newCall() {
+        return new CallMetrics(source);
+    }
+
+    /**
+     * Ends a call, aggregates it and tells the listener.
+     *
+     * @param call The call.
+     * @param failure Why it failed, <code>null</code> if it succeeded.
+     */
+    void finish(CallMetrics call, Throwable failure) {
+        if (call.finish(failure)) {
+            publish(call);
+        }
+    }
+
+    /**
+     * Ends a hold of a call, publishing it if already finished.
+     *
+     * @param call The call.
+     * @see CallMetrics#hold()
+     */
+    void release(CallMetrics call) {
+        if (call.release()) {
+            publish(call);
+        }
+    }
+
+    private void publish(CallMetrics call) {
+        Throwable failure = call.getFailure();
+        total.record(call.getTotalNanos());
+        for (int i = 0; i < phases.length; i++) {
+            phases[i].record(call.getNanos(PHASES[i]));
+        }
+        if (failure != null) {
+            failures.increment();
+        }
+        if (call.getRequestBytes() > 0) {
+            requestBytes.add(call.getRequestBytes());
+        }
+        if (call.getResponseBytes() > 0) {
+            responseBytes.add(call.getResponseBytes());
+        }
+        if (listener != null) {
+            try {
+                listener.onCall(call);
+            } catch (RuntimeException e) {
+                // a listener never breaks a call
+            }
+        }
+    }
+
+    /**
+     * Registers these metrics in the platform MBean server, replacing a
+     * previous registration.
+     *
+     * @param name Value of the <code>name</code> key, unique per source.
+     * @return The object name, <code>DOMAIN:type=&lt;source&gt;,name="&lt;name&gt;"</code>.
+     * @throws JMException If the name is in use or invalid.
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+        unregister();
+        ObjectName registered = new ObjectName(DOMAIN + ":type=" + source + ",name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, registered);
+        objectName = registered;
+        return registered;
+    }
+
+    /**
+     * Removes these metrics from the platform MBean server, if registered.
+     * Called when the executor shuts down.
+     */
+    public synchronized void unregister() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                // already unregistered
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public long getCalls() {
+        return total.getCount();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public int getInFlight() {
+        return gauges.getInFlight();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return gauges.getQueueDepth();
+    }
+
+    @Override
+    public int getWorkers() {
+        return gauges.getWorkers();
+    }
+
+    @Override
+    public long getRequestBytes() {
+        return requestBytes.sum();
+    }
+
+    @Override
+    public long getResponseBytes() {
+        return responseBytes.sum();
+    }
+
+    @Override
+    public long getCompressionBytesSaved() {
+        return compression == null ? 0 : compression.getBytesSaved() - compressionBytesSavedBefore;
+    }
+
+    @Override
+    public double getMeanMillis() {
+        return toMillis(total.getMean());
+    }
+
+    @Override
+    public double getP50Millis() {
+        return toMillis(total.getPercentile(50));
+    }
+
+    @Override
+    public double getP99Millis() {
+        return toMillis(total.getPercentile(99));
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return toMillis(total.getMax());
+    }
+
+    @Override
+    public String[] getPhaseSummary() {
+        String[] summary = new String[PHASES.length];
+        for (int i = 0; i < PHASES.length; i++) {
+            LatencyHistogram phase = phases[i];
+            summary[i] = String.format("%s count=%d mean=%.3f p50=%.3f p99=%.3f max=%.3f", PHASES[i], phase.getCount(),
+                    toMillis(phase.getMean()), toMillis(phase.getPercentile(50)), toMillis(phase.getPercentile(99)),
+                    toMillis(phase.getMax()));
+        }
+        return summary;
+    }
+
+    @Override
+    public double getPhasePercentileMillis(String phase, double percentile) {
+        return toMillis(phases[CallMetrics.Phase.valueOf(phase).ordinal()].getPercentile(percentile));
+    }
+
+    @Override
+    public void reset() {
+        total.reset();
+        for (LatencyHistogram phase : phases) {
+            phase.reset();
+        }
+        failures.reset();
+        requestBytes.reset();
+        responseBytes.reset();
+        if (compression != null) {
+            compressionBytesSavedBefore = compression.getBytesSaved();
+        }
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * Current state of the owner of the metrics.
+     */
+    interface Gauges {
+
+        int getInFlight();
+
+        int getQueueDepth();
+
+        int getWorkers();
+    }
+}
@@ -0,0 +1,106 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+/**
+ * JMX view of <code>OutProcessMetrics</code>. Durations are in
+ * milliseconds, phase names are the ones of
+ * <code>CallMetrics.Phase</code>.
+ *
+ * @see OutProcessMetrics#register(String)
+ */
+public interface OutProcessMetricsMBean {
+
+    /**
+     * @return Calls completed, failed ones included.
+     */
+    long getCalls();
+
+    /**
+     * @return Calls completed with an error.
+     */
+    long getFailures();
+
+    /**
+     * @return Calls submitted and not completed yet.
+     */
+    int getInFlight();
+
+    /**
+     * @return Calls waiting to be sent to an out process.
+     */
+    int getQueueDepth();
+
+    /**
+     * @return Out processes alive, connected or starting.
+     */
+    int getWorkers();
+
+    /**
+     * @return Bytes of all request frames.
+     */
+    long getRequestBytes();
+
+    /**
+     * @return Bytes of all response frames.
+     */
+    long getResponseBytes();
+
+    /**
+     * @return Bytes not sent or received thanks to compression, 0 if
+     * compression is disabled.
+     */
+    long getCompressionBytesSaved();
+
+    /**
+     * @return Mean call duration.
+     */
+    double getMeanMillis();
+
+    /**
+     * @return Median call duration.
+     */
+    double getP50Millis();
+
+    /**
+     * @return 99th percentile of call duration.
+     */
+    double getP99Millis();
+
+    /**
+     * @return Longest call duration.
+     */
+    double getMaxMillis();
+
+    /**
+     * @return One line per phase with count, mean, p50, p99 and max.
+     */
+    String[] getPhaseSummary();
+
+    /**
+     * Gets a percentile of a phase duration.
+     *
+     * @param phase Phase name, ex: <code>EXECUTE</code>.
+     * @param percentile From 0 to 100.
+     * @return The duration, 0 if the phase was never recorded.
+     */
+    double getPhasePercentileMillis(String phase, double percentile);
+
+    /**
+     * Clears histograms and counters, gauges are not affected.
+     */
+    void reset();
+}
@@ -0,0 +1,545 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import dyorgio.runtime.out.process.protocol.Compression;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Run serializable <code>Callable</code>s and <code>Runnable</code>s in a
+ * pool of other JVMs.<br>
+ * Between <code>minWorkers</code> and <code>maxWorkers</code> JVMs are kept
+ * running. Submitted tasks go to a shared queue and are dispatched to the
+ * least loaded JVM, new JVMs are started while every JVM is busy and the pool
+ * is not full. Each JVM runs up to <code>OutProcessConfig#withParallelism</code>
+ * tasks at a time. JVMs above <code>minWorkers</code> are stopped after staying
+ * idle for the keep alive time. A JVM running a cancelled task that doesn't
+ * stop is killed, see <code>OutProcessConfig#withCancelGracePeriod</code>.
+ * A JVM that crashes or stops answering is replaced and its
+ * <code>Idempotent</code> tasks go back to the queue, see
+ * <code>OutProcessConfig#withHeartbeat</code>. JVMs are recycled like
+ * <code>OutProcessExecutorService</code> ones, see
+ * <code>OutProcessConfig#withRecycling</code>.<br>
+ * State/data is shared between executions on the same JVM only, so tasks
+ * should not rely on it.<br>
+ * This class acts like an <code>Executors#newFixedThreadPool(int)</code>
+ * instance, so you can use it like any other ExecutorService instance.
+ *
+ * @see CallableSerializable
+ * @see RunnableSerializable
+ * @see OutProcessExecutorService
+ * @see OutProcessConfig
+ */
+public class OutProcessPoolExecutorService extends AbstractExecutorService {
+
+    private static final String RUNNING_AS_OUT_PROCESS = "$RunnningAsOutProcess";
+
+    /**
+     * Default time a JVM above <code>minWorkers</code> is kept idle.
+     */
+    public static final long DEFAULT_KEEP_ALIVE_MS = 60000;
+
+    private static final long RECYCLE_CONNECT_TIMEOUT_MS = 60000;
+    private static final long REAP_INTERVAL_MS = 1000;
+
+    private final int minWorkers;
+    private final int maxWorkers;
+    private final long keepAliveMs;
+    private final OutProcessConfig config;
+    private final OutProcessMetrics metrics;
+    private final LinkedBlockingQueue<SerializableFutureTask> toProcess = new LinkedBlockingQueue<>();
+    private final List<OutProcessWorker> workers = new CopyOnWriteArrayList<>();
+    private final Object lock = new Object();
+    private final Thread dispatcher;
+    private volatile boolean shutdown = false;
+    // guarded by lock
+    private boolean dispatching = true;
+    private int starting;
+    private TimerWheel.Timeout reaper;
+
+    /**
+     * Creates an instance with specific pool sizes and java options
+     *
+     * @param minWorkers Number of JVMs to keep, even if idle.
+     * @param maxWorkers Maximum number of JVMs.
+     * @param javaOptions JVM options (ex:"-xmx32m")
+     * @throws Exception If cannot create external JVMs.
+     */
+    public OutProcessPoolExecutorService(int minWorkers, int maxWorkers, String... javaOptions) throws Exception {
+        this(minWorkers, maxWorkers, new OutProcessConfig().withJavaOptions(javaOptions));
+    }
+
+    /**
+     * Creates an instance with specific pool sizes, processBuilderFactory and
+     * java options
+     *
+     * @param minWorkers Number of JVMs to keep, even if idle.
+     * @param maxWorkers Maximum number of JVMs.
+     * @param processBuilderFactory A factory to convert a
+     * <code>List&lt;String&gt;</code> to <code>ProcessBuilder</code>.
+     * @param javaOptions JVM options (ex:"-xmx32m")
+     * @see ProcessBuilderFactory
+     * @throws Exception If cannot create external JVMs.
+     * @throws NullPointerException If <code>processBuilderFactory</code> is
+     * <code>null</code>.
+     */
+    public OutProcessPoolExecutorService(int minWorkers, int maxWorkers, ProcessBuilderFactory processBuilderFactory, String... javaOptions) throws Exception {
+        this(minWorkers, maxWorkers, new OutProcessConfig()
+                .withProcessBuilderFactory(processBuilderFactory)
+                .withJavaOptions(javaOptions));
+    }
+
+    /**
+     * Creates an instance with specific pool sizes and config
+     *
+     * @param minWorkers Number of JVMs to keep, even if idle.
+     * @param maxWorkers Maximum number of JVMs.
+     * @param config Settings used to start and talk to the JVMs.
+     * @see OutProcessConfig
+     * @throws Exception If cannot create external JVMs.
+     */
+    public OutProcessPoolExecutorService(int minWorkers, int maxWorkers, OutProcessConfig config) throws Exception {
+        this(minWorkers, maxWorkers, DEFAULT_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS, config);
+    }
+
+    /**
+     * Creates an instance with specific pool sizes, keep alive time and config
+     *
+     * @param minWorkers Number of JVMs to keep, even if idle.
+     * @param maxWorkers Maximum number of JVMs.
+     * @param keepAliveTime Time a JVM above <code>minWorkers</code> is kept
+     * idle.
+     * @param unit The time unit of the <code>keepAliveTime</code> argument.
+     * @param config Settings used to start and talk to the JVMs.
+     * @see OutProcessConfig
+     * @throws Exception If cannot create external JVMs.
+     * @throws IllegalArgumentException If pool sizes are invalid.
+     */
+    public OutProcessPoolExecutorService(int minWorkers, int maxWorkers, long keepAliveTime, TimeUnit unit, OutProcessConfig config) throws Exception {
+        if (minWorkers < 0 || maxWorkers < 1 || minWorkers > maxWorkers) {
+            throw new IllegalArgumentException("Invalid pool sizes: min=" + minWorkers + ", max=" + maxWorkers);
+        }
+        this.minWorkers = minWorkers;
+        this.maxWorkers = maxWorkers;
+        this.keepAliveMs = unit.toMillis(keepAliveTime);
+        this.config = config.copy();
+        this.metrics = new OutProcessMetrics(OutProcessPoolExecutorService.class.getSimpleName(), config.getCallListener(), new OutProcessMetrics.Gauges() {
+            @Override
+            public int getInFlight() {
+                int inFlight = toProcess.size();
+                for (OutProcessWorker worker : workers) {
+                    inFlight += worker.getInFlight();
+                }
+                return inFlight;
+            }
+
+            @Override
+            public int getQueueDepth() {
+                int queued = toProcess.size();
+                for (OutProcessWorker worker : workers) {
+                    queued += worker.getQueueDepth();
+                }
+                return queued;
+            }
+
+            @Override
+            public int getWorkers() {
+                return workers.size();
+            }
+        }, config.getCompressionThreshold() > 0 ? new Compression(config.getCompressionThreshold()) : null);
+
+        for (int i = 0; i < minWorkers; i++) {
+            workers.add(newWorker());
+        }
+
+        dispatcher = new Thread(this::dispatch, "out-process-pool-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+
+        if (maxWorkers > minWorkers) {
+            synchronized (lock) {
+                scheduleReaper();
+            }
+        }
+    }
+
+    /**
+     * Current number of JVMs in this pool.
+     *
+     * @return Started and not yet stopped JVMs.
+     */
+    public int getWorkerCount() {
+        return workers.size();
+    }
+
+    /**
+     * Number of tasks waiting for a JVM.
+     *
+     * @return Tasks not yet dispatched.
+     */
+    public int getQueueSize() {
+        return toProcess.size();
+    }
+
+    /**
+     * Gets the metrics of the tasks run by this pool, queue time in the pool
+     * included. Unregistered from JMX on shutdown.
+     *
+     * @return The metrics, can be registered as a JMX MBean.
+     * @see OutProcessMetrics#register(String)
+     */
+    public OutProcessMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        metrics.unregister();
+        synchronized (lock) {
+            if (reaper != null) {
+                reaper.cancel();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown();
+        dispatcher.interrupt();
+        List<Runnable> notProcessed = new ArrayList<>();
+        toProcess.drainTo(notProcessed);
+        for (OutProcessWorker worker : workers) {
+            notProcessed.addAll(worker.close());
+        }
+        return notProcessed;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        if (!isShutdown() || dispatcher.isAlive()) {
+            return false;
+        }
+        for (OutProcessWorker worker : workers) {
+            if (worker.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        dispatcher.join(unit.toMillis(timeout));
+        for (OutProcessWorker worker : workers) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            worker.join(remaining);
+        }
+        return isTerminated();
+    }
+
+    /**
+     * Runs a streaming task in one of the JVMs.<br>
+     * Items can be read as soon as they are emitted, see
+     * <code>OutProcessConfig#withStreamWindow</code>. The task uses one
+     * JVM task slot until it ends or the iterator is closed.
+     *
+     * @param <T> Item type.
+     * @param task The task.
+     * @return An iterator over the emitted items, must be closed.
+     * @throws RejectedExecutionException If executor is shutdown.
+     * @see StreamingTask
+     */
+    public <T extends Serializable> RemoteIterator<T> stream(StreamingTask<T> task) {
+        RemoteStream<T> stream = new RemoteStream<>(task, config.getStreamWindow());
+        execute(stream);
+        return stream;
+    }
+
+    /**
+     * Submits a task to run in one of the JVMs without blocking a thread to wait
+     * for it.<br>
+     * The returned future is completed by the connection thread when the
+     * result arrives, dependent stages should be short or use an
+     * <code>*Async</code> method with their own executor. Thousands of calls
+     * can be composed:
+     * <pre>
+     * CompletableFuture.allOf(futures).thenRun(...);
+     * </pre>
+     *
+     * @param <T> Result type.
+     * @param task The task.
+     * @return A future completed with the task result, or exceptionally with
+     * the task error.
+     * @throws RejectedExecutionException If executor is shutdown.
+     * @see CallableSerializable
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Serializable> CompletableFuture<T> submitAsync(CallableSerializable<T> task) {
+        SerializableFutureTask futureTask = new SerializableFutureTask((Callable<Serializable>) (Callable<?>) task);
+        CompletableFuture<T> future = (CompletableFuture<T>) (CompletableFuture<?>) futureTask.toCompletableFuture();
+        execute(futureTask);
+        return future;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+        return (RunnableFuture<T>) new SerializableFutureTask((Callable<Serializable>) callable);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        return (RunnableFuture<T>) new SerializableFutureTask(runnable, (Serializable) value);
+    }
+
+    @Override
+    public void execute(Runnable runnable) {
+        if (System.getProperty(RUNNING_AS_OUT_PROCESS) != null) {
+            runnable.run();
+        } else if (shutdown) {
+            throw new RejectedExecutionException("Executor is shutdown.");
+        } else {
+            SerializableFutureTask task = runnable instanceof SerializableFutureTask
+                    ? (SerializableFutureTask) runnable : new SerializableFutureTask(runnable, (Serializable) null);
+            // the dispatcher decides to exit under the same lock, never leaving a task behind
+            synchronized (lock) {
+                if (shutdown) {
+                    throw new RejectedExecutionException("Executor is shutdown.");
+                }
+                task.metrics = metrics.newCall();
+                toProcess.add(task);
+            }
+        }
+    }
+
+    private OutProcessWorker newWorker() throws Exception {
+        return new OutProcessWorker(config, new OutProcessWorker.Listener() {
+            @Override
+            public void onTaskDone(OutProcessWorker worker) {
+                synchronized (lock) {
+                    lock.notifyAll();
+                }
+            }
+
+            @Override
+            public void onKilled(OutProcessWorker worker, List<Runnable> notSent) {
+                boolean replace;
+                synchronized (lock) {
+                    workers.remove(worker);
+                    for (Runnable task : notSent) {
+                        if (dispatching) {
+                            // dispatched again to another JVM
+                            toProcess.add((SerializableFutureTask) task);
+                        } else {
+                            ((SerializableFutureTask) task).complete(null, new ExecutionException("Out process killed.", null));
+                        }
+                    }
+                    replace = !shutdown && worker.hasConnected() && workers.size() + starting < minWorkers;
+                    if (replace) {
+                        starting++;
+                    }
+                    lock.notifyAll();
+                }
+                if (replace) {
+                    try {
+                        startWorker();
+                    } catch (Exception e) {
+                        // started again by the next task
+                    }
+                }
+            }
+
+            @Override
+            public void onRecycle(OutProcessWorker worker) {
+                Thread recycler = new Thread(() -> recycle(worker), "out-process-recycler");
+                recycler.setDaemon(true);
+                recycler.start();
+            }
+        }, metrics);
+    }
+
+    /**
+     * Starts a JVM for a slot reserved in <code>starting</code> and adds it to
+     * the pool. Called without holding <code>lock</code>: starting a process
+     * is slow and listeners of running JVMs need the lock meanwhile.
+     */
+    private OutProcessWorker startWorker() throws Exception {
+        OutProcessWorker worker = null;
+        try {
+            worker = newWorker();
+            return worker;
+        } finally {
+            synchronized (lock) {
+                starting--;
+                if (worker != null) {
+                    if (dispatching) {
+                        workers.add(worker);
+                    } else {
+                        // nobody left to shut it down
+                        worker.shutdown();
+                    }
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Puts a new JVM in place of another once connected and warm, the old one
+     * exits after running the tasks it already received.
+     */
+    private void recycle(OutProcessWorker old) {
+        OutProcessWorker fresh = null;
+        try {
+            fresh = newWorker();
+            if (fresh.awaitConnection(RECYCLE_CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    && fresh.warmUp(RECYCLE_CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                synchronized (lock) {
+                    if (!shutdown && workers.remove(old)) {
+                        workers.add(fresh);
+                        old.shutdown();
+                        lock.notifyAll();
+                        return;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            // old one kept
+        }
+        if (fresh != null) {
+            fresh.close();
+        }
+        old.cancelRecycle();
+    }
+
+    private void dispatch() {
+        try {
+            while (true) {
+                SerializableFutureTask task = toProcess.poll(1, TimeUnit.SECONDS);
+                if (task == null) {
+                    synchronized (lock) {
+                        if (shutdown && toProcess.isEmpty()) {
+                            dispatching = false;
+                            break;
+                        }
+                    }
+                } else {
+                    try {
+                        if (!awaitWorker().dispatch(task)) {
+                            // closed meanwhile, its replacement takes it
+                            toProcess.add(task);
+                        }
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        task.complete(null, new ExecutionException("Cannot start out process.", e));
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // shutdownNow
+            synchronized (lock) {
+                dispatching = false;
+            }
+        }
+
+        // given back by killed JVMs before dispatching stopped
+        SerializableFutureTask task;
+        while ((task = toProcess.poll()) != null) {
+            task.complete(null, new ExecutionException("Executor is shutdown.", null));
+        }
+        synchronized (lock) {
+            for (OutProcessWorker worker : workers) {
+                worker.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Finds the least loaded JVM able to receive one more task, starting a new
+     * one if every JVM is already running <code>parallelism</code> tasks and
+     * the pool is not full.
+     */
+    private OutProcessWorker awaitWorker() throws Exception {
+        synchronized (lock) {
+            while (true) {
+                OutProcessWorker leastLoaded = null;
+                for (OutProcessWorker worker : workers) {
+                    if (!worker.isAlive()) {
+                        workers.remove(worker);
+                    } else if (leastLoaded == null || worker.getInFlight() < leastLoaded.getInFlight()) {
+                        leastLoaded = worker;
+                    }
+                }
+
+                boolean saturated = leastLoaded == null || leastLoaded.getInFlight() >= config.getParallelism();
+                if (saturated && workers.size() + starting < maxWorkers) {
+                    starting++;
+                    break;
+                }
+
+                if (leastLoaded != null && leastLoaded.getInFlight() < leastLoaded.getMaxInFlight()) {
+                    return leastLoaded;
+                }
+
+                lock.wait(1000);
+            }
+        }
+        return startWorker();
+    }
+
+    private void scheduleReaper() {
+        reaper = TimerWheel.shared().schedule(this::stopIdleWorkers, Math.min(keepAliveMs, REAP_INTERVAL_MS), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops JVMs above <code>minWorkers</code> idle for the keep alive time,
+     * on the timer thread.
+     */
+    private void stopIdleWorkers() {
+        synchronized (lock) {
+            if (shutdown) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (OutProcessWorker worker : workers) {
+                if (workers.size() <= minWorkers) {
+                    break;
+                }
+                if (worker.getInFlight() == 0 && now - worker.getLastActive() >= keepAliveMs) {
+                    workers.remove(worker);
+                    worker.shutdown();
+                }
+            }
+            scheduleReaper();
+        }
+    }
+}
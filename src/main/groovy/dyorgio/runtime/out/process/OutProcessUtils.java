@@ -15,10 +15,36 @@
  ***************************************************************************** */
 package dyorgio.runtime.out.process;
 
-import java.io.*;
+import dyorgio.runtime.out.process.protocol.Message;
+import dyorgio.runtime.out.process.protocol.MessageChannel;
+import dyorgio.runtime.out.process.protocol.PayloadException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
 
 /**
  * Constants and utility methods used in an out process execution.
@@ -33,70 +59,328 @@ public class OutProcessUtils {
     public static final String RUNNING_AS_OUT_PROCESS = "$RunnningAsOutProcess";
 
     /**
-     * Get current Thread classpath.
+     * System property of out processes that load classes from the executor,
+     * the value is the cache directory.
+     *
+     * @see OutProcessConfig#withRemoteClassLoading(File)
+     */
+    public static final String REMOTE_CLASSES = "dyorgio.runtime.out.process.remoteClasses";
+
+    // marks the place of the JVM class path in a class loader chain
+    private static final String JAVA_CLASS_PATH = new String("java.class.path");
+    private static final Map<ClassLoader, ResolvedClasspath> CLASSPATHS = new WeakHashMap<>();
+    private static final Map<String, File> PATHING_JARS = new ConcurrentHashMap<>();
+
+    /**
+     * Get current Thread classpath.<br>
+     * Collects the URLs of the context class loader and its parents up to
+     * the application class loader, the class path of the JVM is used for
+     * class loaders that don't expose URLs (ex: the application class loader
+     * of JDK 9+). Results are cached
+     * per class loader until it gets new URLs.
      *
      * @return A string of current classpath elements splited by
      * <code>File.pathSeparatorChar</code>
      */
     public static String getCurrentClasspath() {
-        StringBuilder buffer = new StringBuilder();
-        for (URL url : ((URLClassLoader) (Thread.currentThread().getContextClassLoader())).getURLs()) {
-            buffer.append(new File(url.getPath()));
-            buffer.append(File.pathSeparatorChar);
-        }
-        String classpath = buffer.toString();
-        classpath = classpath.substring(0, classpath.lastIndexOf(File.pathSeparatorChar));
-        return classpath;
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null) {
+            loader = ClassLoader.getSystemClassLoader();
+        }
+
+        // parents first, up to the application class loader (extension and
+        // platform classes are loaded by any JVM), the JVM class path stands
+        // for a loader without URLs
+        List<String> urls = new ArrayList<>();
+        ClassLoader system = ClassLoader.getSystemClassLoader();
+        for (ClassLoader current = loader; current != null; current = current == system ? null : current.getParent()) {
+            if (current instanceof URLClassLoader) {
+                List<String> loaderUrls = new ArrayList<>();
+                for (URL url : ((URLClassLoader) current).getURLs()) {
+                    loaderUrls.add(url.toExternalForm());
+                }
+                urls.addAll(0, loaderUrls);
+            } else if (current == system) {
+                urls.add(0, JAVA_CLASS_PATH);
+            }
+        }
+
+        synchronized (CLASSPATHS) {
+            ResolvedClasspath resolved = CLASSPATHS.get(loader);
+            if (resolved == null || !resolved.urls.equals(urls)) {
+                resolved = new ResolvedClasspath(urls, toClasspath(urls));
+                CLASSPATHS.put(loader, resolved);
+            }
+            return resolved.classpath;
+        }
+    }
+
+    private static String toClasspath(List<String> urls) {
+        Set<String> entries = new LinkedHashSet<>();
+        for (String url : urls) {
+            if (url == JAVA_CLASS_PATH) {
+                String javaClasspath = System.getProperty("java.class.path");
+                if (javaClasspath != null && !javaClasspath.isEmpty()) {
+                    entries.addAll(Arrays.asList(javaClasspath.split(File.pathSeparator)));
+                }
+                continue;
+            }
+            try {
+                entries.add(new File(new URL(url).toURI()).getPath());
+            } catch (MalformedURLException | URISyntaxException | IllegalArgumentException e) {
+                // not a file url or not encoded, ex: spaces
+                entries.add(new File(url.startsWith("file:") ? url.substring(5) : url).getPath());
+            }
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+
+    /**
+     * Gets the classpath entry with the out process entry points, the only
+     * one needed by out processes that load other classes from the executor.
+     *
+     * @return The jar or directory of this library.
+     * @see OutProcessConfig#withRemoteClassLoading(File)
+     */
+    public static String getEntrypointClasspath() {
+        try {
+            return new File(OutProcessUtils.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+        } catch (URISyntaxException | RuntimeException e) {
+            throw new IllegalStateException("Cannot locate out process classes.", e);
+        }
+    }
+
+    /**
+     * Gets a jar without classes whose manifest <code>Class-Path</code>
+     * references every entry of a classpath, so the command line of out
+     * processes stays short. Jars are named by a fingerprint of the classpath
+     * and created only once, wildcard entries (<code>lib/*</code>) are
+     * expanded when the jar is created.
+     *
+     * @param classpath The classpath.
+     * @param directory Where pathing jars are kept, created if missing.
+     * @return The pathing jar.
+     * @throws IOException If the jar cannot be written.
+     */
+    public static File getPathingJar(String classpath, File directory) throws IOException {
+        File jar = new File(directory, "out-process-classpath-" + fingerprint(classpath) + ".jar");
+        File cached = PATHING_JARS.get(jar.getPath());
+        if (cached != null && cached.isFile()) {
+            return cached;
+        }
+
+        if (!jar.isFile()) {
+            StringBuilder references = new StringBuilder();
+            for (String entry : classpath.split(File.pathSeparator)) {
+                if (entry.endsWith("*")) {
+                    File[] jars = new File(entry.substring(0, entry.length() - 1)).listFiles((dir, name) -> name.endsWith(".jar") || name.endsWith(".JAR"));
+                    if (jars != null) {
+                        for (File file : jars) {
+                            references.append(file.getAbsoluteFile().toURI()).append(' ');
+                        }
+                    }
+                } else if (!entry.isEmpty()) {
+                    // directories get a trailing slash, required by Class-Path
+                    references.append(new File(entry).getAbsoluteFile().toURI()).append(' ');
+                }
+            }
+
+            Manifest manifest = new Manifest();
+            manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+            manifest.getMainAttributes().put(Attributes.Name.CLASS_PATH, references.toString().trim());
+
+            Files.createDirectories(directory.toPath());
+            File temp = File.createTempFile(jar.getName(), ".tmp", directory);
+            try {
+                try (JarOutputStream out = new JarOutputStream(new FileOutputStream(temp), manifest)) {
+                    out.flush();
+                }
+                // other JVMs may be creating the same jar
+                Files.move(temp.toPath(), jar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp.toPath());
+            }
+        }
+
+        PATHING_JARS.put(jar.getPath(), jar);
+        return jar;
+    }
+
+    /**
+     * Gets the classpath to pass in the out process command line.
+     *
+     * @param classpath The out process classpath.
+     * @param pathingJarDirectory Where pathing jars are kept,
+     * <code>null</code> to use the classpath as is.
+     * @return The pathing jar path or the classpath if the jar cannot be
+     * created.
+     */
+    static String getLaunchClasspath(String classpath, File pathingJarDirectory) {
+        if (pathingJarDirectory == null) {
+            return classpath;
+        }
+        try {
+            return getPathingJar(classpath, pathingJarDirectory).getAbsolutePath();
+        } catch (IOException e) {
+            reportUncaught(e);
+            return classpath;
+        }
+    }
+
+    /**
+     * Reports the failure of a background task to the uncaught exception
+     * handler of the current thread, which keeps running. A failing handler
+     * is ignored, like the JVM does.
+     *
+     * @param error The failure.
+     */
+    static void reportUncaught(Throwable error) {
+        Thread thread = Thread.currentThread();
+        try {
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, error);
+        } catch (Throwable e) {
+            // nowhere else to report
+        }
     }
 
     /**
-     * Creates a new <code>ObjectInputStream</code> from
-     * <code>inputStream</code> parameter, reads a <code>Callable</code> command
-     * from it, executes call, and write results on <code>objOut</code>.
+     * Short hash of a value, to name files.
+     *
+     * @param value The value.
+     * @return 16 hexadecimal chars.
+     */
+    static String fingerprint(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads a <code>CALL</code> message from <code>channel</code>, executes
+     * call, and write results on <code>channel</code>.
      * <br>
-     * After executing <code>Callable.call()</code> a primitive boolean is wrote
-     * in <code>objOut</code> to sinalize the execution state:
+     * After executing <code>Callable.call()</code> the response type
+     * sinalizes the execution state:
      * <br>
-     * <code>true</code>: OK execution. Result is wrote on
-     * <code>objOut</code><br>
-     * <code>false</code>: An <code>Exception</code> occurred.
-     * <code>Exception</code> is wrote on <code>objOut</code><br>
+     * <code>RESULT</code>: OK execution. Result is the payload<br>
+     * <code>ERROR</code>: An <code>Exception</code> occurred.
+     * <code>Exception</code> is the payload<br>
      *
-     * @param inputStream A source of the command.
-     * @param objOut The output for result.
-     * @throws IOException
-     * @see ObjectInputStream
+     * @param channel The connection with the executor.
+     * @throws IOException If the connection is broken.
+     * @see Message
      * @see Callable
-     * @see ObjectOutputStream
      */
-    public static void readCommandExecuteAndRespond(InputStream inputStream, ObjectOutputStream objOut) throws IOException {
-        try {
-            // Read current command
-//            Callable<Serializable> callable = (Callable<Serializable>) new ObjectInputStream(inputStream).readObject();
+    public static void readCommandExecuteAndRespond(MessageChannel channel) throws IOException {
+        readCommandExecuteAndRespond(channel, null);
+    }
 
-//            OneRunOutProcess.Penguin penguin = (OneRunOutProcess.Penguin) new ObjectInputStream(inputStream).readObject();
+    /**
+     * Reads a <code>CALL</code> message from <code>channel</code>, executes
+     * call, flushes its output and write results on <code>channel</code>.
+     *
+     * @param channel The connection with the executor.
+     * @param output Output of the call, sent before the results,
+     * <code>null</code> if not captured.
+     * @throws IOException If the connection is broken.
+     * @see #readCommandExecuteAndRespond(MessageChannel)
+     */
+    public static void readCommandExecuteAndRespond(MessageChannel channel, Flushable output) throws IOException {
+        // Read current command
+        Message message;
+        try {
+            message = channel.read();
+        } catch (PayloadException e) {
+            writeError(channel, e.getId(), e.getCause());
+            return;
+        }
+        executeAndRespond(channel, message, output);
+    }
 
-            Callable callable = (Callable) new ObjectInputStream(inputStream).readObject();
+    /**
+     * Executes a <code>CALL</code> message read by
+     * <code>MessageChannel.readFrame()</code>, decoding it in the current
+     * thread, and writes results on <code>channel</code>.
+     *
+     * @param channel The connection with the executor.
+     * @param command The command, payload decoded or not.
+     * @throws IOException If the connection is broken.
+     * @see #readCommandExecuteAndRespond(MessageChannel)
+     */
+    public static void executeAndRespond(MessageChannel channel, Message command) throws IOException {
+        executeAndRespond(channel, command, null);
+    }
 
-            Serializable result = (String & Serializable) callable.call();
+    /**
+     * Executes a <code>CALL</code> message read by
+     * <code>MessageChannel.readFrame()</code>, like
+     * <code>executeAndRespond(MessageChannel, Message)</code>, and flushes
+     * its output before writing results.
+     *
+     * @param channel The connection with the executor.
+     * @param command The command, payload decoded or not.
+     * @param output Output of the call, sent before the results,
+     * <code>null</code> if not captured.
+     * @throws IOException If the connection is broken.
+     */
+    public static void executeAndRespond(MessageChannel channel, Message command, Flushable output) throws IOException {
+        Message message;
+        try {
+            message = channel.decode(command);
+        } catch (PayloadException e) {
+            writeError(channel, e.getId(), e.getCause());
+            return;
+        }
 
-//            Serializable result = callable.call();
-            // Reply with result
-            objOut.writeBoolean(true);
-            objOut.writeObject(result);
-            objOut.flush();
+        Serializable result;
+        try {
+            Callable callable = (Callable) message.getPayload();
+            result = (Serializable) callable.call();
         } catch (Throwable e) {
             e.printStackTrace();
-            try {
-                // Reply with error
-                objOut.writeBoolean(false);
-                objOut.writeObject(e);
-                objOut.flush();
-            } catch (Throwable ex) {
-                // Reply with safe error (without not-serializable objects).
-                objOut.writeObject(new RuntimeException(ex.getMessage()));
-                objOut.flush();
+            if (output != null) {
+                output.flush();
             }
+            writeError(channel, message.getId(), e);
+            return;
+        }
+
+        if (output != null) {
+            output.flush();
+        }
+        try {
+            // Reply with result
+            channel.write(Message.RESULT, message.getId(), result);
+        } catch (IOException e) {
+            writeError(channel, message.getId(), e);
+        }
+    }
+
+    private static void writeError(MessageChannel channel, long id, Throwable e) throws IOException {
+        try {
+            // Reply with error
+            channel.write(Message.ERROR, id, e);
+        } catch (IOException ex) {
+            // Reply with safe error (without not-serializable objects).
+            channel.write(Message.ERROR, id, new RuntimeException(e.toString()));
+        }
+    }
+
+    private static final class ResolvedClasspath {
+
+        private final List<String> urls;
+        private final String classpath;
+
+        private ResolvedClasspath(List<String> urls, String classpath) {
+            this.urls = urls;
+            this.classpath = classpath;
         }
     }
 }
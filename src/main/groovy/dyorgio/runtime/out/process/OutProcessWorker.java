@@ -0,0 +1,886 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import dyorgio.runtime.out.process.entrypoint.RemoteMain;
+import dyorgio.runtime.out.process.protocol.Handshake;
+import dyorgio.runtime.out.process.protocol.Message;
+import dyorgio.runtime.out.process.protocol.MessageChannel;
+import dyorgio.runtime.out.process.protocol.PayloadCodec;
+import dyorgio.runtime.out.process.protocol.PayloadException;
+import dyorgio.runtime.out.process.protocol.SharedMemory;
+import dyorgio.runtime.out.process.transport.Connection;
+import dyorgio.runtime.out.process.transport.TransportServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One out process JVM running <code>RemoteMain</code> and the pipe threads
+ * that feed it with tasks.<br>
+ * Tasks are dispatched to the worker queue and written to the out process
+ * without waiting for previous results, up to <code>maxInFlight</code> tasks
+ * at a time. A reader thread completes each task when the response with its
+ * id arrives, in any order. It also answers the class fetches of an out
+ * process started with remote class loading.<br>
+ * Queued tasks of the same <code>invokeAll</code> are written together in a
+ * <code>BATCH</code> message, as many as there are free slots.<br>
+ * Cancelled tasks are stopped with a <code>CANCEL</code> message, if one
+ * doesn't stop within the grace period the out process is killed and the
+ * listener is told to replace it.<br>
+ * The out process is also replaced when it dies: it exits, its connection is
+ * lost or no message arrives from it during the heartbeat timeout. Its
+ * <code>Idempotent</code> tasks are given to the listener with the tasks not
+ * sent, the others fail. Tasks queued on an out process that dies before
+ * connecting fail too, so a JVM that cannot start is not restarted in a loop.
+ * If started by a detached launcher, the launcher exit only counts if it
+ * failed, see <code>ProcessBuilderFactory#isDetached()</code>.<br>
+ * After too many tasks, too much heap used after GC or too long running, the
+ * listener is asked once to recycle the worker: start a replacement, then
+ * shut this one down.<br>
+ * If output is captured, <code>OUTPUT</code> messages go to the output of
+ * their task and to the sink.
+ *
+ * @see OutProcessExecutorService
+ * @see OutProcessPoolExecutorService
+ * @see RemoteMain
+ * @see Message
+ */
+class OutProcessWorker {
+
+    private final TransportServer server;
+    private final String secret;
+    private final Process process;
+    private final ResourceGroup resourceGroup;
+    private final Thread pipe;
+    private final Listener listener;
+    private final OutProcessMetrics metrics;
+    private final PayloadCodec codec;
+    private final SharedMemory sharedMemory;
+    private final ClassLoader classLoader;
+    private final int maxInFlight;
+    private final long taskTimeoutMs;
+    private final long cancelGracePeriodMs;
+    private final long heartbeatIntervalMs;
+    private final long heartbeatTimeoutMs;
+    private final int maxReplays;
+    private final long recycleAfterTasks;
+    private final long recycleAboveHeapBytes;
+    private final long recycleAfterAgeMs;
+    private final boolean detached;
+    private final int maxFrameSize;
+    private final int outputCapacity;
+    private final OutputSink outputSink;
+    private final long startedAt = System.nanoTime();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicBoolean recycling = new AtomicBoolean();
+    private volatile long heapUsed;
+    private final Semaphore window;
+    private final LinkedBlockingQueue<SerializableFutureTask> toProcess = new LinkedBlockingQueue<>();
+    private final Map<Long, SerializableFutureTask> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final CountDownLatch connected = new CountDownLatch(1);
+    private volatile MessageChannel channel;
+    private volatile boolean shutdown = false;
+    private volatile boolean killed = false;
+    private volatile long lastActive = System.currentTimeMillis();
+    // System.nanoTime() of the last message received
+    private volatile long lastReceived;
+    // no task is accepted once closed, guarded by toProcess
+    private boolean closed = false;
+    private long nextId = 0;
+
+    OutProcessWorker(OutProcessConfig config, Listener listener, OutProcessMetrics metrics) throws Exception {
+        this.listener = listener;
+        this.metrics = metrics;
+        this.codec = config.getCodec();
+        this.maxInFlight = config.getMaxInFlight();
+        this.taskTimeoutMs = config.getTaskTimeoutMs();
+        this.cancelGracePeriodMs = config.getCancelGracePeriodMs();
+        this.heartbeatIntervalMs = config.getHeartbeatIntervalMs();
+        this.heartbeatTimeoutMs = config.getHeartbeatTimeoutMs();
+        this.maxReplays = config.getMaxReplays();
+        this.recycleAfterTasks = config.getRecycleAfterTasks();
+        this.recycleAboveHeapBytes = config.getRecycleAboveHeapBytes();
+        this.recycleAfterAgeMs = config.getRecycleAfterAgeMs();
+        this.detached = config.getProcessBuilderFactory().isDetached();
+        this.maxFrameSize = config.getMaxFrameSize();
+        this.outputCapacity = config.getOutputCapacity();
+        this.outputSink = config.getOutputSink();
+        this.window = new Semaphore(maxInFlight);
+
+        Random r = new SecureRandom();
+        this.sharedMemory = config.getSharedMemoryThreshold() > 0 ? SharedMemory.create(config.getSharedMemoryThreshold()) : null;
+        this.server = config.getTransport().listen();
+        this.secret = r.nextLong() + ":" + r.nextLong() + ":" + r.nextLong() + ":" + r.nextLong();
+
+        File remoteClasses = config.getRemoteClassLoading();
+        String classpath = remoteClasses == null ? config.getClasspath() : OutProcessUtils.getEntrypointClasspath();
+        ClassLoader contextLoader = Thread.currentThread().getContextClassLoader();
+        this.classLoader = contextLoader == null ? OutProcessWorker.class.getClassLoader() : contextLoader;
+        String launchClasspath = OutProcessUtils.getLaunchClasspath(classpath, config.getPathingJar());
+        ClassDataSharing cds = ClassDataSharing.of(config.getClassDataSharing(), classpath, launchClasspath, config.getJavaOptions());
+
+        List<String> commandList = new ArrayList<>();
+
+        commandList.add(System.getProperty("java.home") + "/bin/java");
+        if (cds != null) {
+            commandList.addAll(cds.getJavaOptions());
+        }
+        commandList.addAll(Arrays.asList(config.getJavaOptions()));
+        if (remoteClasses != null) {
+            commandList.add("-D" + OutProcessUtils.REMOTE_CLASSES + "=" + remoteClasses.getAbsolutePath());
+        }
+        commandList.add("-cp");
+        commandList.add(launchClasspath);
+        commandList.add(RemoteMain.class.getName());
+        commandList.add(server.getAddress());
+        commandList.add(secret);
+        commandList.add(String.valueOf(config.getParallelism()));
+        commandList.add(String.valueOf(heartbeatIntervalMs));
+        commandList.add(String.valueOf(outputCapacity > 0));
+
+        // adjust in processBuilderFactory and starts
+        try {
+            resourceGroup = ResourceGroup.create(config.getResourceLimits());
+            List<String> command = resourceGroup == null ? commandList : resourceGroup.wrap(commandList);
+            process = config.getProcessBuilderFactory().create(command).start();
+            if (cds != null) {
+                cds.started(process);
+            }
+        } catch (Exception e) {
+            if (cds != null) {
+                cds.failed();
+            }
+            server.close();
+            if (sharedMemory != null) {
+                sharedMemory.close();
+            }
+            throw e;
+        }
+
+        pipe = new Thread(this::pipe, "out-process-pipe-" + server.getAddress());
+        pipe.setDaemon(true);
+        pipe.start();
+
+        Thread monitor = new Thread(this::monitor, "out-process-monitor-" + server.getAddress());
+        monitor.setDaemon(true);
+        monitor.start();
+    }
+
+    /**
+     * Queues a task to be sent to the out process.
+     *
+     * @param task The task to run.
+     * @return <code>false</code> if this worker is shut down, the task must go
+     * to another one.
+     */
+    boolean dispatch(SerializableFutureTask task) {
+        synchronized (toProcess) {
+            if (closed || shutdown) {
+                return false;
+            }
+            enqueue(task);
+        }
+        return true;
+    }
+
+    /**
+     * Queues tasks that can be sent together in <code>BATCH</code> messages,
+     * as many as the free slots of the out process.
+     *
+     * @param tasks Tasks to run.
+     * @return <code>false</code> if this worker is shut down, no task was
+     * queued.
+     */
+    boolean dispatchAll(List<SerializableFutureTask> tasks) {
+        Object batch = new Object();
+        synchronized (toProcess) {
+            if (closed || shutdown) {
+                return false;
+            }
+            for (SerializableFutureTask task : tasks) {
+                task.batch = batch;
+                enqueue(task);
+            }
+        }
+        return true;
+    }
+
+    private void enqueue(SerializableFutureTask task) {
+        if (task.metrics == null) {
+            task.metrics = metrics.newCall();
+        }
+        if (outputCapacity > 0 && task.output == null) {
+            task.output = new TaskOutput(outputCapacity);
+        }
+        task.worker = this;
+        inFlight.incrementAndGet();
+        toProcess.add(task);
+    }
+
+    /**
+     * Stops a cancelled task in the out process. Its slot is kept until the
+     * out process replies, other tasks are still sent meanwhile. If
+     * <code>interruptOnCancel</code> and it doesn't stop within the grace
+     * period this worker is killed, tasks not sent go to another one and
+     * tasks sent are replayed or fail like on any other death.<br>
+     * Tasks not sent yet are skipped by the writer.
+     *
+     * @param task A cancelled task.
+     */
+    void cancel(SerializableFutureTask task) {
+        synchronized (task) {
+            long id = task.id;
+            if (id == 0 || !pending.containsKey(id)) {
+                return;
+            }
+            try {
+                channel.write(Message.CANCEL, id, task.interruptOnCancel);
+            } catch (IOException e) {
+                // connection lost, task already failed
+                return;
+            }
+            if (task.interruptOnCancel) {
+                TimerWheel.Timeout timeout = task.timeout;
+                if (timeout != null) {
+                    timeout.cancel();
+                }
+                task.timeout = TimerWheel.shared().schedule(() -> graceExpired(id), cancelGracePeriodMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Number of dispatched tasks not completed yet.
+     *
+     * @return Tasks queued, sent or running on this worker.
+     */
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Number of dispatched tasks not sent yet.
+     *
+     * @return Tasks waiting for a slot of the out process.
+     */
+    int getQueueDepth() {
+        return toProcess.size();
+    }
+
+    int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    long getLastActive() {
+        return lastActive;
+    }
+
+    boolean awaitConnection(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!connected.await(100, TimeUnit.MILLISECONDS)) {
+            boolean failed = !process.isAlive() && (!detached || process.exitValue() != 0);
+            if (failed || System.nanoTime() - deadline >= 0) {
+                return connected.getCount() == 0;
+            }
+        }
+        return true;
+    }
+
+    Integer getReturnCode() {
+        if (process.isAlive()) {
+            return null;
+        }
+        int code = process.exitValue();
+        // a detached launcher exits with 0 once the out process is started
+        return detached && code == 0 && pipe.isAlive() ? null : code;
+    }
+
+    /**
+     * Reads the counters of the cgroup of the out process.
+     *
+     * @return The resources used, <code>null</code> if there are no resource
+     * limits or not on Linux.
+     * @throws IOException If the group cannot be read, ex: out process
+     * already exited.
+     */
+    ResourceUsage getResourceUsage() throws IOException {
+        return resourceGroup == null ? null : resourceGroup.getUsage();
+    }
+
+    /**
+     * Checks if the out process ever connected, even if now closed.
+     *
+     * @return <code>true</code> if the handshake was done.
+     */
+    boolean hasConnected() {
+        return connected.getCount() == 0;
+    }
+
+    /**
+     * Checks if the pipe thread is still running.
+     *
+     * @return <code>true</code> if this worker can still run tasks.
+     */
+    boolean isAlive() {
+        return pipe.isAlive();
+    }
+
+    void join(long millis) throws InterruptedException {
+        pipe.join(millis);
+    }
+
+    /**
+     * Stops accepting tasks, queued ones are still sent and answered before
+     * closing.
+     */
+    void shutdown() {
+        synchronized (toProcess) {
+            shutdown = true;
+        }
+    }
+
+    /**
+     * Runs a no-op task, so a new out process loads the classes used by every
+     * call before receiving real ones. Not counted in the metrics.
+     *
+     * @param timeout The maximum time to wait.
+     * @param unit The time unit of the <code>timeout</code> argument.
+     * @return <code>true</code> if the task ran.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    boolean warmUp(long timeout, TimeUnit unit) throws InterruptedException {
+        SerializableFutureTask task = new SerializableFutureTask(new WarmUp(), null);
+        task.metrics = metrics.newCall();
+        // never released, so never published
+        task.metrics.hold();
+        if (!dispatch(task)) {
+            return false;
+        }
+        try {
+            task.get(timeout, unit);
+            return true;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Allows the listener to be asked again to recycle this worker, after
+     * failing to start its replacement.
+     */
+    void cancelRecycle() {
+        recycling.set(false);
+    }
+
+    /**
+     * Closes the pipe and destroys the out process. Tasks already sent fail
+     * with an <code>ExecutionException</code>.
+     *
+     * @return Tasks never sent to the out process.
+     */
+    List<Runnable> close() {
+        return close(new IOException("Out process closed."), null);
+    }
+
+    /**
+     * Closes the pipe and destroys the out process.
+     *
+     * @param cause Why tasks already sent fail.
+     * @param replayed Where to add the <code>Idempotent</code> tasks already
+     * sent instead of failing them, <code>null</code> to fail them all.
+     * @return Tasks never sent to the out process.
+     */
+    private List<Runnable> close(IOException cause, List<Runnable> replayed) {
+        shutdown = true;
+        List<Runnable> notProcessed = new ArrayList<>();
+        synchronized (toProcess) {
+            closed = true;
+            toProcess.drainTo(notProcessed);
+        }
+        inFlight.addAndGet(-notProcessed.size());
+
+        try {
+            pipe.interrupt();
+            server.close();
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (Exception e) {
+        }
+
+        try {
+            pipe.join();
+        } catch (Exception e) {
+        }
+
+        // a task the writer was holding when interrupted
+        int held = toProcess.drainTo(notProcessed);
+        inFlight.addAndGet(-held);
+
+        try {
+            process.destroy();
+        } catch (Exception e) {
+        }
+
+        failPending(cause, replayed);
+        return notProcessed;
+    }
+
+    private void pipe() {
+        while (!Thread.currentThread().isInterrupted() && !server.isClosed()) {
+            try (Connection connection = server.accept()) {
+                MessageChannel accepted = new MessageChannel(connection.getInputStream(), connection.getOutputStream());
+                accepted.setMaxFrameSize(maxFrameSize);
+
+                Map<String, String> hello = Handshake.readHello(accepted);
+                if (secret.equals(hello.get(Handshake.SECRET))) {
+                    server.close();
+                    Handshake.welcome(accepted, hello, codec, sharedMemory, metrics.getCompression());
+                    channel = accepted;
+                    lastReceived = System.nanoTime();
+                    connected.countDown();
+                    if (heartbeatIntervalMs > 0) {
+                        TimerWheel.shared().schedule(this::checkHeartbeat, heartbeatIntervalMs, TimeUnit.MILLISECONDS);
+                    }
+
+                    Thread reader = new Thread(this::read, "out-process-reader-" + server.getAddress());
+                    reader.setDaemon(true);
+                    reader.start();
+
+                    write();
+
+                    // wait last responses before disconnecting
+                    window.acquire(maxInFlight);
+                }
+            } catch (Exception e) {
+            }
+        }
+        if (sharedMemory != null) {
+            sharedMemory.close();
+        }
+    }
+
+    private void write() throws InterruptedException {
+        // once killed, tasks not sent go to the replacement
+        while (!killed && (!shutdown || !toProcess.isEmpty())) {
+            SerializableFutureTask task = toProcess.poll(1, TimeUnit.SECONDS);
+            if (task != null) {
+                try {
+                    window.acquire();
+                } catch (InterruptedException e) {
+                    toProcess.add(task);
+                    throw e;
+                }
+                send(coalesce(task));
+            }
+        }
+    }
+
+    /**
+     * Takes the tasks of the same batch queued after a task, while the out
+     * process has free slots. Tasks cancelled before being sent are skipped.
+     *
+     * @param first A task holding a slot.
+     * @return Tasks to send in one message, each one holding a slot.
+     */
+    private List<SerializableFutureTask> coalesce(SerializableFutureTask first) {
+        List<SerializableFutureTask> tasks = new ArrayList<>(1);
+        SerializableFutureTask task = first;
+        while (true) {
+            task.metrics.record(CallMetrics.Phase.QUEUE);
+            if (task.isCancelled()) {
+                done(task, null, null);
+            } else {
+                tasks.add(task);
+            }
+            SerializableFutureTask next = toProcess.peek();
+            if (first.batch == null || next == null || next.batch != first.batch || !window.tryAcquire()) {
+                return tasks;
+            }
+            task = toProcess.poll();
+            if (task == null) {
+                // drained by close
+                window.release();
+                return tasks;
+            }
+        }
+    }
+
+    /**
+     * Sends tasks, in a <code>BATCH</code> message if more than one. Ids are
+     * consecutive, the out process answers each task by its id.
+     */
+    private void send(List<SerializableFutureTask> tasks) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        SerializableFutureTask first = tasks.get(0);
+        int count = tasks.size();
+        final long firstId = nextId + 1;
+        List<Object> requests = count > 1 ? new ArrayList<>(count) : null;
+        for (SerializableFutureTask task : tasks) {
+            final long id = ++nextId;
+            if (task.output != null) {
+                task.output.setTaskId(id);
+            }
+            pending.put(id, task);
+            if (taskTimeoutMs > 0 && task.getRequestType() == Message.CALL) {
+                task.timeout = TimerWheel.shared().schedule(() -> timeout(id), taskTimeoutMs, TimeUnit.MILLISECONDS);
+            }
+            // the response may be read before the write returns
+            task.metrics.hold();
+            if (requests != null) {
+                requests.add(task.getRequest());
+            }
+        }
+        first.batchSize = count;
+        try {
+            int written = count == 1
+                    ? channel.write(first.getRequestType(), firstId, first.getRequest())
+                    : channel.write(Message.BATCH, firstId, requests);
+            for (int i = 0; i < count; i++) {
+                SerializableFutureTask task = tasks.get(i);
+                // tasks of a batch share its frame
+                task.metrics.setRequestBytes(written / count);
+                task.metrics.record(CallMetrics.Phase.SERIALIZE);
+                task.id = firstId + i;
+                task.onSent(channel, firstId + i);
+            }
+        } catch (IOException e) {
+            for (int i = 0; i < count; i++) {
+                SerializableFutureTask task = pending.remove(firstId + i);
+                if (task != null) {
+                    done(task, null, new ExecutionException(e));
+                }
+            }
+            return;
+        } finally {
+            for (SerializableFutureTask task : tasks) {
+                metrics.release(task.metrics);
+            }
+        }
+        for (SerializableFutureTask task : tasks) {
+            if (task.isCancelled()) {
+                // cancelled while being sent
+                cancel(task);
+            }
+        }
+    }
+
+    private void read() {
+        try {
+            while (true) {
+                Message message;
+                try {
+                    message = channel.read();
+                    lastReceived = System.nanoTime();
+                } catch (PayloadException e) {
+                    lastReceived = System.nanoTime();
+                    SerializableFutureTask task = pending.remove(e.getId());
+                    if (task != null) {
+                        received(task);
+                        done(task, null, new ExecutionException(e.getCause()));
+                    }
+                    continue;
+                }
+                if (message.getType() == Message.HEARTBEAT) {
+                    if (message.getPayload() instanceof Long) {
+                        heapUsed = (Long) message.getPayload();
+                    }
+                    checkRecycle();
+                    continue;
+                }
+                if (message.getType() == Message.FETCH) {
+                    RemoteClassServer.serve(channel, classLoader, message);
+                    continue;
+                }
+                if (message.getType() == Message.OUTPUT) {
+                    SerializableFutureTask task = pending.get(message.getId());
+                    TaskOutput.receive(message, task == null ? null : task.output, outputSink);
+                    continue;
+                }
+                if (message.getType() == Message.ITEM) {
+                    SerializableFutureTask task = pending.get(message.getId());
+                    if (task != null) {
+                        task.onMessage(message);
+                    }
+                    continue;
+                }
+                if (message.getType() == Message.ERROR && message.getPayload() instanceof PayloadException
+                        && ((PayloadException) message.getPayload()).getType() == Message.BATCH) {
+                    failBatch(message.getId(), ((PayloadException) message.getPayload()).getCause());
+                    continue;
+                }
+                SerializableFutureTask task = pending.remove(message.getId());
+                if (task != null) {
+                    received(task);
+                    if (message.getType() == Message.RESULT) {
+                        done(task, (Serializable) message.getPayload(), null);
+                    } else {
+                        done(task, null, new ExecutionException((Throwable) message.getPayload()));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            died("Out process connection lost.", e);
+        }
+    }
+
+    /**
+     * Records the response of a task, on the reader thread.
+     */
+    private void received(SerializableFutureTask task) {
+        task.metrics.record(CallMetrics.Phase.EXECUTE, channel.getFrameReceivedAt());
+        task.metrics.record(CallMetrics.Phase.DESERIALIZE);
+        task.metrics.setResponseBytes(channel.getFrameLength());
+    }
+
+    /**
+     * Fails every task of a batch the out process could not decode.
+     *
+     * @param id Id of the first task.
+     * @param cause Why it was not decoded.
+     */
+    private void failBatch(long id, Throwable cause) {
+        SerializableFutureTask first = pending.get(id);
+        int count = first == null ? 1 : Math.max(1, first.batchSize);
+        for (int i = 0; i < count; i++) {
+            SerializableFutureTask task = pending.remove(id + i);
+            if (task != null) {
+                received(task);
+                done(task, null, new ExecutionException(cause));
+            }
+        }
+    }
+
+    private void timeout(long id) {
+        SerializableFutureTask task = pending.get(id);
+        if (task != null) {
+            task.complete(null, new ExecutionException(new TimeoutException("Task timed out after " + taskTimeoutMs + " ms.")));
+            task.interruptOnCancel = true;
+            cancel(task);
+        }
+    }
+
+    private void graceExpired(long id) {
+        if (pending.containsKey(id)) {
+            kill(new IOException("Out process killed, a cancelled task did not stop in " + cancelGracePeriodMs + " ms."));
+        }
+    }
+
+    /**
+     * Waits for the out process to exit, like <code>Process.onExit()</code>
+     * of newer JVMs.
+     */
+    private void monitor() {
+        try {
+            int code = process.waitFor();
+            if (detached && code == 0) {
+                // out process watched through its connection
+                return;
+            }
+            if (resourceGroup != null) {
+                resourceGroup.remove();
+            }
+            died("Out process exited with code " + code + ".", null);
+        } catch (InterruptedException e) {
+            // never interrupted
+        }
+    }
+
+    private void checkHeartbeat() {
+        if (killed || !pipe.isAlive()) {
+            return;
+        }
+        long silentMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReceived);
+        if (silentMs >= heartbeatTimeoutMs) {
+            kill(new IOException("Out process killed, no message received in " + silentMs + " ms."));
+        } else {
+            TimerWheel.shared().schedule(this::checkHeartbeat, heartbeatIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Replaces an out process that exited or lost its connection, unless it
+     * was closed or all its tasks were done after a shutdown.
+     */
+    private void died(String reason, Exception cause) {
+        if (shutdown && pending.isEmpty() && toProcess.isEmpty()) {
+            return;
+        }
+        kill(new IOException(reason, cause));
+    }
+
+    /**
+     * Kills the out process and tells the listener to replace it with the
+     * tasks to run again. Only the first call has effect.
+     */
+    private void kill(IOException cause) {
+        synchronized (toProcess) {
+            if (killed || closed) {
+                return;
+            }
+            killed = true;
+        }
+        // close waits for the pipe thread, not on the timer or reader thread
+        Thread killer = new Thread(() -> {
+            process.destroyForcibly();
+            List<Runnable> replayed = new ArrayList<>();
+            List<Runnable> notSent = close(cause, replayed);
+            if (!hasConnected()) {
+                // cannot start, next tasks start another one
+                for (Runnable runnable : notSent) {
+                    SerializableFutureTask task = (SerializableFutureTask) runnable;
+                    metrics.finish(task.metrics, cause);
+                    task.complete(null, new ExecutionException("Out process did not connect.", cause));
+                }
+                notSent.clear();
+            }
+            replayed.addAll(notSent);
+            listener.onKilled(this, replayed);
+        }, "out-process-killer-" + server.getAddress());
+        killer.setDaemon(true);
+        killer.start();
+    }
+
+    /**
+     * Fails tasks already sent, or moves the idempotent ones to
+     * <code>replayed</code>.
+     */
+    private void failPending(Exception cause, List<Runnable> replayed) {
+        for (Long id : new ArrayList<>(pending.keySet())) {
+            SerializableFutureTask task = pending.remove(id);
+            if (task == null) {
+                continue;
+            }
+            if (replayed != null && !task.isDone() && task.isIdempotent() && task.replays < maxReplays) {
+                task.replays++;
+                forget(task);
+                replayed.add(task);
+            } else {
+                done(task, null, new ExecutionException("Out process connection lost.", cause));
+            }
+        }
+    }
+
+    /**
+     * Releases a task sent but not answered, to send it again.
+     */
+    private void forget(SerializableFutureTask task) {
+        TimerWheel.Timeout timeout = task.timeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        task.id = 0;
+        task.batch = null;
+        window.release();
+        inFlight.decrementAndGet();
+    }
+
+    private void done(SerializableFutureTask task, Serializable result, ExecutionException executionException) {
+        TimerWheel.Timeout timeout = task.timeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        Throwable failure = null;
+        if (executionException != null) {
+            failure = executionException.getCause() == null ? executionException : executionException.getCause();
+        } else if (task.isCancelled()) {
+            failure = new CancellationException("Task cancelled.");
+        }
+        // before completing, callers see their call in the metrics
+        metrics.finish(task.metrics, failure);
+        task.complete(result, executionException);
+        window.release();
+        inFlight.decrementAndGet();
+        completed.incrementAndGet();
+        lastActive = System.currentTimeMillis();
+        listener.onTaskDone(this);
+        checkRecycle();
+    }
+
+    private void checkRecycle() {
+        if (shutdown || recycling.get()) {
+            return;
+        }
+        boolean expired = (recycleAfterTasks > 0 && completed.get() >= recycleAfterTasks)
+                || (recycleAboveHeapBytes > 0 && heapUsed > recycleAboveHeapBytes)
+                || (recycleAfterAgeMs > 0 && System.nanoTime() - startedAt >= TimeUnit.MILLISECONDS.toNanos(recycleAfterAgeMs));
+        if (expired && recycling.compareAndSet(false, true)) {
+            listener.onRecycle(this);
+        }
+    }
+
+    private static final class WarmUp implements RunnableSerializable {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void run() {
+        }
+    }
+
+    /**
+     * Receives worker events.
+     */
+    interface Listener {
+
+        /**
+         * Called after completing a task.
+         *
+         * @param worker The worker that completed the task.
+         */
+        void onTaskDone(OutProcessWorker worker);
+
+        /**
+         * Called after killing the out process because a cancelled task
+         * didn't stop, or because it died.
+         *
+         * @param worker The closed worker.
+         * @param notSent Tasks never sent to the out process and idempotent
+         * tasks sent but not answered, to run in another one.
+         */
+        void onKilled(OutProcessWorker worker, List<Runnable> notSent);
+
+        /**
+         * Called once when the worker should be replaced by a new one, then
+         * shut down. Must not block, it runs on the connection thread.
+         *
+         * @param worker The worker to recycle, still running tasks.
+         */
+        void onRecycle(OutProcessWorker worker);
+    }
+}
@@ -0,0 +1,45 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+/**
+ * Receives the lines printed by tasks in out processes, ex: to write them to
+ * a logger with the task id in its context:
+ * <pre>
+ * (taskId, error, line) -&gt; {
+ *     MDC.put("task", String.valueOf(taskId));
+ *     if (error) log.warn(line); else log.info(line);
+ * }
+ * </pre>
+ * Called by the thread reading the responses of the out process, so it must
+ * return fast and never block. Exceptions are ignored.
+ *
+ * @see OutProcessConfig#withOutputCapture(int, OutputSink)
+ * @see TaskOutput
+ */
+@FunctionalInterface
+public interface OutputSink {
+
+    /**
+     * Called once per line, in the order printed by each task.
+     *
+     * @param taskId Id of the task, see <code>TaskOutput#getTaskId()</code>,
+     * 0 if printed outside of a task.
+     * @param error <code>true</code> if printed to <code>System.err</code>.
+     * @param line The line, without line terminator.
+     */
+    void onOutput(long taskId, boolean error, String line);
+}
@@ -1,53 +1,97 @@
 package dyorgio.runtime.out.process;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import dyorgio.runtime.out.process.protocol.Compression;
+import dyorgio.runtime.out.process.protocol.Handshake;
+import dyorgio.runtime.out.process.protocol.JavaSerializationCodec;
+import dyorgio.runtime.out.process.protocol.Message;
+import dyorgio.runtime.out.process.protocol.MessageChannel;
+import dyorgio.runtime.out.process.protocol.PayloadCodec;
+import dyorgio.runtime.out.process.protocol.PayloadException;
+import dyorgio.runtime.out.process.transport.Connection;
+import dyorgio.runtime.out.process.transport.SelectableTransport;
+import dyorgio.runtime.out.process.transport.TcpTransport;
+import dyorgio.runtime.out.process.transport.Transport;
+import dyorgio.runtime.out.process.transport.TransportServer;
+
+import java.io.IOException;
 import java.io.Serializable;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.UncheckedIOException;
+import java.security.SecureRandom;
+import java.util.Map;
 import java.util.Random;
 
 /**
- * Pipe SocketServer to communicate with out process.
+ * Pipe SocketServer to communicate with out process.<br>
+ * Selectable transports (TCP and unix domain sockets) share a single address
+ * and thread for all pipe servers, see <code>TransactionSelector</code>.
+ * Other transports get a new address and listener thread for each pipe
+ * server.<br>
+ * The request can be set after the out process is started, it connects and
+ * waits for it.
  */
 public class PipeServer implements AutoCloseable {
 
-    private ServerSocket server;
+    private final Transport transport;
+    private TransportServer server;
+    private TransactionSelector.Registration registration;
+    private String address;
     private String secret;
     private final Thread listener;
-    private Throwable err;
-    private Serializable response;
-    private Throwable serverErr;
+    private volatile Throwable err;
+    private volatile Serializable response;
+    private volatile Throwable serverErr;
 
-    private Serializable request;
+    private volatile Serializable request;
 
     private Runnable onDone;
 
-    private ObjectInputStream objIn;
-    private ObjectOutputStream objOut;
+    private MessageChannel channel;
+
+    private volatile PayloadCodec codec = new JavaSerializationCodec();
+    private volatile Compression compression;
+
+    private volatile ClassLoader classLoader = PipeServer.class.getClassLoader();
+
+    private volatile CallMetrics metrics;
+
+    private volatile int maxFrameSize = MessageChannel.DEFAULT_MAX_FRAME_SIZE;
+
+    private volatile TaskOutput output;
+    private volatile OutputSink outputSink;
 
     public PipeServer(final Serializable request, Runnable onDone) {
+        this(request, onDone, new TcpTransport());
+    }
+
+    public PipeServer(final Serializable request, Runnable onDone, Transport transport) {
         this.request = request;
+        this.transport = transport;
+        this.onDone = onDone;
         initServer();
 
-        listener = listener();
-        listener.start();
-
-        this.onDone = onDone;
+        if (server != null) {
+            listener = listener();
+            listener.start();
+        } else {
+            listener = null;
+        }
     }
 
     protected void initServer() {
-        Random r = new Random(System.currentTimeMillis());
-        ServerSocket tmpServer = null;
-        while (true) {
-            try {
-                tmpServer = new ServerSocket(1025 + r.nextInt(65535 - 1024));
-                break;
-            } catch (Exception e) {}
-        }
-
-        this.server = tmpServer;
+        Random r = new SecureRandom();
         this.secret = r.nextLong() + ":" + r.nextLong() + ":" + r.nextLong() + ":" + r.nextLong();
+        try {
+            if (transport instanceof SelectableTransport) {
+                TransactionSelector selector = TransactionSelector.getShared((SelectableTransport) transport);
+                this.registration = selector.register(secret, new Transaction());
+                this.address = selector.getAddress();
+            } else {
+                this.server = transport.listen();
+                this.address = server.getAddress();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot listen with " + transport + ".", e);
+        }
     }
 
     private Thread listener() {
@@ -55,22 +99,52 @@ public class PipeServer implements AutoCloseable {
 
             @Override
             public void run() {
-                while (!isInterrupted()) {
+                while (!isInterrupted() && !server.isClosed()) {
                     try {
-                        Socket s = server.accept();
-                        if (s != null) {
-
-                            String clientSecret = getClientSecret(s);
-
-                            if (clientSecret.equals(secret)) {
+                        Connection connection = server.accept();
+                        if (connection != null) {
+                            channel = new MessageChannel(connection.getInputStream(), connection.getOutputStream());
+                            channel.setMaxFrameSize(maxFrameSize);
+
+                            Map<String, String> hello = Handshake.readHello(channel);
+                            String clientSecret = hello.get(Handshake.SECRET);
+
+                            if (secret.equals(clientSecret)) {
+                                CallMetrics connected = metrics;
+                                if (connected != null) {
+                                    long launchedAt = Handshake.getLaunchedAt(hello);
+                                    if (launchedAt >= 0) {
+                                        connected.recordLaunch(launchedAt);
+                                    }
+                                    connected.record(CallMetrics.Phase.CONNECT);
+                                }
+                                Handshake.welcome(channel, hello, codec, null, compression);
+                                if (connected != null) {
+                                    connected.record(CallMetrics.Phase.HANDSHAKE);
+                                }
 
-                                writeRequest(s, request);
+                                int written = channel.write(Message.CALL, 1, awaitRequest());
+                                CallMetrics called = metrics;
+                                if (called != null) {
+                                    called.setRequestBytes(written);
+                                    called.record(CallMetrics.Phase.SERIALIZE);
+                                }
 
-                                if (hasResponded(s)) {
-                                    response = getResponse(s);
+                                Message message = channel.read();
+                                while (message.getType() == Message.FETCH || message.getType() == Message.OUTPUT) {
+                                    if (message.getType() == Message.FETCH) {
+                                        RemoteClassServer.serve(channel, classLoader, message);
+                                    } else {
+                                        TaskOutput.receive(message, output, outputSink);
+                                    }
+                                    message = channel.read();
+                                }
+                                received();
+                                if (message.getType() == Message.RESULT) {
+                                    response = (Serializable) message.getPayload();
                                     done();
                                 } else {
-                                    err = getThrowable(s);
+                                    err = (Throwable) message.getPayload();
                                     done();
                                 }
                             } else {
@@ -78,48 +152,49 @@ public class PipeServer implements AutoCloseable {
                                 done();
                             }
                         }
+                    } catch (PayloadException e) {
+                        received();
+                        err = e.getCause();
+                        done();
                     } catch (Exception e) {
                         serverErr = e;
                         done();
                     }
                 }
             }
+        };
+    }
 
-            private void initObjIn(Socket s) throws Exception {
-                objIn = new ObjectInputStream(s.getInputStream());
-            }
-
-            private void initObjOut(Socket s) throws Exception {
-                objOut = new ObjectOutputStream(s.getOutputStream());
-            }
-
-            private String getClientSecret(Socket s) throws Exception {
-                if (objIn == null) initObjIn(s);
-                return objIn.readUTF();
-            }
-
-            private void writeRequest(Socket s, Serializable request) throws Exception {
-                if (objOut == null) initObjOut(s);
-
-                objOut.writeObject(request);
-                objOut.flush();
-            }
-
-            private Boolean hasResponded(Socket s) throws Exception {
-                if (objIn == null) initObjIn(s);
-                return objIn.readBoolean();
-            }
+    private void received() {
+        CallMetrics called = metrics;
+        if (called != null) {
+            called.record(CallMetrics.Phase.EXECUTE, channel.getFrameReceivedAt());
+            called.record(CallMetrics.Phase.DESERIALIZE);
+            called.setResponseBytes(channel.getFrameLength());
+        }
+    }
 
-            private Throwable getThrowable(Socket s) throws Exception {
-                if (objIn == null) initObjIn(s);
-                return (Throwable) objIn.readObject();
-            }
+    private synchronized Serializable awaitRequest() throws InterruptedException {
+        while (request == null) {
+            wait();
+        }
+        return request;
+    }
 
-            private Serializable getResponse(Socket s) throws Exception {
-                if (objIn == null) initObjIn(s);
-                return (Serializable) objIn.readObject();
-            }
-        };
+    /**
+     * Sets the request, if not set by the constructor. It is sent as soon as
+     * the out process connects, right now if it is already connected.
+     *
+     * @param request The request.
+     */
+    public void setRequest(Serializable request) {
+        synchronized (this) {
+            this.request = request;
+            notifyAll();
+        }
+        if (registration != null) {
+            registration.send();
+        }
     }
 
     protected void done() {
@@ -131,11 +206,18 @@ public class PipeServer implements AutoCloseable {
 
         System.out.println("closing server");
 
+        if (registration != null) {
+            registration.cancel();
+            System.out.println("Server closed");
+            return;
+        }
+
         try {
             listener.interrupt();
             server.close();
-            objIn.close();
-            objOut.close();
+            if (channel != null) {
+                channel.close();
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -149,8 +231,73 @@ public class PipeServer implements AutoCloseable {
         System.out.println("Server closed");
     }
 
-    protected int getPort() {
-        return server.getLocalPort();
+    /**
+     * Sets the codec used if the out process knows it, Java serialization
+     * otherwise.
+     *
+     * @param codec Preferred codec.
+     */
+    public void setCodec(PayloadCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Sets the compression of big payloads, enabled only if the out process
+     * supports it.
+     *
+     * @param compression The compression, <code>null</code> to disable.
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Sets the class loader that answers the class fetches of the out
+     * process, if it loads classes remotely.
+     *
+     * @param classLoader The class loader.
+     */
+    public void setClassLoader(ClassLoader classLoader) {
+        this.classLoader = classLoader;
+    }
+
+    /**
+     * Sets where the phases of the call are recorded, phases already done
+     * are not.
+     *
+     * @param metrics The call metrics, <code>null</code> to stop recording.
+     */
+    void setMetrics(CallMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the maximum length of the frames exchanged with the out process.
+     *
+     * @param maxFrameSize Maximum length in bytes.
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Sets where the output printed by the call is kept and sent, if the out
+     * process captures it.
+     *
+     * @param output The output of the call, <code>null</code> to not keep it.
+     * @param sink The sink, <code>null</code> if none.
+     */
+    void setOutput(TaskOutput output, OutputSink sink) {
+        this.output = output;
+        this.outputSink = sink;
+    }
+
+    TaskOutput getOutput() {
+        return output;
+    }
+
+    protected String getAddress() {
+        return address;
     }
 
     protected String getSecret() {
@@ -168,4 +315,65 @@ public class PipeServer implements AutoCloseable {
     public Throwable getServerErr() {
         return serverErr;
     }
-}
\ No newline at end of file
+
+    /**
+     * Exchange run by the shared <code>TransactionSelector</code>.
+     */
+    private final class Transaction implements TransactionSelector.Transaction {
+
+        @Override
+        public Serializable getRequest() {
+            return request;
+        }
+
+        @Override
+        public PayloadCodec getCodec() {
+            return codec;
+        }
+
+        @Override
+        public Compression getCompression() {
+            return compression;
+        }
+
+        @Override
+        public ClassLoader getClassLoader() {
+            return classLoader;
+        }
+
+        @Override
+        public CallMetrics getMetrics() {
+            return metrics;
+        }
+
+        @Override
+        public int getMaxFrameSize() {
+            return maxFrameSize;
+        }
+
+        @Override
+        public void onResponse(Message message) {
+            if (message.getType() == Message.RESULT) {
+                response = (Serializable) message.getPayload();
+            } else {
+                err = (Throwable) message.getPayload();
+            }
+            done();
+        }
+
+        @Override
+        public void onOutput(Message message) {
+            TaskOutput.receive(message, output, outputSink);
+        }
+
+        @Override
+        public void onFailure(Exception error) {
+            if (error instanceof PayloadException) {
+                err = error.getCause();
+            } else {
+                serverErr = error;
+            }
+            done();
+        }
+    }
+}
@@ -25,4 +25,16 @@ import java.util.List;
 public interface ProcessBuilderFactory {
 
     ProcessBuilder create(List<String> commands) throws Exception;
+
+    /**
+     * Checks if the started process is only a launcher that exits once the
+     * out process JVM is started, ex: a script asking for elevation. The out
+     * process is then watched through its connection, the launcher exit code
+     * counts only if not <code>0</code>.
+     *
+     * @return <code>true</code> if the launcher exits before the out process.
+     */
+    default boolean isDetached() {
+        return false;
+    }
 }
@@ -0,0 +1,102 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import dyorgio.runtime.out.process.protocol.Message;
+import dyorgio.runtime.out.process.protocol.MessageChannel;
+import dyorgio.runtime.out.process.protocol.Resource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Executor side of remote class loading: answers the <code>FETCH</code>
+ * messages of an out process with the classes and resources of the executor
+ * class loader. Content already cached by the out process (same digest) is
+ * not sent again.
+ *
+ * @see OutProcessConfig#withRemoteClassLoading(java.io.File)
+ */
+final class RemoteClassServer {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private RemoteClassServer() {
+    }
+
+    /**
+     * Replies a <code>FETCH</code> message.
+     *
+     * @param channel The out process connection.
+     * @param loader Class loader to read resources from.
+     * @param fetch The <code>FETCH</code> message.
+     * @throws IOException If the connection is broken.
+     */
+    static void serve(MessageChannel channel, ClassLoader loader, Message fetch) throws IOException {
+        channel.writeResource(fetch.getId(), lookup(loader, fetch));
+    }
+
+    /**
+     * Reads the resource asked by a <code>FETCH</code> message, without
+     * replying.
+     *
+     * @param loader Class loader to read resources from.
+     * @param fetch The <code>FETCH</code> message.
+     * @return The resource to reply, <code>null</code> if missing.
+     */
+    static Resource lookup(ClassLoader loader, Message fetch) {
+        String[] request = (String[]) fetch.getPayload();
+        return lookup(loader, request[0], request[1]);
+    }
+
+    private static Resource lookup(ClassLoader loader, String name, String cachedDigest) {
+        byte[] bytes;
+        try (InputStream in = loader.getResourceAsStream(name)) {
+            if (in == null) {
+                return null;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            bytes = out.toByteArray();
+        } catch (IOException e) {
+            // unreadable is the same as missing for the out process
+            return null;
+        }
+        String digest = digest(bytes);
+        return new Resource(digest, digest.equals(cachedDigest) ? null : bytes);
+    }
+
+    private static String digest(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            char[] hex = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                hex[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+                hex[i * 2 + 1] = HEX[digest[i] & 0xF];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Items of a <code>StreamingTask</code>, in emission order.<br>
+ * <code>hasNext()</code> blocks until the next item arrives or the task ends.
+ * If the task fails, <code>hasNext()</code> throws a
+ * <code>CompletionException</code> after the items emitted before the
+ * failure.<br>
+ * Closing before the end cancels the task. A task cancelled otherwise ends
+ * the iteration the same way, after the items already received.
+ *
+ * @param <T> Item type.
+ * @see StreamingTask
+ */
+public interface RemoteIterator<T> extends Iterator<T>, Closeable {
+
+    /**
+     * Checks if there are more items, waiting for them if needed.
+     *
+     * @return <code>true</code> if there is a next item, <code>false</code>
+     * once the task ended, was cancelled or this iterator was closed.
+     * @throws CompletionException If the task failed or the waiting thread
+     * was interrupted.
+     */
+    @Override
+    boolean hasNext();
+
+    /**
+     * Stops receiving items and cancels the task if still running.
+     */
+    @Override
+    void close();
+}
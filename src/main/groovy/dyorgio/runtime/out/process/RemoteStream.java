@@ -0,0 +1,185 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import dyorgio.runtime.out.process.protocol.Message;
+import dyorgio.runtime.out.process.protocol.MessageChannel;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A streaming task sent to an out process and the iterator over its items.
+ * <br>
+ * Credit based flow control: the out process may send only
+ * <code>window</code> items not yet consumed, more credits are granted each
+ * time half of the window is consumed.
+ *
+ * @param <T> Item type.
+ * @see StreamingTask
+ * @see OutProcessWorker
+ */
+final class RemoteStream<T extends Serializable> extends SerializableFutureTask implements RemoteIterator<T> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Object END = new Object();
+    private static final Object NULL = new Object();
+
+    private final StreamingTask<T> task;
+    private final int window;
+    private final BlockingQueue<Object> items = new LinkedBlockingQueue<>();
+    private volatile MessageChannel channel;
+    private volatile boolean closed = false;
+
+    // consumer state
+    private Object next;
+    private int consumed;
+    private boolean finished;
+
+    RemoteStream(StreamingTask<T> task, int window) {
+        this.task = task;
+        this.window = window;
+    }
+
+    @Override
+    byte getRequestType() {
+        return Message.STREAM;
+    }
+
+    @Override
+    Object getRequest() {
+        return task;
+    }
+
+    @Override
+    void onSent(MessageChannel channel, long id) {
+        // id field already set by the worker
+        this.channel = channel;
+        send(Message.CREDIT, window);
+        if (closed) {
+            send(Message.CANCEL, null);
+        }
+    }
+
+    @Override
+    void onMessage(Message message) {
+        if (!closed) {
+            items.add(message.getPayload() == null ? NULL : message.getPayload());
+        }
+    }
+
+    @Override
+    void complete(Serializable result, ExecutionException executionException) {
+        super.complete(result, executionException);
+        if (executionException != null) {
+            // stop the out process task if it is still running
+            send(Message.CANCEL, null);
+        }
+        items.add(END);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!super.cancel(mayInterruptIfRunning)) {
+            return false;
+        }
+        items.add(END);
+        return true;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (finished || closed) {
+            return false;
+        }
+
+        Object item;
+        try {
+            item = items.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+
+        if (item == END) {
+            finished = true;
+            if (isCancelled()) {
+                // ends like close()
+                return false;
+            }
+            try {
+                get();
+            } catch (ExecutionException e) {
+                throw new CompletionException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+            return false;
+        }
+
+        next = item;
+        if (++consumed >= Math.max(1, window / 2)) {
+            send(Message.CREDIT, consumed);
+            consumed = 0;
+        }
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Object item = next;
+        next = null;
+        return item == NULL ? null : (T) item;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            if (!isDone()) {
+                send(Message.CANCEL, null);
+            }
+            items.clear();
+        }
+    }
+
+    private void send(byte type, Object payload) {
+        MessageChannel channel = this.channel;
+        long id = this.id;
+        // id is 0 while waiting to be sent again after its out process died
+        if (channel != null && id != 0) {
+            try {
+                channel.write(type, id, payload);
+            } catch (IOException e) {
+                // connection lost, task already failed
+            }
+        }
+    }
+}
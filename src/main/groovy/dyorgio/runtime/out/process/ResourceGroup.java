@@ -0,0 +1,233 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * The cgroup v2 group of one out process.<br>
+ * The command is wrapped by a shell script that creates the group, writes the
+ * limits, moves itself into it and <code>exec</code>s the JVM, so the limits
+ * also apply to an elevated JVM and the started process is the JVM itself.
+ * Groups left empty by a previous launch, ex: of a root JVM the executor
+ * cannot remove, are removed by the next ones.
+ *
+ * @author dyorgio
+ * @see ResourceLimits
+ */
+final class ResourceGroup {
+
+    private static final String PREFIX = "out-process-";
+    private static final boolean LINUX = System.getProperty("os.name", "generic").toLowerCase(Locale.ENGLISH).contains("nux");
+    private static final Random RANDOM = new SecureRandom();
+
+    private final File directory;
+    private final ResourceLimits limits;
+
+    private ResourceGroup(File directory, ResourceLimits limits) {
+        this.directory = directory;
+        this.limits = limits;
+    }
+
+    /**
+     * Creates the group of a new out process, not yet in the file system.
+     *
+     * @param limits The limits, may be <code>null</code>.
+     * @return The group, <code>null</code> if there are no limits or not
+     * running on Linux.
+     * @throws IOException If cgroup v2 is not mounted.
+     */
+    static ResourceGroup create(ResourceLimits limits) throws IOException {
+        if (limits == null || !LINUX) {
+            return null;
+        }
+        File parent = limits.getParentGroup() == null ? defaultParentGroup() : limits.getParentGroup();
+        String name = PREFIX + Long.toString(RANDOM.nextLong() & Long.MAX_VALUE, 36);
+        return new ResourceGroup(new File(parent, name), limits);
+    }
+
+    /**
+     * Finds the parent of the group of this JVM, or its group if it is the
+     * root one.
+     */
+    private static File defaultParentGroup() throws IOException {
+        String mount = null;
+        for (String line : Files.readAllLines(new File("/proc/self/mountinfo").toPath(), StandardCharsets.UTF_8)) {
+            int separator = line.indexOf(" - ");
+            if (separator > 0 && line.startsWith("cgroup2 ", separator + 3)) {
+                mount = line.split(" ")[4];
+                break;
+            }
+        }
+        String path = null;
+        for (String line : Files.readAllLines(new File("/proc/self/cgroup").toPath(), StandardCharsets.UTF_8)) {
+            if (line.startsWith("0::")) {
+                path = line.substring(3);
+            }
+        }
+        if (mount == null || path == null) {
+            throw new IOException("cgroup v2 is not mounted.");
+        }
+        File own = new File(mount + path);
+        return "/".equals(path) ? own : own.getParentFile();
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Wraps a command to run it inside this group.
+     *
+     * @param command The JVM command.
+     * @return A <code>sh</code> command that applies the limits and
+     * <code>exec</code>s the JVM.
+     */
+    List<String> wrap(List<String> command) {
+        StringBuilder script = new StringBuilder();
+        script.append("set -e\n");
+        script.append("g=\"$1\"\n");
+        script.append("shift\n");
+        script.append("p=\"${g%/*}\"\n");
+        // empty groups of previous out processes, older than a launch
+        script.append("find \"$p\" -maxdepth 1 -name '").append(PREFIX).append("*' -mmin +1 -exec rmdir {} + 2>/dev/null || true\n");
+        script.append("for c in cpu cpuset io memory; do echo \"+$c\" > \"$p/cgroup.subtree_control\" 2>/dev/null || true; done\n");
+        script.append("mkdir \"$g\"\n");
+        if (limits.getCpuMax() != null) {
+            script.append("echo '").append(limits.getCpuMax()).append("' > \"$g/cpu.max\"\n");
+        }
+        if (limits.getMemoryMax() > 0) {
+            script.append("echo ").append(limits.getMemoryMax()).append(" > \"$g/memory.max\"\n");
+        }
+        if (limits.getIoWeight() > 0) {
+            script.append("echo 'default ").append(limits.getIoWeight()).append("' > \"$g/io.weight\"\n");
+        }
+        if (limits.getCpuSet() != null) {
+            script.append("echo ").append(limits.getCpuSet()).append(" > \"$g/cpuset.cpus\"\n");
+        }
+        script.append("echo $$ > \"$g/cgroup.procs\"\n");
+        script.append("exec \"$@\"\n");
+
+        List<String> wrapped = new ArrayList<>(command.size() + 5);
+        wrapped.add("/bin/sh");
+        wrapped.add("-c");
+        wrapped.add(script.toString());
+        wrapped.add("sh");
+        wrapped.add(directory.getPath());
+        wrapped.addAll(command);
+        return wrapped;
+    }
+
+    /**
+     * Reads the counters of this group.
+     *
+     * @return The resources used so far.
+     * @throws IOException If the group does not exist.
+     */
+    ResourceUsage getUsage() throws IOException {
+        if (!directory.isDirectory()) {
+            throw new IOException("Resource group not found: " + directory);
+        }
+        return new ResourceUsage(
+                readKey("cpu.stat", "usage_usec"),
+                readKey("cpu.stat", "throttled_usec"),
+                readValue("memory.current"),
+                readValue("memory.peak"),
+                readKey("memory.events", "oom_kill"),
+                readIo("rbytes="),
+                readIo("wbytes="));
+    }
+
+    /**
+     * Kills processes left in this group and removes it, if possible.
+     */
+    void remove() {
+        if (!directory.isDirectory()) {
+            return;
+        }
+        try (OutputStream out = new FileOutputStream(new File(directory, "cgroup.kill"))) {
+            out.write('1');
+        } catch (IOException e) {
+            // older kernel or not owner
+        }
+        // processes leave the group asynchronously
+        for (int i = 0; i < 50 && !directory.delete() && directory.isDirectory(); i++) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private List<String> readLines(String file) throws IOException {
+        try {
+            return Files.readAllLines(new File(directory, file).toPath(), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private long readValue(String file) throws IOException {
+        List<String> lines = readLines(file);
+        return lines == null || lines.isEmpty() ? -1 : Long.parseLong(lines.get(0).trim());
+    }
+
+    private long readKey(String file, String key) throws IOException {
+        List<String> lines = readLines(file);
+        if (lines != null) {
+            for (String line : lines) {
+                if (line.startsWith(key + " ")) {
+                    return Long.parseLong(line.substring(key.length() + 1).trim());
+                }
+            }
+        }
+        return -1;
+    }
+
+    private long readIo(String key) throws IOException {
+        List<String> lines = readLines("io.stat");
+        if (lines == null) {
+            return -1;
+        }
+        long total = 0;
+        for (String line : lines) {
+            for (String field : line.split(" ")) {
+                if (field.startsWith(key)) {
+                    total += Long.parseLong(field.substring(key.length()));
+                }
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return directory.getPath();
+    }
+}
@@ -0,0 +1,196 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.Locale;
+
+/**
+ * Limits of the resources an out process can use: CPU quota, memory, IO
+ * weight and CPU set.<br>
+ * On Linux the out process is started inside its own cgroup v2 group, a child
+ * of the parent group, so a runaway task cannot starve the JVM that submitted
+ * it. The parent group must have the used controllers enabled in
+ * <code>cgroup.subtree_control</code> and be writable by the user running the
+ * out process, ex: a systemd service with <code>Delegate=yes</code> whose
+ * own processes live in a leaf group. Elevated out processes always can.<br>
+ * The out process fails to start if a limit cannot be applied. Limits are
+ * ignored on other platforms.<br>
+ * <br>
+ * Ex:
+ * <pre>
+ * new OutProcessConfig().withResourceLimits(new ResourceLimits()
+ *         .withCpuQuota(1.5)
+ *         .withMemoryMax(512L &lt;&lt; 20));
+ * </pre>
+ *
+ * @author dyorgio
+ * @see OutProcessConfig#withResourceLimits(ResourceLimits)
+ * @see ResourceUsage
+ */
+public class ResourceLimits implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Period used for the CPU quota, in microseconds.
+     */
+    public static final long CPU_PERIOD_US = 100000;
+
+    private double cpuQuota = 0;
+    private long memoryMax = 0;
+    private int ioWeight = 0;
+    private String cpuSet;
+    private File parentGroup;
+
+    /**
+     * Sets how many CPUs the out process can use, enforced over each
+     * <code>CPU_PERIOD_US</code>, written to <code>cpu.max</code>.<br>
+     * Default: unlimited.
+     *
+     * @param cpus Number of CPUs, ex: 0.5 for half a CPU, 0 for unlimited.
+     * @return These limits.
+     * @throws IllegalArgumentException If <code>cpus</code> is negative.
+     */
+    public ResourceLimits withCpuQuota(double cpus) {
+        if (cpus < 0 || Double.isNaN(cpus)) {
+            throw new IllegalArgumentException("Invalid CPU quota: " + cpus);
+        }
+        this.cpuQuota = cpus;
+        return this;
+    }
+
+    /**
+     * Sets the memory the out process can use, heap and native memory,
+     * written to <code>memory.max</code>. Tasks are killed by the kernel
+     * above it, so keep it above <code>-Xmx</code>.<br>
+     * Default: unlimited.
+     *
+     * @param bytes Maximum memory in bytes, 0 for unlimited.
+     * @return These limits.
+     * @throws IllegalArgumentException If <code>bytes</code> is negative.
+     */
+    public ResourceLimits withMemoryMax(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Invalid memory max: " + bytes);
+        }
+        this.memoryMax = bytes;
+        return this;
+    }
+
+    /**
+     * Sets the IO weight of the out process relative to its siblings, written
+     * to <code>io.weight</code>.<br>
+     * Default: kernel default (100).
+     *
+     * @param weight Weight from 1 to 10000, 0 for the default.
+     * @return These limits.
+     * @throws IllegalArgumentException If <code>weight</code> is out of range.
+     */
+    public ResourceLimits withIoWeight(int weight) {
+        if (weight < 0 || weight > 10000) {
+            throw new IllegalArgumentException("Invalid IO weight: " + weight);
+        }
+        this.ioWeight = weight;
+        return this;
+    }
+
+    /**
+     * Sets the CPUs the out process can run on, written to
+     * <code>cpuset.cpus</code>.<br>
+     * Default: all CPUs of the parent group.
+     *
+     * @param cpus CPU list, ex: "0-3,6", <code>null</code> for all.
+     * @return These limits.
+     * @throws IllegalArgumentException If <code>cpus</code> is not a CPU
+     * list.
+     */
+    public ResourceLimits withCpuSet(String cpus) {
+        if (cpus != null && !cpus.matches("[0-9]+(-[0-9]+)?(,[0-9]+(-[0-9]+)?)*")) {
+            throw new IllegalArgumentException("Invalid CPU set: " + cpus);
+        }
+        this.cpuSet = cpus;
+        return this;
+    }
+
+    /**
+     * Sets the cgroup v2 group where out process groups are created.<br>
+     * Default: the parent of the group of this JVM.
+     *
+     * @param directory Group directory, ex:
+     * <code>/sys/fs/cgroup/app.service</code>, <code>null</code> for the
+     * default.
+     * @return These limits.
+     */
+    public ResourceLimits withParentGroup(File directory) {
+        this.parentGroup = directory;
+        return this;
+    }
+
+    public double getCpuQuota() {
+        return cpuQuota;
+    }
+
+    public long getMemoryMax() {
+        return memoryMax;
+    }
+
+    public int getIoWeight() {
+        return ioWeight;
+    }
+
+    public String getCpuSet() {
+        return cpuSet;
+    }
+
+    public File getParentGroup() {
+        return parentGroup;
+    }
+
+    /**
+     * Creates a copy of these limits.
+     *
+     * @return A new instance with the same limits.
+     */
+    public ResourceLimits copy() {
+        ResourceLimits copy = new ResourceLimits();
+        copy.cpuQuota = cpuQuota;
+        copy.memoryMax = memoryMax;
+        copy.ioWeight = ioWeight;
+        copy.cpuSet = cpuSet;
+        copy.parentGroup = parentGroup;
+        return copy;
+    }
+
+    /**
+     * Gets the <code>cpu.max</code> value.
+     */
+    String getCpuMax() {
+        return cpuQuota == 0 ? null : String.format(Locale.ROOT, "%d %d", Math.max(1000, Math.round(cpuQuota * CPU_PERIOD_US)), CPU_PERIOD_US);
+    }
+
+    @Override
+    public String toString() {
+        return "ResourceLimits{"
+                + "cpuQuota=" + cpuQuota
+                + ", memoryMax=" + memoryMax
+                + ", ioWeight=" + ioWeight
+                + ", cpuSet=" + cpuSet
+                + ", parentGroup=" + parentGroup
+                + '}';
+    }
+}
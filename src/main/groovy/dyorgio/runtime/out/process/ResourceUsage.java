@@ -0,0 +1,130 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import java.io.Serializable;
+
+/**
+ * Resources used by an out process, read from the counters of its cgroup v2
+ * group. A counter not provided by the kernel, or by a controller not enabled,
+ * is <code>-1</code>.
+ *
+ * @author dyorgio
+ * @see ResourceLimits
+ */
+public final class ResourceUsage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long cpuUsageMicros;
+    private final long cpuThrottledMicros;
+    private final long memoryCurrent;
+    private final long memoryPeak;
+    private final long oomKills;
+    private final long ioReadBytes;
+    private final long ioWriteBytes;
+
+    ResourceUsage(long cpuUsageMicros, long cpuThrottledMicros, long memoryCurrent, long memoryPeak, long oomKills, long ioReadBytes, long ioWriteBytes) {
+        this.cpuUsageMicros = cpuUsageMicros;
+        this.cpuThrottledMicros = cpuThrottledMicros;
+        this.memoryCurrent = memoryCurrent;
+        this.memoryPeak = memoryPeak;
+        this.oomKills = oomKills;
+        this.ioReadBytes = ioReadBytes;
+        this.ioWriteBytes = ioWriteBytes;
+    }
+
+    /**
+     * Gets the CPU time used, user and system (<code>cpu.stat</code>
+     * <code>usage_usec</code>).
+     *
+     * @return CPU time in microseconds.
+     */
+    public long getCpuUsageMicros() {
+        return cpuUsageMicros;
+    }
+
+    /**
+     * Gets the time the out process was stopped by the CPU quota
+     * (<code>cpu.stat</code> <code>throttled_usec</code>).
+     *
+     * @return Throttled time in microseconds.
+     */
+    public long getCpuThrottledMicros() {
+        return cpuThrottledMicros;
+    }
+
+    /**
+     * Gets the memory used now (<code>memory.current</code>).
+     *
+     * @return Memory in bytes.
+     */
+    public long getMemoryCurrent() {
+        return memoryCurrent;
+    }
+
+    /**
+     * Gets the highest memory used (<code>memory.peak</code>, Linux 5.19+).
+     *
+     * @return Memory in bytes.
+     */
+    public long getMemoryPeak() {
+        return memoryPeak;
+    }
+
+    /**
+     * Gets how many processes were killed for reaching the memory max
+     * (<code>memory.events</code> <code>oom_kill</code>).
+     *
+     * @return Number of kills.
+     */
+    public long getOomKills() {
+        return oomKills;
+    }
+
+    /**
+     * Gets the bytes read from block devices (<code>io.stat</code>
+     * <code>rbytes</code>).
+     *
+     * @return Bytes read.
+     */
+    public long getIoReadBytes() {
+        return ioReadBytes;
+    }
+
+    /**
+     * Gets the bytes written to block devices (<code>io.stat</code>
+     * <code>wbytes</code>).
+     *
+     * @return Bytes written.
+     */
+    public long getIoWriteBytes() {
+        return ioWriteBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "ResourceUsage{"
+                + "cpuUsageMicros=" + cpuUsageMicros
+                + ", cpuThrottledMicros=" + cpuThrottledMicros
+                + ", memoryCurrent=" + memoryCurrent
+                + ", memoryPeak=" + memoryPeak
+                + ", oomKills=" + oomKills
+                + ", ioReadBytes=" + ioReadBytes
+                + ", ioWriteBytes=" + ioWriteBytes
+                + '}';
+    }
+}
@@ -0,0 +1,248 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import dyorgio.runtime.out.process.protocol.Message;
+import dyorgio.runtime.out.process.protocol.MessageChannel;
+
+import java.io.NotSerializableException;
+import java.io.Serializable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A future of a task executed by an out process worker.<br>
+ * Completion is lock-free: the worker thread that receives the result
+ * completes an inner <code>CompletableFuture</code>, waiting callers and
+ * dependent stages are released by it.<br>
+ * Cancelling completes the future immediately and asks the worker to stop
+ * the task in the out process, see <code>OutProcessWorker#cancel</code>.
+ *
+ * @see OutProcessWorker
+ */
+class SerializableFutureTask implements RunnableFuture<Serializable>, Serializable {
+
+    final Callable<Serializable> callable;
+    // completed with the result or the ExecutionException to throw
+    private final transient CompletableFuture<Serializable> completion = new CompletableFuture<>();
+    transient volatile TimerWheel.Timeout timeout;
+    // set by the worker, id is 0 until sent
+    transient volatile OutProcessWorker worker;
+    transient volatile long id;
+    transient volatile boolean interruptOnCancel;
+    transient volatile CallMetrics metrics;
+    // tasks of the same invokeAll share it, they can be sent in one message
+    transient volatile Object batch;
+    // tasks sent in the same message, set on the first one
+    transient volatile int batchSize;
+    // times sent again after its out process died
+    transient volatile int replays;
+    // what the task printed, if captured
+    transient volatile TaskOutput output;
+
+    SerializableFutureTask(final Runnable runnable, final Serializable value) {
+        if (!(runnable instanceof Serializable)) {
+            throw new RejectedExecutionException(new NotSerializableException());
+        }
+
+        this.callable = new SerializableCall(runnable, value);
+    }
+
+    SerializableFutureTask(Callable<Serializable> callable) {
+        if (!(callable instanceof Serializable)) {
+            throw new RejectedExecutionException(new NotSerializableException());
+        }
+
+        this.callable = callable;
+    }
+
+    /**
+     * For tasks sent with their own request, see <code>getRequest()</code>.
+     */
+    SerializableFutureTask() {
+        this.callable = null;
+    }
+
+    /**
+     * Type of the message that sends this task to the out process.
+     *
+     * @return Message type.
+     */
+    byte getRequestType() {
+        return Message.CALL;
+    }
+
+    /**
+     * Payload of the message that sends this task to the out process.
+     *
+     * @return Message payload.
+     */
+    Object getRequest() {
+        return callable;
+    }
+
+    /**
+     * Checks if this task can run again in another out process.
+     *
+     * @return <code>true</code> if the task or its runnable is
+     * <code>Idempotent</code>.
+     * @see Idempotent
+     */
+    boolean isIdempotent() {
+        if (callable instanceof SerializableCall) {
+            return ((SerializableCall) callable).runnable instanceof Idempotent;
+        }
+        return callable instanceof Idempotent;
+    }
+
+    /**
+     * Called by the worker after sending this task.
+     *
+     * @param channel Connection with the out process.
+     * @param id Correlation id of this task.
+     */
+    void onSent(MessageChannel channel, long id) {
+    }
+
+    /**
+     * Called by the worker with messages of this task received before its
+     * result.
+     *
+     * @param message The message.
+     */
+    void onMessage(Message message) {
+    }
+
+    /**
+     * Completes this task and wakes up waiting threads, only the first call
+     * has effect.
+     *
+     * @param result The task result.
+     * @param executionException The task error or <code>null</code>.
+     */
+    void complete(Serializable result, ExecutionException executionException) {
+        if (executionException == null) {
+            completion.complete(result);
+        } else {
+            completion.completeExceptionally(executionException);
+        }
+    }
+
+    /**
+     * Creates a <code>CompletableFuture</code> completed with the result of
+     * this task, or exceptionally with the cause of its error. It is completed
+     * by the thread that completes this task.
+     *
+     * @return A new future.
+     */
+    CompletableFuture<Serializable> toCompletableFuture() {
+        CompletableFuture<Serializable> future = new CompletableFuture<>();
+        completion.whenComplete((result, error) -> {
+            if (error == null) {
+                future.complete(result);
+            } else {
+                future.completeExceptionally(error.getCause() == null ? error : error.getCause());
+            }
+        });
+        future.whenComplete((result, error) -> {
+            if (error instanceof CancellationException) {
+                cancel(true);
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public void run() {
+        throw new UnsupportedOperationException("Cannot run a remote task locally.");
+    }
+
+    /**
+     * Cancels this task, waiting callers get a
+     * <code>CancellationException</code> immediately.<br>
+     * A task not sent yet is never sent. A running task is interrupted if
+     * <code>mayInterruptIfRunning</code>, its out process is killed and
+     * replaced if it doesn't stop within the cancel grace period.
+     *
+     * @param mayInterruptIfRunning If the out process thread running this
+     * task should be interrupted.
+     * @return <code>false</code> if this task was already completed.
+     * @see OutProcessConfig#withCancelGracePeriod
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        interruptOnCancel = mayInterruptIfRunning;
+        if (!completion.cancel(mayInterruptIfRunning)) {
+            return false;
+        }
+        OutProcessWorker worker = this.worker;
+        if (worker != null) {
+            worker.cancel(this);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return completion.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+        return completion.isDone();
+    }
+
+    @Override
+    public Serializable get() throws InterruptedException, ExecutionException {
+        try {
+            return completion.get();
+        } catch (ExecutionException e) {
+            throw (ExecutionException) e.getCause();
+        }
+    }
+
+    @Override
+    public Serializable get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        try {
+            return completion.get(timeout, unit);
+        } catch (ExecutionException e) {
+            throw (ExecutionException) e.getCause();
+        }
+    }
+
+    private static final class SerializableCall implements CallableSerializable {
+
+        private final Runnable runnable;
+        private final Serializable value;
+
+        private SerializableCall(final Runnable runnable, final Serializable value) {
+            this.runnable = runnable;
+            this.value = value;
+        }
+
+        @Override
+        public Serializable call() throws Exception {
+            runnable.run();
+            return value;
+        }
+    }
+}
@@ -1,7 +1,13 @@
 package dyorgio.runtime.out.process;
 
+import dyorgio.runtime.out.process.protocol.Compression;
+import dyorgio.runtime.out.process.protocol.PayloadCodec;
+import dyorgio.runtime.out.process.transport.TcpTransport;
+import dyorgio.runtime.out.process.transport.Transport;
+
 import java.io.Serializable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * ______    __                         __           ____             __     __  __  _
@@ -29,8 +35,8 @@ public class SocketTransaction<I extends Serializable, O extends Serializable> i
     private O response;
 
     private boolean started;
-    private boolean completed;
-    private boolean timedOut;
+    private volatile boolean completed;
+    private volatile boolean timedOut;
 
     private CountDownLatch doneLatch;
 
@@ -42,6 +48,7 @@ public class SocketTransaction<I extends Serializable, O extends Serializable> i
     private ErrorCallback onSocketErr;
     private Runnable onTimeout;
 
+    private Transport transport;
     private PipeServer server;
 
     public SocketTransaction() {
@@ -65,8 +72,20 @@ public class SocketTransaction<I extends Serializable, O extends Serializable> i
         initServer();
     }
 
+    public SocketTransaction(I request, int timeoutMs, Transport transport) {
+        this.request = request;
+        this.timeoutMs = timeoutMs;
+        this.transport = transport;
+
+        initDefaults();
+        initServer();
+    }
+
     protected void initDefaults() {
         host = "localhost";
+        if (transport == null) {
+            transport = new TcpTransport();
+        }
         onSuccess = noOpSuccessCallback();
         onErr = noOpErrorCallback();
         onTimeout = noOpTimeoutCallback();
@@ -76,7 +95,7 @@ public class SocketTransaction<I extends Serializable, O extends Serializable> i
 
     protected void initServer() {
         started = true;
-        server = new PipeServer(request, this::onDone);
+        server = new PipeServer(request, this::onDone, transport);
     }
 
     public SocketTransaction<I, O> onSuccess(SuccessCallback<O> onSuccess) {
@@ -98,8 +117,13 @@ public class SocketTransaction<I extends Serializable, O extends Serializable> i
         doneLatch.countDown();
     }
 
+    /**
+     * Sets the request of a transaction created without one. The out process
+     * can be started before, it waits connected until the request is set.
+     */
     public void setRequest(I request) {
         this.request = request;
+        server.setRequest(request);
     }
 
     public SocketTransaction<I, O> withTimeout(int timeoutMs) {
@@ -107,6 +131,69 @@ public class SocketTransaction<I extends Serializable, O extends Serializable> i
         return this;
     }
 
+    /**
+     * Sets the codec used if the out process knows it, Java serialization
+     * otherwise. Must be set before the out process connects.
+     */
+    public SocketTransaction<I, O> withCodec(PayloadCodec codec) {
+        server.setCodec(codec);
+        return this;
+    }
+
+    /**
+     * Sets the compression of big payloads, enabled only if the out process
+     * supports it. Must be set before the out process connects.
+     */
+    public SocketTransaction<I, O> withCompression(Compression compression) {
+        server.setCompression(compression);
+        return this;
+    }
+
+    /**
+     * Sets the class loader that answers the class fetches of an out process
+     * that loads classes remotely.
+     */
+    public SocketTransaction<I, O> withClassLoader(ClassLoader classLoader) {
+        server.setClassLoader(classLoader);
+        return this;
+    }
+
+    /**
+     * Sets the maximum length of the frames exchanged with the out process.
+     * Must be set before the out process connects.
+     */
+    public SocketTransaction<I, O> withMaxFrameSize(int maxFrameSize) {
+        server.setMaxFrameSize(maxFrameSize);
+        return this;
+    }
+
+    /**
+     * Records the phases of the exchange, from now on.
+     */
+    SocketTransaction<I, O> withMetrics(CallMetrics metrics) {
+        server.setMetrics(metrics);
+        return this;
+    }
+
+    /**
+     * Keeps and sends the output printed by the call, if the out process
+     * captures it.
+     */
+    SocketTransaction<I, O> withOutput(TaskOutput output, OutputSink sink) {
+        if (output != null) {
+            output.setTaskId(1);
+        }
+        server.setOutput(output, sink);
+        return this;
+    }
+
+    /**
+     * Gets the output printed by the call, <code>null</code> if not kept.
+     */
+    TaskOutput getOutput() {
+        return server.getOutput();
+    }
+
     /**
      * This is the method that initiates all the socket threads...
      * @return the response, if successful.
@@ -127,8 +214,8 @@ public class SocketTransaction<I extends Serializable, O extends Serializable> i
     }
 
     private O doExchange() throws TransactionTimeoutException {
+        TimerWheel.Timeout timeout = timer();
         try {
-            timer();
             doneLatch.await();
 
             if (timedOut) {
@@ -152,26 +239,26 @@ public class SocketTransaction<I extends Serializable, O extends Serializable> i
 
         } catch (InterruptedException e) {
             throw new RuntimeException("Unexpected interruption while waiting for transaction to complete.", e);
+        } finally {
+            if (timeout != null) {
+                timeout.cancel();
+            }
         }
     }
 
-    private void timer() {
-        if (timeoutMs <= 0) return;
-
-        new Thread(() -> {
-            try {
-                Thread.sleep(timeoutMs);
-
-                if (!completed) {
-                    System.out.println("Transaction has timed out at " + timeoutMs + " ms");
-                    timedOut = true;
-                    doneLatch.countDown();
-                }
-
-            } catch (InterruptedException e) {
-                throw new RuntimeException("Unexpected interruption while waiting for transaction to timeout.", e);
+    /**
+     * Schedules the timeout on the shared timer, no thread is created.
+     */
+    private TimerWheel.Timeout timer() {
+        if (timeoutMs <= 0) return null;
+
+        return TimerWheel.shared().schedule(() -> {
+            if (!completed) {
+                System.out.println("Transaction has timed out at " + timeoutMs + " ms");
+                timedOut = true;
+                doneLatch.countDown();
             }
-        }).start();
+        }, timeoutMs, TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -179,8 +266,26 @@ public class SocketTransaction<I extends Serializable, O extends Serializable> i
         server.close();
     }
 
+    /**
+     * Address the out process must connect to, scheme included.
+     */
+    public String getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Port the out process must connect to.
+     *
+     * @throws IllegalStateException If the transport is not TCP.
+     * @deprecated Only known for TCP transports, use <code>getAddress()</code>.
+     */
+    @Deprecated
     public int getPort() {
-        return server.getPort();
+        String address = getAddress();
+        if (!address.startsWith(TcpTransport.SCHEME + ':')) {
+            throw new IllegalStateException("Not a TCP address: " + address);
+        }
+        return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
     }
 
     public String getSecret() {
@@ -0,0 +1,73 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import java.io.Serializable;
+
+/**
+ * A serializable task that produces many items instead of one result, ex:
+ * lines of a log scan or files of a directory walk.<br>
+ * Items are sent to the caller as soon as they are emitted and read with a
+ * <code>RemoteIterator</code>. Emitting blocks while the caller is behind, so
+ * memory is bounded on both sides.
+ * <pre>
+ * try (RemoteIterator&lt;String&gt; lines = executor.stream(emitter -&gt; {
+ *     try (BufferedReader reader = Files.newBufferedReader(Paths.get("/var/log/secure"))) {
+ *         for (String line; (line = reader.readLine()) != null;) {
+ *             emitter.emit(line);
+ *         }
+ *     }
+ * })) {
+ *     while (lines.hasNext()) {
+ *         System.out.println(lines.next());
+ *     }
+ * }
+ * </pre>
+ *
+ * @param <T> Item type.
+ * @see OutProcessExecutorService#stream(StreamingTask)
+ * @see OutProcessConfig#withStreamWindow(int)
+ */
+@FunctionalInterface
+public interface StreamingTask<T extends Serializable> extends Serializable {
+
+    /**
+     * Produces the items.
+     *
+     * @param emitter Sends items to the caller.
+     * @throws Exception If items cannot be produced, the caller receives it
+     * after the items already emitted.
+     */
+    void produce(Emitter<T> emitter) throws Exception;
+
+    /**
+     * Sends the items of a streaming task.
+     *
+     * @param <T> Item type.
+     */
+    interface Emitter<T extends Serializable> {
+
+        /**
+         * Sends an item, blocking while the caller has not consumed enough
+         * items.
+         *
+         * @param item The item.
+         * @throws java.io.IOException If item cannot be sent.
+         * @throws InterruptedException If caller closed the stream.
+         */
+        void emit(T item) throws java.io.IOException, InterruptedException;
+    }
+}
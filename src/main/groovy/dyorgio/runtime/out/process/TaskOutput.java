@@ -0,0 +1,232 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import dyorgio.runtime.out.process.protocol.Message;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Future;
+
+/**
+ * Output printed by one task to <code>System.out</code> and
+ * <code>System.err</code> of its out process, threads it started included.
+ * <br>
+ * Only the last bytes are kept, up to the capacity set by
+ * <code>OutProcessConfig#withOutputCapture</code>, older ones are counted as
+ * truncated. Output is received while the task runs and complete when its
+ * future is done.
+ *
+ * @author dyorgio
+ * @see OutProcessConfig#withOutputCapture(int, OutputSink)
+ * @see OutputSink
+ */
+public final class TaskOutput {
+
+    private final int capacity;
+    private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+    private int size;
+    private long truncated;
+    private volatile long taskId;
+
+    TaskOutput(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Gets the output of a task submitted to <code>OutProcessExecutorService</code>
+     * or <code>OutProcessPoolExecutorService</code>.
+     *
+     * @param future A future returned by <code>submit</code> or
+     * <code>invokeAll</code>.
+     * @return The output, <code>null</code> if output capture is disabled or
+     * the future was not returned by an out process executor.
+     */
+    public static TaskOutput of(Future<?> future) {
+        return future instanceof SerializableFutureTask ? ((SerializableFutureTask) future).output : null;
+    }
+
+    /**
+     * Gets the id of the task in the out process, the one given to the
+     * <code>OutputSink</code>.
+     *
+     * @return The id, 0 if not sent yet.
+     */
+    public long getTaskId() {
+        return taskId;
+    }
+
+    void setTaskId(long taskId) {
+        this.taskId = taskId;
+    }
+
+    /**
+     * Gets what was printed to both streams, in order.
+     *
+     * @return The kept output.
+     */
+    public synchronized String getText() {
+        return text(null);
+    }
+
+    /**
+     * Gets what was printed to <code>System.out</code>.
+     *
+     * @return The kept output.
+     */
+    public synchronized String getStdout() {
+        return text(Boolean.FALSE);
+    }
+
+    /**
+     * Gets what was printed to <code>System.err</code>.
+     *
+     * @return The kept output.
+     */
+    public synchronized String getStderr() {
+        return text(Boolean.TRUE);
+    }
+
+    /**
+     * Gets how many bytes were dropped to keep the capacity.
+     *
+     * @return Bytes not kept.
+     */
+    public synchronized long getTruncatedBytes() {
+        return truncated;
+    }
+
+    synchronized void append(boolean error, byte[] data, int offset, int length) {
+        if (length > capacity) {
+            truncated += length - capacity;
+            offset += length - capacity;
+            length = capacity;
+        }
+        chunks.addLast(new Chunk(error, Arrays.copyOfRange(data, offset, offset + length)));
+        size += length;
+        while (size > capacity) {
+            Chunk oldest = chunks.pollFirst();
+            int excess = size - capacity;
+            if (oldest.data.length > excess) {
+                chunks.addFirst(new Chunk(oldest.error, Arrays.copyOfRange(oldest.data, excess, oldest.data.length)));
+                size -= excess;
+                truncated += excess;
+            } else {
+                size -= oldest.data.length;
+                truncated += oldest.data.length;
+            }
+        }
+    }
+
+    private String text(Boolean error) {
+        byte[] all = new byte[size];
+        int length = 0;
+        for (Chunk chunk : chunks) {
+            if (error == null || error == chunk.error) {
+                System.arraycopy(chunk.data, 0, all, length, chunk.data.length);
+                length += chunk.data.length;
+            }
+        }
+        return new String(all, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Handles an <code>OUTPUT</code> message: keeps it in the output of its
+     * task and gives its lines to the sink. Output of no task, without a
+     * sink, is printed to this JVM streams.
+     *
+     * @param message The message.
+     * @param output The output of its task, <code>null</code> if none.
+     * @param sink Where lines go, <code>null</code> if none.
+     */
+    static void receive(Message message, TaskOutput output, OutputSink sink) {
+        byte[] payload = (byte[]) message.getPayload();
+        boolean error = payload[0] == Message.OUTPUT_STDERR;
+        if (output != null) {
+            output.append(error, payload, 1, payload.length - 1);
+        }
+        if (sink != null) {
+            String text = new String(payload, 1, payload.length - 1, StandardCharsets.UTF_8);
+            int start = 0;
+            while (start < text.length()) {
+                int end = text.indexOf('\n', start);
+                if (end < 0) {
+                    end = text.length();
+                }
+                String line = text.substring(start, end > start && text.charAt(end - 1) == '\r' ? end - 1 : end);
+                try {
+                    sink.onOutput(message.getId(), error, line);
+                } catch (RuntimeException e) {
+                    // a sink never breaks a call
+                }
+                start = end + 1;
+            }
+        } else if (output == null) {
+            PrintStream stream = error ? System.err : System.out;
+            stream.write(payload, 1, payload.length - 1);
+            stream.flush();
+        }
+    }
+
+    /**
+     * Reads the lines a JVM writes to one of its streams and handles each one
+     * as an <code>OUTPUT</code> message of a task, until the stream ends.
+     *
+     * @param stream Standard output or error of the JVM.
+     * @param error <code>true</code> if standard error.
+     * @param taskId Id of the task the lines belong to.
+     * @param output The output of the task, <code>null</code> if none.
+     * @param sink Where lines go, <code>null</code> if none.
+     * @return The started reading thread.
+     */
+    static Thread drain(InputStream stream, boolean error, long taskId, TaskOutput output, OutputSink sink) {
+        Thread thread = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, Charset.defaultCharset()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    byte[] text = (line + '\n').getBytes(StandardCharsets.UTF_8);
+                    byte[] payload = new byte[text.length + 1];
+                    payload[0] = error ? Message.OUTPUT_STDERR : Message.OUTPUT_STDOUT;
+                    System.arraycopy(text, 0, payload, 1, text.length);
+                    receive(new Message(Message.OUTPUT, taskId, payload), output, sink);
+                }
+            } catch (IOException e) {
+                // stream closed with the process
+            }
+        }, error ? "out-process-stderr" : "out-process-stdout");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static final class Chunk {
+
+        private final boolean error;
+        private final byte[] data;
+
+        private Chunk(boolean error, byte[] data) {
+            this.error = error;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed wheel timer shared by every executor and transaction of the JVM.<br>
+ * Timeouts are hashed by deadline into the slots of a wheel that turns one
+ * slot per tick, so scheduling and cancelling cost O(1) and a single thread
+ * serves any number of timeouts. The thread sleeps while there are no
+ * timeouts.<br>
+ * Timeout tasks run on the timer thread, in deadline order with tick
+ * precision, and must be short. Their failures go to the uncaught exception
+ * handler of the timer thread, which keeps running.
+ */
+public final class TimerWheel {
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int WHEEL_SIZE = 512;
+
+    private static TimerWheel shared;
+
+    private final Slot[] wheel = new Slot[WHEEL_SIZE];
+    private final LinkedBlockingQueue<Timeout> added = new LinkedBlockingQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final long start = System.nanoTime();
+    // accessed by the timer thread only
+    private long tick;
+    private int scheduled;
+
+    private TimerWheel() {
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new Slot();
+        }
+        Thread thread = new Thread(this::run, "out-process-timer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Gets the timer of this JVM, starting it on first use.
+     *
+     * @return The shared timer.
+     */
+    public static synchronized TimerWheel shared() {
+        if (shared == null) {
+            shared = new TimerWheel();
+        }
+        return shared;
+    }
+
+    /**
+     * Schedules a task.
+     *
+     * @param task Task to run on the timer thread when the delay elapses.
+     * @param delay Delay from now.
+     * @param unit The time unit of the <code>delay</code> argument.
+     * @return The timeout, to cancel the task.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(this, task, System.nanoTime() - start + unit.toNanos(Math.max(0, delay)));
+        added.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                if (scheduled == 0) {
+                    // idle, wait for the next timeout instead of ticking
+                    Timeout first = added.take();
+                    tick = (System.nanoTime() - start) / TICK_NANOS;
+                    link(first);
+                }
+
+                long sleepNanos;
+                // sleep may wake up a bit early, never expire before the tick ends
+                while ((sleepNanos = (tick + 1) * TICK_NANOS - (System.nanoTime() - start)) > 0) {
+                    Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sleepNanos + 999999));
+                }
+
+                Timeout timeout;
+                while ((timeout = added.poll()) != null) {
+                    link(timeout);
+                }
+                while ((timeout = cancelled.poll()) != null) {
+                    unlink(timeout);
+                }
+                expire(wheel[(int) (tick & (WHEEL_SIZE - 1))]);
+                tick++;
+            } catch (InterruptedException e) {
+                // daemon thread, never interrupted on purpose
+            }
+        }
+    }
+
+    private void link(Timeout timeout) {
+        if (timeout.state.get() != Timeout.WAITING) {
+            return;
+        }
+        long ticks = Math.max(timeout.deadline / TICK_NANOS, tick);
+        timeout.rounds = (ticks - tick) / WHEEL_SIZE;
+        Slot slot = wheel[(int) (ticks & (WHEEL_SIZE - 1))];
+        timeout.slot = slot;
+        timeout.prev = slot.tail;
+        if (slot.tail == null) {
+            slot.head = timeout;
+        } else {
+            slot.tail.next = timeout;
+        }
+        slot.tail = timeout;
+        scheduled++;
+    }
+
+    private void unlink(Timeout timeout) {
+        Slot slot = timeout.slot;
+        if (slot == null) {
+            // cancelled before being linked or already expired
+            return;
+        }
+        if (timeout.prev == null) {
+            slot.head = timeout.next;
+        } else {
+            timeout.prev.next = timeout.next;
+        }
+        if (timeout.next == null) {
+            slot.tail = timeout.prev;
+        } else {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.slot = null;
+        timeout.prev = timeout.next = null;
+        scheduled--;
+    }
+
+    private void expire(Slot slot) {
+        Timeout timeout = slot.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.rounds <= 0) {
+                unlink(timeout);
+                if (timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+                    try {
+                        timeout.task.run();
+                    } catch (Throwable e) {
+                        OutProcessUtils.reportUncaught(e);
+                    }
+                }
+            } else {
+                timeout.rounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    private static final class Slot {
+
+        private Timeout head;
+        private Timeout tail;
+    }
+
+    /**
+     * A scheduled task.
+     */
+    public static final class Timeout {
+
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final TimerWheel timer;
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        // accessed by the timer thread only
+        private long rounds;
+        private Slot slot;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(TimerWheel timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task if it did not run yet.
+         *
+         * @return <code>true</code> if cancelled, <code>false</code> if it
+         * already ran or was cancelled.
+         */
+        public boolean cancel() {
+            if (state.compareAndSet(WAITING, CANCELLED)) {
+                timer.cancelled.add(this);
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,704 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import dyorgio.runtime.out.process.protocol.Compression;
+import dyorgio.runtime.out.process.protocol.Handshake;
+import dyorgio.runtime.out.process.protocol.Message;
+import dyorgio.runtime.out.process.protocol.MessageChannel;
+import dyorgio.runtime.out.process.protocol.PayloadCodec;
+import dyorgio.runtime.out.process.protocol.PayloadException;
+import dyorgio.runtime.out.process.protocol.Resource;
+import dyorgio.runtime.out.process.transport.SelectableServer;
+import dyorgio.runtime.out.process.transport.SelectableTransport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Accepts the out process connections of every <code>SocketTransaction</code>
+ * of a transport on a single address and runs their exchanges on a single
+ * thread.<br>
+ * Each transaction registers a secret, a connection is routed to its
+ * transaction by the secret of its <code>HELLO</code>. A transaction can be
+ * registered before its request is known, its out process connects and waits
+ * for the <code>CALL</code> until <code>Registration#send()</code>. Connections are
+ * non-blocking and frames are only read once fully received, so thousands
+ * of transactions can be pending with a constant number of threads.<br>
+ * The selector thread only frames messages: payloads are decoded, class
+ * fetches looked up and callbacks called by a decoder thread, in order for
+ * each transaction, so a slow or huge response never stalls the others.<br>
+ * There is one selector per transport configuration, it lives until the JVM
+ * exits.
+ *
+ * @see PipeServer
+ * @see SelectableTransport
+ */
+final class TransactionSelector implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int CHANNEL_BUFFER_SIZE = 512;
+    private static final int MAX_HELLO_LENGTH = 64 * 1024;
+    private static final long HELLO_TIMEOUT_MS = 30000;
+    private static final long SWEEP_INTERVAL_MS = 1000;
+
+    private static final Map<String, TransactionSelector> SHARED = new HashMap<>();
+
+    private static final ExecutorService DECODERS = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "out-process-transaction-decoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final SelectableServer server;
+    private final Selector selector;
+    private final Map<String, Registration> registrations = new ConcurrentHashMap<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private long lastSweep = System.currentTimeMillis();
+
+    private TransactionSelector(SelectableServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        try {
+            server.getChannel().register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            selector.close();
+            throw e;
+        }
+
+        Thread thread = new Thread(this, "out-process-transaction-selector-" + server.getAddress());
+        thread.setDaemon(true);
+        thread.start();
+
+        // unix sockets leave a file behind
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (IOException e) {
+            }
+        }));
+    }
+
+    /**
+     * Gets the selector of a transport, starting it on first use.
+     *
+     * @param transport The transport.
+     * @return The selector shared by all transactions using an equivalent
+     * transport.
+     * @throws IOException If cannot listen.
+     */
+    static TransactionSelector getShared(SelectableTransport transport) throws IOException {
+        synchronized (SHARED) {
+            String key = transport.toString();
+            TransactionSelector shared = SHARED.get(key);
+            if (shared == null) {
+                shared = new TransactionSelector(transport.listenSelectable());
+                SHARED.put(key, shared);
+            }
+            return shared;
+        }
+    }
+
+    /**
+     * Gets the address out processes must connect to.
+     *
+     * @return The address, scheme included.
+     */
+    String getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Waits for the out process that knows the secret.
+     *
+     * @param secret Transaction secret, used only once.
+     * @param transaction Transaction callbacks, called in order by a decoder
+     * thread.
+     * @return The registration, to be cancelled when the transaction ends.
+     */
+    Registration register(String secret, Transaction transaction) {
+        Registration registration = new Registration(secret, transaction);
+        registrations.put(secret, registration);
+        return registration;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select(SWEEP_INTERVAL_MS);
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        ((Exchange) key.attachment()).onReady(key);
+                    }
+                }
+
+                sweep();
+            } catch (ClosedSelectorException e) {
+                return;
+            } catch (IOException e) {
+                // select failed, try again
+            }
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel socket;
+            while ((socket = server.acceptChannel()) != null) {
+                try {
+                    new Exchange(socket);
+                } catch (IOException e) {
+                    socket.close();
+                }
+            }
+        } catch (IOException e) {
+            // ex: too many open files, next select retries
+        }
+    }
+
+    /**
+     * Closes connections that never said <code>HELLO</code>.
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        if (now - lastSweep < SWEEP_INTERVAL_MS) {
+            return;
+        }
+        lastSweep = now;
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Exchange) {
+                Exchange exchange = (Exchange) attachment;
+                if (exchange.registration == null && now - exchange.acceptedAt >= HELLO_TIMEOUT_MS) {
+                    exchange.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Callbacks of a pending transaction.
+     */
+    interface Transaction {
+
+        /**
+         * Gets the request sent as <code>CALL</code> after the handshake.
+         *
+         * @return The request, <code>null</code> if not known yet.
+         * @see Registration#send()
+         */
+        Serializable getRequest();
+
+        /**
+         * Gets the codec to use if the out process knows it.
+         *
+         * @return The preferred codec.
+         */
+        PayloadCodec getCodec();
+
+        /**
+         * Gets the compression of big payloads, enabled only if the out
+         * process supports it.
+         *
+         * @return The compression, <code>null</code> if disabled.
+         */
+        Compression getCompression();
+
+        /**
+         * Gets the class loader that answers the class fetches of the out
+         * process, if it loads classes remotely.
+         *
+         * @return The class loader.
+         */
+        ClassLoader getClassLoader();
+
+        /**
+         * Gets where the phases of the call are recorded.
+         *
+         * @return The metrics, <code>null</code> if not recorded.
+         */
+        CallMetrics getMetrics();
+
+        /**
+         * Gets the maximum length of the frames exchanged after the
+         * handshake.
+         *
+         * @return Maximum length in bytes.
+         */
+        int getMaxFrameSize();
+
+        /**
+         * Called with the <code>RESULT</code> or <code>ERROR</code> message.
+         *
+         * @param response The response.
+         */
+        void onResponse(Message response);
+
+        /**
+         * Called with each <code>OUTPUT</code> message, before the response.
+         *
+         * @param output The output.
+         */
+        void onOutput(Message output);
+
+        /**
+         * Called if the connection broke after the handshake or the response
+         * cannot be decoded.
+         *
+         * @param error The cause, a <code>PayloadException</code> if the
+         * response cannot be decoded.
+         */
+        void onFailure(Exception error);
+    }
+
+    /**
+     * A registered transaction.
+     */
+    final class Registration {
+
+        private final String secret;
+        private final Transaction transaction;
+        // run in order, by one decoder thread at a time
+        private final Queue<Runnable> events = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean done;
+        // accessed by the selector thread only
+        private Exchange exchange;
+
+        private Registration(String secret, Transaction transaction) {
+            this.secret = secret;
+            this.transaction = transaction;
+        }
+
+        /**
+         * Stops waiting for the out process and closes its connection, if
+         * any. Callbacks are not called after this.
+         */
+        void cancel() {
+            registrations.remove(secret, this);
+            tasks.add(() -> {
+                done = true;
+                if (exchange != null) {
+                    exchange.close();
+                }
+            });
+            selector.wakeup();
+        }
+
+        /**
+         * Sends the request, now returned by
+         * <code>Transaction#getRequest()</code>, if the out process is
+         * already connected. Otherwise it is sent when it connects.
+         */
+        void send() {
+            tasks.add(() -> {
+                if (!done && exchange != null) {
+                    exchange.call();
+                }
+            });
+            selector.wakeup();
+        }
+
+        /**
+         * Runs an event on a decoder thread, after the previous ones.
+         */
+        private void post(Runnable event) {
+            events.add(event);
+            if (scheduled.compareAndSet(false, true)) {
+                DECODERS.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            do {
+                try {
+                    Runnable event;
+                    while ((event = events.poll()) != null) {
+                        event.run();
+                    }
+                } finally {
+                    scheduled.set(false);
+                }
+            } while (!events.isEmpty() && scheduled.compareAndSet(false, true));
+        }
+
+        private void respond(Message response) {
+            if (!done) {
+                done = true;
+                transaction.onResponse(response);
+            }
+        }
+
+        private void output(Message output) {
+            if (!done) {
+                transaction.onOutput(output);
+            }
+        }
+
+        private void fail(Exception error) {
+            if (!done) {
+                done = true;
+                transaction.onFailure(error);
+            }
+        }
+    }
+
+    /**
+     * One out process connection: reads <code>HELLO</code>, replies
+     * <code>WELCOME</code> and the <code>CALL</code>, as soon as the request is
+     * known, answers class fetches and reads the response.
+     */
+    private final class Exchange {
+
+        private final SocketChannel socket;
+        private final SelectionKey key;
+        private final FrameInput input = new FrameInput();
+        private final FrameOutput output = new FrameOutput();
+        private final MessageChannel channel;
+        private final long acceptedAt = System.currentTimeMillis();
+        private Registration registration;
+        private boolean called;
+
+        private Exchange(SocketChannel socket) throws IOException {
+            this.socket = socket;
+            this.channel = new MessageChannel(input, output, CHANNEL_BUFFER_SIZE);
+            this.key = socket.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        private void onReady(SelectionKey key) {
+            try {
+                if (key.isReadable()) {
+                    read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush();
+                }
+            } catch (IOException | RuntimeException e) {
+                close();
+                if (registration != null) {
+                    fail(e);
+                }
+            }
+        }
+
+        private void read() throws IOException {
+            readBuffer.clear();
+            if (socket.read(readBuffer) < 0) {
+                throw new EOFException("Out process closed the connection.");
+            }
+            readBuffer.flip();
+            input.append(readBuffer);
+
+            int frames = input.parse(registration == null ? MAX_HELLO_LENGTH : channel.getMaxFrameSize());
+            for (int i = 0; i < frames && key.isValid(); i++) {
+                if (registration == null) {
+                    onHello();
+                } else {
+                    onResponse();
+                }
+            }
+        }
+
+        private void onHello() throws IOException {
+            Map<String, String> hello = Handshake.readHello(channel);
+            String secret = hello.get(Handshake.SECRET);
+            // a secret is used once, unknown ones are dropped silently
+            Registration found = secret == null ? null : registrations.remove(secret);
+            if (found == null) {
+                close();
+                return;
+            }
+            registration = found;
+            found.exchange = this;
+            channel.setMaxFrameSize(found.transaction.getMaxFrameSize());
+            CallMetrics metrics = found.transaction.getMetrics();
+            if (metrics != null) {
+                long launchedAt = Handshake.getLaunchedAt(hello);
+                if (launchedAt >= 0) {
+                    metrics.recordLaunch(launchedAt);
+                }
+                metrics.record(CallMetrics.Phase.CONNECT);
+            }
+
+            Handshake.welcome(channel, hello, found.transaction.getCodec(), null, found.transaction.getCompression());
+            flush();
+            if (metrics != null) {
+                metrics.record(CallMetrics.Phase.HANDSHAKE);
+            }
+            call();
+        }
+
+        /**
+         * Sends the request once, if known.
+         */
+        private void call() {
+            Serializable request = registration.transaction.getRequest();
+            if (called || request == null || !key.isValid()) {
+                return;
+            }
+            called = true;
+            try {
+                int written = channel.write(Message.CALL, 1, request);
+                CallMetrics metrics = registration.transaction.getMetrics();
+                if (metrics != null) {
+                    metrics.setRequestBytes(written);
+                    metrics.record(CallMetrics.Phase.SERIALIZE);
+                }
+                flush();
+            } catch (IOException | RuntimeException e) {
+                close();
+                fail(e);
+            }
+        }
+
+        /**
+         * Reads a frame after the handshake, its payload is decoded by the
+         * decoder thread of the registration.
+         */
+        private void onResponse() throws IOException {
+            final Message frame;
+            try {
+                frame = channel.readFrame();
+            } catch (PayloadException e) {
+                received();
+                close();
+                fail(e);
+                return;
+            }
+            if (frame.getType() == Message.FETCH) {
+                registration.post(() -> serve(frame));
+                return;
+            }
+            if (frame.getType() == Message.OUTPUT) {
+                registration.post(() -> output(frame));
+                return;
+            }
+            received();
+            close();
+            registration.post(() -> respond(frame));
+        }
+
+        /**
+         * Looks up a fetched resource on the decoder thread, the reply is
+         * written by the selector thread.
+         */
+        private void serve(final Message fetch) {
+            final Resource resource = RemoteClassServer.lookup(registration.transaction.getClassLoader(), fetch);
+            tasks.add(() -> {
+                if (!key.isValid()) {
+                    return;
+                }
+                try {
+                    channel.writeResource(fetch.getId(), resource);
+                    flush();
+                } catch (IOException | RuntimeException e) {
+                    close();
+                    fail(e);
+                }
+            });
+            selector.wakeup();
+        }
+
+        private void output(Message frame) {
+            try {
+                registration.output(channel.decode(frame));
+            } catch (PayloadException e) {
+                tasks.add(this::close);
+                selector.wakeup();
+                registration.fail(e);
+            }
+        }
+
+        private void respond(Message frame) {
+            Message response;
+            try {
+                response = channel.decode(frame);
+            } catch (PayloadException e) {
+                registration.fail(e);
+                return;
+            }
+            CallMetrics metrics = registration.transaction.getMetrics();
+            if (metrics != null) {
+                metrics.record(CallMetrics.Phase.DESERIALIZE);
+            }
+            registration.respond(response);
+        }
+
+        /**
+         * Fails the transaction after the events already received.
+         */
+        private void fail(Exception error) {
+            registration.post(() -> registration.fail(error));
+        }
+
+        private void received() {
+            CallMetrics metrics = registration.transaction.getMetrics();
+            if (metrics != null) {
+                metrics.record(CallMetrics.Phase.EXECUTE, channel.getFrameReceivedAt());
+                metrics.setResponseBytes(channel.getFrameLength());
+            }
+        }
+
+        private void flush() throws IOException {
+            boolean flushed = output.writeTo(socket);
+            key.interestOps(flushed ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        private void close() {
+            key.cancel();
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Bytes received by a connection, only whole frames can be read so a
+     * <code>MessageChannel</code> never blocks reading them.
+     */
+    private static final class FrameInput extends InputStream {
+
+        private byte[] buf = new byte[4096];
+        // next byte to read
+        private int pos;
+        // end of the last whole frame
+        private int limit;
+        // end of received bytes
+        private int count;
+
+        private void append(ByteBuffer data) {
+            int remaining = data.remaining();
+            if (count + remaining > buf.length) {
+                int live = count - pos;
+                byte[] target = live + remaining > buf.length ? new byte[Math.max(buf.length * 2, live + remaining)] : buf;
+                System.arraycopy(buf, pos, target, 0, live);
+                buf = target;
+                count = live;
+                limit -= pos;
+                pos = 0;
+            }
+            data.get(buf, count, remaining);
+            count += remaining;
+        }
+
+        /**
+         * Finds the frames received since the last call.
+         *
+         * @param maxLength Maximum valid frame length.
+         * @return Number of new whole frames.
+         */
+        private int parse(int maxLength) throws StreamCorruptedException {
+            int frames = 0;
+            while (count - limit >= 4) {
+                int length = (buf[limit] & 0xFF) << 24 | (buf[limit + 1] & 0xFF) << 16
+                        | (buf[limit + 2] & 0xFF) << 8 | buf[limit + 3] & 0xFF;
+                if (length < 9 || length > maxLength) {
+                    throw new StreamCorruptedException("Invalid frame length: " + length);
+                }
+                if (count - limit - 4 < length) {
+                    break;
+                }
+                limit += 4 + length;
+                frames++;
+            }
+            return frames;
+        }
+
+        @Override
+        public int read() {
+            return pos < limit ? buf[pos++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos >= limit) {
+                return -1;
+            }
+            int read = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, b, off, read);
+            pos += read;
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return limit - pos;
+        }
+    }
+
+    /**
+     * Bytes waiting to be sent by a connection.
+     */
+    private static final class FrameOutput extends ByteArrayOutputStream {
+
+        private int written;
+
+        /**
+         * Writes as much as the socket accepts without blocking.
+         *
+         * @return <code>true</code> if everything was written.
+         */
+        private boolean writeTo(SocketChannel socket) throws IOException {
+            if (written < count) {
+                written += socket.write(ByteBuffer.wrap(buf, written, count - written));
+            }
+            if (written < count) {
+                return false;
+            }
+            reset();
+            written = 0;
+            return true;
+        }
+    }
+}
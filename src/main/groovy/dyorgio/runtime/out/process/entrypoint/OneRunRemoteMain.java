@@ -15,18 +15,30 @@
  ***************************************************************************** */
 package dyorgio.runtime.out.process.entrypoint;
 
+import dyorgio.runtime.out.process.CallableSerializable;
 import dyorgio.runtime.out.process.OneRunOutProcess;
+import dyorgio.runtime.out.process.protocol.Handshake;
+import dyorgio.runtime.out.process.protocol.Message;
+import dyorgio.runtime.out.process.protocol.MessageChannel;
+import dyorgio.runtime.out.process.protocol.PayloadCodec;
+import dyorgio.runtime.out.process.transport.Connection;
+import dyorgio.runtime.out.process.transport.Transports;
 
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
 
 import static dyorgio.runtime.out.process.OutProcessUtils.RUNNING_AS_OUT_PROCESS;
+import static dyorgio.runtime.out.process.OutProcessUtils.executeAndRespond;
 import static dyorgio.runtime.out.process.OutProcessUtils.readCommandExecuteAndRespond;
 
 /**
  * The entry point of an out process created by an <code>OneRunOutProcess</code>
- * instance.
+ * instance.<br>
+ * Arguments: executor address, secret and output capture (optional, defaults
+ * to <code>false</code>: inherited streams).
  *
  * @author dyorgio
  * @see OneRunOutProcess
@@ -34,22 +46,50 @@ import static dyorgio.runtime.out.process.OutProcessUtils.readCommandExecuteAndR
 public class OneRunRemoteMain {
 
     public static void main(String[] args) throws Exception {
-
-        System.out.printf("args: %s%n", Arrays.asList(args));
+        long launchedAt = System.currentTimeMillis();
 
 //        javax.swing.JOptionPane.showMessageDialog(null, "oneRunRemoteMain");
 
         // Identify as an out process execution
         System.setProperty(RUNNING_AS_OUT_PROCESS, "true");
-        // Open socket with the port received as parameter
-        try (Socket socket = new Socket("127.0.0.1", Integer.valueOf(args[0]))) {
-            // Reply with secret
-            ObjectOutputStream objOut = new ObjectOutputStream(socket.getOutputStream());
-            objOut.writeUTF(args[1]);
-            objOut.flush();
+        // Connect to the address received as parameter
+        try (Connection connection = Transports.connect(args[0])) {
+            MessageChannel channel = new MessageChannel(connection.getInputStream(), connection.getOutputStream());
+            // Reply with secret and agree on codec
+            Handshake.connect(channel, args[1], launchedAt);
+            RemoteClassLoader loader = RemoteClassLoader.install(channel);
+            // the only command has id 1, its output is all the output
+            OutputCapture output = args.length > 2 && Boolean.parseBoolean(args[2]) ? OutputCapture.install(channel, 1) : null;
+            // JVMs in standby wait here, get ready to run the command fast
+            warmUp(channel.getCodec());
 
             // Read and execute one command
-            readCommandExecuteAndRespond(socket.getInputStream(), objOut);
+            if (loader == null) {
+                readCommandExecuteAndRespond(channel, output);
+            } else {
+                // decoding may fetch classes, replies are read by another thread
+                Message command = channel.readFrame();
+                loader.startReader();
+                executeAndRespond(channel, command, output);
+            }
+        }
+    }
+
+    /**
+     * Encodes, decodes and calls a sample command, so classes used to read
+     * and run commands (serialization, lambdas, reflection) are loaded
+     * before the command arrives. Best effort, errors are ignored.
+     *
+     * @param codec The connection codec.
+     */
+    private static void warmUp(PayloadCodec codec) {
+        try {
+            CallableSerializable<ArrayList<String>> sample = () -> new ArrayList<>(Arrays.asList("warm", "up"));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            codec.newEncoder(out).encode(sample);
+            ((Callable<?>) codec.newDecoder(new ByteArrayInputStream(out.toByteArray())).decode()).call();
+        } catch (Exception e) {
+            // codec without lambda support, nothing to warm up
         }
     }
 }
@@ -0,0 +1,279 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.entrypoint;
+
+import dyorgio.runtime.out.process.protocol.Message;
+import dyorgio.runtime.out.process.protocol.MessageChannel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Captures <code>System.out</code> and <code>System.err</code> of the out
+ * process and sends them to the executor in <code>OUTPUT</code> messages,
+ * tagged with the id of the task that printed them.<br>
+ * Printing never waits for the connection: lines are queued and sent by a
+ * daemon thread, up to <code>MAX_QUEUED_BYTES</code>, above it they are
+ * dropped and counted. Before a task response is sent its output is flushed,
+ * so it arrives first. Threads started by a task inherit its id.
+ *
+ * @author dyorgio
+ * @see Message#OUTPUT
+ */
+final class OutputCapture implements Flushable {
+
+    /**
+     * Bytes waiting to be sent above which output is dropped.
+     */
+    static final int MAX_QUEUED_BYTES = 1 << 20;
+
+    // a line longer than this is sent in pieces
+    private static final int MAX_CHUNK = 8192;
+    private static final InheritableThreadLocal<Long> TASK = new InheritableThreadLocal<>();
+
+    private final MessageChannel channel;
+    private final long defaultId;
+    private final Map<Long, ByteArrayOutputStream[]> lines = new HashMap<>();
+    private final ArrayDeque<Chunk> queue = new ArrayDeque<>();
+    private final Thread sender;
+    private int queuedBytes;
+    private long queued;
+    private long sent;
+    private long dropped;
+    private boolean closed;
+
+    private OutputCapture(MessageChannel channel, long defaultId) {
+        this.channel = channel;
+        this.defaultId = defaultId;
+        this.sender = new Thread(this::send, "out-process-output");
+        this.sender.setDaemon(true);
+    }
+
+    /**
+     * Replaces <code>System.out</code> and <code>System.err</code>.
+     *
+     * @param channel Connection with the executor.
+     * @param defaultId Id of output printed outside of tasks.
+     * @return The capture.
+     */
+    static OutputCapture install(MessageChannel channel, long defaultId) {
+        OutputCapture capture = new OutputCapture(channel, defaultId);
+        try {
+            System.setOut(new PrintStream(capture.new CaptureStream(0), true, "UTF-8"));
+            System.setErr(new PrintStream(capture.new CaptureStream(1), true, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        capture.sender.start();
+        return capture;
+    }
+
+    /**
+     * Tags the output of the current thread, and of threads it starts, with
+     * a task id.
+     *
+     * @param id The task id.
+     */
+    static void bind(long id) {
+        TASK.set(id);
+    }
+
+    /**
+     * Stops tagging the output of the current thread.
+     */
+    static void unbind() {
+        TASK.remove();
+    }
+
+    /**
+     * Sends what a task printed, partial lines included, and waits until it
+     * is written to the connection.
+     *
+     * @param id The task id.
+     */
+    synchronized void finish(long id) {
+        drain(id);
+        awaitSent();
+    }
+
+    /**
+     * Sends everything printed, partial lines included, and waits until it is
+     * written to the connection.
+     */
+    @Override
+    public synchronized void flush() {
+        for (Long id : lines.keySet().toArray(new Long[0])) {
+            drain(id);
+        }
+        awaitSent();
+    }
+
+    /**
+     * Stops sending, output printed after this is lost.
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private void drain(long id) {
+        ByteArrayOutputStream[] buffers = lines.remove(id);
+        if (buffers != null) {
+            for (int i = 0; i < buffers.length; i++) {
+                if (buffers[i] != null && buffers[i].size() > 0) {
+                    enqueue(id, i, buffers[i]);
+                }
+            }
+        }
+    }
+
+    private void awaitSent() {
+        long target = queued;
+        boolean interrupted = false;
+        while (sent < target && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // a cancelled task still flushes its output
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void write(int stream, byte[] data, int offset, int length) {
+        Long bound = TASK.get();
+        long id = bound == null ? defaultId : bound;
+        ByteArrayOutputStream[] buffers = lines.get(id);
+        if (buffers == null) {
+            buffers = new ByteArrayOutputStream[2];
+            lines.put(id, buffers);
+        }
+        if (buffers[stream] == null) {
+            buffers[stream] = new ByteArrayOutputStream();
+        }
+        ByteArrayOutputStream buffer = buffers[stream];
+        int end = offset + length;
+        int start = offset;
+        for (int i = offset; i < end; i++) {
+            if (data[i] == '\n' || buffer.size() + i - start + 1 >= MAX_CHUNK) {
+                buffer.write(data, start, i + 1 - start);
+                enqueue(id, stream, buffer);
+                start = i + 1;
+            }
+        }
+        buffer.write(data, start, end - start);
+    }
+
+    private void enqueue(long id, int stream, ByteArrayOutputStream buffer) {
+        int size = buffer.size();
+        if (closed || queuedBytes + size > MAX_QUEUED_BYTES) {
+            dropped += size;
+        } else {
+            byte[] payload = new byte[size + 1];
+            payload[0] = stream == 0 ? Message.OUTPUT_STDOUT : Message.OUTPUT_STDERR;
+            System.arraycopy(buffer.toByteArray(), 0, payload, 1, size);
+            queue.addLast(new Chunk(id, payload));
+            queuedBytes += size;
+            queued++;
+            notifyAll();
+        }
+        buffer.reset();
+    }
+
+    private void send() {
+        try {
+            while (true) {
+                Chunk chunk;
+                synchronized (this) {
+                    while (queue.isEmpty() && dropped == 0 && !closed) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    chunk = queue.pollFirst();
+                }
+                if (chunk != null) {
+                    channel.write(Message.OUTPUT, chunk.id, chunk.payload);
+                    synchronized (this) {
+                        queuedBytes -= chunk.payload.length - 1;
+                        sent++;
+                        notifyAll();
+                    }
+                } else {
+                    // the queue was full, told once it is empty again
+                    long count;
+                    synchronized (this) {
+                        count = dropped;
+                        dropped = 0;
+                    }
+                    byte[] notice = ("[" + count + " bytes of output dropped]\n").getBytes(StandardCharsets.UTF_8);
+                    byte[] payload = new byte[notice.length + 1];
+                    payload[0] = Message.OUTPUT_STDERR;
+                    System.arraycopy(notice, 0, payload, 1, notice.length);
+                    channel.write(Message.OUTPUT, 0, payload);
+                }
+            }
+        } catch (InterruptedException | IOException e) {
+            // connection closed
+            close();
+        }
+    }
+
+    /**
+     * Prints to the capture, one per stream.
+     */
+    private final class CaptureStream extends OutputStream {
+
+        private final int stream;
+
+        private CaptureStream(int stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            OutputCapture.this.write(stream, b, off, len);
+        }
+    }
+
+    private static final class Chunk {
+
+        private final long id;
+        private final byte[] payload;
+
+        private Chunk(long id, byte[] payload) {
+            this.id = id;
+            this.payload = payload;
+        }
+    }
+}
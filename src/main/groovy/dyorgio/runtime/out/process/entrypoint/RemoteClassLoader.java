@@ -0,0 +1,311 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.entrypoint;
+
+import dyorgio.runtime.out.process.protocol.Message;
+import dyorgio.runtime.out.process.protocol.MessageChannel;
+import dyorgio.runtime.out.process.protocol.PayloadException;
+import dyorgio.runtime.out.process.protocol.Resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static dyorgio.runtime.out.process.OutProcessUtils.REMOTE_CLASSES;
+
+/**
+ * Out process class loader that fetches classes and resources missing from
+ * its classpath from the executor, with <code>FETCH</code> messages.<br>
+ * Fetched content is kept in a cache directory named by its digest, and the
+ * digest last seen for each name too: the executor only sends content the
+ * cache does not have, so next out processes don't fetch it again.<br>
+ * <code>RESOURCE</code> replies must be passed to <code>onResource</code> by
+ * the thread reading the connection, which therefore can't be the one
+ * decoding payloads.
+ *
+ * @see Message#FETCH
+ */
+final class RemoteClassLoader extends ClassLoader {
+
+    static {
+        registerAsParallelCapable();
+    }
+
+    private final MessageChannel channel;
+    private final File cache;
+    private final File names;
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<Long, CompletableFuture<Resource>> fetching = new ConcurrentHashMap<>();
+    private volatile IOException closed;
+
+    private RemoteClassLoader(MessageChannel channel, File cache) {
+        super(RemoteClassLoader.class.getClassLoader());
+        this.channel = channel;
+        this.cache = cache;
+        this.names = new File(cache, "names");
+        this.names.mkdirs();
+    }
+
+    /**
+     * Creates the class loader if the executor enabled remote class loading
+     * and sets it as context class loader of the current thread, so threads
+     * it creates inherit it.
+     *
+     * @param channel The executor connection.
+     * @return The class loader or <code>null</code> if not enabled.
+     */
+    static RemoteClassLoader install(MessageChannel channel) {
+        String cache = System.getProperty(REMOTE_CLASSES);
+        if (cache == null) {
+            return null;
+        }
+        RemoteClassLoader loader = new RemoteClassLoader(channel, new File(cache));
+        Thread.currentThread().setContextClassLoader(loader);
+        return loader;
+    }
+
+    /**
+     * Completes a fetch, called by the thread reading the connection.
+     *
+     * @param message The <code>RESOURCE</code> message.
+     */
+    void onResource(Message message) {
+        CompletableFuture<Resource> fetch = fetching.remove(message.getId());
+        if (fetch != null) {
+            fetch.complete((Resource) message.getPayload());
+        }
+    }
+
+    /**
+     * Reads <code>RESOURCE</code> replies in a daemon thread until the
+     * connection is closed, for out processes that only wait for fetches
+     * after reading their command.
+     *
+     * @return The started thread.
+     */
+    Thread startReader() {
+        Thread reader = new Thread(() -> {
+            try {
+                while (true) {
+                    try {
+                        Message message = channel.readFrame();
+                        if (message.getType() == Message.RESOURCE) {
+                            onResource(message);
+                        }
+                    } catch (PayloadException e) {
+                        // unreadable reply, its fetch fails
+                        onFailure(e);
+                    }
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+        }, "out-process-class-fetcher");
+        reader.setDaemon(true);
+        reader.start();
+        return reader;
+    }
+
+    /**
+     * Fails the fetch of an invalid <code>RESOURCE</code> message.
+     *
+     * @param e The payload error.
+     */
+    void onFailure(PayloadException e) {
+        CompletableFuture<Resource> fetch = fetching.remove(e.getId());
+        if (fetch != null) {
+            fetch.completeExceptionally(e.getCause());
+        }
+    }
+
+    /**
+     * Fails pending and next fetches, the connection is gone.
+     *
+     * @param cause Why the connection was closed.
+     */
+    void close(IOException cause) {
+        closed = cause;
+        for (Long id : fetching.keySet()) {
+            CompletableFuture<Resource> fetch = fetching.remove(id);
+            if (fetch != null) {
+                fetch.completeExceptionally(cause);
+            }
+        }
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        byte[] bytes;
+        try {
+            bytes = fetch(name.replace('.', '/') + ".class");
+        } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+        if (bytes == null) {
+            throw new ClassNotFoundException(name);
+        }
+        int lastDot = name.lastIndexOf('.');
+        if (lastDot > 0) {
+            String packageName = name.substring(0, lastDot);
+            if (getPackage(packageName) == null) {
+                try {
+                    definePackage(packageName, null, null, null, null, null, null, null);
+                } catch (IllegalArgumentException e) {
+                    // defined meanwhile by another thread
+                }
+            }
+        }
+        return defineClass(name, bytes, 0, bytes.length);
+    }
+
+    @Override
+    protected URL findResource(String name) {
+        try {
+            Resource resource = fetchResource(name);
+            return resource == null ? null : content(resource.getDigest()).toURI().toURL();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    protected Enumeration<URL> findResources(String name) {
+        // the executor sends the first match only
+        URL url = findResource(name);
+        return url == null ? Collections.<URL>emptyEnumeration() : Collections.enumeration(Collections.singletonList(url));
+    }
+
+    private byte[] fetch(String name) throws IOException {
+        Resource resource = fetchResource(name);
+        return resource == null ? null : Files.readAllBytes(content(resource.getDigest()).toPath());
+    }
+
+    /**
+     * Fetches a resource and makes sure its content is in the cache.
+     *
+     * @return The resource, <code>null</code> if the executor doesn't have
+     * it.
+     */
+    private Resource fetchResource(String name) throws IOException {
+        File nameFile = new File(names, digest(name));
+        String cached = null;
+        if (nameFile.isFile()) {
+            cached = new String(Files.readAllBytes(nameFile.toPath()), StandardCharsets.UTF_8);
+            if (!content(cached).isFile()) {
+                cached = null;
+            }
+        }
+
+        Resource resource = request(name, cached);
+        if (resource == null) {
+            return null;
+        }
+        if (resource.getBytes() != null) {
+            write(content(resource.getDigest()), resource.getBytes());
+        } else if (!content(resource.getDigest()).isFile()) {
+            // evicted meanwhile, fetch the content
+            resource = request(name, null);
+            if (resource == null || resource.getBytes() == null) {
+                return null;
+            }
+            write(content(resource.getDigest()), resource.getBytes());
+        }
+        if (!resource.getDigest().equals(cached)) {
+            write(nameFile, resource.getDigest().getBytes(StandardCharsets.UTF_8));
+        }
+        return resource;
+    }
+
+    private Resource request(String name, String cachedDigest) throws IOException {
+        IOException cause = closed;
+        if (cause != null) {
+            throw cause;
+        }
+        long id = nextId.incrementAndGet();
+        CompletableFuture<Resource> fetch = new CompletableFuture<>();
+        fetching.put(id, fetch);
+        try {
+            channel.writeFetch(id, name, cachedDigest);
+        } catch (IOException e) {
+            fetching.remove(id);
+            throw e;
+        }
+        if (closed != null) {
+            close(closed);
+        }
+
+        // a class that fails to load never loads again, don't give up on interrupt
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return fetch.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new IOException("Cannot fetch " + name + ".", e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private File content(String digest) {
+        return new File(cache, digest);
+    }
+
+    /**
+     * Writes a cache file atomically, other out processes may read it.
+     */
+    private void write(File file, byte[] bytes) throws IOException {
+        File temp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        try {
+            Files.write(temp.toPath(), bytes);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    private static String digest(String name) {
+        // names can't be file names, ex: slashes
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(name.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,432 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.entrypoint;
+
+import dyorgio.runtime.out.process.StreamingTask;
+import dyorgio.runtime.out.process.protocol.Message;
+import dyorgio.runtime.out.process.protocol.MessageChannel;
+import dyorgio.runtime.out.process.protocol.PayloadException;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Reads <code>CALL</code> messages from an executor and runs them on a local
+ * thread pool, replying each one with a <code>RESULT</code> or
+ * <code>ERROR</code> message as soon as it completes.<br>
+ * Many calls can be running at the same time and responses may be sent out of
+ * order, the message id correlates them with their requests.<br>
+ * <code>BATCH</code> messages carry many calls, they are split among the
+ * threads of a fork/join pool and answered one by one.<br>
+ * <code>STREAM</code> messages run <code>StreamingTask</code>s that send
+ * <code>ITEM</code> messages while the executor grants credits.<br>
+ * <code>CANCEL</code> messages stop a call or stream: it is not started if
+ * still waiting for a thread, otherwise its thread is interrupted if the
+ * payload is <code>true</code> (always for streams).<br>
+ * If the out process loads classes from the executor, payloads are decoded
+ * by a separate thread and <code>RESOURCE</code> replies go to its class
+ * loader.<br>
+ * If enabled, a daemon thread sends <code>HEARTBEAT</code> messages so the
+ * executor can tell a busy out process from a dead one, with the heap used
+ * after GC to recycle it when it grows.<br>
+ * If output is captured, what a task prints is sent before its response.
+ *
+ * @see Message
+ * @see RemoteMain
+ */
+public class RemoteDispatcher {
+
+    private static final Message END = new Message((byte) 0, 0, null);
+
+    private final MessageChannel channel;
+    private final RemoteClassLoader classLoader;
+    private final ForkJoinPool executor;
+    private final Map<Long, RemoteTask> running = new ConcurrentHashMap<>();
+    private long heartbeatIntervalMs;
+    private OutputCapture output;
+
+    /**
+     * Creates a dispatcher.
+     *
+     * @param channel Connection with the executor.
+     * @param parallelism Maximum number of calls running at the same time.
+     */
+    public RemoteDispatcher(MessageChannel channel, int parallelism) {
+        this(channel, parallelism, null);
+    }
+
+    /**
+     * Creates a dispatcher of an out process that loads classes from the
+     * executor.
+     *
+     * @param channel Connection with the executor.
+     * @param parallelism Maximum number of calls running at the same time.
+     * @param classLoader Loader of the executor classes, <code>null</code> if
+     * not enabled.
+     */
+    RemoteDispatcher(MessageChannel channel, int parallelism, RemoteClassLoader classLoader) {
+        this.channel = channel;
+        this.classLoader = classLoader;
+        // tasks see the remote class loader, if installed
+        ClassLoader contextLoader = Thread.currentThread().getContextClassLoader();
+        this.executor = new ForkJoinPool(Math.max(1, parallelism), pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("out-process-task-" + thread.getPoolIndex());
+            thread.setContextClassLoader(contextLoader);
+            return thread;
+        }, null, true);
+    }
+
+    /**
+     * Sends a <code>HEARTBEAT</code> message every interval while serving.
+     *
+     * @param intervalMs Time between heartbeats, 0 to disable.
+     * @return This dispatcher.
+     * @see Message#HEARTBEAT
+     */
+    public RemoteDispatcher withHeartbeat(long intervalMs) {
+        this.heartbeatIntervalMs = intervalMs;
+        return this;
+    }
+
+    /**
+     * Flushes the output of each task before sending its response.
+     *
+     * @param output The installed capture, <code>null</code> if not enabled.
+     * @return This dispatcher.
+     */
+    RemoteDispatcher withOutputCapture(OutputCapture output) {
+        this.output = output;
+        return this;
+    }
+
+    /**
+     * Dispatches calls until the connection is closed by the executor.
+     */
+    public void serve() {
+        Thread heartbeat = null;
+        if (heartbeatIntervalMs > 0) {
+            heartbeat = new Thread(this::beat, "out-process-heartbeat");
+            heartbeat.setDaemon(true);
+            heartbeat.start();
+        }
+        try {
+            if (classLoader == null) {
+                while (true) {
+                    Message message;
+                    try {
+                        message = channel.read();
+                    } catch (PayloadException e) {
+                        undecodable(e);
+                        continue;
+                    }
+                    dispatch(message);
+                }
+            } else {
+                serveDecodingApart();
+            }
+        } catch (IOException e) {
+            // executor closed the connection
+        } finally {
+            if (heartbeat != null) {
+                heartbeat.interrupt();
+            }
+            if (output != null) {
+                output.close();
+            }
+            executor.shutdownNow();
+        }
+    }
+
+    private void beat() {
+        try {
+            while (true) {
+                Thread.sleep(heartbeatIntervalMs);
+                channel.write(Message.HEARTBEAT, 0, heapUsedAfterGc());
+            }
+        } catch (InterruptedException | IOException e) {
+            // connection closed
+        }
+    }
+
+    /**
+     * Sums the heap left by the last GC of each pool, garbage not yet
+     * collected is not counted.
+     */
+    private static long heapUsedAfterGc() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                MemoryUsage usage = pool.getCollectionUsage();
+                used += usage == null ? pool.getUsage().getUsed() : usage.getUsed();
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Decoding a payload may fetch classes, so payloads are decoded in order
+     * by another thread while this one keeps reading the fetch replies.
+     */
+    private void serveDecodingApart() throws IOException {
+        BlockingQueue<Message> frames = new LinkedBlockingQueue<>();
+        Thread decoder = new Thread(() -> decodeAndDispatch(frames), "out-process-decoder");
+        decoder.setDaemon(true);
+        decoder.start();
+        try {
+            while (true) {
+                Message message;
+                try {
+                    message = channel.readFrame();
+                } catch (PayloadException e) {
+                    classLoader.onFailure(e);
+                    continue;
+                }
+                if (message.getType() == Message.RESOURCE) {
+                    classLoader.onResource(message);
+                } else {
+                    frames.add(message);
+                }
+            }
+        } catch (IOException e) {
+            classLoader.close(e);
+            throw e;
+        } finally {
+            frames.add(END);
+        }
+    }
+
+    private void decodeAndDispatch(BlockingQueue<Message> frames) {
+        try {
+            Message frame;
+            while ((frame = frames.take()) != END) {
+                try {
+                    dispatch(channel.decode(frame));
+                } catch (PayloadException e) {
+                    undecodable(e);
+                }
+            }
+        } catch (InterruptedException | RejectedExecutionException e) {
+            // connection closed
+        }
+    }
+
+    private void dispatch(Message message) {
+        final long id = message.getId();
+        switch (message.getType()) {
+            case Message.CALL:
+                final Callable<?> callable = (Callable<?>) message.getPayload();
+                final RemoteTask call = new RemoteTask(id);
+                running.put(id, call);
+                executor.execute(() -> callAndRespond(call, callable));
+                break;
+            case Message.BATCH:
+                final List<?> callables = (List<?>) message.getPayload();
+                final RemoteTask[] calls = new RemoteTask[callables.size()];
+                for (int i = 0; i < calls.length; i++) {
+                    calls[i] = new RemoteTask(id + i);
+                    running.put(calls[i].id, calls[i]);
+                }
+                executor.execute(new BatchAction(calls, callables, 0, calls.length));
+                break;
+            case Message.STREAM:
+                stream(id, (StreamingTask<?>) message.getPayload());
+                break;
+            case Message.CREDIT:
+                RemoteTask credited = running.get(id);
+                if (credited instanceof RemoteEmitter) {
+                    ((RemoteEmitter<?>) credited).credits.release((Integer) message.getPayload());
+                }
+                break;
+            case Message.CANCEL:
+                RemoteTask cancelled = running.get(id);
+                if (cancelled != null) {
+                    cancelled.cancel(cancelled instanceof RemoteEmitter || !Boolean.FALSE.equals(message.getPayload()));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void callAndRespond(RemoteTask call, Callable<?> callable) {
+        try {
+            if (!call.start()) {
+                respond(Message.ERROR, call.id, new CancellationException("Cancelled before start."));
+                return;
+            }
+            Serializable result = (Serializable) callable.call();
+            respond(Message.RESULT, call.id, result);
+        } catch (Throwable e) {
+            respond(Message.ERROR, call.id, e);
+        } finally {
+            running.remove(call.id);
+            call.finish();
+        }
+    }
+
+    private <T extends Serializable> void stream(long id, StreamingTask<T> task) {
+        RemoteEmitter<T> emitter = new RemoteEmitter<>(id);
+        // registered before reading its first credit
+        running.put(id, emitter);
+        executor.execute(() -> produceAndRespond(emitter, task));
+    }
+
+    private <T extends Serializable> void produceAndRespond(RemoteEmitter<T> emitter, StreamingTask<T> task) {
+        try {
+            if (!emitter.start()) {
+                respond(Message.ERROR, emitter.id, new CancellationException("Cancelled before start."));
+                return;
+            }
+            task.produce(emitter);
+            respond(Message.RESULT, emitter.id, null);
+        } catch (Throwable e) {
+            respond(Message.ERROR, emitter.id, e);
+        } finally {
+            running.remove(emitter.id);
+            emitter.finish();
+        }
+    }
+
+    private void undecodable(PayloadException e) {
+        // the executor fails every call of a batch
+        respond(Message.ERROR, e.getId(), e.getType() == Message.BATCH ? e : e.getCause());
+    }
+
+    private void respond(byte type, long id, Object payload) {
+        if (output != null) {
+            output.finish(id);
+        }
+        try {
+            channel.write(type, id, payload);
+        } catch (IOException e) {
+            try {
+                // Reply with safe error (without not-serializable objects).
+                channel.write(Message.ERROR, id, new RuntimeException(e.toString()));
+            } catch (IOException ex) {
+                // connection lost, nobody to reply
+            }
+        }
+    }
+
+    /**
+     * Calls of a batch. Ranges are split in halves and invoked together, so
+     * idle threads can steal one half and failures reach the parent action.
+     */
+    private final class BatchAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final RemoteTask[] calls;
+        private final List<?> callables;
+        private final int from;
+        private final int to;
+
+        private BatchAction(RemoteTask[] calls, List<?> callables, int from, int to) {
+            this.calls = calls;
+            this.callables = callables;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new BatchAction(calls, callables, from, middle),
+                        new BatchAction(calls, callables, middle, to));
+            } else {
+                callAndRespond(calls[from], (Callable<?>) callables.get(from));
+            }
+        }
+    }
+
+    /**
+     * A call or stream received and not yet answered.
+     */
+    private static class RemoteTask {
+
+        final long id;
+        private Thread runner;
+        private boolean cancelled;
+
+        private RemoteTask(long id) {
+            this.id = id;
+        }
+
+        /**
+         * Binds the current thread, unless already cancelled.
+         *
+         * @return <code>false</code> if cancelled before starting.
+         */
+        synchronized boolean start() {
+            if (cancelled) {
+                return false;
+            }
+            runner = Thread.currentThread();
+            OutputCapture.bind(id);
+            return true;
+        }
+
+        synchronized void cancel(boolean interrupt) {
+            cancelled = true;
+            if (runner != null && interrupt) {
+                runner.interrupt();
+            }
+        }
+
+        synchronized void finish() {
+            runner = null;
+            OutputCapture.unbind();
+            // clear a cancel interrupt before the thread runs another task
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Sends the items of a streaming task, one credit per item.
+     */
+    private final class RemoteEmitter<T extends Serializable> extends RemoteTask implements StreamingTask.Emitter<T> {
+
+        private final Semaphore credits = new Semaphore(0);
+
+        private RemoteEmitter(long id) {
+            super(id);
+        }
+
+        @Override
+        public void emit(T item) throws IOException, InterruptedException {
+            credits.acquire();
+            channel.write(Message.ITEM, id, item);
+        }
+    }
+}
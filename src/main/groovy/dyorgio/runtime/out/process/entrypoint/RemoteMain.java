@@ -16,39 +16,45 @@
 package dyorgio.runtime.out.process.entrypoint;
 
 import dyorgio.runtime.out.process.OutProcessExecutorService;
+import dyorgio.runtime.out.process.protocol.Handshake;
+import dyorgio.runtime.out.process.protocol.MessageChannel;
+import dyorgio.runtime.out.process.transport.Connection;
+import dyorgio.runtime.out.process.transport.Transports;
 
-import java.io.ObjectOutputStream;
-import java.net.Socket;
 
 import static dyorgio.runtime.out.process.OutProcessUtils.RUNNING_AS_OUT_PROCESS;
-import static dyorgio.runtime.out.process.OutProcessUtils.readCommandExecuteAndRespond;
 
 /**
  * The entry point of an out process created by an
- * <code>OutProcessExecutorService</code> instance.
+ * <code>OutProcessExecutorService</code> instance.<br>
+ * Arguments: executor address, secret, parallelism (optional, defaults to 1),
+ * heartbeat interval in milliseconds (optional, defaults to 0: no heartbeat)
+ * and output capture (optional, defaults to <code>false</code>: inherited
+ * streams).
  *
  * @author dyorgio
  * @see OutProcessExecutorService
+ * @see RemoteDispatcher
  */
 public class RemoteMain {
 
     public static void main(String[] args) throws Exception {
         // Identify as an out process execution
-
-        javax.swing.JOptionPane.showMessageDialog(null, "RemoteMain");
-
         System.setProperty(RUNNING_AS_OUT_PROCESS, "true");
-        // Open socket with the port received as parameter
-        try (Socket socket = new Socket("localhost", Integer.valueOf(args[0]))) {
-            // Reply with secret
-            ObjectOutputStream objOut = new ObjectOutputStream(socket.getOutputStream());
-            objOut.writeUTF(args[1]);
-            objOut.flush();
-
-            // Read input stream while is connected
-            while (socket.isConnected() && !socket.isClosed() && !socket.isInputShutdown()) {
-                readCommandExecuteAndRespond(socket.getInputStream(), objOut);
-            }
+        int parallelism = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        long heartbeatIntervalMs = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        boolean captureOutput = args.length > 4 && Boolean.parseBoolean(args[4]);
+        // Connect to the address received as parameter
+        try (Connection connection = Transports.connect(args[0])) {
+            MessageChannel channel = new MessageChannel(connection.getInputStream(), connection.getOutputStream());
+            // Reply with secret and agree on codec
+            Handshake.connect(channel, args[1]);
+
+            // Run commands while is connected
+            new RemoteDispatcher(channel, parallelism, RemoteClassLoader.install(channel))
+                    .withHeartbeat(heartbeatIntervalMs)
+                    .withOutputCapture(captureOutput ? OutputCapture.install(channel, 0) : null)
+                    .serve();
         }
     }
 }
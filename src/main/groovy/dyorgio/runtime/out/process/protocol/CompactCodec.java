@@ -0,0 +1,525 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact codec, faster and smaller than Java serialization for common
+ * result types.<br>
+ * Writes with its own tagged format:
+ * <ul>
+ * <li><code>null</code>, boxed primitives, strings and byte arrays;</li>
+ * <li><code>ArrayList</code>, <code>LinkedList</code>,
+ * <code>HashSet</code>, <code>LinkedHashSet</code>, <code>HashMap</code> and
+ * <code>LinkedHashMap</code> (exact classes, so decoded types are the
+ * same);</li>
+ * <li><code>Externalizable</code> objects, through their
+ * <code>writeExternal</code>/<code>readExternal</code> methods, where
+ * <code>writeObject</code> uses this format again. Class names are sent once
+ * per payload.</li>
+ * </ul>
+ * Any other object (tasks, exceptions, other collections...) falls back to
+ * Java serialization, class descriptors are shared by all fallback objects of
+ * the same payload.<br>
+ * Unlike Java serialization, objects written by this format are not shared:
+ * an object reachable twice is written twice and decoded as two objects, and
+ * <code>readResolve</code> is not called on <code>Externalizable</code>
+ * objects.
+ *
+ * @see PayloadCodec
+ * @see JavaSerializationCodec
+ */
+public final class CompactCodec implements PayloadCodec {
+
+    public static final String NAME = "compact";
+
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte BYTE = 3;
+    private static final byte SHORT = 4;
+    private static final byte CHAR = 5;
+    private static final byte INT = 6;
+    private static final byte LONG = 7;
+    private static final byte FLOAT = 8;
+    private static final byte DOUBLE = 9;
+    private static final byte STRING = 10;
+    private static final byte BYTES = 11;
+    private static final byte ARRAY_LIST = 12;
+    private static final byte LINKED_LIST = 13;
+    private static final byte HASH_SET = 14;
+    private static final byte LINKED_HASH_SET = 15;
+    private static final byte HASH_MAP = 16;
+    private static final byte LINKED_HASH_MAP = 17;
+    private static final byte EXTERNALIZABLE = 18;
+    private static final byte SERIALIZABLE = 19;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public PayloadEncoder newEncoder(OutputStream out) {
+        return new Encoder(out);
+    }
+
+    @Override
+    public PayloadDecoder newDecoder(InputStream in) {
+        return new Decoder(in);
+    }
+
+    @Override
+    public String toString() {
+        return NAME;
+    }
+
+    private static final class Encoder extends DataOutputStream implements PayloadEncoder, ObjectOutput {
+
+        private final Map<Class<?>, Integer> classes = new IdentityHashMap<>();
+        private final ByteArrayOutputStream fallbackBuffer = new ByteArrayOutputStream();
+        private ObjectOutputStream fallbackOut;
+        private boolean fallbackUsed;
+
+        private Encoder(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void encode(Object payload) throws IOException {
+            classes.clear();
+            fallbackUsed = false;
+            try {
+                writeObject(payload);
+                flush();
+            } catch (IOException | RuntimeException e) {
+                fallbackOut = null;
+                throw e;
+            }
+        }
+
+        @Override
+        public void writeObject(Object obj) throws IOException {
+            if (obj == null) {
+                writeByte(NULL);
+            } else if (obj instanceof String) {
+                writeByte(STRING);
+                writeString((String) obj);
+            } else if (obj instanceof Integer) {
+                writeByte(INT);
+                writeVarLong(zigZag((Integer) obj));
+            } else if (obj instanceof Long) {
+                writeByte(LONG);
+                writeVarLong(zigZag((Long) obj));
+            } else if (obj instanceof Boolean) {
+                writeByte((Boolean) obj ? TRUE : FALSE);
+            } else if (obj instanceof Double) {
+                writeByte(DOUBLE);
+                writeDouble((Double) obj);
+            } else if (obj instanceof Float) {
+                writeByte(FLOAT);
+                writeFloat((Float) obj);
+            } else if (obj instanceof Byte) {
+                writeByte(BYTE);
+                writeByte((Byte) obj);
+            } else if (obj instanceof Short) {
+                writeByte(SHORT);
+                writeShort((Short) obj);
+            } else if (obj instanceof Character) {
+                writeByte(CHAR);
+                writeChar((Character) obj);
+            } else if (obj instanceof byte[]) {
+                byte[] bytes = (byte[]) obj;
+                writeByte(BYTES);
+                writeVarLong(bytes.length);
+                write(bytes);
+            } else if (obj.getClass() == ArrayList.class) {
+                writeCollection(ARRAY_LIST, (Collection<?>) obj);
+            } else if (obj.getClass() == HashMap.class) {
+                writeMap(HASH_MAP, (Map<?, ?>) obj);
+            } else if (obj.getClass() == LinkedHashMap.class) {
+                writeMap(LINKED_HASH_MAP, (Map<?, ?>) obj);
+            } else if (obj.getClass() == HashSet.class) {
+                writeCollection(HASH_SET, (Collection<?>) obj);
+            } else if (obj.getClass() == LinkedHashSet.class) {
+                writeCollection(LINKED_HASH_SET, (Collection<?>) obj);
+            } else if (obj.getClass() == LinkedList.class) {
+                writeCollection(LINKED_LIST, (Collection<?>) obj);
+            } else if (obj instanceof Externalizable) {
+                writeByte(EXTERNALIZABLE);
+                writeClass(obj.getClass());
+                ((Externalizable) obj).writeExternal(this);
+            } else {
+                writeFallback(obj);
+            }
+        }
+
+        private void writeString(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            write(bytes);
+        }
+
+        private void writeCollection(byte tag, Collection<?> collection) throws IOException {
+            writeByte(tag);
+            writeVarLong(collection.size());
+            for (Object element : collection) {
+                writeObject(element);
+            }
+        }
+
+        private void writeMap(byte tag, Map<?, ?> map) throws IOException {
+            writeByte(tag);
+            writeVarLong(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeObject(entry.getKey());
+                writeObject(entry.getValue());
+            }
+        }
+
+        /**
+         * Writes the class index, or 0 followed by the name the first time the
+         * class appears in the payload.
+         */
+        private void writeClass(Class<?> type) throws IOException {
+            Integer index = classes.get(type);
+            if (index == null) {
+                classes.put(type, classes.size() + 1);
+                writeVarLong(0);
+                writeString(type.getName());
+            } else {
+                writeVarLong(index);
+            }
+        }
+
+        private void writeFallback(Object obj) throws IOException {
+            fallbackBuffer.reset();
+            if (fallbackOut == null) {
+                fallbackOut = new FallbackOutputStream(fallbackBuffer);
+            }
+            // descriptors are shared inside a payload only
+            if (!fallbackUsed) {
+                fallbackOut.reset();
+                fallbackUsed = true;
+            }
+            fallbackOut.writeObject(obj);
+            fallbackOut.flush();
+            writeByte(SERIALIZABLE);
+            writeVarLong(fallbackBuffer.size());
+            fallbackBuffer.writeTo(this);
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            writeByte((int) value);
+        }
+
+        private static long zigZag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+
+        @Override
+        public void close() throws IOException {
+            // connection stream is owned by the channel
+            flush();
+        }
+    }
+
+    private static final class Decoder extends DataInputStream implements PayloadDecoder, ObjectInput {
+
+        private final Map<String, Constructor<?>> constructors = new HashMap<>();
+        private final List<Constructor<?>> classes = new ArrayList<>();
+        private final FallbackInput fallbackInput = new FallbackInput();
+        private ObjectInputStream fallbackIn;
+
+        private Decoder(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public Object decode() throws IOException, ClassNotFoundException {
+            classes.clear();
+            try {
+                return readObject();
+            } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                fallbackIn = null;
+                throw e;
+            }
+        }
+
+        @Override
+        public Object readObject() throws IOException, ClassNotFoundException {
+            byte tag = readByte();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case TRUE:
+                    return Boolean.TRUE;
+                case FALSE:
+                    return Boolean.FALSE;
+                case BYTE:
+                    return readByte();
+                case SHORT:
+                    return readShort();
+                case CHAR:
+                    return readChar();
+                case INT:
+                    return (int) unZigZag(readVarLong());
+                case LONG:
+                    return unZigZag(readVarLong());
+                case FLOAT:
+                    return readFloat();
+                case DOUBLE:
+                    return readDouble();
+                case STRING:
+                    return readString();
+                case BYTES:
+                    byte[] bytes = new byte[readLength()];
+                    readFully(bytes);
+                    return bytes;
+                case ARRAY_LIST: {
+                    int size = readLength();
+                    return readElements(new ArrayList<>(size), size);
+                }
+                case LINKED_LIST:
+                    return readElements(new LinkedList<>(), readLength());
+                case HASH_SET: {
+                    int size = readLength();
+                    return readElements(new HashSet<>(capacity(size)), size);
+                }
+                case LINKED_HASH_SET: {
+                    int size = readLength();
+                    return readElements(new LinkedHashSet<>(capacity(size)), size);
+                }
+                case HASH_MAP: {
+                    int size = readLength();
+                    return readEntries(new HashMap<>(capacity(size)), size);
+                }
+                case LINKED_HASH_MAP: {
+                    int size = readLength();
+                    return readEntries(new LinkedHashMap<>(capacity(size)), size);
+                }
+                case EXTERNALIZABLE:
+                    return readExternalizable();
+                case SERIALIZABLE:
+                    return readFallback();
+                default:
+                    throw new StreamCorruptedException("Invalid compact tag: " + tag);
+            }
+        }
+
+        private String readString() throws IOException {
+            byte[] bytes = new byte[readLength()];
+            readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private Collection<Object> readElements(Collection<Object> collection, int size) throws IOException, ClassNotFoundException {
+            for (int i = 0; i < size; i++) {
+                collection.add(readObject());
+            }
+            return collection;
+        }
+
+        private Map<Object, Object> readEntries(Map<Object, Object> map, int size) throws IOException, ClassNotFoundException {
+            for (int i = 0; i < size; i++) {
+                map.put(readObject(), readObject());
+            }
+            return map;
+        }
+
+        private Object readExternalizable() throws IOException, ClassNotFoundException {
+            int index = readLength();
+            Constructor<?> constructor;
+            if (index == 0) {
+                constructor = constructorOf(readString());
+                classes.add(constructor);
+            } else if (index <= classes.size()) {
+                constructor = classes.get(index - 1);
+            } else {
+                throw new StreamCorruptedException("Invalid class index: " + index);
+            }
+
+            Externalizable obj;
+            try {
+                obj = (Externalizable) constructor.newInstance();
+            } catch (ReflectiveOperationException e) {
+                InvalidClassException ex = new InvalidClassException(constructor.getName(), "Cannot create instance.");
+                ex.initCause(e);
+                throw ex;
+            }
+            obj.readExternal(this);
+            return obj;
+        }
+
+        private Constructor<?> constructorOf(String className) throws ClassNotFoundException, InvalidClassException {
+            Constructor<?> constructor = constructors.get(className);
+            if (constructor == null) {
+                ClassLoader loader = Thread.currentThread().getContextClassLoader();
+                Class<?> type = Class.forName(className, false, loader == null ? CompactCodec.class.getClassLoader() : loader);
+                if (!Externalizable.class.isAssignableFrom(type)) {
+                    throw new InvalidClassException(className, "Not externalizable.");
+                }
+                try {
+                    constructor = type.getDeclaredConstructor();
+                    constructor.setAccessible(true);
+                } catch (NoSuchMethodException e) {
+                    throw new InvalidClassException(className, "No no-arg constructor.");
+                }
+                constructors.put(className, constructor);
+            }
+            return constructor;
+        }
+
+        private Object readFallback() throws IOException, ClassNotFoundException {
+            fallbackInput.fill(this, readLength());
+            if (fallbackIn == null) {
+                fallbackIn = new FallbackInputStream(fallbackInput);
+            }
+            return fallbackIn.readObject();
+        }
+
+        private int readLength() throws IOException {
+            long length = readVarLong();
+            if (length < 0 || length > Integer.MAX_VALUE) {
+                throw new StreamCorruptedException("Invalid length: " + length);
+            }
+            return (int) length;
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new StreamCorruptedException("Invalid varint.");
+        }
+
+        private static long unZigZag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private static int capacity(int size) {
+            return Math.max((int) (size / .75f) + 1, 16);
+        }
+
+        @Override
+        public void close() {
+            // connection stream is owned by the channel
+        }
+    }
+
+    /**
+     * Java serialization stream without header, so a new stream can read
+     * fallback objects written by an already used one.
+     */
+    private static final class FallbackOutputStream extends ObjectOutputStream {
+
+        private FallbackOutputStream(OutputStream out) throws IOException {
+            super(out);
+        }
+
+        @Override
+        protected void writeStreamHeader() {
+        }
+    }
+
+    private static final class FallbackInputStream extends ContextObjectInputStream {
+
+        private FallbackInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected void readStreamHeader() {
+        }
+    }
+
+    /**
+     * Reusable input over one fallback object.
+     */
+    private static final class FallbackInput extends InputStream {
+
+        private byte[] buf = new byte[256];
+        private int pos;
+        private int limit;
+
+        private void fill(DataInputStream in, int length) throws IOException {
+            if (buf.length < length) {
+                buf = new byte[length];
+            }
+            in.readFully(buf, 0, length);
+            pos = 0;
+            limit = length;
+        }
+
+        @Override
+        public int read() {
+            return pos < limit ? buf[pos++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos >= limit) {
+                return -1;
+            }
+            int count = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, b, off, count);
+            pos += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return limit - pos;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.protocol;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compression of big payloads, enabled by the executor during the handshake
+ * if the out process supports it.<br>
+ * Codec payloads of at least <code>threshold</code> bytes are compressed with
+ * deflate (fastest level) and sent compressed only if they shrink to
+ * {@value #MAX_RATIO_PERCENT}% or less. After a payload that doesn't shrink
+ * enough, the next big ones of the same connection are sent as they are, 1
+ * then 2, 4... up to 64, until one compresses well again. Text compresses
+ * well, already compressed or random bytes don't.<br>
+ * One instance can be shared by many connections, it counts the bytes they
+ * save in both directions.
+ *
+ * @see MessageChannel#setCompression(Compression)
+ * @see Handshake
+ */
+public final class Compression {
+
+    /**
+     * Name of the algorithm, in handshake properties.
+     */
+    public static final String DEFLATE = "deflate";
+
+    /**
+     * Maximum compressed size, in percent of the original size, to send a
+     * payload compressed.
+     */
+    public static final int MAX_RATIO_PERCENT = 90;
+
+    private final int threshold;
+    private final LongAdder bytesSaved = new LongAdder();
+
+    /**
+     * Creates a compression setting.
+     *
+     * @param threshold Minimum encoded payload size to try compression, in
+     * bytes.
+     * @throws IllegalArgumentException If <code>threshold</code> is not
+     * positive.
+     */
+    public Compression(int threshold) {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("Compression threshold must be positive.");
+        }
+        this.threshold = threshold;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Bytes not sent or received thanks to compression.
+     *
+     * @return Sum of original sizes minus compressed sizes.
+     */
+    public long getBytesSaved() {
+        return bytesSaved.sum();
+    }
+
+    void saved(long bytes) {
+        bytesSaved.add(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return "Compression{" + DEFLATE + ", threshold=" + threshold + '}';
+    }
+}
@@ -0,0 +1,228 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.protocol;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * First messages of every connection:
+ * <ol>
+ * <li>the out process connects and sends <code>HELLO</code> with the secret
+ * received as argument, the names of the codecs it knows and the compression
+ * it supports;</li>
+ * <li>the executor checks the secret, chooses its preferred codec if offered
+ * (Java serialization otherwise) and replies <code>WELCOME</code> with the
+ * codec and the connection options, ex: shared memory, compression
+ * threshold, max frame size;</li>
+ * <li>both sides switch to the chosen codec and options.</li>
+ * </ol>
+ *
+ * @see Message#HELLO
+ * @see Message#WELCOME
+ * @see PayloadCodec
+ * @see SharedMemory
+ * @see Compression
+ */
+public final class Handshake {
+
+    public static final String SECRET = "secret";
+    public static final String CODECS = "codecs";
+    public static final String CODEC = "codec";
+    public static final String LAUNCHED = "launched";
+    public static final String COMPRESSION = "compression";
+    public static final String MAX_FRAME_SIZE = "maxFrameSize";
+
+    private Handshake() {
+    }
+
+    /**
+     * Out process side: sends <code>HELLO</code>, waits for
+     * <code>WELCOME</code> and switches codec and options.
+     *
+     * @param channel A new connection with the executor.
+     * @param secret The secret received as argument.
+     * @return The welcome properties.
+     * @throws IOException If the connection is broken or executor replied
+     * with an unknown codec.
+     */
+    public static Map<String, String> connect(MessageChannel channel, String secret) throws IOException {
+        return connect(channel, secret, -1);
+    }
+
+    /**
+     * Out process side: sends <code>HELLO</code>, with the time the out
+     * process started so the executor can tell its launch from its
+     * connection, waits for <code>WELCOME</code> and switches codec and
+     * options.
+     *
+     * @param channel A new connection with the executor.
+     * @param secret The secret received as argument.
+     * @param launchedAt When the main method started, in milliseconds since
+     * epoch, <code>-1</code> if unknown.
+     * @return The welcome properties.
+     * @throws IOException If the connection is broken or executor replied
+     * with an unknown codec.
+     */
+    public static Map<String, String> connect(MessageChannel channel, String secret, long launchedAt) throws IOException {
+        StringBuilder codecs = new StringBuilder();
+        for (PayloadCodec codec : PayloadCodecs.getAvailable()) {
+            if (codecs.length() > 0) {
+                codecs.append(',');
+            }
+            codecs.append(codec.getName());
+        }
+        Map<String, String> hello = new LinkedHashMap<>();
+        hello.put(SECRET, secret);
+        hello.put(CODECS, codecs.toString());
+        if (launchedAt >= 0) {
+            hello.put(LAUNCHED, String.valueOf(launchedAt));
+        }
+        hello.put(COMPRESSION, Compression.DEFLATE);
+        channel.writeHandshake(Message.HELLO, hello);
+
+        Map<String, String> welcome = read(channel, Message.WELCOME);
+        String name = welcome.get(CODEC);
+        PayloadCodec codec = PayloadCodecs.forName(name);
+        if (codec == null) {
+            throw new IOException("Unknown codec: " + name);
+        }
+        channel.setCodec(codec);
+        channel.setSharedMemory(SharedMemory.fromProperties(welcome));
+        String maxFrameSize = welcome.get(MAX_FRAME_SIZE);
+        if (maxFrameSize != null) {
+            try {
+                channel.setMaxFrameSize(Integer.parseInt(maxFrameSize));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid max frame size: " + maxFrameSize, e);
+            }
+        }
+        String threshold = welcome.get(COMPRESSION);
+        if (threshold != null) {
+            try {
+                channel.setCompression(new Compression(Integer.parseInt(threshold)));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid compression threshold: " + threshold, e);
+            }
+        }
+        return welcome;
+    }
+
+    /**
+     * Executor side: reads the out process <code>HELLO</code>.
+     *
+     * @param channel A new connection.
+     * @return The hello properties.
+     * @throws IOException If the connection is broken or the first message is
+     * not a <code>HELLO</code>.
+     */
+    public static Map<String, String> readHello(MessageChannel channel) throws IOException {
+        return read(channel, Message.HELLO);
+    }
+
+    /**
+     * Executor side: gets when the out process main method started.
+     *
+     * @param hello Properties returned by <code>readHello</code>.
+     * @return Milliseconds since epoch, <code>-1</code> if not sent.
+     */
+    public static long getLaunchedAt(Map<String, String> hello) {
+        String launched = hello.get(LAUNCHED);
+        if (launched == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(launched);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Executor side: chooses the connection codec, replies
+     * <code>WELCOME</code> and switches codec. Call only after checking the
+     * hello secret.
+     *
+     * @param channel The connection.
+     * @param hello Properties returned by <code>readHello</code>.
+     * @param preferred Codec to use if the out process knows it.
+     * @param sharedMemory Shared memory of the connection, may be
+     * <code>null</code>.
+     * @return The chosen codec.
+     * @throws IOException If the connection is broken.
+     */
+    public static PayloadCodec welcome(MessageChannel channel, Map<String, String> hello, PayloadCodec preferred, SharedMemory sharedMemory) throws IOException {
+        return welcome(channel, hello, preferred, sharedMemory, null);
+    }
+
+    /**
+     * Executor side: chooses the connection codec, enables compression if the
+     * out process supports it, replies <code>WELCOME</code> with the max frame
+     * size of the channel and switches codec. Call only after checking the
+     * hello secret.
+     *
+     * @param channel The connection.
+     * @param hello Properties returned by <code>readHello</code>.
+     * @param preferred Codec to use if the out process knows it.
+     * @param sharedMemory Shared memory of the connection, may be
+     * <code>null</code>.
+     * @param compression Compression of both sides, <code>null</code> to
+     * disable.
+     * @return The chosen codec.
+     * @throws IOException If the connection is broken.
+     */
+    public static PayloadCodec welcome(MessageChannel channel, Map<String, String> hello, PayloadCodec preferred, SharedMemory sharedMemory, Compression compression) throws IOException {
+        String offered = hello.get(CODECS);
+        List<String> names = offered == null ? Collections.<String>emptyList() : Arrays.asList(offered.split(","));
+        PayloadCodec codec = names.contains(preferred.getName()) ? preferred : new JavaSerializationCodec();
+
+        Map<String, String> welcome = new LinkedHashMap<>();
+        welcome.put(CODEC, codec.getName());
+        welcome.put(MAX_FRAME_SIZE, String.valueOf(channel.getMaxFrameSize()));
+        if (sharedMemory != null) {
+            sharedMemory.addTo(welcome);
+        }
+        if (compression != null && Compression.DEFLATE.equals(hello.get(COMPRESSION))) {
+            welcome.put(COMPRESSION, String.valueOf(compression.getThreshold()));
+        } else {
+            compression = null;
+        }
+        channel.writeHandshake(Message.WELCOME, welcome);
+        channel.setCodec(codec);
+        channel.setSharedMemory(sharedMemory);
+        channel.setCompression(compression);
+        return codec;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, String> read(MessageChannel channel, byte type) throws IOException {
+        Message message;
+        try {
+            message = channel.read();
+        } catch (PayloadException e) {
+            throw new StreamCorruptedException("Invalid handshake: " + e.getCause());
+        }
+        if (message.getType() != type) {
+            throw new StreamCorruptedException("Unexpected message during handshake: " + message);
+        }
+        return (Map<String, String>) message.getPayload();
+    }
+}
@@ -0,0 +1,110 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Default codec, payloads are written with Java serialization.<br>
+ * One <code>ObjectOutputStream</code> and one <code>ObjectInputStream</code>
+ * are kept for the whole connection, so stream headers are written once and no
+ * stream is created per message. The stream is reset before every payload, so
+ * objects are never shared between messages.
+ *
+ * @see PayloadCodec
+ */
+public final class JavaSerializationCodec implements PayloadCodec {
+
+    public static final String NAME = "java";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public PayloadEncoder newEncoder(OutputStream out) {
+        return new Encoder(out);
+    }
+
+    @Override
+    public PayloadDecoder newDecoder(InputStream in) {
+        return new Decoder(in);
+    }
+
+    @Override
+    public String toString() {
+        return NAME;
+    }
+
+    private static final class Encoder implements PayloadEncoder {
+
+        private final OutputStream out;
+        private ObjectOutputStream objOut;
+
+        private Encoder(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void encode(Object payload) throws IOException {
+            boolean created = objOut == null;
+            try {
+                if (created) {
+                    objOut = new ObjectOutputStream(out);
+                } else {
+                    objOut.reset();
+                }
+                objOut.writeObject(payload);
+                objOut.flush();
+            } catch (IOException e) {
+                // partial payload is dropped, stream header too if just written
+                if (created) {
+                    objOut = null;
+                } else {
+                    try {
+                        objOut.flush();
+                    } catch (IOException ex) {
+                        objOut = null;
+                    }
+                }
+                throw e;
+            }
+        }
+    }
+
+    private static final class Decoder implements PayloadDecoder {
+
+        private final InputStream in;
+        private ObjectInputStream objIn;
+
+        private Decoder(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public Object decode() throws IOException, ClassNotFoundException {
+            if (objIn == null) {
+                objIn = new ContextObjectInputStream(in);
+            }
+            return objIn.readObject();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.protocol;
+
+/**
+ * A message exchanged between an executor and its out process.<br>
+ * Every message has a type, a correlation id and an optional payload.
+ * Responses carry the id of the request they answer, so many requests can be
+ * in flight on the same connection and responses may arrive out of order.
+ *
+ * @see MessageChannel
+ */
+public final class Message {
+
+    /**
+     * Out process greeting, payload is a map with the connection secret and
+     * the codecs known by the out process.
+     *
+     * @see Handshake
+     */
+    public static final byte HELLO = 1;
+
+    /**
+     * Request to call a <code>Callable</code>, payload is the callable.
+     */
+    public static final byte CALL = 2;
+
+    /**
+     * Successful response, payload is the call result.
+     */
+    public static final byte RESULT = 3;
+
+    /**
+     * Failed response, payload is the thrown <code>Throwable</code>.
+     */
+    public static final byte ERROR = 4;
+
+    /**
+     * Executor reply to <code>HELLO</code>, payload is a map with the codec
+     * chosen for the connection.
+     *
+     * @see Handshake
+     */
+    public static final byte WELCOME = 5;
+
+    /**
+     * Request to run a <code>StreamingTask</code>, payload is the task. The
+     * out process answers with <code>ITEM</code>s, limited by granted
+     * credits, and finishes with <code>RESULT</code> or <code>ERROR</code>.
+     */
+    public static final byte STREAM = 6;
+
+    /**
+     * One item emitted by a streaming task, payload is the item.
+     */
+    public static final byte ITEM = 7;
+
+    /**
+     * Allows a streaming task to emit more items, payload is the
+     * <code>Integer</code> number of items.
+     */
+    public static final byte CREDIT = 8;
+
+    /**
+     * Stops a running task, no payload.
+     */
+    public static final byte CANCEL = 9;
+
+    /**
+     * Out process request for a class or resource of the executor class
+     * loader, payload is a <code>String[]</code> with the resource name and
+     * the digest of the copy cached by the out process (or
+     * <code>null</code>). Independent of the codec.
+     *
+     * @see MessageChannel#writeFetch(long, String, String)
+     */
+    public static final byte FETCH = 10;
+
+    /**
+     * Executor reply to <code>FETCH</code>, payload is a
+     * <code>Resource</code>, <code>null</code> if not found. Independent of
+     * the codec.
+     *
+     * @see MessageChannel#writeResource(long, Resource)
+     */
+    public static final byte RESOURCE = 11;
+
+    /**
+     * Request to call many <code>Callable</code>s, payload is a
+     * <code>List</code> of callables. The callable at index <code>i</code>
+     * gets id <code>id + i</code> and is answered by its own
+     * <code>RESULT</code> or <code>ERROR</code> as soon as it completes. If
+     * the payload cannot be decoded, a single <code>ERROR</code> with the
+     * <code>PayloadException</code> answers the whole batch.
+     */
+    public static final byte BATCH = 12;
+
+    /**
+     * Sent by the out process every heartbeat interval, payload is the heap
+     * left used by the last GC in bytes (<code>Long</code>). The executor
+     * considers an out process dead when nothing arrives from it for the
+     * heartbeat timeout.
+     */
+    public static final byte HEARTBEAT = 13;
+
+    /**
+     * Output printed by a task to <code>System.out</code> or
+     * <code>System.err</code>, sent by the out process before its response.
+     * Id is the task one, 0 if not printed by a task. Payload is a
+     * <code>byte[]</code>: <code>OUTPUT_STDOUT</code> or
+     * <code>OUTPUT_STDERR</code> followed by UTF-8 text, usually whole lines.
+     */
+    public static final byte OUTPUT = 14;
+
+    /**
+     * First byte of an <code>OUTPUT</code> payload printed to
+     * <code>System.out</code>.
+     */
+    public static final byte OUTPUT_STDOUT = 1;
+
+    /**
+     * First byte of an <code>OUTPUT</code> payload printed to
+     * <code>System.err</code>.
+     */
+    public static final byte OUTPUT_STDERR = 2;
+
+    private final byte type;
+    private final long id;
+    private final Object payload;
+
+    public Message(byte type, long id, Object payload) {
+        this.type = type;
+        this.id = id;
+        this.payload = payload;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Object getPayload() {
+        return payload;
+    }
+
+    @Override
+    public String toString() {
+        return "Message{type=" + type + ", id=" + id + '}';
+    }
+}
@@ -0,0 +1,747 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Exchanges <code>Message</code>s over a pair of streams using length
+ * prefixed frames:
+ * <pre>
+ * int  length (of the rest of the frame)
+ * byte type
+ * long id
+ * byte[length - 9] payload
+ * </pre>
+ * If compression is enabled, big codec payloads are deflated, their type has
+ * the <code>COMPRESSED</code> bit set and their payload is the original
+ * length (int) followed by the deflated bytes.<br>
+ * Payloads are written by the <code>PayloadCodec</code> of the connection,
+ * Java serialization until another codec is negotiated. Handshake messages
+ * (<code>HELLO</code> and <code>WELCOME</code>) don't depend on the codec, their
+ * payload is a map of string properties.<br>
+ * If shared memory is enabled, big payloads are written to memory-mapped
+ * regions and only their names go through the connection.<br>
+ * Writes are thread safe and atomic: a payload is fully encoded before its
+ * frame is written, so a payload that fails to encode never corrupts the
+ * connection. Reads must be done by a single thread.<br>
+ * Frames longer than the maximum frame size are rejected before anything is
+ * allocated for them, the executor announces its maximum in
+ * <code>WELCOME</code>. Writing a longer frame closes the connection, the
+ * codec state cannot be rolled back.<br>
+ * <code>FETCH</code> and <code>RESOURCE</code> messages don't depend on the
+ * codec either. <code>readFrame</code> leaves other payloads encoded, so the
+ * reading thread can go on while another one decodes them, ex: when decoding
+ * needs classes that come in <code>RESOURCE</code> messages.
+ *
+ * @see Message
+ * @see Handshake
+ * @see SharedMemory
+ * @see Compression
+ */
+public class MessageChannel implements Closeable {
+
+    /**
+     * Default maximum length of a frame, 256MB.
+     */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 256 * 1024 * 1024;
+
+    private static final int HEADER_SIZE = 1 + 8;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte COMPRESSED = (byte) 0x80;
+    private static final int MAX_COMPRESSION_SKIPS = 64;
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    private final PayloadBuffer writeBuffer = new PayloadBuffer();
+    private PayloadEncoder encoder;
+    private long bytesWritten;
+    private final PayloadBuffer compressBuffer = new PayloadBuffer();
+    private Deflater deflater;
+    // big payloads to send as they are after a poor compression ratio
+    private int compressionSkips;
+    private int compressionBackoff;
+
+    private final PayloadInput readBuffer = new PayloadInput();
+    private final PayloadInput decodeBuffer = new PayloadInput();
+    private PayloadDecoder decoder;
+    private long bytesRead;
+    private Inflater inflater;
+    // last frame read, reading thread only
+    private long frameReceivedAt;
+    private int frameLength;
+
+    private volatile PayloadCodec codec;
+    private volatile SharedMemory sharedMemory;
+    private volatile Compression compression;
+    private volatile int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+    public MessageChannel(InputStream in, OutputStream out) throws IOException {
+        this(in, out, BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a channel with specific stream buffer size.
+     *
+     * @param in Stream to read from.
+     * @param out Stream to write to.
+     * @param bufferSize Read and write buffer size, can be small if streams
+     * are in memory.
+     * @throws IOException If default codec cannot be created.
+     */
+    public MessageChannel(InputStream in, OutputStream out, int bufferSize) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in, bufferSize));
+        this.out = new DataOutputStream(new BufferedOutputStream(out, bufferSize));
+        setCodec(new JavaSerializationCodec());
+    }
+
+    /**
+     * Changes the codec of next payloads, must be called by both sides at the
+     * same point of the conversation, normally right after the handshake.
+     *
+     * @param codec The new codec.
+     * @throws IOException If codec cannot create its encoder or decoder.
+     * @see Handshake
+     */
+    public void setCodec(PayloadCodec codec) throws IOException {
+        PayloadDecoder newDecoder = codec.newDecoder(decodeBuffer);
+        synchronized (out) {
+            encoder = codec.newEncoder(writeBuffer);
+            decoder = newDecoder;
+            this.codec = codec;
+        }
+    }
+
+    public PayloadCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Enables the shared memory bulk path, both sides must enable it, normally
+     * right after the handshake.
+     *
+     * @param sharedMemory The shared memory or <code>null</code> to disable.
+     * @see Handshake
+     */
+    public void setSharedMemory(SharedMemory sharedMemory) {
+        this.sharedMemory = sharedMemory;
+    }
+
+    public SharedMemory getSharedMemory() {
+        return sharedMemory;
+    }
+
+    /**
+     * Enables compression of next big payloads written, only if the other
+     * side supports it. Compressed payloads are always accepted when reading.
+     *
+     * @param compression The compression or <code>null</code> to disable.
+     * @see Handshake
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Sets the maximum length of the frames read and written, frame header
+     * included. A longer frame read is rejected with a
+     * <code>StreamCorruptedException</code>, a longer one written fails with
+     * an <code>IOException</code>, is not sent and closes the channel: its
+     * payload is already in the codec state, the peer would decode next
+     * frames wrong.
+     *
+     * @param maxFrameSize Maximum length in bytes.
+     * @throws IllegalArgumentException If <code>maxFrameSize</code> cannot
+     * hold a frame header.
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        if (maxFrameSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("Max frame size must be above " + HEADER_SIZE + " bytes.");
+        }
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Writes a message.
+     *
+     * @param type Message type.
+     * @param id Correlation id.
+     * @param payload Message payload, may be <code>null</code>.
+     * @return Bytes written, frame header included.
+     * @throws IOException If payload cannot be serialized or the connection
+     * is broken.
+     */
+    public int write(byte type, long id, Object payload) throws IOException {
+        SharedMemory sharedMemory = this.sharedMemory;
+        if (sharedMemory != null) {
+            // written before locking, regions can be big
+            payload = sharedMemory.wrap(payload);
+        }
+        synchronized (out) {
+            encode(payload);
+            PayloadBuffer frame = compress();
+            return writeFrame(frame == writeBuffer ? type : (byte) (type | COMPRESSED), id, frame);
+        }
+    }
+
+    /**
+     * Writes a handshake message, independent of the codec.
+     *
+     * @param type Message type, <code>HELLO</code> or <code>WELCOME</code>.
+     * @param properties Handshake properties.
+     * @throws IOException If the connection is broken.
+     * @see Handshake
+     */
+    public void writeHandshake(byte type, Map<String, String> properties) throws IOException {
+        synchronized (out) {
+            DataOutputStream data = new DataOutputStream(writeBuffer);
+            data.writeShort(properties.size());
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                data.writeUTF(property.getKey());
+                data.writeUTF(property.getValue());
+            }
+            writeFrame(type, 0, writeBuffer);
+        }
+    }
+
+    /**
+     * Writes a <code>FETCH</code> message, independent of the codec.
+     *
+     * @param id Correlation id.
+     * @param name Resource name, ex: <code>java/lang/Object.class</code>.
+     * @param digest Digest of the cached copy, <code>null</code> if none.
+     * @throws IOException If the connection is broken.
+     * @see Message#FETCH
+     */
+    public void writeFetch(long id, String name, String digest) throws IOException {
+        synchronized (out) {
+            DataOutputStream data = new DataOutputStream(writeBuffer);
+            data.writeUTF(name);
+            data.writeUTF(digest == null ? "" : digest);
+            writeFrame(Message.FETCH, id, writeBuffer);
+        }
+    }
+
+    /**
+     * Writes a <code>RESOURCE</code> message, independent of the codec.
+     *
+     * @param id Id of the <code>FETCH</code> message.
+     * @param resource The resource, <code>null</code> if not found.
+     * @throws IOException If the connection is broken.
+     * @see Message#RESOURCE
+     */
+    public void writeResource(long id, Resource resource) throws IOException {
+        synchronized (out) {
+            DataOutputStream data = new DataOutputStream(writeBuffer);
+            data.writeBoolean(resource != null);
+            if (resource != null) {
+                data.writeUTF(resource.getDigest());
+                byte[] bytes = resource.getBytes();
+                data.writeInt(bytes == null ? -1 : bytes.length);
+                if (bytes != null) {
+                    data.write(bytes);
+                }
+            }
+            writeFrame(Message.RESOURCE, id, writeBuffer);
+        }
+    }
+
+    private int writeFrame(byte type, long id, PayloadBuffer payload) throws IOException {
+        try {
+            if (HEADER_SIZE + payload.size() > maxFrameSize) {
+                IOException e = new IOException("Frame of " + (HEADER_SIZE + payload.size()) + " bytes is above the max frame size " + maxFrameSize + '.');
+                try {
+                    close();
+                } catch (IOException ex) {
+                    e.addSuppressed(ex);
+                }
+                throw e;
+            }
+            out.writeInt(HEADER_SIZE + payload.size());
+            out.writeByte(type);
+            out.writeLong(id);
+            payload.writeTo(out);
+            out.flush();
+            int written = 4 + HEADER_SIZE + payload.size();
+            bytesWritten += written;
+            return written;
+        } finally {
+            writeBuffer.recycle();
+            compressBuffer.recycle();
+        }
+    }
+
+    /**
+     * Compresses the encoded payload if it is big enough, unless recent ones
+     * didn't compress well.
+     *
+     * @return Buffer to send, <code>writeBuffer</code> if not compressed.
+     */
+    private PayloadBuffer compress() {
+        Compression compression = this.compression;
+        int size = writeBuffer.size();
+        if (compression == null || size < compression.getThreshold()) {
+            return writeBuffer;
+        }
+        if (HEADER_SIZE + size > maxFrameSize) {
+            // refused by writeFrame, the peer wouldn't inflate it anyway
+            return writeBuffer;
+        }
+        if (compressionSkips > 0) {
+            compressionSkips--;
+            return writeBuffer;
+        }
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        int limit = (int) ((long) size * Compression.MAX_RATIO_PERCENT / 100);
+        if (compressBuffer.deflate(deflater, writeBuffer, limit)) {
+            compressionBackoff = 0;
+            compression.saved(size - compressBuffer.size());
+            return compressBuffer;
+        }
+        compressionBackoff = Math.min(Math.max(1, compressionBackoff * 2), MAX_COMPRESSION_SKIPS);
+        compressionSkips = compressionBackoff;
+        compressBuffer.recycle();
+        return writeBuffer;
+    }
+
+    /**
+     * Reads the next message, blocking until it arrives.
+     *
+     * @return The message, payload of handshake messages is a
+     * <code>Map&lt;String, String&gt;</code>.
+     * @throws IOException If the connection is broken or closed.
+     * @throws PayloadException If the message payload cannot be decoded.
+     */
+    public Message read() throws IOException, PayloadException {
+        return read(true);
+    }
+
+    /**
+     * Reads the next message without decoding its payload, unless it doesn't
+     * depend on the codec. Payloads are decoded later, in the same order, by
+     * <code>decode</code>.
+     *
+     * @return The message, with an encoded payload.
+     * @throws IOException If the connection is broken or closed.
+     * @throws PayloadException If the payload of a <code>FETCH</code> or
+     * <code>RESOURCE</code> message is invalid.
+     */
+    public Message readFrame() throws IOException, PayloadException {
+        return read(false);
+    }
+
+    /**
+     * Decodes the payload of a message returned by <code>readFrame</code>.
+     * Must be called by a single thread, and never while another thread
+     * calls <code>read</code>.
+     *
+     * @param message The message.
+     * @return The message with decoded payload, the same message if it was
+     * not encoded.
+     * @throws PayloadException If the message payload cannot be decoded.
+     */
+    public Message decode(Message message) throws PayloadException {
+        if (!(message.getPayload() instanceof EncodedPayload)) {
+            return message;
+        }
+        decodeBuffer.wrap(((EncodedPayload) message.getPayload()).bytes);
+        return decode(message.getType(), message.getId());
+    }
+
+    private Message read(boolean decode) throws IOException, PayloadException {
+        int length = in.readInt();
+        if (length < HEADER_SIZE || length > maxFrameSize) {
+            throw new StreamCorruptedException("Invalid frame length: " + length);
+        }
+        byte type = in.readByte();
+        long id = in.readLong();
+        bytesRead += 4 + length;
+
+        if ((type & COMPRESSED) != 0) {
+            type &= ~COMPRESSED;
+            byte[] payload = inflate(type, id, length - HEADER_SIZE, decode);
+            received(length);
+            if (!decode) {
+                return new Message(type, id, new EncodedPayload(payload));
+            }
+            return decode(type, id);
+        }
+
+        if (type == Message.HELLO || type == Message.WELCOME || type == Message.FETCH || type == Message.RESOURCE) {
+            readBuffer.fill(in, length - HEADER_SIZE);
+            try {
+                return new Message(type, id, readIndependent(type));
+            } catch (IOException | RuntimeException e) {
+                throw new PayloadException(type, id, e);
+            } finally {
+                readBuffer.recycle();
+            }
+        }
+        if (!decode) {
+            byte[] payload = new byte[length - HEADER_SIZE];
+            in.readFully(payload);
+            received(length);
+            return new Message(type, id, new EncodedPayload(payload));
+        }
+        decodeBuffer.fill(in, length - HEADER_SIZE);
+        received(length);
+        return decode(type, id);
+    }
+
+    /**
+     * Reads and inflates a compressed payload, into <code>decodeBuffer</code>
+     * if <code>decode</code>, or else into a new array. The inflated payload
+     * is limited by the max frame size too.
+     */
+    private byte[] inflate(byte type, long id, int length, boolean decode) throws IOException, PayloadException {
+        readBuffer.fill(in, length);
+        boolean prepared = false;
+        try {
+            if (length < 4) {
+                throw new StreamCorruptedException("Invalid compressed payload length: " + length);
+            }
+            byte[] source = readBuffer.buf;
+            int originalLength = ((source[0] & 0xFF) << 24) | ((source[1] & 0xFF) << 16)
+                    | ((source[2] & 0xFF) << 8) | (source[3] & 0xFF);
+            if (originalLength < 0 || originalLength > maxFrameSize - HEADER_SIZE) {
+                throw new StreamCorruptedException("Invalid original payload length: " + originalLength);
+            }
+            byte[] target;
+            if (decode) {
+                target = decodeBuffer.prepare(originalLength);
+                prepared = true;
+            } else {
+                target = new byte[originalLength];
+            }
+            if (inflater == null) {
+                inflater = new Inflater();
+            }
+            inflater.reset();
+            inflater.setInput(source, 4, length - 4);
+            int inflated = 0;
+            while (!inflater.finished() && inflated <= originalLength) {
+                int count = inflater.inflate(target, inflated, originalLength - inflated);
+                if (count == 0 && (inflater.needsInput() || inflated == originalLength)) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (!inflater.finished() || inflated != originalLength) {
+                throw new StreamCorruptedException("Compressed payload doesn't match its original length.");
+            }
+            Compression compression = this.compression;
+            if (compression != null) {
+                compression.saved(originalLength - length);
+            }
+            return target;
+        } catch (IOException | DataFormatException | RuntimeException e) {
+            // another thread may be decoding a frame in decodeBuffer
+            if (prepared) {
+                decodeBuffer.recycle();
+            }
+            throw new PayloadException(type, id, e);
+        } finally {
+            readBuffer.recycle();
+        }
+    }
+
+    private void received(int length) {
+        frameReceivedAt = System.nanoTime();
+        frameLength = 4 + length;
+    }
+
+    /**
+     * Gets when the last frame with a codec payload was fully received,
+     * before decoding it. Must be called by the reading thread.
+     *
+     * @return <code>System.nanoTime()</code> at reception.
+     */
+    public long getFrameReceivedAt() {
+        return frameReceivedAt;
+    }
+
+    /**
+     * Gets the size of the last frame with a codec payload. Must be called by
+     * the reading thread.
+     *
+     * @return Bytes, frame header included.
+     */
+    public int getFrameLength() {
+        return frameLength;
+    }
+
+    private Message decode(byte type, long id) throws PayloadException {
+        try {
+            SharedMemory sharedMemory = this.sharedMemory;
+            SharedMemory previous = sharedMemory == null ? null : sharedMemory.bind();
+            try {
+                return new Message(type, id, decoder.decode());
+            } finally {
+                if (sharedMemory != null) {
+                    SharedMemory.restore(previous);
+                }
+            }
+        } catch (ClassNotFoundException | IOException | RuntimeException | LinkageError e) {
+            throw new PayloadException(type, id, e);
+        } finally {
+            decodeBuffer.recycle();
+        }
+    }
+
+    private Object readIndependent(byte type) throws IOException {
+        DataInputStream data = new DataInputStream(readBuffer);
+        switch (type) {
+            case Message.FETCH:
+                String name = data.readUTF();
+                String digest = data.readUTF();
+                return new String[]{name, digest.isEmpty() ? null : digest};
+            case Message.RESOURCE:
+                if (!data.readBoolean()) {
+                    return null;
+                }
+                String resourceDigest = data.readUTF();
+                int length = data.readInt();
+                // claimed by the peer, must fit in the frame before allocating
+                if (length > readBuffer.available()) {
+                    throw new StreamCorruptedException("Invalid resource length: " + length);
+                }
+                byte[] bytes = null;
+                if (length >= 0) {
+                    bytes = new byte[length];
+                    data.readFully(bytes);
+                }
+                return new Resource(resourceDigest, bytes);
+            default:
+                return readProperties();
+        }
+    }
+
+    /**
+     * Total bytes written, frame headers included.
+     *
+     * @return Bytes written since this channel was created.
+     */
+    public long getBytesWritten() {
+        synchronized (out) {
+            return bytesWritten;
+        }
+    }
+
+    /**
+     * Total bytes read, frame headers included.
+     *
+     * @return Bytes read since this channel was created.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    private void encode(Object payload) throws IOException {
+        SharedMemory sharedMemory = this.sharedMemory;
+        SharedMemory previous = sharedMemory == null ? null : sharedMemory.bind();
+        try {
+            encoder.encode(payload);
+        } catch (IOException | RuntimeException e) {
+            // drop partial payload, receiver never sees it
+            writeBuffer.recycle();
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+            throw new IOException("Cannot encode payload.", e);
+        } finally {
+            if (sharedMemory != null) {
+                SharedMemory.restore(previous);
+            }
+        }
+    }
+
+    private Map<String, String> readProperties() throws IOException {
+        DataInputStream data = new DataInputStream(readBuffer);
+        int size = data.readUnsignedShort();
+        Map<String, String> properties = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            properties.put(data.readUTF(), data.readUTF());
+        }
+        return Collections.unmodifiableMap(properties);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            in.close();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Payload read by <code>readFrame</code>, not decoded yet.
+     */
+    private static final class EncodedPayload {
+
+        private final byte[] bytes;
+
+        private EncodedPayload(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Reusable payload buffer, shrunk after big payloads.
+     */
+    private static final class PayloadBuffer extends ByteArrayOutputStream {
+
+        private static final int INITIAL_SIZE = 4096;
+        private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+        private PayloadBuffer() {
+            super(INITIAL_SIZE);
+        }
+
+        private void recycle() {
+            reset();
+            if (buf.length > MAX_RETAINED_SIZE) {
+                buf = new byte[INITIAL_SIZE];
+            }
+        }
+
+        /**
+         * Replaces the content by the original length of <code>source</code>
+         * followed by its deflated bytes, if they fit in <code>limit</code>
+         * bytes.
+         *
+         * @return <code>false</code> if compressed content doesn't fit.
+         */
+        private boolean deflate(Deflater deflater, PayloadBuffer source, int limit) {
+            reset();
+            if (buf.length < limit) {
+                buf = new byte[limit];
+            }
+            int length = source.count;
+            buf[0] = (byte) (length >>> 24);
+            buf[1] = (byte) (length >>> 16);
+            buf[2] = (byte) (length >>> 8);
+            buf[3] = (byte) length;
+            count = 4;
+            deflater.reset();
+            deflater.setInput(source.buf, 0, length);
+            deflater.finish();
+            while (!deflater.finished() && count < limit) {
+                count += deflater.deflate(buf, count, limit - count);
+            }
+            return deflater.finished();
+        }
+    }
+
+    /**
+     * Reusable input over the payload of the current frame. Reading past the
+     * payload end returns <code>-1</code>.
+     */
+    private static final class PayloadInput extends InputStream {
+
+        private byte[] buf = new byte[PayloadBuffer.INITIAL_SIZE];
+        private int pos;
+        private int limit;
+
+        private void fill(DataInputStream in, int length) throws IOException {
+            if (buf.length < length) {
+                buf = new byte[length];
+            }
+            in.readFully(buf, 0, length);
+            pos = 0;
+            limit = length;
+        }
+
+        /**
+         * Prepares to read <code>length</code> bytes, to be written in the
+         * returned array.
+         */
+        private byte[] prepare(int length) {
+            if (buf.length < length) {
+                buf = new byte[length];
+            }
+            pos = 0;
+            limit = length;
+            return buf;
+        }
+
+        /**
+         * Reads from an array, released by <code>recycle</code>.
+         */
+        private void wrap(byte[] payload) {
+            buf = payload;
+            pos = 0;
+            limit = payload.length;
+        }
+
+        private void recycle() {
+            pos = limit = 0;
+            if (buf.length > PayloadBuffer.MAX_RETAINED_SIZE) {
+                buf = new byte[PayloadBuffer.INITIAL_SIZE];
+            }
+        }
+
+        @Override
+        public int read() {
+            return pos < limit ? buf[pos++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos >= limit) {
+                return -1;
+            }
+            int count = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, b, off, count);
+            pos += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return limit - pos;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Serializes message payloads (tasks, results and errors).<br>
+ * A codec is chosen per executor and negotiated when the out process
+ * connects: the out process offers every codec it knows and the executor
+ * picks its preferred one, falling back to Java serialization.<br>
+ * Custom codecs must be on both classpaths and are found by name with
+ * <code>ServiceLoader</code>.
+ *
+ * @see PayloadCodecs
+ * @see Handshake
+ * @see JavaSerializationCodec
+ * @see CompactCodec
+ */
+public interface PayloadCodec {
+
+    /**
+     * Codec name used in the handshake, must be unique.
+     *
+     * @return The codec name.
+     */
+    String getName();
+
+    /**
+     * Creates the encoder of one connection. Encoders may keep state between
+     * payloads of the same connection.
+     *
+     * @param out Where every payload of the connection is written.
+     * @return A new encoder.
+     * @throws IOException If cannot create encoder.
+     */
+    PayloadEncoder newEncoder(OutputStream out) throws IOException;
+
+    /**
+     * Creates the decoder of one connection. Decoders may keep state between
+     * payloads of the same connection.
+     *
+     * @param in Where every payload of the connection is read from, each
+     * payload ends with end of stream.
+     * @return A new decoder.
+     * @throws IOException If cannot create decoder.
+     */
+    PayloadDecoder newDecoder(InputStream in) throws IOException;
+}
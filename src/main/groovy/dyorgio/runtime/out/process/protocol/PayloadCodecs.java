@@ -0,0 +1,76 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.protocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+
+/**
+ * Codecs known by this JVM: the built-in ones and the ones registered in
+ * <code>META-INF/services/dyorgio.runtime.out.process.protocol.PayloadCodec</code>.
+ *
+ * @see PayloadCodec
+ */
+public final class PayloadCodecs {
+
+    private static volatile List<PayloadCodec> available;
+
+    private PayloadCodecs() {
+    }
+
+    /**
+     * Lists the known codecs, Java serialization first.
+     *
+     * @return Unmodifiable list of codecs.
+     */
+    public static List<PayloadCodec> getAvailable() {
+        List<PayloadCodec> codecs = available;
+        if (codecs == null) {
+            codecs = new ArrayList<>();
+            codecs.add(new JavaSerializationCodec());
+            codecs.add(new CompactCodec());
+            codecs.add(new SessionSerializationCodec());
+            for (PayloadCodec codec : ServiceLoader.load(PayloadCodec.class)) {
+                if (forName(codecs, codec.getName()) == null) {
+                    codecs.add(codec);
+                }
+            }
+            available = codecs = Collections.unmodifiableList(codecs);
+        }
+        return codecs;
+    }
+
+    /**
+     * Finds a known codec by name.
+     *
+     * @param name Codec name.
+     * @return The codec or <code>null</code> if unknown.
+     */
+    public static PayloadCodec forName(String name) {
+        return forName(getAvailable(), name);
+    }
+
+    private static PayloadCodec forName(List<PayloadCodec> codecs, String name) {
+        for (PayloadCodec codec : codecs) {
+            if (codec.getName().equals(name)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,36 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.protocol;
+
+import java.io.IOException;
+
+/**
+ * Reads payloads of one connection, created by a <code>PayloadCodec</code>.
+ * Called by one thread at a time.
+ *
+ * @see PayloadCodec#newDecoder(java.io.InputStream)
+ */
+public interface PayloadDecoder {
+
+    /**
+     * Reads the next payload.
+     *
+     * @return The payload, may be <code>null</code>.
+     * @throws IOException If payload cannot be decoded.
+     * @throws ClassNotFoundException If a payload class cannot be found.
+     */
+    Object decode() throws IOException, ClassNotFoundException;
+}
@@ -0,0 +1,37 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.protocol;
+
+import java.io.IOException;
+
+/**
+ * Writes payloads of one connection, created by a <code>PayloadCodec</code>.
+ * Called by one thread at a time.
+ *
+ * @see PayloadCodec#newEncoder(java.io.OutputStream)
+ */
+public interface PayloadEncoder {
+
+    /**
+     * Writes a payload.<br>
+     * If this method throws, the bytes written by it are discarded and never
+     * reach the decoder, so the encoder must be ready for the next payload.
+     *
+     * @param payload The payload, may be <code>null</code>.
+     * @throws IOException If payload cannot be encoded.
+     */
+    void encode(Object payload) throws IOException;
+}
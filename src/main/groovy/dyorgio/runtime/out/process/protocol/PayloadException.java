@@ -0,0 +1,54 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.protocol;
+
+/**
+ * Throwed when a message was received but its payload cannot be decoded, ex:
+ * payload class not found. The connection is still usable.
+ *
+ * @see MessageChannel#read()
+ */
+public class PayloadException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final byte type;
+    private final long id;
+
+    public PayloadException(byte type, long id, Throwable cause) {
+        super("Cannot decode payload of message " + id + ".", cause);
+        this.type = type;
+        this.id = id;
+    }
+
+    /**
+     * Gets the type of the undecodable message.
+     *
+     * @return Message type.
+     */
+    public byte getType() {
+        return type;
+    }
+
+    /**
+     * Gets the correlation id of the undecodable message.
+     *
+     * @return Message id.
+     */
+    public long getId() {
+        return id;
+    }
+}
@@ -0,0 +1,47 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.protocol;
+
+/**
+ * Content of a class or resource sent by a <code>RESOURCE</code> message.
+ *
+ * @see Message#RESOURCE
+ */
+public final class Resource {
+
+    private final String digest;
+    private final byte[] bytes;
+
+    /**
+     * Creates a resource.
+     *
+     * @param digest SHA-256 of the content, hexadecimal.
+     * @param bytes The content or <code>null</code> if the receiver already
+     * has the content with this digest.
+     */
+    public Resource(String digest, byte[] bytes) {
+        this.digest = digest;
+        this.bytes = bytes;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+}
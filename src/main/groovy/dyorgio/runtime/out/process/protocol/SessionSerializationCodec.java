@@ -0,0 +1,455 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Java serialization with a cache per connection: class descriptors are sent
+ * once per connection instead of once per payload, and
+ * <code>SessionShared</code> objects once per connection instead of every
+ * time they are referenced. Classes of cached descriptors are resolved once
+ * per context class loader.<br>
+ * Each payload starts with the definitions it adds to the cache, then comes
+ * the object stream, where descriptors and shared objects are replaced by
+ * their ids:
+ * <pre>
+ * byte flags (reset, descriptors, shared objects)
+ * [int count, count * (int id, int length, byte[length] serialized descriptor)]
+ * [int count, count * (int id, int length, byte[length] serialized object)]
+ * byte[] object stream, reset before every payload
+ * </pre>
+ * Definitions are read before the object stream, so a payload that fails to
+ * decode never leaves both sides with different caches.<br>
+ * Caches are bounded: when the sender holds too many descriptors, shared
+ * objects or bytes of shared objects, it clears its cache and tells the
+ * receiver to clear its cache too.
+ *
+ * @see SessionShared
+ * @see JavaSerializationCodec
+ */
+public final class SessionSerializationCodec implements PayloadCodec {
+
+    public static final String NAME = "java-session";
+
+    public static final int DEFAULT_MAX_CLASS_DESCRIPTORS = 1024;
+    public static final int DEFAULT_MAX_SHARED_OBJECTS = 256;
+    public static final long DEFAULT_MAX_SHARED_BYTES = 16 * 1024 * 1024;
+
+    private static final int RESET = 1;
+    private static final int DESCRIPTORS = 2;
+    private static final int SHARED = 4;
+    private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+    private final int maxClassDescriptors;
+    private final int maxSharedObjects;
+    private final long maxSharedBytes;
+
+    public SessionSerializationCodec() {
+        this(DEFAULT_MAX_CLASS_DESCRIPTORS, DEFAULT_MAX_SHARED_OBJECTS, DEFAULT_MAX_SHARED_BYTES);
+    }
+
+    /**
+     * Creates a codec with specific cache limits, they apply to payloads
+     * sent, the receiver follows the sender.
+     *
+     * @param maxClassDescriptors Descriptors cached before a reset.
+     * @param maxSharedObjects Shared objects cached before a reset.
+     * @param maxSharedBytes Serialized bytes of shared objects cached before a
+     * reset.
+     * @throws IllegalArgumentException If a limit is not positive.
+     */
+    public SessionSerializationCodec(int maxClassDescriptors, int maxSharedObjects, long maxSharedBytes) {
+        if (maxClassDescriptors < 1 || maxSharedObjects < 1 || maxSharedBytes < 1) {
+            throw new IllegalArgumentException("Cache limits must be positive.");
+        }
+        this.maxClassDescriptors = maxClassDescriptors;
+        this.maxSharedObjects = maxSharedObjects;
+        this.maxSharedBytes = maxSharedBytes;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public PayloadEncoder newEncoder(OutputStream out) {
+        return new Encoder(out);
+    }
+
+    @Override
+    public PayloadDecoder newDecoder(InputStream in) {
+        return new Decoder(in);
+    }
+
+    @Override
+    public String toString() {
+        return NAME;
+    }
+
+    private final class Encoder implements PayloadEncoder {
+
+        private final DataOutputStream out;
+        private final BodyBuffer body = new BodyBuffer();
+        private final ByteArrayOutputStream definition = new ByteArrayOutputStream();
+        private BodyOutput objOut;
+
+        private final Map<ObjectStreamClass, Integer> descriptors = new HashMap<>();
+        private final Map<Object, Integer> shared = new IdentityHashMap<>();
+        // added by the payload being encoded
+        private final List<ObjectStreamClass> newDescriptors = new ArrayList<>();
+        private final List<Object> newShared = new ArrayList<>();
+        private long sharedBytes;
+        private boolean reset;
+
+        private Encoder(OutputStream out) {
+            this.out = new DataOutputStream(out);
+        }
+
+        @Override
+        public void encode(Object payload) throws IOException {
+            if (descriptors.size() >= maxClassDescriptors || shared.size() >= maxSharedObjects || sharedBytes >= maxSharedBytes) {
+                descriptors.clear();
+                shared.clear();
+                sharedBytes = 0;
+                reset = true;
+            }
+            boolean created = objOut == null;
+            try {
+                body.reset();
+                if (created) {
+                    objOut = new BodyOutput(body);
+                } else {
+                    objOut.reset();
+                }
+                objOut.writeObject(payload);
+                objOut.flush();
+
+                int flags = (reset ? RESET : 0) | (newDescriptors.isEmpty() ? 0 : DESCRIPTORS) | (newShared.isEmpty() ? 0 : SHARED);
+                out.writeByte(flags);
+                if (!newDescriptors.isEmpty()) {
+                    out.writeInt(newDescriptors.size());
+                    for (ObjectStreamClass descriptor : newDescriptors) {
+                        writeDefinition(descriptors.get(descriptor), descriptor);
+                    }
+                }
+                long newSharedBytes = 0;
+                if (!newShared.isEmpty()) {
+                    out.writeInt(newShared.size());
+                    for (Object object : newShared) {
+                        newSharedBytes += writeDefinition(shared.get(object), object);
+                    }
+                }
+                body.writeTo(out);
+                out.flush();
+                sharedBytes += newSharedBytes;
+                reset = false;
+            } catch (IOException | RuntimeException e) {
+                // receiver never sees this payload, forget what it added
+                for (ObjectStreamClass descriptor : newDescriptors) {
+                    descriptors.remove(descriptor);
+                }
+                for (Object object : newShared) {
+                    shared.remove(object);
+                }
+                if (created) {
+                    // stream header is dropped with the payload
+                    objOut = null;
+                }
+                throw e;
+            } finally {
+                newDescriptors.clear();
+                newShared.clear();
+                body.recycle();
+            }
+        }
+
+        private int writeDefinition(int id, Object value) throws IOException {
+            definition.reset();
+            ObjectOutputStream definitionOut = new ObjectOutputStream(definition);
+            definitionOut.writeObject(value);
+            definitionOut.flush();
+            out.writeInt(id);
+            out.writeInt(definition.size());
+            definition.writeTo(out);
+            return definition.size();
+        }
+
+        /**
+         * Object stream that writes ids instead of descriptors and shared
+         * objects.
+         */
+        private final class BodyOutput extends ObjectOutputStream {
+
+            private BodyOutput(OutputStream out) throws IOException {
+                super(out);
+                enableReplaceObject(true);
+            }
+
+            @Override
+            protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+                Integer id = descriptors.get(desc);
+                if (id == null) {
+                    id = descriptors.size();
+                    descriptors.put(desc, id);
+                    newDescriptors.add(desc);
+                }
+                writeInt(id);
+            }
+
+            @Override
+            protected Object replaceObject(Object obj) {
+                if (!(obj instanceof SessionShared)) {
+                    return obj;
+                }
+                Integer id = shared.get(obj);
+                if (id == null) {
+                    id = shared.size();
+                    shared.put(obj, id);
+                    newShared.add(obj);
+                }
+                return new SharedReference(id);
+            }
+        }
+    }
+
+    private static final class Decoder implements PayloadDecoder {
+
+        private final DataInputStream in;
+        private BodyInput objIn;
+
+        private final Map<Integer, Descriptor> descriptors = new HashMap<>();
+        private final Map<Integer, Object> shared = new HashMap<>();
+
+        private Decoder(InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        @Override
+        public Object decode() throws IOException, ClassNotFoundException {
+            int flags = in.readUnsignedByte();
+            if ((flags & RESET) != 0) {
+                descriptors.clear();
+                shared.clear();
+            }
+            if ((flags & DESCRIPTORS) != 0) {
+                for (int count = in.readInt(); count > 0; count--) {
+                    int id = in.readInt();
+                    descriptors.put(id, new Descriptor(readDescriptor(readDefinition())));
+                }
+            }
+            if ((flags & SHARED) != 0) {
+                for (int count = in.readInt(); count > 0; count--) {
+                    int id = in.readInt();
+                    byte[] definition = readDefinition();
+                    try {
+                        shared.put(id, new ContextObjectInputStream(new ByteArrayInputStream(definition)).readObject());
+                    } catch (ClassNotFoundException | IOException | RuntimeException | LinkageError e) {
+                        // payloads that use it fail the same way
+                        shared.put(id, new Unreadable(e));
+                    }
+                }
+            }
+            if (objIn == null) {
+                objIn = new BodyInput(in);
+            }
+            return objIn.readObject();
+        }
+
+        private byte[] readDefinition() throws IOException {
+            int length = in.readInt();
+            if (length < 0) {
+                throw new StreamCorruptedException("Invalid definition length: " + length);
+            }
+            byte[] definition = new byte[length];
+            in.readFully(definition);
+            return definition;
+        }
+
+        /**
+         * Reads a descriptor without resolving its class, resolved later by
+         * the object stream with the context class loader of that time.
+         */
+        private static ObjectStreamClass readDescriptor(byte[] definition) throws IOException {
+            DescriptorInput descriptorIn = new DescriptorInput(new ByteArrayInputStream(definition));
+            try {
+                descriptorIn.readObject();
+            } catch (ClassNotFoundException e) {
+                // expected, class is never resolved
+            }
+            if (descriptorIn.descriptor == null) {
+                throw new StreamCorruptedException("Invalid class descriptor definition.");
+            }
+            return descriptorIn.descriptor;
+        }
+
+        /**
+         * Object stream that reads ids of descriptors and shared objects.
+         */
+        private final class BodyInput extends ContextObjectInputStream {
+
+            // descriptor being resolved
+            private Descriptor current;
+
+            private BodyInput(InputStream in) throws IOException {
+                super(in);
+                enableResolveObject(true);
+            }
+
+            @Override
+            protected ObjectStreamClass readClassDescriptor() throws IOException {
+                int id = readInt();
+                Descriptor descriptor = descriptors.get(id);
+                if (descriptor == null) {
+                    throw new StreamCorruptedException("Unknown class descriptor: " + id);
+                }
+                current = descriptor;
+                return descriptor.model;
+            }
+
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                Descriptor descriptor = current;
+                current = null;
+                if (descriptor == null || descriptor.model != desc) {
+                    return super.resolveClass(desc);
+                }
+                ClassLoader loader = Thread.currentThread().getContextClassLoader();
+                if (descriptor.type == null || descriptor.loader != loader) {
+                    descriptor.type = super.resolveClass(desc);
+                    descriptor.loader = loader;
+                }
+                return descriptor.type;
+            }
+
+            @Override
+            protected Object resolveObject(Object obj) throws IOException {
+                if (!(obj instanceof SharedReference)) {
+                    return obj;
+                }
+                int id = ((SharedReference) obj).id;
+                if (!shared.containsKey(id)) {
+                    throw new InvalidObjectException("Unknown shared object: " + id);
+                }
+                Object object = shared.get(id);
+                if (object instanceof Unreadable) {
+                    InvalidObjectException e = new InvalidObjectException("Unreadable shared object: " + id);
+                    e.initCause(((Unreadable) object).cause);
+                    throw e;
+                }
+                return object;
+            }
+        }
+    }
+
+    /**
+     * Cached descriptor, its class is resolved once per context class loader.
+     */
+    private static final class Descriptor {
+
+        private final ObjectStreamClass model;
+        private ClassLoader loader;
+        private Class<?> type;
+
+        private Descriptor(ObjectStreamClass model) {
+            this.model = model;
+        }
+    }
+
+    /**
+     * Keeps the first descriptor read, never resolves classes.
+     */
+    private static final class DescriptorInput extends ObjectInputStream {
+
+        private ObjectStreamClass descriptor;
+
+        private DescriptorInput(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            ObjectStreamClass read = super.readClassDescriptor();
+            if (descriptor == null) {
+                descriptor = read;
+            }
+            return read;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) {
+            return null;
+        }
+    }
+
+    /**
+     * Object stream buffer of the encoder, shrunk after big payloads. Always
+     * the same instance: the object stream writes to it.
+     */
+    private static final class BodyBuffer extends ByteArrayOutputStream {
+
+        private void recycle() {
+            reset();
+            if (buf.length > MAX_RETAINED_SIZE) {
+                buf = new byte[32];
+            }
+        }
+    }
+
+    /**
+     * Shared object that could not be decoded.
+     */
+    private static final class Unreadable {
+
+        private final Throwable cause;
+
+        private Unreadable(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+
+    /**
+     * Written in place of a <code>SessionShared</code> object.
+     */
+    private static final class SharedReference implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int id;
+
+        private SharedReference(int id) {
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.protocol;
+
+import java.io.Serializable;
+
+/**
+ * Marks immutable objects that the <code>java-session</code> codec sends
+ * only once per connection: next payloads that contain the same instance
+ * only send its id, and the receiver gets the instance decoded the first
+ * time. Useful for big lookup tables or configurations used by many
+ * tasks.<br>
+ * Instances must never change after being sent, changes are not seen by the
+ * receiver. Each side keeps the shared instances until the sender resets its
+ * cache, see <code>SessionSerializationCodec</code> limits.
+ *
+ * @see SessionSerializationCodec
+ */
+public interface SessionShared extends Serializable {
+}
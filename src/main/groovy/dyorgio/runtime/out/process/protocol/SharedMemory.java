@@ -0,0 +1,337 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Bulk data path between an executor and its out process.<br>
+ * Big payloads are written to a memory-mapped file (a region) and only the
+ * region name goes through the connection. The receiver maps the same file,
+ * so data is copied once into the OS page cache instead of being pushed
+ * through the socket and copied again by the decoder.<br>
+ * Regions live in a directory created by the executor, readable only by the
+ * current user (<code>rwx------</code>), announced in the
+ * <code>WELCOME</code> message. Each region is deleted as soon as it is read,
+ * the directory when the executor closes the connection. Regions are created
+ * readable only by their writer, so an out process running as another user
+ * (ex: root) reads the regions of the executor but never writes any, its big
+ * payloads go through the connection.<br>
+ * Used automatically for top-level <code>byte[]</code> payloads and for
+ * <code>MappedBytes</code> objects anywhere in a payload.
+ *
+ * @see MessageChannel#setSharedMemory(SharedMemory)
+ * @see dyorgio.runtime.out.process.MappedBytes
+ */
+public final class SharedMemory {
+
+    public static final String DIRECTORY = "shm.directory";
+    public static final String THRESHOLD = "shm.threshold";
+
+    private static final ThreadLocal<SharedMemory> CURRENT = new ThreadLocal<>();
+
+    private static final int CREATE_ATTEMPTS = 100;
+
+    private final Path directory;
+    private final int threshold;
+    private final boolean owner;
+    private final boolean writable;
+
+    private SharedMemory(Path directory, int threshold, boolean owner, boolean writable) {
+        this.directory = directory;
+        this.threshold = threshold;
+        this.owner = owner;
+        this.writable = writable;
+    }
+
+    /**
+     * Executor side: creates a new private region directory.
+     *
+     * @param threshold Minimum payload size, in bytes, sent through shared
+     * memory.
+     * @return The shared memory, must be closed.
+     * @throws IOException If cannot create the directory.
+     */
+    public static SharedMemory create(int threshold) throws IOException {
+        Path directory;
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            directory = Files.createTempDirectory("out-process-shm-",
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } else {
+            directory = Files.createTempDirectory("out-process-shm-");
+        }
+        return new SharedMemory(directory, threshold, true, true);
+    }
+
+    /**
+     * Out process side: uses the directory announced by the executor. Regions
+     * are written only if the directory belongs to the current user.
+     *
+     * @param welcome Properties of the <code>WELCOME</code> message.
+     * @return The shared memory or <code>null</code> if not enabled.
+     */
+    public static SharedMemory fromProperties(Map<String, String> welcome) {
+        String directory = welcome.get(DIRECTORY);
+        String threshold = welcome.get(THRESHOLD);
+        if (directory == null || threshold == null) {
+            return null;
+        }
+        Path path = Paths.get(directory);
+        return new SharedMemory(path, Integer.parseInt(threshold), false, isOwnedByCurrentUser(path));
+    }
+
+    private static boolean isOwnedByCurrentUser(Path directory) {
+        try {
+            UserPrincipal user = directory.getFileSystem().getUserPrincipalLookupService()
+                    .lookupPrincipalByName(System.getProperty("user.name"));
+            return user.equals(Files.getOwner(directory, LinkOption.NOFOLLOW_LINKS));
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Announces this shared memory to the out process.
+     *
+     * @param welcome Properties of the <code>WELCOME</code> message.
+     */
+    public void addTo(Map<String, String> welcome) {
+        welcome.put(DIRECTORY, directory.toString());
+        welcome.put(THRESHOLD, String.valueOf(threshold));
+    }
+
+    /**
+     * Gets the shared memory of the connection encoding or decoding a payload
+     * in the current thread.
+     *
+     * @return The shared memory or <code>null</code> if not encoding/decoding
+     * or not enabled.
+     */
+    public static SharedMemory current() {
+        return CURRENT.get();
+    }
+
+    SharedMemory bind() {
+        SharedMemory previous = CURRENT.get();
+        CURRENT.set(this);
+        return previous;
+    }
+
+    static void restore(SharedMemory previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Checks if regions can be written, <code>false</code> in an out process
+     * running as another user than the executor.
+     *
+     * @return <code>true</code> if <code>write</code> can be called.
+     */
+    public boolean isWritable() {
+        return writable;
+    }
+
+    /**
+     * Writes data into a new region, created and mapped through a single
+     * channel: an existing file or link is never opened.
+     *
+     * @param data Data from position to limit, position is not changed.
+     * @return The region name.
+     * @throws IOException If cannot create the region or not writable.
+     */
+    public String write(ByteBuffer data) throws IOException {
+        if (!writable) {
+            throw new IOException("Regions of " + directory + " belong to another user.");
+        }
+        Set<OpenOption> options = new HashSet<>(Arrays.<OpenOption>asList(StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, LinkOption.NOFOLLOW_LINKS));
+        FileAttribute<?>[] attributes = directory.getFileSystem().supportedFileAttributeViews().contains("posix")
+                ? new FileAttribute<?>[]{PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))}
+                : new FileAttribute<?>[0];
+        for (int attempt = 0; ; attempt++) {
+            Path file = directory.resolve("region-" + Long.toUnsignedString(ThreadLocalRandom.current().nextLong()) + ".bin");
+            FileChannel channel;
+            try {
+                channel = FileChannel.open(file, options, attributes);
+            } catch (FileAlreadyExistsException e) {
+                if (attempt < CREATE_ATTEMPTS) {
+                    continue;
+                }
+                throw e;
+            }
+            try (FileChannel created = channel) {
+                created.map(FileChannel.MapMode.READ_WRITE, 0, data.remaining()).put(data.duplicate());
+            } catch (IOException | RuntimeException e) {
+                delete(file);
+                throw e;
+            }
+            return file.getFileName().toString();
+        }
+    }
+
+    /**
+     * Maps a region without copying it, changes to the returned buffer are
+     * private. The region is deleted.
+     *
+     * @param name Region name.
+     * @param length Region length.
+     * @return A buffer over the region.
+     * @throws IOException If cannot map the region.
+     */
+    public ByteBuffer map(String name, int length) throws IOException {
+        Path file = resolve(name);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, LinkOption.NOFOLLOW_LINKS)) {
+            return channel.map(FileChannel.MapMode.PRIVATE, 0, length);
+        } finally {
+            delete(file);
+        }
+    }
+
+    /**
+     * Reads a region into the heap. The region is deleted.
+     *
+     * @param name Region name.
+     * @param length Region length.
+     * @return The region content.
+     * @throws IOException If cannot read the region.
+     */
+    public byte[] read(String name, int length) throws IOException {
+        Path file = resolve(name);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS)) {
+            byte[] bytes = new byte[length];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Region " + name + " is truncated.");
+                }
+            }
+            return bytes;
+        } finally {
+            delete(file);
+        }
+    }
+
+    /**
+     * Replaces a big top-level <code>byte[]</code> payload by a region, if
+     * writable.
+     */
+    Object wrap(Object payload) throws IOException {
+        if (writable && payload instanceof byte[] && ((byte[]) payload).length >= threshold) {
+            byte[] bytes = (byte[]) payload;
+            return new Region(write(ByteBuffer.wrap(bytes)), bytes.length);
+        }
+        return payload;
+    }
+
+    /**
+     * Deletes the region directory, if created by this instance.
+     */
+    public void close() {
+        if (!owner) {
+            return;
+        }
+        try (DirectoryStream<Path> regions = Files.newDirectoryStream(directory)) {
+            for (Path region : regions) {
+                delete(region);
+            }
+        } catch (IOException e) {
+        }
+        delete(directory);
+    }
+
+    private Path resolve(String name) throws IOException {
+        Path file = directory.resolve(name);
+        if (!directory.equals(file.getParent())) {
+            throw new IOException("Invalid region: " + name);
+        }
+        return file;
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // still mapped on Windows
+            file.toFile().deleteOnExit();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SharedMemory{directory=" + directory + ", threshold=" + threshold + '}';
+    }
+
+    /**
+     * A top-level <code>byte[]</code> payload written to a region.
+     */
+    private static final class Region implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private final int length;
+
+        private Region(String name, int length) {
+            this.name = name;
+            this.length = length;
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            SharedMemory sharedMemory = current();
+            if (sharedMemory == null) {
+                throw new InvalidObjectException("Shared memory is not enabled.");
+            }
+            try {
+                return sharedMemory.read(name, length);
+            } catch (IOException e) {
+                InvalidObjectException ex = new InvalidObjectException("Cannot read region " + name + '.');
+                ex.initCause(e);
+                throw ex;
+            }
+        }
+    }
+}
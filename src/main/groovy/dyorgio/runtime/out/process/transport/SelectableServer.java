@@ -0,0 +1,54 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A non-blocking listening address created by
+ * <code>SelectableTransport#listenSelectable()</code>.
+ *
+ * @see SelectableTransport
+ */
+public interface SelectableServer extends Closeable {
+
+    /**
+     * Gets the address out processes must connect to.
+     *
+     * @return The address, scheme included.
+     */
+    String getAddress();
+
+    /**
+     * Gets the server channel to register with a <code>Selector</code> for
+     * <code>OP_ACCEPT</code>.
+     *
+     * @return The non-blocking server channel.
+     */
+    ServerSocketChannel getChannel();
+
+    /**
+     * Accepts a pending connection, without waiting.
+     *
+     * @return The accepted and tuned connection in non-blocking mode or
+     * <code>null</code> if there is no pending connection.
+     * @throws IOException If cannot accept.
+     */
+    SocketChannel acceptChannel() throws IOException;
+}
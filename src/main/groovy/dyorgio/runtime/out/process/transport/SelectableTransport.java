@@ -0,0 +1,39 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.transport;
+
+import java.io.IOException;
+
+/**
+ * A transport whose servers can be served by a <code>Selector</code>, so one
+ * thread can accept and serve many connections.<br>
+ * Used by <code>SocketTransaction</code> to share a single address among
+ * all pending transactions.
+ *
+ * @see SelectableServer
+ * @see TcpTransport
+ * @see UnixDomainTransport
+ */
+public interface SelectableTransport extends Transport {
+
+    /**
+     * Starts listening on a new address with a non-blocking server.
+     *
+     * @return The listening server.
+     * @throws IOException If cannot listen.
+     */
+    SelectableServer listenSelectable() throws IOException;
+}
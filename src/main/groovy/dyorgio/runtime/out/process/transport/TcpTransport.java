@@ -0,0 +1,233 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Default transport, loopback TCP.<br>
+ * Listens on an ephemeral port of the loopback interface only, so no port is
+ * guessed and no other host can connect. Sockets are tuned for many small
+ * messages: <code>TCP_NODELAY</code> is on and send/receive buffers are sized
+ * for big payloads.
+ *
+ * @see Transport
+ */
+public final class TcpTransport implements SelectableTransport {
+
+    public static final String SCHEME = "tcp";
+
+    /**
+     * Default socket send and receive buffer size.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    private final int bufferSize;
+
+    public TcpTransport() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a transport with specific socket buffer size.
+     *
+     * @param bufferSize Socket send and receive buffer size, a hint to the
+     * OS.
+     * @throws IllegalArgumentException If <code>bufferSize</code> is less than
+     * 1.
+     */
+    public TcpTransport(int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be at least 1.");
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    @Override
+    public TransportServer listen() throws IOException {
+        ServerSocket server = new ServerSocket();
+        try {
+            // accepted sockets inherit it, must be set before bind to go above 64k
+            server.setReceiveBufferSize(bufferSize);
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        return new Server(server);
+    }
+
+    @Override
+    public SelectableServer listenSelectable() throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.setOption(StandardSocketOptions.SO_RCVBUF, bufferSize);
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            server.configureBlocking(false);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        return new ChannelServer(server);
+    }
+
+    @Override
+    public Connection connect(String address) throws IOException {
+        int separator = address.lastIndexOf(':');
+        if (!address.startsWith(SCHEME + ':') || separator <= SCHEME.length()) {
+            throw new IOException("Invalid tcp address: " + address);
+        }
+        String hostAndPort = address.substring(SCHEME.length() + 1);
+        separator -= SCHEME.length() + 1;
+        InetAddress host = InetAddress.getByName(hostAndPort.substring(0, separator));
+        int port = Integer.parseInt(hostAndPort.substring(separator + 1));
+
+        Socket socket = new Socket();
+        try {
+            tune(socket);
+            socket.connect(new InetSocketAddress(host, port));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return new SocketConnection(socket);
+    }
+
+    private void tune(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        socket.setSendBufferSize(bufferSize);
+        socket.setReceiveBufferSize(bufferSize);
+    }
+
+    @Override
+    public String toString() {
+        return SCHEME + "(bufferSize=" + bufferSize + ')';
+    }
+
+    private final class Server implements TransportServer {
+
+        private final ServerSocket server;
+
+        private Server(ServerSocket server) {
+            this.server = server;
+        }
+
+        @Override
+        public String getAddress() {
+            return SCHEME + ':' + server.getInetAddress().getHostAddress() + ':' + server.getLocalPort();
+        }
+
+        @Override
+        public Connection accept() throws IOException {
+            Socket socket = server.accept();
+            try {
+                tune(socket);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            return new SocketConnection(socket);
+        }
+
+        @Override
+        public boolean isClosed() {
+            return server.isClosed();
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+        }
+    }
+
+    private final class ChannelServer implements SelectableServer {
+
+        private final ServerSocketChannel server;
+
+        private ChannelServer(ServerSocketChannel server) {
+            this.server = server;
+        }
+
+        @Override
+        public String getAddress() {
+            ServerSocket socket = server.socket();
+            return SCHEME + ':' + socket.getInetAddress().getHostAddress() + ':' + socket.getLocalPort();
+        }
+
+        @Override
+        public ServerSocketChannel getChannel() {
+            return server;
+        }
+
+        @Override
+        public SocketChannel acceptChannel() throws IOException {
+            SocketChannel channel = server.accept();
+            if (channel != null) {
+                try {
+                    tune(channel.socket());
+                    channel.configureBlocking(false);
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+            }
+            return channel;
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+        }
+    }
+
+    private static final class SocketConnection implements Connection {
+
+        private final Socket socket;
+
+        private SocketConnection(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.transport;
+
+import java.io.IOException;
+
+/**
+ * How out processes connect back to their executor.<br>
+ * The executor side listens on a new address for every out process and sends
+ * the address as argument, the out process side connects to it. Addresses
+ * start with the transport scheme, ex: <code>tcp:127.0.0.1:4321</code> or
+ * <code>unix:/tmp/out-process-123/socket</code>.<br>
+ * Custom transports must be on both classpaths and are found by scheme with
+ * <code>ServiceLoader</code>.
+ *
+ * @see Transports
+ * @see TcpTransport
+ * @see UnixDomainTransport
+ */
+public interface Transport {
+
+    /**
+     * Address scheme, must be unique.
+     *
+     * @return The scheme, without colon.
+     */
+    String getScheme();
+
+    /**
+     * Starts listening on a new address.
+     *
+     * @return The listening server.
+     * @throws IOException If cannot listen.
+     */
+    TransportServer listen() throws IOException;
+
+    /**
+     * Connects to an address returned by <code>TransportServer#getAddress()</code>.
+     *
+     * @param address Server address, scheme included.
+     * @return The connection.
+     * @throws IOException If cannot connect.
+     */
+    Connection connect(String address) throws IOException;
+}
@@ -0,0 +1,44 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A listening address created by <code>Transport#listen()</code>.
+ *
+ * @see Transport
+ */
+public interface TransportServer extends Closeable {
+
+    /**
+     * Gets the address out processes must connect to.
+     *
+     * @return The address, scheme included.
+     */
+    String getAddress();
+
+    /**
+     * Waits for the next connection.
+     *
+     * @return The accepted connection.
+     * @throws IOException If server was closed or cannot accept.
+     */
+    Connection accept() throws IOException;
+
+    boolean isClosed();
+}
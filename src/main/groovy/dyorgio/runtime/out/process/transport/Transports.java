@@ -0,0 +1,84 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.transport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+
+/**
+ * Transports known by this JVM: the built-in ones and the ones registered in
+ * <code>META-INF/services/dyorgio.runtime.out.process.transport.Transport</code>.
+ *
+ * @see Transport
+ */
+public final class Transports {
+
+    private static volatile List<Transport> available;
+
+    private Transports() {
+    }
+
+    /**
+     * Lists the known transports, unix domain sockets only if supported.
+     *
+     * @return Unmodifiable list of transports.
+     */
+    public static List<Transport> getAvailable() {
+        List<Transport> transports = available;
+        if (transports == null) {
+            transports = new ArrayList<>();
+            transports.add(new TcpTransport());
+            if (UnixDomainTransport.isSupported()) {
+                transports.add(new UnixDomainTransport());
+            }
+            for (Transport transport : ServiceLoader.load(Transport.class)) {
+                if (forScheme(transports, transport.getScheme()) == null) {
+                    transports.add(transport);
+                }
+            }
+            available = transports = Collections.unmodifiableList(transports);
+        }
+        return transports;
+    }
+
+    /**
+     * Connects to an address with the transport of its scheme.
+     *
+     * @param address Server address, scheme included.
+     * @return The connection.
+     * @throws IOException If no transport knows the scheme or cannot connect.
+     */
+    public static Connection connect(String address) throws IOException {
+        int separator = address.indexOf(':');
+        Transport transport = separator < 0 ? null : forScheme(getAvailable(), address.substring(0, separator));
+        if (transport == null) {
+            throw new IOException("Unknown transport: " + address);
+        }
+        return transport.connect(address);
+    }
+
+    private static Transport forScheme(List<Transport> transports, String scheme) {
+        for (Transport transport : transports) {
+            if (transport.getScheme().equals(scheme)) {
+                return transport;
+            }
+        }
+        return null;
+    }
+}
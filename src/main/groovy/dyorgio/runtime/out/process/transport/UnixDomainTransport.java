@@ -0,0 +1,289 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+
+/**
+ * Unix domain socket transport, skips the loopback TCP stack. Requires Java 16
+ * or later on both sides (Linux, macOS and Windows 10+).<br>
+ * Each server socket file is created inside a new temporary directory
+ * readable only by the current user (<code>rwx------</code>) and is deleted
+ * on close, so other users cannot even try to connect. The out process of a
+ * <code>RootExecutor</code> runs as root, so it can still connect.
+ *
+ * @see Transport
+ */
+public final class UnixDomainTransport implements SelectableTransport {
+
+    public static final String SCHEME = "unix";
+
+    private static final ProtocolFamily UNIX;
+    private static final Method ADDRESS_OF;
+    private static final Method OPEN_SERVER;
+    private static final Method OPEN_CLIENT;
+
+    static {
+        ProtocolFamily unix = null;
+        Method addressOf = null;
+        Method openServer = null;
+        Method openClient = null;
+        try {
+            // Java 16 API, compiled for Java 8
+            unix = StandardProtocolFamily.valueOf("UNIX");
+            addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", Path.class);
+            openServer = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+            openClient = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+        } catch (Exception e) {
+            unix = null;
+        }
+        UNIX = unix;
+        ADDRESS_OF = addressOf;
+        OPEN_SERVER = openServer;
+        OPEN_CLIENT = openClient;
+    }
+
+    /**
+     * Creates the transport.
+     *
+     * @throws UnsupportedOperationException If current JVM doesn't support
+     * unix domain sockets.
+     * @see #isSupported()
+     */
+    public UnixDomainTransport() {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Unix domain sockets require Java 16 or later.");
+        }
+    }
+
+    /**
+     * Checks if current JVM supports unix domain sockets.
+     *
+     * @return <code>true</code> if supported.
+     */
+    public static boolean isSupported() {
+        return UNIX != null;
+    }
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    @Override
+    public TransportServer listen() throws IOException {
+        Path directory;
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            directory = Files.createTempDirectory("out-process-",
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } else {
+            // per user temp directory on Windows
+            directory = Files.createTempDirectory("out-process-");
+        }
+        Path path = directory.resolve("socket");
+
+        ServerSocketChannel server = null;
+        try {
+            server = (ServerSocketChannel) invoke(OPEN_SERVER, UNIX);
+            server.bind(address(path));
+            return new Server(server, path);
+        } catch (IOException | RuntimeException e) {
+            if (server != null) {
+                server.close();
+            }
+            Files.deleteIfExists(path);
+            Files.deleteIfExists(directory);
+            throw e;
+        }
+    }
+
+    @Override
+    public SelectableServer listenSelectable() throws IOException {
+        Server server = (Server) listen();
+        try {
+            server.server.configureBlocking(false);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        return server;
+    }
+
+    @Override
+    public Connection connect(String address) throws IOException {
+        if (!address.startsWith(SCHEME + ':')) {
+            throw new IOException("Invalid unix address: " + address);
+        }
+        SocketChannel channel = (SocketChannel) invoke(OPEN_CLIENT, UNIX);
+        try {
+            channel.connect(address(Paths.get(address.substring(SCHEME.length() + 1))));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return new ChannelConnection(channel);
+    }
+
+    private static SocketAddress address(Path path) throws IOException {
+        return (SocketAddress) invoke(ADDRESS_OF, path);
+    }
+
+    private static Object invoke(Method method, Object arg) throws IOException {
+        try {
+            return method.invoke(null, arg);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return SCHEME;
+    }
+
+    private static final class Server implements TransportServer, SelectableServer {
+
+        private final ServerSocketChannel server;
+        private final Path path;
+
+        private Server(ServerSocketChannel server, Path path) {
+            this.server = server;
+            this.path = path;
+        }
+
+        @Override
+        public String getAddress() {
+            return SCHEME + ':' + path;
+        }
+
+        @Override
+        public Connection accept() throws IOException {
+            return new ChannelConnection(server.accept());
+        }
+
+        @Override
+        public ServerSocketChannel getChannel() {
+            return server;
+        }
+
+        @Override
+        public SocketChannel acceptChannel() throws IOException {
+            SocketChannel channel = server.accept();
+            if (channel != null) {
+                try {
+                    channel.configureBlocking(false);
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+            }
+            return channel;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return !server.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                server.close();
+            } finally {
+                Files.deleteIfExists(path);
+                Files.deleteIfExists(path.getParent());
+            }
+        }
+    }
+
+    /**
+     * Streams read and write the channel directly, <code>Channels</code>
+     * streams would block writes while a read is waiting.
+     */
+    private static final class ChannelConnection implements Connection {
+
+        private final SocketChannel channel;
+        private final InputStream in;
+        private final OutputStream out;
+
+        private ChannelConnection(SocketChannel channel) {
+            this.channel = channel;
+            this.in = new InputStream() {
+
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return len == 0 ? 0 : channel.read(ByteBuffer.wrap(b, off, len));
+                }
+            };
+            this.out = new OutputStream() {
+
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
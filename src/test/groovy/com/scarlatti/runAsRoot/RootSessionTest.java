@@ -0,0 +1,130 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package com.scarlatti.runAsRoot;
+
+import dyorgio.runtime.out.process.CallableSerializable;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RootSessionTest {
+
+    @Test
+    public void detachedLauncherExitDoesNotEndTheSession() throws Exception {
+        try (RootSession session = new RootSession(new DetachedManager(0), new String[0], null, 60000)) {
+            String first = session.call((CallableSerializable<String>) RootSessionTest::jvmName);
+            // the launcher is gone, the JVM it started still serves the session
+            Thread.sleep(500);
+            assertTrue(session.isElevated());
+            assertEquals(first, session.call((CallableSerializable<String>) RootSessionTest::jvmName));
+        }
+    }
+
+    @Test(expected = UserCanceledException.class)
+    public void failedDetachedLauncherIsHandled() throws Exception {
+        try (RootSession session = new RootSession(new DetachedManager(3), new String[0], null, 60000)) {
+            session.call((CallableSerializable<String>) RootSessionTest::jvmName);
+        }
+    }
+
+    @Test
+    public void concurrentCallsShareElevationWithoutLockingTheSession() throws Exception {
+        try (RootSession session = new RootSession(new DetachedManager(0, 2), new String[0], null, 60000)) {
+            CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> call(session));
+            CompletableFuture<String> second = CompletableFuture.supplyAsync(() -> call(session));
+            Thread.sleep(500);
+
+            // answered while the prompt is still up
+            assertFalse(CompletableFuture.supplyAsync(session::isElevated).get(1, TimeUnit.SECONDS));
+            assertEquals(first.get(30, TimeUnit.SECONDS), second.get(30, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void idleSessionIsReclaimed() throws Exception {
+        try (RootSession session = new RootSession(new DetachedManager(0), new String[0], null, 200)) {
+            String first = session.call((CallableSerializable<String>) RootSessionTest::jvmName);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (session.isElevated() && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+            assertFalse(session.isElevated());
+            assertNotEquals(first, session.call((CallableSerializable<String>) RootSessionTest::jvmName));
+        }
+    }
+
+    private static String jvmName() {
+        return ManagementFactory.getRuntimeMXBean().getName();
+    }
+
+    private static String call(RootSession session) {
+        try {
+            return session.call((CallableSerializable<String>) RootSessionTest::jvmName);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Starts the JVM in background and exits with a code, like the Windows
+     * launcher. Does not elevate.
+     */
+    private static final class DetachedManager implements RootProcessManager {
+
+        private final int code;
+        // seconds the user takes to answer the prompt
+        private final int promptSeconds;
+
+        private DetachedManager(int code) {
+            this(code, 0);
+        }
+
+        private DetachedManager(int code, int promptSeconds) {
+            this.code = code;
+            this.promptSeconds = promptSeconds;
+        }
+
+        @Override
+        public ProcessBuilder create(List<String> commands) {
+            List<String> command = new ArrayList<>(Arrays.asList("sh", "-c", "sleep " + promptSeconds + "; "
+                    + (code == 0 ? "\"$@\" > /dev/null 2>&1 & exit 0" : "exit " + code), "launcher"));
+            command.addAll(commands);
+            return new ProcessBuilder(command).inheritIO();
+        }
+
+        @Override
+        public boolean isDetached() {
+            return true;
+        }
+
+        @Override
+        public void handleCode(int code) throws UserCanceledException {
+            if (code == 3) {
+                throw new UserCanceledException();
+            }
+        }
+    }
+}
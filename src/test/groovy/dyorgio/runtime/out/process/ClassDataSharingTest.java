@@ -0,0 +1,151 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+public class ClassDataSharingTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordsClassesOnceForSameClasspath() throws Exception {
+        File archives = folder.newFolder("cds");
+        String classpath = jar("app.jar").getPath();
+        ClassDataSharing first = of(archives, classpath);
+
+        List<String> options = first.getJavaOptions();
+        assertEquals(1, options.size());
+        assertTrue(options.get(0).startsWith("-XX:DumpLoadedClassList=" + archives.getAbsolutePath() + File.separator + "out-process-"));
+        assertTrue(options.get(0).endsWith(".classlist.tmp"));
+
+        // another out process starts while the first one records
+        assertEquals(Collections.emptyList(), of(archives, classpath).getJavaOptions());
+
+        first.failed();
+        assertEquals(options, of(archives, classpath).getJavaOptions());
+    }
+
+    @Test
+    public void usesArchiveOnceDumped() throws Exception {
+        File archives = folder.newFolder("cds");
+        String classpath = jar("app.jar").getPath();
+        String recording = record(archives, classpath);
+
+        File archive = new File(recording.replace(".classlist.tmp", ".jsa"));
+        assertTrue(archive.createNewFile());
+        assertEquals(Collections.singletonList("-XX:SharedArchiveFile=" + archive.getAbsolutePath()), of(archives, classpath).getJavaOptions());
+    }
+
+    @Test
+    public void skipsFailedArchive() throws Exception {
+        File archives = folder.newFolder("cds");
+        String classpath = jar("app.jar").getPath();
+        String recording = record(archives, classpath);
+
+        assertTrue(new File(recording.replace(".classlist.tmp", ".failed")).createNewFile());
+        assertEquals(Collections.emptyList(), of(archives, classpath).getJavaOptions());
+    }
+
+    @Test
+    public void deletesArchiveOfChangedClasspath() throws Exception {
+        File archives = folder.newFolder("cds");
+        File jar = jar("app.jar");
+        String recording = record(archives, jar.getPath());
+        File stale = new File(recording.replace(".classlist.tmp", ".jsa"));
+        File failed = new File(recording.replace(".classlist.tmp", ".failed"));
+        assertTrue(stale.createNewFile());
+        assertTrue(failed.createNewFile());
+
+        // same name, new stamp
+        assertTrue(jar.setLastModified(jar.lastModified() - 60000));
+        String next = record(archives, jar.getPath());
+
+        assertFalse(next.equals(recording));
+        assertEquals(name(recording), name(next));
+        assertFalse(stale.exists());
+        assertFalse(failed.exists());
+    }
+
+    @Test
+    public void namesArchiveByOptions() throws Exception {
+        File archives = folder.newFolder("cds");
+        String classpath = jar("app.jar").getPath();
+
+        String plain = record(archives, classpath);
+        String tuned = record(archives, classpath, "-Xmx64m");
+        assertFalse(name(tuned).equals(name(plain)));
+    }
+
+    @Test
+    public void needsClasspathOfJars() throws Exception {
+        File archives = folder.newFolder("cds");
+        File classes = folder.newFolder("classes");
+        assertTrue(new File(classes, "A.class").createNewFile());
+
+        assertNull(ClassDataSharing.of(archives, classes.getPath(), classes.getPath(), new String[0]));
+        assertNull(ClassDataSharing.of(archives, folder.getRoot() + File.separator + "*", classes.getPath(), new String[0]));
+        assertNull(ClassDataSharing.of(null, jar("app.jar").getPath(), classes.getPath(), new String[0]));
+    }
+
+    private File jar(String name) throws Exception {
+        File file = folder.newFile(name);
+        new JarOutputStream(new FileOutputStream(file), new Manifest()).close();
+        return file;
+    }
+
+    private static ClassDataSharing of(File archives, String classpath, String... javaOptions) {
+        ClassDataSharing cds = ClassDataSharing.of(archives, classpath, classpath, javaOptions);
+        // JDK 11 or newer
+        assumeNotNull(cds);
+        return cds;
+    }
+
+    /**
+     * Starts and releases a recording, without running an out process.
+     */
+    private static String record(File archives, String classpath, String... javaOptions) {
+        ClassDataSharing cds = of(archives, classpath, javaOptions);
+        List<String> options = cds.getJavaOptions();
+        cds.failed();
+        assertEquals(1, options.size());
+        return options.get(0).substring(options.get(0).indexOf('=') + 1);
+    }
+
+    /**
+     * Archive name, without the classpath stamp.
+     */
+    private static String name(String path) {
+        String file = new File(path).getName();
+        return file.substring(0, file.lastIndexOf('-'));
+    }
+}
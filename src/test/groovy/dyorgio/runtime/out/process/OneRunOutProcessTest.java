@@ -0,0 +1,57 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OneRunOutProcessTest {
+
+    @Test
+    public void capturedOutputIncludesWhatTheJvmWritesByItself() throws Exception {
+        List<String> lines = Collections.synchronizedList(new ArrayList<>());
+        OneRunOutProcess outProcess = new OneRunOutProcess(new OutProcessConfig()
+                .withJavaOptions("-XX:+PrintCommandLineFlags")
+                .withOutputCapture(4096, (taskId, error, line) -> lines.add(taskId + (error ? " err " : " out ") + line)));
+
+        OneRunOutProcess.OutProcessResult<String> result = outProcess.call((CallableSerializable<String>) () -> {
+            System.out.println("printed by the task");
+            System.err.println("failed a bit");
+            return "done";
+        });
+
+        assertEquals("done", result.getResult());
+        String text = result.getOutput().getText();
+        assertTrue(text, text.contains("printed by the task\n"));
+        assertTrue(text, text.contains("-XX:+PrintCommandLineFlags"));
+        assertEquals("failed a bit\n", result.getOutput().getStderr());
+        assertTrue(lines.toString(), lines.contains("1 out printed by the task"));
+        assertTrue(lines.toString(), lines.contains("1 err failed a bit"));
+    }
+
+    @Test
+    public void outputIsNotKeptWithoutCapture() throws Exception {
+        OneRunOutProcess outProcess = new OneRunOutProcess(new OutProcessConfig());
+        assertNull(outProcess.call((CallableSerializable<String>) () -> "done").getOutput());
+    }
+}
@@ -0,0 +1,129 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+public class OutProcessExecutorServiceTest {
+
+    @Test
+    public void recycledWorkerKilledWithQueuedTasksHandsThemToCurrentWorker() throws Exception {
+        OutProcessExecutorService executor = new OutProcessExecutorService(new OutProcessConfig()
+                .withParallelism(1)
+                .withMaxInFlight(1)
+                .withHeartbeat(100, 10000, TimeUnit.MILLISECONDS)
+                .withRecycling(0, 0, 500, TimeUnit.MILLISECONDS));
+        try {
+            String old = executor.submit((CallableSerializable<String>) OutProcessExecutorServiceTest::jvmName).get();
+            // keeps the old JVM busy until it is recycled, then kills it
+            Future<String> dying = executor.submit((CallableSerializable<String>) () -> {
+                Thread.sleep(5000);
+                Runtime.getRuntime().halt(1);
+                return null;
+            });
+            // queued behind the dying task, never sent to the old JVM
+            Future<String> queued1 = executor.submit((CallableSerializable<String>) OutProcessExecutorServiceTest::jvmName);
+            Future<String> queued2 = executor.submit((CallableSerializable<String>) OutProcessExecutorServiceTest::jvmName);
+
+            try {
+                dying.get(30, TimeUnit.SECONDS);
+                fail("Task should fail with its JVM.");
+            } catch (ExecutionException e) {
+                // expected
+            }
+            String fresh = queued1.get(30, TimeUnit.SECONDS);
+            assertNotEquals(old, fresh);
+            assertEquals(fresh, queued2.get(30, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void keepsSendingTasksWhileCancelledTaskStops() throws Exception {
+        OutProcessExecutorService executor = new OutProcessExecutorService(new OutProcessConfig()
+                .withParallelism(2)
+                .withCancelGracePeriod(30, TimeUnit.SECONDS));
+        try {
+            String name = executor.submit((CallableSerializable<String>) OutProcessExecutorServiceTest::jvmName).get();
+            Future<String> stubborn = executor.submit((CallableSerializable<String>) () -> {
+                // ignores interruption for a while
+                long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                while (System.nanoTime() < end) {
+                    Thread.interrupted();
+                }
+                return null;
+            });
+            Thread.sleep(500);
+            stubborn.cancel(true);
+
+            Future<String> next = executor.submit((CallableSerializable<String>) OutProcessExecutorServiceTest::jvmName);
+            assertEquals(name, next.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void streamsItemsAndEndsIterationWhenCancelled() throws Exception {
+        OutProcessExecutorService executor = new OutProcessExecutorService(new OutProcessConfig().withStreamWindow(4));
+        try {
+            List<Integer> received = new ArrayList<>();
+            try (RemoteIterator<Integer> items = executor.stream((StreamingTask<Integer>) emitter -> {
+                for (int i = 0; i < 10; i++) {
+                    emitter.emit(i);
+                }
+            })) {
+                while (items.hasNext()) {
+                    received.add(items.next());
+                }
+            }
+            assertEquals(10, received.size());
+
+            RemoteIterator<Integer> endless = executor.stream((StreamingTask<Integer>) emitter -> {
+                for (int i = 0; ; i++) {
+                    emitter.emit(i);
+                }
+            });
+            assertEquals(0, (int) endless.next());
+            ((Future<?>) endless).cancel(true);
+            // items received before the cancel, then the end
+            while (endless.hasNext()) {
+                endless.next();
+            }
+            assertFalse(endless.hasNext());
+            endless.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String jvmName() {
+        return ManagementFactory.getRuntimeMXBean().getName();
+    }
+}
@@ -0,0 +1,94 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OutProcessPoolExecutorServiceTest {
+
+    @Test
+    public void stopsIdleWorkerWhileQueueIsBusy() throws Exception {
+        OutProcessPoolExecutorService executor = new OutProcessPoolExecutorService(1, 2, 300, TimeUnit.MILLISECONDS,
+                new OutProcessConfig().withParallelism(1));
+        try {
+            Future<Integer> first = executor.submit((CallableSerializable<Integer>) () -> {
+                Thread.sleep(1000);
+                return 1;
+            });
+            Future<Integer> second = executor.submit((CallableSerializable<Integer>) () -> {
+                Thread.sleep(1000);
+                return 2;
+            });
+            assertEquals(1, (int) first.get(30, TimeUnit.SECONDS));
+            assertEquals(2, (int) second.get(30, TimeUnit.SECONDS));
+            assertEquals(2, executor.getWorkerCount());
+
+            // a task every 100ms keeps the dispatcher busy, the idle JVM still stops
+            long deadline = System.currentTimeMillis() + 10000;
+            while (executor.getWorkerCount() > 1 && System.currentTimeMillis() < deadline) {
+                executor.submit((CallableSerializable<Integer>) () -> 0).get(30, TimeUnit.SECONDS);
+                Thread.sleep(100);
+            }
+            assertEquals(1, executor.getWorkerCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void runsOrRejectsTasksSubmittedDuringShutdown() throws Exception {
+        OutProcessPoolExecutorService executor = new OutProcessPoolExecutorService(1, 1, new OutProcessConfig());
+        List<Future<Integer>> accepted = new ArrayList<>();
+        CountDownLatch submitting = new CountDownLatch(1);
+        Thread submitter = new Thread(() -> {
+            try {
+                while (true) {
+                    accepted.add(executor.submit((CallableSerializable<Integer>) () -> 0));
+                    submitting.countDown();
+                }
+            } catch (RejectedExecutionException e) {
+                // expected once shut down
+            }
+        });
+        submitter.start();
+        assertTrue(submitting.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        submitter.join(10000);
+
+        for (Future<Integer> future : accepted) {
+            assertEquals(0, (int) future.get(60, TimeUnit.SECONDS));
+        }
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        try {
+            executor.execute(() -> {
+            });
+            fail("Task accepted after shutdown.");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class OutProcessUtilsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void referencesEntriesWithSpacesInPathingJar() throws Exception {
+        File classes = folder.newFolder("my classes");
+        Files.write(new File(classes, "a.txt").toPath(), "a".getBytes(StandardCharsets.UTF_8));
+        File lib = folder.newFolder("lib dir");
+        File jar = jar(new File(lib, "b b.jar"), "b.txt");
+
+        File pathing = OutProcessUtils.getPathingJar(classes + File.pathSeparator + jar, folder.newFolder("pathing"));
+
+        List<String> references = classPath(pathing);
+        assertEquals(2, references.size());
+        // spaces separate Class-Path entries, so they are escaped
+        assertEquals(classes.toURI().toString(), references.get(0));
+        assertTrue(references.get(0).endsWith("/my%20classes/"));
+        assertEquals(jar.toURI().toString(), references.get(1));
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{pathing.toURI().toURL()}, null)) {
+            assertNotNull(loader.getResource("a.txt"));
+            assertNotNull(loader.getResource("b.txt"));
+        }
+    }
+
+    @Test
+    public void expandsWildcardToJarsOnly() throws Exception {
+        File lib = folder.newFolder("lib");
+        jar(new File(lib, "a.jar"), "a.txt");
+        jar(new File(lib, "b.JAR"), "b.txt");
+        Files.write(new File(lib, "c.txt").toPath(), new byte[0]);
+
+        File pathing = OutProcessUtils.getPathingJar(lib + File.separator + "*", folder.newFolder("pathing"));
+
+        List<String> references = classPath(pathing);
+        references.sort(null);
+        assertEquals(Arrays.asList(new File(lib, "a.jar").toURI().toString(), new File(lib, "b.JAR").toURI().toString()), references);
+    }
+
+    @Test
+    public void reusesPathingJarOfSameClasspath() throws Exception {
+        File directory = folder.newFolder("pathing");
+        String classpath = folder.newFolder("classes").getPath();
+
+        File pathing = OutProcessUtils.getPathingJar(classpath, directory);
+        assertEquals(pathing, OutProcessUtils.getPathingJar(classpath, directory));
+        assertNotEquals(pathing, OutProcessUtils.getPathingJar(classpath + File.pathSeparator + folder.newFolder("other"), directory));
+        assertEquals(2, directory.list().length);
+    }
+
+    @Test
+    public void launchesWithClasspathIfPathingJarFails() throws Exception {
+        // a file where the directory should be
+        File directory = folder.newFile("pathing");
+        Thread thread = Thread.currentThread();
+        Thread.UncaughtExceptionHandler handler = thread.getUncaughtExceptionHandler();
+        Throwable[] reported = new Throwable[1];
+        thread.setUncaughtExceptionHandler((t, e) -> reported[0] = e);
+        try {
+            assertEquals("classes", OutProcessUtils.getLaunchClasspath("classes", directory));
+        } finally {
+            thread.setUncaughtExceptionHandler(handler);
+        }
+        assertNotNull(reported[0]);
+    }
+
+    private static File jar(File file, String entry) throws Exception {
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(file), new Manifest())) {
+            out.putNextEntry(new ZipEntry(entry));
+            out.write(1);
+        }
+        return file;
+    }
+
+    private static List<String> classPath(File pathing) throws Exception {
+        try (JarFile jar = new JarFile(pathing)) {
+            return Arrays.asList(jar.getManifest().getMainAttributes().getValue("Class-Path").split(" "));
+        }
+    }
+}
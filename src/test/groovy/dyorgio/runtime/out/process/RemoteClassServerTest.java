@@ -0,0 +1,68 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import dyorgio.runtime.out.process.protocol.Message;
+import dyorgio.runtime.out.process.protocol.Resource;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RemoteClassServerTest {
+
+    private static final byte[] CONTENT = "content".getBytes(StandardCharsets.UTF_8);
+    private static final String DIGEST = "ed7002b439e9ac845f22357d822bac1444730fbdb6016d3ec9432297b9ec9f73";
+
+    private final ClassLoader loader = new ClassLoader(null) {
+
+        @Override
+        public InputStream getResourceAsStream(String name) {
+            return "a/b.txt".equals(name) ? new ByteArrayInputStream(CONTENT) : null;
+        }
+    };
+
+    @Test
+    public void sendsContentNotCached() {
+        Resource resource = RemoteClassServer.lookup(loader, fetch("a/b.txt", null));
+        assertEquals(DIGEST, resource.getDigest());
+        assertArrayEquals(CONTENT, resource.getBytes());
+
+        resource = RemoteClassServer.lookup(loader, fetch("a/b.txt", "0" + DIGEST.substring(1)));
+        assertArrayEquals(CONTENT, resource.getBytes());
+    }
+
+    @Test
+    public void confirmsCachedContent() {
+        Resource resource = RemoteClassServer.lookup(loader, fetch("a/b.txt", DIGEST));
+        assertEquals(DIGEST, resource.getDigest());
+        assertNull(resource.getBytes());
+    }
+
+    @Test
+    public void repliesMissingResources() {
+        assertNull(RemoteClassServer.lookup(loader, fetch("a/c.txt", null)));
+    }
+
+    private static Message fetch(String name, String cachedDigest) {
+        return new Message(Message.FETCH, 1, new String[]{name, cachedDigest});
+    }
+}
@@ -0,0 +1,132 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+public class ResourceGroupTest {
+
+    @Rule
+    public TemporaryFolder parent = new TemporaryFolder();
+
+    @Test
+    public void hasNoGroupWithoutLimits() throws Exception {
+        assertNull(ResourceGroup.create(null));
+    }
+
+    @Test
+    public void writesLimitsBeforeStartingCommand() throws Exception {
+        ResourceGroup group = create(new ResourceLimits()
+                .withCpuQuota(0.5)
+                .withMemoryMax(256L << 20)
+                .withIoWeight(50)
+                .withCpuSet("0-1"));
+        assertEquals(parent.getRoot(), group.getDirectory().getParentFile());
+        assertTrue(group.getDirectory().getName().startsWith("out-process-"));
+
+        // a plain directory stands for the parent group
+        File started = new File(parent.getRoot(), "started");
+        run(group.wrap(Arrays.asList("touch", started.getPath())));
+
+        assertTrue(started.isFile());
+        assertEquals("50000 100000", read(group, "cpu.max"));
+        assertEquals(String.valueOf(256L << 20), read(group, "memory.max"));
+        assertEquals("default 50", read(group, "io.weight"));
+        assertEquals("0-1", read(group, "cpuset.cpus"));
+        assertFalse(read(group, "cgroup.procs").isEmpty());
+        assertTrue(new File(parent.getRoot(), "cgroup.subtree_control").isFile());
+    }
+
+    @Test
+    public void writesOnlyLimitsSet() throws Exception {
+        ResourceGroup group = create(new ResourceLimits().withMemoryMax(1L << 30));
+        run(group.wrap(Arrays.asList("true")));
+
+        assertTrue(new File(group.getDirectory(), "memory.max").isFile());
+        assertFalse(new File(group.getDirectory(), "cpu.max").exists());
+        assertFalse(new File(group.getDirectory(), "io.weight").exists());
+        assertFalse(new File(group.getDirectory(), "cpuset.cpus").exists());
+    }
+
+    @Test
+    public void failsIfGroupCannotBeCreated() throws Exception {
+        ResourceGroup group = create(new ResourceLimits().withMemoryMax(1L << 30));
+        assertTrue(group.getDirectory().mkdir());
+
+        Process process = new ProcessBuilder(group.wrap(Arrays.asList("true"))).start();
+        assertTrue(process.waitFor(10, TimeUnit.SECONDS));
+        assertTrue(process.exitValue() != 0);
+    }
+
+    @Test
+    public void readsUsageCounters() throws Exception {
+        ResourceGroup group = create(new ResourceLimits().withMemoryMax(1L << 30));
+        File directory = group.getDirectory();
+        assertTrue(directory.mkdir());
+        write(directory, "cpu.stat", "usage_usec 1500\nuser_usec 1000\nsystem_usec 500\nthrottled_usec 20\n");
+        write(directory, "memory.current", "4096\n");
+        write(directory, "memory.events", "low 0\nhigh 0\nmax 3\noom 1\noom_kill 1\n");
+        write(directory, "io.stat", "8:0 rbytes=100 wbytes=200 rios=1 wios=2\n8:16 rbytes=10 wbytes=20 rios=1 wios=1\n");
+
+        ResourceUsage usage = group.getUsage();
+        assertEquals(1500, usage.getCpuUsageMicros());
+        assertEquals(20, usage.getCpuThrottledMicros());
+        assertEquals(4096, usage.getMemoryCurrent());
+        // memory.peak needs Linux 5.19
+        assertEquals(-1, usage.getMemoryPeak());
+        assertEquals(1, usage.getOomKills());
+        assertEquals(110, usage.getIoReadBytes());
+        assertEquals(220, usage.getIoWriteBytes());
+    }
+
+    private ResourceGroup create(ResourceLimits limits) throws Exception {
+        ResourceGroup group = ResourceGroup.create(limits.withParentGroup(parent.getRoot()));
+        // only on Linux
+        assumeNotNull(group);
+        return group;
+    }
+
+    private static void run(List<String> command) throws Exception {
+        Process process = new ProcessBuilder(command).inheritIO().start();
+        assertTrue(process.waitFor(10, TimeUnit.SECONDS));
+        assertEquals(0, process.exitValue());
+    }
+
+    private static String read(ResourceGroup group, String file) throws Exception {
+        File path = new File(group.getDirectory(), file);
+        assertTrue(path.getPath(), path.isFile());
+        return new String(Files.readAllBytes(path.toPath()), StandardCharsets.UTF_8).trim();
+    }
+
+    private static void write(File directory, String file, String content) throws Exception {
+        Files.write(new File(directory, file).toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,91 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ResourceLimitsTest {
+
+    @Test
+    public void keepsLimitsWhenSerialized() throws Exception {
+        ResourceLimits limits = new ResourceLimits()
+                .withCpuQuota(1.5)
+                .withMemoryMax(512L << 20)
+                .withIoWeight(50)
+                .withCpuSet("0-3,6")
+                .withParentGroup(new File("/sys/fs/cgroup/app.service"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(limits);
+        }
+        ResourceLimits read;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            read = (ResourceLimits) in.readObject();
+        }
+        assertEquals(limits.toString(), read.toString());
+    }
+
+    @Test
+    public void writesCpuQuotaOverPeriod() {
+        assertNull(new ResourceLimits().getCpuMax());
+        assertEquals("150000 100000", new ResourceLimits().withCpuQuota(1.5).getCpuMax());
+        // the kernel refuses quotas under 1ms
+        assertEquals("1000 100000", new ResourceLimits().withCpuQuota(0.001).getCpuMax());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeCpuQuota() {
+        new ResourceLimits().withCpuQuota(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNaNCpuQuota() {
+        new ResourceLimits().withCpuQuota(Double.NaN);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeMemoryMax() {
+        new ResourceLimits().withMemoryMax(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsIoWeightOutOfRange() {
+        new ResourceLimits().withIoWeight(10001);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidCpuSet() {
+        // would be written to the launch script as is
+        new ResourceLimits().withCpuSet("0; reboot");
+    }
+
+    @Test
+    public void acceptsCpuLists() {
+        assertEquals("0", new ResourceLimits().withCpuSet("0").getCpuSet());
+        assertEquals("0-3,6,8-9", new ResourceLimits().withCpuSet("0-3,6,8-9").getCpuSet());
+        assertNull(new ResourceLimits().withCpuSet("1").withCpuSet(null).getCpuSet());
+    }
+}
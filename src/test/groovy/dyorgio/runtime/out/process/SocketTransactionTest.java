@@ -0,0 +1,43 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import dyorgio.runtime.out.process.transport.UnixDomainTransport;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+public class SocketTransactionTest {
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void getsPortOfTcpAddress() throws Exception {
+        try (SocketTransaction<String, String> tx = new SocketTransaction<>("request")) {
+            String address = tx.getAddress();
+            assertEquals(address.substring(address.lastIndexOf(':') + 1), String.valueOf(tx.getPort()));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    @SuppressWarnings("deprecation")
+    public void hasNoPortWithUnixDomainSockets() throws Exception {
+        assumeTrue(UnixDomainTransport.isSupported());
+        try (SocketTransaction<String, String> tx = new SocketTransaction<>("request", 0, new UnixDomainTransport())) {
+            tx.getPort();
+        }
+    }
+}
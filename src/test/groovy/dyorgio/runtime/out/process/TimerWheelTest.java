@@ -0,0 +1,131 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TimerWheelTest {
+
+    @Test
+    public void runsAfterDelay() throws Exception {
+        CountDownLatch ran = new CountDownLatch(1);
+        AtomicLong ranAt = new AtomicLong();
+        long start = System.nanoTime();
+        TimerWheel.shared().schedule(() -> {
+            ranAt.set(System.nanoTime());
+            ran.countDown();
+        }, 100, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertTrue(ranAt.get() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void runsInDeadlineOrder() throws Exception {
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch ran = new CountDownLatch(3);
+        TimerWheel timer = TimerWheel.shared();
+        for (int delay : new int[]{150, 50, 100}) {
+            timer.schedule(() -> {
+                order.add(delay);
+                ran.countDown();
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(50, 100, 150), order);
+    }
+
+    @Test
+    public void runsZeroAndNegativeDelaysSoon() throws Exception {
+        CountDownLatch ran = new CountDownLatch(2);
+        TimerWheel.shared().schedule(ran::countDown, 0, TimeUnit.MILLISECONDS);
+        TimerWheel.shared().schedule(ran::countDown, -1, TimeUnit.SECONDS);
+
+        assertTrue(ran.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void cancelsBeforeRunning() throws Exception {
+        AtomicBoolean cancelledRan = new AtomicBoolean();
+        CountDownLatch ran = new CountDownLatch(1);
+        TimerWheel.Timeout cancelled = TimerWheel.shared().schedule(() -> cancelledRan.set(true), 50, TimeUnit.MILLISECONDS);
+        TimerWheel.shared().schedule(ran::countDown, 150, TimeUnit.MILLISECONDS);
+
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertFalse(cancelledRan.get());
+    }
+
+    @Test
+    public void cannotCancelAfterRunning() throws Exception {
+        CountDownLatch ran = new CountDownLatch(1);
+        TimerWheel.Timeout timeout = TimerWheel.shared().schedule(ran::countDown, 10, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    public void runsDelaysLongerThanWheel() throws Exception {
+        // the wheel turns in 5.12s, rounds keep the task for the next turn
+        CountDownLatch ran = new CountDownLatch(1);
+        AtomicLong ranAt = new AtomicLong();
+        long start = System.nanoTime();
+        TimerWheel.shared().schedule(() -> {
+            ranAt.set(System.nanoTime());
+            ran.countDown();
+        }, 5200, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(10, TimeUnit.SECONDS));
+        assertTrue(ranAt.get() - start >= TimeUnit.MILLISECONDS.toNanos(5200));
+    }
+
+    @Test
+    public void keepsRunningAfterFailedTask() throws Exception {
+        CompletableFuture<Throwable> reported = new CompletableFuture<>();
+        CountDownLatch ran = new CountDownLatch(1);
+        IllegalStateException failure = new IllegalStateException("Expected by the test.");
+        TimerWheel.shared().schedule(() -> Thread.currentThread().setUncaughtExceptionHandler((thread, e) -> reported.complete(e)),
+                0, TimeUnit.MILLISECONDS);
+        TimerWheel.shared().schedule(() -> {
+            throw failure;
+        }, 10, TimeUnit.MILLISECONDS);
+        TimerWheel.shared().schedule(() -> {
+            Thread.currentThread().setUncaughtExceptionHandler(null);
+            ran.countDown();
+        }, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertSame(failure, reported.get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,280 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process;
+
+import dyorgio.runtime.out.process.protocol.Compression;
+import dyorgio.runtime.out.process.protocol.Handshake;
+import dyorgio.runtime.out.process.protocol.JavaSerializationCodec;
+import dyorgio.runtime.out.process.protocol.Message;
+import dyorgio.runtime.out.process.protocol.MessageChannel;
+import dyorgio.runtime.out.process.protocol.PayloadCodec;
+import dyorgio.runtime.out.process.protocol.PayloadException;
+import dyorgio.runtime.out.process.transport.Connection;
+import dyorgio.runtime.out.process.transport.TcpTransport;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TransactionSelectorTest {
+
+    private final TcpTransport transport = new TcpTransport();
+    private TransactionSelector selector;
+
+    @Before
+    public void start() throws IOException {
+        selector = TransactionSelector.getShared(transport);
+    }
+
+    @Test
+    public void sendsCallAndReceivesResponse() throws Exception {
+        String secret = UUID.randomUUID().toString();
+        FakeTransaction transaction = new FakeTransaction("call");
+        selector.register(secret, transaction);
+
+        try (Connection connection = transport.connect(selector.getAddress())) {
+            MessageChannel channel = connect(connection, secret);
+            Message call = channel.read();
+            assertEquals(Message.CALL, call.getType());
+            assertEquals("call", call.getPayload());
+            channel.write(Message.RESULT, call.getId(), "result");
+
+            Message response = transaction.response.get(5, TimeUnit.SECONDS);
+            assertEquals(Message.RESULT, response.getType());
+            assertEquals("result", response.getPayload());
+        }
+        assertFalse(transaction.failure.isDone());
+    }
+
+    @Test
+    public void sendsRequestKnownAfterConnection() throws Exception {
+        String secret = UUID.randomUUID().toString();
+        FakeTransaction transaction = new FakeTransaction(null);
+        TransactionSelector.Registration registration = selector.register(secret, transaction);
+
+        try (Connection connection = transport.connect(selector.getAddress())) {
+            MessageChannel channel = connect(connection, secret);
+            transaction.request = "late call";
+            registration.send();
+            assertEquals("late call", channel.read().getPayload());
+            channel.write(Message.ERROR, 1, new IllegalStateException("failed"));
+
+            assertEquals(Message.ERROR, transaction.response.get(5, TimeUnit.SECONDS).getType());
+        }
+    }
+
+    @Test
+    public void slowDecodingDoesNotStallOtherTransactions() throws Exception {
+        String slowSecret = UUID.randomUUID().toString();
+        FakeTransaction slow = new FakeTransaction("slow");
+        selector.register(slowSecret, slow);
+        String fastSecret = UUID.randomUUID().toString();
+        FakeTransaction fast = new FakeTransaction("fast");
+        selector.register(fastSecret, fast);
+
+        try (Connection slowConnection = transport.connect(selector.getAddress());
+                Connection fastConnection = transport.connect(selector.getAddress())) {
+            MessageChannel slowChannel = connect(slowConnection, slowSecret);
+            slowChannel.read();
+            slowChannel.write(Message.RESULT, 1, new BlockingPayload());
+            assertTrue(BlockingPayload.decoding.await(5, TimeUnit.SECONDS));
+
+            // a stalled selector would never welcome it
+            CompletableFuture.runAsync(() -> {
+                try {
+                    MessageChannel fastChannel = connect(fastConnection, fastSecret);
+                    fastChannel.read();
+                    fastChannel.write(Message.RESULT, 1, "fast result");
+                } catch (IOException | PayloadException e) {
+                    fast.failure.complete(e);
+                }
+            });
+            assertEquals("fast result", fast.response.get(5, TimeUnit.SECONDS).getPayload());
+            assertFalse(slow.response.isDone());
+        } finally {
+            BlockingPayload.release.countDown();
+        }
+        assertTrue(slow.response.get(5, TimeUnit.SECONDS).getPayload() instanceof BlockingPayload);
+    }
+
+    @Test
+    public void dropsUnknownSecret() throws Exception {
+        FakeTransaction transaction = new FakeTransaction("call");
+        selector.register(UUID.randomUUID().toString(), transaction);
+
+        try (Connection connection = transport.connect(selector.getAddress())) {
+            MessageChannel channel = new MessageChannel(connection.getInputStream(), connection.getOutputStream());
+            Handshake.connect(channel, "unknown");
+            fail("Unknown secret was welcomed.");
+        } catch (EOFException e) {
+            // expected
+        }
+        assertFalse(transaction.response.isDone());
+        assertFalse(transaction.failure.isDone());
+    }
+
+    @Test
+    public void failsOnFrameAboveMaxFrameSize() throws Exception {
+        String secret = UUID.randomUUID().toString();
+        FakeTransaction transaction = new FakeTransaction("call");
+        selector.register(secret, transaction);
+
+        try (Connection connection = transport.connect(selector.getAddress())) {
+            MessageChannel channel = connect(connection, secret);
+            assertEquals(FakeTransaction.MAX_FRAME_SIZE, channel.getMaxFrameSize());
+            channel.read();
+            // only the length is sent, the selector must not wait for the rest
+            DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+            out.writeInt(FakeTransaction.MAX_FRAME_SIZE + 1);
+            out.flush();
+
+            assertTrue(transaction.failure.get(5, TimeUnit.SECONDS) instanceof StreamCorruptedException);
+        }
+        assertFalse(transaction.response.isDone());
+    }
+
+    @Test
+    public void failsWhenOutProcessDisconnects() throws Exception {
+        String secret = UUID.randomUUID().toString();
+        FakeTransaction transaction = new FakeTransaction("call");
+        selector.register(secret, transaction);
+
+        try (Connection connection = transport.connect(selector.getAddress())) {
+            connect(connection, secret).read();
+        }
+        assertTrue(transaction.failure.get(5, TimeUnit.SECONDS) instanceof EOFException);
+    }
+
+    @Test
+    public void stopsCallbacksWhenCancelled() throws Exception {
+        String secret = UUID.randomUUID().toString();
+        FakeTransaction transaction = new FakeTransaction("call");
+        TransactionSelector.Registration registration = selector.register(secret, transaction);
+
+        try (Connection connection = transport.connect(selector.getAddress())) {
+            MessageChannel channel = connect(connection, secret);
+            channel.read();
+            registration.cancel();
+            try {
+                channel.read();
+                fail("Connection still open after cancel.");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        assertFalse(transaction.response.isDone());
+        assertFalse(transaction.failure.isDone());
+    }
+
+    private static MessageChannel connect(Connection connection, String secret) throws IOException {
+        MessageChannel channel = new MessageChannel(connection.getInputStream(), connection.getOutputStream());
+        Handshake.connect(channel, secret);
+        return channel;
+    }
+
+    /**
+     * Blocks its decoding until released.
+     */
+    private static final class BlockingPayload implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final CountDownLatch decoding = new CountDownLatch(1);
+        private static final CountDownLatch release = new CountDownLatch(1);
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            decoding.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private static final class FakeTransaction implements TransactionSelector.Transaction {
+
+        private static final int MAX_FRAME_SIZE = 64 * 1024;
+
+        private final CompletableFuture<Message> response = new CompletableFuture<>();
+        private final CompletableFuture<Exception> failure = new CompletableFuture<>();
+        private volatile Serializable request;
+
+        private FakeTransaction(Serializable request) {
+            this.request = request;
+        }
+
+        @Override
+        public Serializable getRequest() {
+            return request;
+        }
+
+        @Override
+        public PayloadCodec getCodec() {
+            return new JavaSerializationCodec();
+        }
+
+        @Override
+        public Compression getCompression() {
+            return null;
+        }
+
+        @Override
+        public ClassLoader getClassLoader() {
+            return getClass().getClassLoader();
+        }
+
+        @Override
+        public CallMetrics getMetrics() {
+            return null;
+        }
+
+        @Override
+        public int getMaxFrameSize() {
+            return MAX_FRAME_SIZE;
+        }
+
+        @Override
+        public void onResponse(Message response) {
+            this.response.complete(response);
+        }
+
+        @Override
+        public void onOutput(Message output) {
+        }
+
+        @Override
+        public void onFailure(Exception error) {
+            failure.complete(error);
+        }
+    }
+}
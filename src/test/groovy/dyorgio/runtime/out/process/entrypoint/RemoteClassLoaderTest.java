@@ -0,0 +1,210 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.entrypoint;
+
+import dyorgio.runtime.out.process.protocol.Message;
+import dyorgio.runtime.out.process.protocol.MessageChannel;
+import dyorgio.runtime.out.process.protocol.Resource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static dyorgio.runtime.out.process.OutProcessUtils.REMOTE_CLASSES;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class RemoteClassLoaderTest {
+
+    private static final String NAME = "remote/data.txt";
+
+    @Rule
+    public TemporaryFolder cache = new TemporaryFolder();
+
+    private final Map<String, byte[]> executorResources = new ConcurrentHashMap<>();
+    // name and cached digest of each FETCH
+    private final List<List<String>> fetches = new CopyOnWriteArrayList<>();
+    private final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+
+    @Before
+    public void enable() {
+        System.setProperty(REMOTE_CLASSES, cache.getRoot().getPath());
+    }
+
+    @After
+    public void disable() {
+        System.clearProperty(REMOTE_CLASSES);
+        Thread.currentThread().setContextClassLoader(contextClassLoader);
+    }
+
+    @Test
+    public void fetchesContentOnce() throws Exception {
+        byte[] content = "first".getBytes(StandardCharsets.UTF_8);
+        executorResources.put(NAME, content);
+
+        assertArrayEquals(content, read(connect().getResource(NAME)));
+        assertEquals(Arrays.asList(NAME, null), fetches.get(0));
+
+        // next out process, the executor only confirms the digest
+        assertArrayEquals(content, read(connect().getResource(NAME)));
+        assertEquals(Arrays.asList(NAME, digest(content)), fetches.get(1));
+    }
+
+    @Test
+    public void fetchesChangedContent() throws Exception {
+        executorResources.put(NAME, "first".getBytes(StandardCharsets.UTF_8));
+        read(connect().getResource(NAME));
+
+        byte[] changed = "second".getBytes(StandardCharsets.UTF_8);
+        executorResources.put(NAME, changed);
+        assertArrayEquals(changed, read(connect().getResource(NAME)));
+        assertArrayEquals(changed, read(connect().getResource(NAME)));
+        assertEquals(Arrays.asList(NAME, digest(changed)), fetches.get(2));
+    }
+
+    @Test
+    public void fetchesEvictedContent() throws Exception {
+        byte[] content = "first".getBytes(StandardCharsets.UTF_8);
+        executorResources.put(NAME, content);
+        read(connect().getResource(NAME));
+
+        File cached = new File(cache.getRoot(), digest(content));
+        assertArrayEquals(content, read(cached.toURI().toURL()));
+        cached.delete();
+
+        assertArrayEquals(content, read(connect().getResource(NAME)));
+        assertEquals(Arrays.asList(NAME, null), fetches.get(1));
+    }
+
+    @Test
+    public void definesFetchedClasses() throws Exception {
+        String name = Remote.class.getName();
+        String file = name.replace('.', '/') + ".class";
+        try (InputStream in = Remote.class.getClassLoader().getResourceAsStream(file)) {
+            executorResources.put(file, readFully(in));
+        }
+        RemoteClassLoader loader = connect();
+
+        // the parent has it too, define the fetched copy
+        Class<?> type = loader.findClass(name);
+        assertSame(loader, type.getClassLoader());
+        assertEquals("remote", type.getDeclaredConstructor().newInstance().toString());
+        try {
+            loader.findClass("remote.Missing");
+            fail("Missing class loaded.");
+        } catch (ClassNotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void failsFetchesOnceClosed() throws Exception {
+        executorResources.put(NAME, "first".getBytes(StandardCharsets.UTF_8));
+        RemoteClassLoader loader = connect();
+        loader.close(new IOException("closed"));
+
+        assertNull(loader.getResource(NAME));
+        assertEquals(0, fetches.size());
+    }
+
+    /**
+     * Connects a new class loader to an executor serving
+     * <code>executorResources</code>.
+     */
+    private RemoteClassLoader connect() throws IOException {
+        PipedInputStream fromExecutor = new PipedInputStream();
+        PipedInputStream fromOutProcess = new PipedInputStream();
+        MessageChannel outProcess = new MessageChannel(fromExecutor, new PipedOutputStream(fromOutProcess), 256);
+        MessageChannel executor = new MessageChannel(fromOutProcess, new PipedOutputStream(fromExecutor), 256);
+
+        Thread server = new Thread(() -> {
+            try {
+                while (true) {
+                    Message fetch = executor.read();
+                    String[] request = (String[]) fetch.getPayload();
+                    fetches.add(Arrays.asList(request));
+                    byte[] bytes = executorResources.get(request[0]);
+                    Resource resource = null;
+                    if (bytes != null) {
+                        String digest = digest(bytes);
+                        resource = new Resource(digest, digest.equals(request[1]) ? null : bytes);
+                    }
+                    executor.writeResource(fetch.getId(), resource);
+                }
+            } catch (Exception e) {
+                // out process gone
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+
+        RemoteClassLoader loader = RemoteClassLoader.install(outProcess);
+        assertSame(loader, Thread.currentThread().getContextClassLoader());
+        loader.startReader();
+        return loader;
+    }
+
+    private static byte[] read(URL url) throws IOException {
+        try (InputStream in = url.openStream()) {
+            return readFully(in);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static String digest(byte[] bytes) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    public static final class Remote {
+
+        @Override
+        public String toString() {
+            return "remote";
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class CompactCodecTest {
+
+    @Test
+    public void roundTripsTaggedTypes() throws Exception {
+        Connection connection = new Connection();
+        List<Object> payloads = Arrays.asList(true, false, (byte) 1, (short) 2, 'c', 3, 4L, 5f, 6d,
+                "", "text", "\u00e9\u4e2d\ud83d\ude00");
+        for (Object payload : payloads) {
+            assertEquals(payload, connection.roundTrip(payload));
+        }
+        assertNull(connection.roundTrip(null));
+        assertArrayEquals(new byte[]{1, 2, 3}, (byte[]) connection.roundTrip(new byte[]{1, 2, 3}));
+    }
+
+    @Test
+    public void keepsCollectionClasses() throws Exception {
+        Connection connection = new Connection();
+        Map<String, Long> map = new LinkedHashMap<>();
+        map.put("b", 2L);
+        map.put("a", null);
+        List<Object> payloads = Arrays.asList(
+                new ArrayList<>(Arrays.asList(1, "two", null)),
+                new LinkedList<>(Arrays.asList(1, 2)),
+                new HashSet<>(Arrays.asList("a", "b")),
+                new LinkedHashSet<>(Arrays.asList("b", "a")),
+                new HashMap<>(map),
+                map,
+                new ArrayList<>(Arrays.asList(new ArrayList<>(Arrays.asList(1)), new HashMap<>(map))));
+        for (Object payload : payloads) {
+            Object copy = connection.roundTrip(payload);
+            assertSame(payload.getClass(), copy.getClass());
+            assertEquals(payload, copy);
+        }
+        assertEquals(new ArrayList<>(map.keySet()), new ArrayList<>(((Map<?, ?>) connection.roundTrip(map)).keySet()));
+    }
+
+    @Test
+    public void roundTripsExternalizableAndFallbackObjects() throws Exception {
+        Connection connection = new Connection();
+        ArrayList<Object> records = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            records.add(new Record("record-" + i, i, new Task("task-" + i, i)));
+        }
+        assertEquals(records, connection.roundTrip(records));
+        assertEquals(new Task("task", 1), connection.roundTrip(new Task("task", 1)));
+        // tasks in collections of unsupported classes fall back too
+        List<Task> tasks = Arrays.asList(new Task("a", 1), new Task("b", 2));
+        assertEquals(tasks, connection.roundTrip(tasks));
+    }
+
+    @Test
+    public void doesNotShareObjects() throws Exception {
+        Connection connection = new Connection();
+        String text = "shared";
+        Record record = new Record(text, 1, null);
+        ArrayList<Object> payload = new ArrayList<>(Arrays.asList(record, record));
+        @SuppressWarnings("unchecked")
+        List<Object> copy = (List<Object>) connection.roundTrip(payload);
+        assertEquals(copy.get(0), copy.get(1));
+        assertNotSame(copy.get(0), copy.get(1));
+    }
+
+    @Test
+    public void roundTripsPayloadsAfterBigOne() throws Exception {
+        Connection connection = new Connection();
+        byte[] big = new byte[2 * 1024 * 1024];
+        big[big.length - 1] = 7;
+        assertArrayEquals(big, (byte[]) connection.roundTrip(big));
+        assertEquals(new Task("small", 1), connection.roundTrip(new Task("small", 1)));
+        assertEquals("small", connection.roundTrip("small"));
+    }
+
+    /**
+     * One encoder and one decoder for many payloads, the way a
+     * <code>MessageChannel</code> uses them.
+     */
+    private static final class Connection {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final PayloadInput in = new PayloadInput();
+        private final PayloadEncoder encoder;
+        private final PayloadDecoder decoder;
+
+        private Connection() {
+            CompactCodec codec = new CompactCodec();
+            encoder = codec.newEncoder(out);
+            decoder = codec.newDecoder(in);
+        }
+
+        private Object roundTrip(Object payload) throws IOException, ClassNotFoundException {
+            out.reset();
+            encoder.encode(payload);
+            in.current = new ByteArrayInputStream(out.toByteArray());
+            Object copy = decoder.decode();
+            assertEquals(0, in.current.available());
+            return copy;
+        }
+    }
+
+    private static final class PayloadInput extends InputStream {
+
+        private InputStream current;
+
+        @Override
+        public int read() throws IOException {
+            return current.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return current.read(b, off, len);
+        }
+    }
+
+    private static final class Task implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private final int attempts;
+
+        private Task(String name, int attempts) {
+            this.name = name;
+            this.attempts = attempts;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Task)) {
+                return false;
+            }
+            Task other = (Task) o;
+            return name.equals(other.name) && attempts == other.attempts;
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+    }
+
+    public static final class Record implements Externalizable {
+
+        private String name;
+        private long count;
+        private Task task;
+
+        public Record() {
+        }
+
+        private Record(String name, long count, Task task) {
+            this.name = name;
+            this.count = count;
+            this.task = task;
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeUTF(name);
+            out.writeLong(count);
+            out.writeObject(task);
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+            name = in.readUTF();
+            count = in.readLong();
+            task = (Task) in.readObject();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Record)) {
+                return false;
+            }
+            Record other = (Record) o;
+            return name.equals(other.name) && count == other.count
+                    && (task == null ? other.task == null : task.equals(other.task));
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+    }
+}
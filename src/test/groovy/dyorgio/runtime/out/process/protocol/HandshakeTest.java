@@ -0,0 +1,147 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.protocol;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HandshakeTest {
+
+    private final ExecutorService outProcess = Executors.newSingleThreadExecutor();
+    private Socket executorSocket;
+    private Socket outProcessSocket;
+    private MessageChannel executor;
+    private MessageChannel client;
+
+    @Before
+    public void connect() throws IOException {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            outProcessSocket = new Socket(server.getInetAddress(), server.getLocalPort());
+            executorSocket = server.accept();
+        }
+        executor = new MessageChannel(executorSocket.getInputStream(), executorSocket.getOutputStream());
+        client = new MessageChannel(outProcessSocket.getInputStream(), outProcessSocket.getOutputStream());
+    }
+
+    @After
+    public void close() throws IOException {
+        outProcess.shutdownNow();
+        executorSocket.close();
+        outProcessSocket.close();
+    }
+
+    @Test
+    public void negotiatesPreferredCodec() throws Exception {
+        Future<Map<String, String>> welcome = outProcess.submit(() -> Handshake.connect(client, "secret", 1234));
+
+        Map<String, String> hello = Handshake.readHello(executor);
+        assertEquals("secret", hello.get(Handshake.SECRET));
+        assertEquals(1234, Handshake.getLaunchedAt(hello));
+        PayloadCodec codec = Handshake.welcome(executor, hello, new CompactCodec(), null);
+        assertEquals(CompactCodec.NAME, codec.getName());
+
+        assertEquals(CompactCodec.NAME, welcome.get(5, TimeUnit.SECONDS).get(Handshake.CODEC));
+        assertEquals(CompactCodec.NAME, client.getCodec().getName());
+        assertEquals(CompactCodec.NAME, executor.getCodec().getName());
+        // both sides use the new codec
+        executor.write(Message.CALL, 1, "call");
+        assertEquals("call", outProcess.submit(() -> client.read().getPayload()).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void fallsBackToJavaSerialization() throws Exception {
+        Map<String, String> hello = new LinkedHashMap<>();
+        hello.put(Handshake.SECRET, "secret");
+        hello.put(Handshake.CODECS, JavaSerializationCodec.NAME);
+        client.writeHandshake(Message.HELLO, hello);
+
+        PayloadCodec codec = Handshake.welcome(executor, Handshake.readHello(executor), new SessionSerializationCodec(), null);
+        assertEquals(JavaSerializationCodec.NAME, codec.getName());
+        assertEquals(-1, Handshake.getLaunchedAt(hello));
+    }
+
+    @Test
+    public void enablesCompressionAndMaxFrameSize() throws Exception {
+        executor.setMaxFrameSize(1024 * 1024);
+        Future<Map<String, String>> welcome = outProcess.submit(() -> Handshake.connect(client, "secret"));
+
+        Handshake.welcome(executor, Handshake.readHello(executor), new JavaSerializationCodec(), null, new Compression(4096));
+        welcome.get(5, TimeUnit.SECONDS);
+        assertNotNull(executor.getCompression());
+        assertEquals(4096, client.getCompression().getThreshold());
+        assertEquals(1024 * 1024, client.getMaxFrameSize());
+    }
+
+    @Test
+    public void disablesCompressionNotOffered() throws Exception {
+        Map<String, String> hello = new LinkedHashMap<>();
+        hello.put(Handshake.SECRET, "secret");
+        client.writeHandshake(Message.HELLO, hello);
+
+        Handshake.welcome(executor, Handshake.readHello(executor), new JavaSerializationCodec(), null, new Compression(4096));
+        assertNull(executor.getCompression());
+    }
+
+    @Test
+    public void rejectsUnknownCodec() throws Exception {
+        Future<Map<String, String>> welcome = outProcess.submit(() -> Handshake.connect(client, "secret"));
+        Handshake.readHello(executor);
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put(Handshake.CODEC, "unknown");
+        executor.writeHandshake(Message.WELCOME, properties);
+        try {
+            welcome.get(5, TimeUnit.SECONDS);
+            fail("Unknown codec was accepted.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void rejectsMessageOtherThanHello() throws Exception {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        new MessageChannel(new ByteArrayInputStream(new byte[0]), written).write(Message.CALL, 1, "call");
+        MessageChannel channel = new MessageChannel(new ByteArrayInputStream(written.toByteArray()), new ByteArrayOutputStream());
+        try {
+            Handshake.readHello(channel);
+            fail("Call was read as hello.");
+        } catch (StreamCorruptedException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MessageChannelTest {
+
+    private static MessageChannel writer(ByteArrayOutputStream out) throws IOException {
+        return new MessageChannel(new ByteArrayInputStream(new byte[0]), out, 256);
+    }
+
+    private static MessageChannel reader(byte[] frames) throws IOException {
+        return new MessageChannel(new ByteArrayInputStream(frames), new ByteArrayOutputStream(), 256);
+    }
+
+    @Test
+    public void readsMessagesInOrder() throws Exception {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        MessageChannel writer = writer(written);
+        int length = writer.write(Message.CALL, 1, "first");
+        writer.write(Message.RESULT, 2, null);
+        writer.write(Message.ERROR, Long.MAX_VALUE, new IllegalStateException("failed"));
+        writer.writeFetch(3, "a/B.class", null);
+        assertEquals(written.size(), writer.getBytesWritten());
+
+        MessageChannel reader = reader(written.toByteArray());
+        Message message = reader.read();
+        assertEquals(Message.CALL, message.getType());
+        assertEquals(1, message.getId());
+        assertEquals("first", message.getPayload());
+        assertEquals(length, reader.getFrameLength());
+        message = reader.read();
+        assertEquals(Message.RESULT, message.getType());
+        assertNull(message.getPayload());
+        message = reader.read();
+        assertEquals(Long.MAX_VALUE, message.getId());
+        assertEquals("failed", ((IllegalStateException) message.getPayload()).getMessage());
+        message = reader.read();
+        assertEquals(Message.FETCH, message.getType());
+        assertArrayEquals(new String[]{"a/B.class", null}, (String[]) message.getPayload());
+        assertEquals(written.size(), reader.getBytesRead());
+        try {
+            reader.read();
+            fail("Message read after the last one.");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void readsHandshakeWithAnyCodec() throws Exception {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        MessageChannel writer = writer(written);
+        writer.setCodec(new CompactCodec());
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("key", "value");
+        properties.put("empty", "");
+        writer.writeHandshake(Message.HELLO, properties);
+
+        Message message = reader(written.toByteArray()).read();
+        assertEquals(Message.HELLO, message.getType());
+        assertEquals(properties, message.getPayload());
+    }
+
+    @Test
+    public void decodesFramesLater() throws Exception {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        MessageChannel writer = writer(written);
+        writer.setCodec(new SessionSerializationCodec());
+        writer.write(Message.CALL, 1, new ArrayList<>(Arrays.asList("a", "b")));
+        writer.write(Message.CALL, 2, new ArrayList<>(Arrays.asList("c")));
+
+        MessageChannel reader = reader(written.toByteArray());
+        reader.setCodec(new SessionSerializationCodec());
+        Message first = reader.readFrame();
+        Message second = reader.readFrame();
+        // decoded in reading order, second one depends on the first one descriptors
+        assertEquals(Arrays.asList("a", "b"), reader.decode(first).getPayload());
+        assertEquals(Arrays.asList("c"), reader.decode(second).getPayload());
+    }
+
+    @Test
+    public void compressesBigPayloads() throws Exception {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        MessageChannel writer = writer(written);
+        Compression compression = new Compression(1024);
+        writer.setCompression(compression);
+        byte[] small = new byte[512];
+        byte[] big = new byte[64 * 1024];
+        Arrays.fill(big, (byte) 7);
+        writer.write(Message.RESULT, 1, small);
+        int length = writer.write(Message.RESULT, 2, big);
+        assertTrue(length < big.length / 10);
+        assertTrue(compression.getBytesSaved() > 0);
+
+        MessageChannel reader = reader(written.toByteArray());
+        assertArrayEquals(small, (byte[]) reader.read().getPayload());
+        assertArrayEquals(big, (byte[]) reader.read().getPayload());
+    }
+
+    @Test
+    public void sendsIncompressiblePayloadsAsIs() throws Exception {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        MessageChannel writer = writer(written);
+        writer.setCompression(new Compression(1024));
+        byte[] random = new byte[64 * 1024];
+        new Random(1).nextBytes(random);
+        int length = writer.write(Message.RESULT, 1, random);
+        assertTrue(length > random.length);
+
+        Message message = reader(written.toByteArray()).readFrame();
+        assertEquals(Message.RESULT, message.getType());
+    }
+
+    @Test
+    public void failsCorruptCompressedPayload() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(9 + 8);
+        out.writeByte(Message.RESULT | 0x80);
+        out.writeLong(1);
+        out.writeInt(100);
+        out.writeInt(0x12345678);
+        out.flush();
+        // the next frame is still readable
+        MessageChannel writer = writer(bytes);
+        writer.write(Message.RESULT, 2, "next");
+
+        MessageChannel reader = reader(bytes.toByteArray());
+        try {
+            reader.read();
+            fail("Corrupt compressed payload was read.");
+        } catch (PayloadException e) {
+            assertEquals(1, e.getId());
+        }
+        assertEquals("next", reader.read().getPayload());
+    }
+
+    @Test
+    public void keepsConnectionAfterFailedEncode() throws Exception {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        MessageChannel writer = writer(written);
+        try {
+            writer.write(Message.RESULT, 1, new Object());
+            fail("Not serializable payload was written.");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, written.size());
+        writer.write(Message.RESULT, 2, "next");
+
+        assertEquals("next", reader(written.toByteArray()).read().getPayload());
+    }
+
+    @Test
+    public void rejectsFrameAboveMaxFrameSize() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        // a corrupt length must fail before anything is allocated
+        out.writeInt(Integer.MAX_VALUE);
+        out.writeByte(Message.CALL);
+        out.writeLong(1);
+        out.flush();
+
+        MessageChannel channel = reader(bytes.toByteArray());
+        try {
+            channel.read();
+            fail("Frame above max frame size was read.");
+        } catch (StreamCorruptedException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rejectsResourceLongerThanItsFrame() throws Exception {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(payload);
+        data.writeBoolean(true);
+        data.writeUTF("digest");
+        // a small frame claiming a 2 GB resource
+        data.writeInt(Integer.MAX_VALUE);
+        data.write(new byte[16]);
+        data.flush();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(9 + payload.size());
+        out.writeByte(Message.RESOURCE);
+        out.writeLong(1);
+        payload.writeTo(out);
+        out.flush();
+
+        try {
+            reader(bytes.toByteArray()).read();
+            fail("Resource longer than its frame was read.");
+        } catch (PayloadException e) {
+            assertTrue(e.getCause() instanceof StreamCorruptedException);
+        }
+    }
+
+    @Test
+    public void rejectsCompressedPayloadInflatingAboveMaxFrameSize() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(9 + 8);
+        out.writeByte(Message.RESULT | 0x80);
+        out.writeLong(1);
+        // original length, checked before inflating
+        out.writeInt(Integer.MAX_VALUE - 16);
+        out.writeInt(0);
+        out.flush();
+
+        MessageChannel channel = reader(bytes.toByteArray());
+        try {
+            channel.read();
+            fail("Compressed payload above max frame size was inflated.");
+        } catch (PayloadException e) {
+            assertTrue(e.getCause() instanceof StreamCorruptedException);
+        }
+    }
+
+    @Test
+    public void closesOnWriteAboveMaxFrameSize() throws Exception {
+        AtomicBoolean closed = new AtomicBoolean();
+        ByteArrayOutputStream written = new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        };
+        MessageChannel channel = writer(written);
+        channel.setMaxFrameSize(1024);
+        try {
+            channel.write(Message.RESULT, 1, new byte[4096]);
+            fail("Frame above max frame size was written.");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, written.size());
+        // the refused payload is already in the codec state
+        assertTrue(closed.get());
+    }
+
+    @Test
+    public void readsFrameAtMaxFrameSize() throws Exception {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        MessageChannel writer = writer(written);
+        writer.write(Message.RESULT, 1, new byte[2048]);
+
+        MessageChannel reader = reader(written.toByteArray());
+        reader.setMaxFrameSize(written.size() - 4);
+        assertEquals(1, reader.read().getId());
+    }
+}
@@ -0,0 +1,151 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SessionSerializationCodecTest {
+
+    @Test
+    public void roundTripsPayloadsOnOneConnection() throws Exception {
+        Connection connection = new Connection(new SessionSerializationCodec());
+        assertEquals(42, connection.roundTrip(42));
+        assertEquals("text", connection.roundTrip("text"));
+        assertEquals(Arrays.asList(1L, 2L, 3L), connection.roundTrip(new ArrayList<>(Arrays.asList(1L, 2L, 3L))));
+        assertEquals(null, connection.roundTrip(null));
+    }
+
+    @Test
+    public void sendsClassDescriptorsOnce() throws Exception {
+        Connection connection = new Connection(new SessionSerializationCodec());
+        connection.roundTrip(new ArrayList<>(Arrays.asList("a", "b")));
+        int first = connection.size;
+        connection.roundTrip(new ArrayList<>(Arrays.asList("a", "b")));
+        assertTrue(connection.size < first);
+    }
+
+    @Test
+    public void roundTripsPayloadsAfterBigOne() throws Exception {
+        Connection connection = new Connection(new SessionSerializationCodec());
+        // shrinks encoder buffers
+        byte[] big = new byte[2 * 1024 * 1024];
+        big[big.length - 1] = 7;
+        assertArrayEquals(big, (byte[]) connection.roundTrip(big));
+        assertArrayEquals(big, (byte[]) connection.roundTrip(big));
+        assertEquals("small", connection.roundTrip("small"));
+    }
+
+    @Test
+    public void sendsSharedObjectsOnce() throws Exception {
+        Connection connection = new Connection(new SessionSerializationCodec());
+        Table table = new Table(new int[4096]);
+        Table first = (Table) connection.roundTrip(table);
+        int firstSize = connection.size;
+        Table second = (Table) connection.roundTrip(table);
+        assertSame(first, second);
+        assertTrue(connection.size < firstSize / 10);
+    }
+
+    @Test
+    public void resetsCachesAboveLimits() throws Exception {
+        Connection connection = new Connection(new SessionSerializationCodec(1024, 1, Long.MAX_VALUE));
+        Table first = (Table) connection.roundTrip(new Table(new int[]{1}));
+        Table second = (Table) connection.roundTrip(new Table(new int[]{2}));
+        assertEquals(1, first.values[0]);
+        assertEquals(2, second.values[0]);
+        assertEquals("after reset", connection.roundTrip("after reset"));
+    }
+
+    @Test
+    public void keepsConnectionAfterFailedEncode() throws Exception {
+        Connection connection = new Connection(new SessionSerializationCodec());
+        try {
+            connection.roundTrip(new Object());
+            fail("Not serializable payload was encoded.");
+        } catch (NotSerializableException e) {
+            // expected
+        }
+        assertEquals("next", connection.roundTrip("next"));
+    }
+
+    /**
+     * One encoder and one decoder for many payloads, the way a
+     * <code>MessageChannel</code> uses them.
+     */
+    private static final class Connection {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final PayloadInput in = new PayloadInput();
+        private final PayloadEncoder encoder;
+        private final PayloadDecoder decoder;
+        private int size;
+
+        private Connection(PayloadCodec codec) throws IOException {
+            encoder = codec.newEncoder(out);
+            decoder = codec.newDecoder(in);
+        }
+
+        private Object roundTrip(Object payload) throws IOException, ClassNotFoundException {
+            out.reset();
+            encoder.encode(payload);
+            size = out.size();
+            in.current = new ByteArrayInputStream(out.toByteArray());
+            Object copy = decoder.decode();
+            assertEquals(0, in.current.available());
+            return copy;
+        }
+    }
+
+    private static final class PayloadInput extends InputStream {
+
+        private InputStream current;
+
+        @Override
+        public int read() throws IOException {
+            return current.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return current.read(b, off, len);
+        }
+    }
+
+    private static final class Table implements SessionShared {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] values;
+
+        private Table(int[] values) {
+            this.values = values;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.protocol;
+
+import dyorgio.runtime.out.process.MappedBytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class SharedMemoryTest {
+
+    private static final int THRESHOLD = 1024;
+
+    private SharedMemory executor;
+    private SharedMemory outProcess;
+    private Path directory;
+
+    @Before
+    public void create() throws IOException {
+        executor = SharedMemory.create(THRESHOLD);
+        Map<String, String> welcome = new HashMap<>();
+        executor.addTo(welcome);
+        outProcess = SharedMemory.fromProperties(welcome);
+        directory = Paths.get(welcome.get(SharedMemory.DIRECTORY));
+    }
+
+    @After
+    public void close() {
+        outProcess.close();
+        executor.close();
+    }
+
+    @Test
+    public void sendsBigByteArrayThroughRegion() throws Exception {
+        byte[] data = random(THRESHOLD * 4);
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        int length = channel(written, executor).write(Message.RESULT, 1, data);
+
+        // only the region name went through the connection
+        assertTrue(length < THRESHOLD);
+        assertEquals(1, regions());
+
+        Message message = channel(written.toByteArray(), outProcess).read();
+        assertArrayEquals(data, (byte[]) message.getPayload());
+        assertEquals(0, regions());
+    }
+
+    @Test
+    public void keepsSmallPayloadsInConnection() throws Exception {
+        byte[] data = random(THRESHOLD - 1);
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        int length = channel(written, executor).write(Message.RESULT, 1, data);
+
+        assertTrue(length > data.length);
+        assertEquals(0, regions());
+        assertArrayEquals(data, (byte[]) channel(written.toByteArray(), outProcess).read().getPayload());
+    }
+
+    @Test
+    public void mapsMappedBytesInsidePayload() throws Exception {
+        byte[] big = random(THRESHOLD);
+        byte[] small = random(10);
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        channel(written, outProcess).write(Message.CALL, 1, new ArrayList<>(Arrays.asList(new MappedBytes(big), new MappedBytes(small))));
+        assertEquals(1, regions());
+
+        @SuppressWarnings("unchecked")
+        List<MappedBytes> read = (List<MappedBytes>) channel(written.toByteArray(), executor).read().getPayload();
+        assertTrue(read.get(0).getBuffer().isDirect());
+        assertArrayEquals(big, read.get(0).toByteArray());
+        assertFalse(read.get(1).getBuffer().isDirect());
+        assertArrayEquals(small, read.get(1).toByteArray());
+        assertEquals(0, regions());
+    }
+
+    @Test
+    public void failsWithoutSharedMemory() throws Exception {
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        channel(written, executor).write(Message.RESULT, 1, random(THRESHOLD));
+        try {
+            channel(written.toByteArray(), null).read();
+            fail("Region read without shared memory.");
+        } catch (PayloadException e) {
+            assertTrue(e.getCause() instanceof InvalidObjectException);
+        }
+    }
+
+    @Test
+    public void rejectsRegionOutsideDirectory() throws Exception {
+        Path outside = Files.createTempFile("out-process-shm-test", ".bin");
+        try {
+            outProcess.read("../" + outside.getFileName(), 0);
+            fail("Region read outside its directory.");
+        } catch (IOException e) {
+            assertTrue(Files.exists(outside));
+        } finally {
+            Files.delete(outside);
+        }
+    }
+
+    @Test
+    public void createsPrivateDirectory() throws Exception {
+        assumeTrue(directory.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(directory)));
+        executor.write(ByteBuffer.wrap(random(10)));
+        try (Stream<Path> regions = Files.list(directory)) {
+            assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(regions.findFirst().get())));
+        }
+    }
+
+    @Test
+    public void deletesDirectoryWhenExecutorCloses() throws Exception {
+        // left by a dead out process
+        channel(new ByteArrayOutputStream(), outProcess).write(Message.RESULT, 1, random(THRESHOLD));
+
+        outProcess.close();
+        assertEquals(1, regions());
+        executor.close();
+        assertFalse(Files.exists(directory));
+    }
+
+    private int regions() throws IOException {
+        try (Stream<Path> regions = Files.list(directory)) {
+            return (int) regions.count();
+        }
+    }
+
+    private static MessageChannel channel(ByteArrayOutputStream out, SharedMemory sharedMemory) throws IOException {
+        MessageChannel channel = new MessageChannel(new ByteArrayInputStream(new byte[0]), out, 256);
+        channel.setSharedMemory(sharedMemory);
+        return channel;
+    }
+
+    private static MessageChannel channel(byte[] frames, SharedMemory sharedMemory) throws IOException {
+        MessageChannel channel = new MessageChannel(new ByteArrayInputStream(frames), new ByteArrayOutputStream(), 256);
+        channel.setSharedMemory(sharedMemory);
+        return channel;
+    }
+
+    private static byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,148 @@
+/** *****************************************************************************
+ * Copyright 2017 See AUTHORS file.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***************************************************************************** */
+package dyorgio.runtime.out.process.transport;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+public class UnixDomainTransportTest {
+
+    @Test
+    public void exchangesDataBothWays() throws Exception {
+        assumeTrue(UnixDomainTransport.isSupported());
+        try (TransportServer server = new UnixDomainTransport().listen();
+                Connection client = Transports.connect(server.getAddress());
+                Connection accepted = server.accept()) {
+            assertTrue(server.getAddress().startsWith(UnixDomainTransport.SCHEME + ':'));
+
+            byte[] big = new byte[1 << 20];
+            for (int i = 0; i < big.length; i++) {
+                big[i] = (byte) i;
+            }
+            // bigger than the socket buffers, written while the other side reads
+            CompletableFuture<byte[]> read = CompletableFuture.supplyAsync(() -> {
+                try {
+                    DataInputStream in = new DataInputStream(accepted.getInputStream());
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    return bytes;
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            DataOutputStream out = new DataOutputStream(client.getOutputStream());
+            out.writeInt(big.length);
+            out.write(big);
+            out.flush();
+            assertArrayEquals(big, read.get(10, TimeUnit.SECONDS));
+
+            accepted.getOutputStream().write(42);
+            assertEquals(42, client.getInputStream().read());
+            accepted.close();
+            assertEquals(-1, client.getInputStream().read());
+        }
+    }
+
+    @Test
+    public void writesWhileReadIsWaiting() throws Exception {
+        assumeTrue(UnixDomainTransport.isSupported());
+        try (TransportServer server = new UnixDomainTransport().listen();
+                Connection client = Transports.connect(server.getAddress());
+                Connection accepted = server.accept()) {
+            CompletableFuture<Integer> waiting = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return client.getInputStream().read();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            Thread.sleep(100);
+            CompletableFuture.runAsync(() -> {
+                try {
+                    client.getOutputStream().write(1);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }).get(5, TimeUnit.SECONDS);
+            assertEquals(1, accepted.getInputStream().read());
+
+            accepted.getOutputStream().write(2);
+            assertEquals(2, (int) waiting.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void deletesPrivateSocketDirectoryOnClose() throws Exception {
+        assumeTrue(UnixDomainTransport.isSupported());
+        TransportServer server = new UnixDomainTransport().listen();
+        Path socket = Paths.get(server.getAddress().substring(UnixDomainTransport.SCHEME.length() + 1));
+        Path directory = socket.getParent();
+        try {
+            assertTrue(Files.exists(socket));
+            if (directory.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(directory)));
+            }
+        } finally {
+            server.close();
+        }
+        assertTrue(server.isClosed());
+        assertFalse(Files.exists(socket));
+        assertFalse(Files.exists(directory));
+        try {
+            Transports.connect(server.getAddress()).close();
+            fail("Connected to a closed server.");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherSchemes() throws Exception {
+        assumeTrue(UnixDomainTransport.isSupported());
+        new UnixDomainTransport().connect("tcp:localhost:1");
+    }
+
+    @Test
+    public void isNotAvailableBeforeJava16() {
+        assumeFalse(UnixDomainTransport.isSupported());
+        for (Transport transport : Transports.getAvailable()) {
+            assertFalse(UnixDomainTransport.SCHEME.equals(transport.getScheme()));
+        }
+        try {
+            new UnixDomainTransport();
+            fail("Created without unix domain sockets.");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+}